@@ -0,0 +1,29 @@
+package com.UsdtWallet.UsdtWallet.config;
+
+import org.flywaydb.core.Flyway;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.boot.autoconfigure.flyway.FlywayMigrationStrategy;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.DependsOn;
+
+/**
+ * Bảng do Hibernate ddl-auto tạo, migration chỉ thêm index nên phải chạy sau JPA:
+ * bỏ lượt migrate mặc định (trước EntityManagerFactory) và migrate khi EntityManagerFactory đã sẵn sàng.
+ */
+@Configuration
+public class FlywayConfig {
+
+    @Bean
+    public FlywayMigrationStrategy flywayMigrationStrategy() {
+        return flyway -> {
+            // Migrate ở deferredFlywayMigration
+        };
+    }
+
+    @Bean
+    @DependsOn("entityManagerFactory")
+    public InitializingBean deferredFlywayMigration(Flyway flyway) {
+        return flyway::migrate;
+    }
+}
@@ -0,0 +1,89 @@
+package com.UsdtWallet.UsdtWallet.controller;
+
+import com.UsdtWallet.UsdtWallet.model.dto.response.ApiResponse;
+import com.UsdtWallet.UsdtWallet.model.entity.LedgerIntegrityRun;
+import com.UsdtWallet.UsdtWallet.service.LedgerIntegrityService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/admin/ledger-integrity")
+@RequiredArgsConstructor
+@Slf4j
+@PreAuthorize("hasRole('ADMIN')")
+public class AdminLedgerIntegrityController {
+
+    private final LedgerIntegrityService ledgerIntegrityService;
+
+    /**
+     * POST /api/admin/ledger-integrity/run?mode=INCREMENTAL|FULL (chạy nền)
+     */
+    @PostMapping("/run")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> startRun(
+            @RequestParam(defaultValue = "INCREMENTAL") String mode) {
+        try {
+            LedgerIntegrityRun.Mode runMode = LedgerIntegrityRun.Mode.valueOf(mode.trim().toUpperCase());
+            if (!ledgerIntegrityService.startAsync(runMode)) {
+                return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(ApiResponse.<Map<String, Object>>builder()
+                        .success(false)
+                        .message("A ledger integrity run is already in progress")
+                        .build());
+            }
+            return ResponseEntity.accepted()
+                .body(ApiResponse.success("Ledger integrity run started", Map.of("mode", runMode)));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest()
+                .body(ApiResponse.<Map<String, Object>>builder()
+                    .success(false)
+                    .message("Invalid mode: " + mode)
+                    .build());
+        }
+    }
+
+    /**
+     * GET /api/admin/ledger-integrity/runs
+     */
+    @GetMapping("/runs")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> getRuns(
+            @RequestParam(defaultValue = "20") int limit) {
+        try {
+            var runs = ledgerIntegrityService.getRecentRuns(limit);
+            return ResponseEntity.ok(ApiResponse.success(Map.of("runs", runs, "count", runs.size())));
+        } catch (Exception e) {
+            log.error("Error fetching ledger integrity runs", e);
+            return ResponseEntity.badRequest()
+                .body(ApiResponse.<Map<String, Object>>builder()
+                    .success(false)
+                    .message("Failed to fetch ledger integrity runs: " + e.getMessage())
+                    .build());
+        }
+    }
+
+    /**
+     * GET /api/admin/ledger-integrity/runs/{runId}/issues?afterId=&limit= (keyset theo id)
+     */
+    @GetMapping("/runs/{runId}/issues")
+    public ResponseEntity<ApiResponse<Map<String, Object>>> getIssues(
+            @PathVariable Long runId,
+            @RequestParam(required = false) Long afterId,
+            @RequestParam(defaultValue = "100") int limit) {
+        try {
+            var issues = ledgerIntegrityService.getIssues(runId, afterId, limit);
+            return ResponseEntity.ok(ApiResponse.success(Map.of("issues", issues, "count", issues.size())));
+        } catch (Exception e) {
+            log.error("Error fetching ledger integrity issues for run {}", runId, e);
+            return ResponseEntity.badRequest()
+                .body(ApiResponse.<Map<String, Object>>builder()
+                    .success(false)
+                    .message("Failed to fetch ledger integrity issues: " + e.getMessage())
+                    .build());
+        }
+    }
+}
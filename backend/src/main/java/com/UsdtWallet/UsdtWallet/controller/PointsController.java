@@ -1,8 +1,11 @@
 package com.UsdtWallet.UsdtWallet.controller;
 
+import com.UsdtWallet.UsdtWallet.model.dto.KeysetPage;
 import com.UsdtWallet.UsdtWallet.model.entity.PointsLedger;
 import com.UsdtWallet.UsdtWallet.security.UserPrincipal;
+import com.UsdtWallet.UsdtWallet.service.IdempotencyService;
 import com.UsdtWallet.UsdtWallet.service.PointsService;
+import com.fasterxml.jackson.core.type.TypeReference;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.ResponseEntity;
@@ -11,6 +14,7 @@ import org.springframework.web.bind.annotation.*;
 
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.DecimalMin;
+import jakarta.validation.constraints.NotEmpty;
 import jakarta.validation.constraints.NotBlank;
 import jakarta.validation.constraints.NotNull;
 import java.math.BigDecimal;
@@ -29,6 +33,10 @@ public class PointsController {
     private final PointsService pointsService;
     private final UserRepository userRepository; // added
     private final PasswordEncoder passwordEncoder; // added
+    private final IdempotencyService idempotencyService;
+
+    private static final TypeReference<Map<String, Object>> RESPONSE_TYPE = new TypeReference<>() {
+    };
 
     /**
      * Get current user's points balance (includes available and locked)
@@ -62,21 +70,19 @@ public class PointsController {
     }
 
     /**
-     * Get user's transaction history
+     * Get user's transaction history (keyset: truyền nextCursor của trang trước vào cursor)
      */
     @GetMapping("/history")
     public ResponseEntity<Map<String, Object>> getTransactionHistory(
             @AuthenticationPrincipal UserPrincipal userPrincipal,
-            @RequestParam(defaultValue = "50") int limit) {
+            @RequestParam(defaultValue = "50") int limit,
+            @RequestParam(required = false) String cursor) {
 
         try {
             java.util.UUID userId = userPrincipal.getId();
-            List<PointsLedger> history = pointsService.getTransactionHistory(userId, limit);
+            KeysetPage<PointsLedger> history = pointsService.getTransactionHistory(userId, cursor, limit);
 
-            return ResponseEntity.ok(Map.of(
-                "success", true,
-                "data", history
-            ));
+            return ResponseEntity.ok(pageResponse(history));
 
         } catch (Exception e) {
             log.error("Error getting transaction history for user: {}", userPrincipal.getId(), e);
@@ -91,15 +97,15 @@ public class PointsController {
      * Get user's P2P transaction history
      */
     @GetMapping("/p2p-history")
-    public ResponseEntity<Map<String, Object>> getP2PHistory(@AuthenticationPrincipal UserPrincipal userPrincipal) {
+    public ResponseEntity<Map<String, Object>> getP2PHistory(
+            @AuthenticationPrincipal UserPrincipal userPrincipal,
+            @RequestParam(defaultValue = "50") int limit,
+            @RequestParam(required = false) String cursor) {
         try {
             java.util.UUID userId = userPrincipal.getId();
-            List<PointsLedger> p2pHistory = pointsService.getP2PHistory(userId);
+            KeysetPage<PointsLedger> p2pHistory = pointsService.getP2PHistory(userId, cursor, limit);
 
-            return ResponseEntity.ok(Map.of(
-                "success", true,
-                "data", p2pHistory
-            ));
+            return ResponseEntity.ok(pageResponse(p2pHistory));
 
         } catch (Exception e) {
             log.error("Error getting P2P history for user: {}", userPrincipal.getId(), e);
@@ -139,8 +145,20 @@ public class PointsController {
     @PostMapping("/transfer")
     public ResponseEntity<Map<String, Object>> transferPoints(
             @AuthenticationPrincipal UserPrincipal userPrincipal,
-            @Valid @RequestBody TransferRequest request) {
+            @Valid @RequestBody TransferRequest request,
+            @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey) {
+        // Chỉ thả key khi chắc chắn chưa chuyển (sai password, thiếu balance...) để client retry được với cùng key;
+        // mọi response sau khi transfer đã commit (có referenceId) đều được lưu
+        return idempotencyService.execute(userPrincipal.getId(), "points.transfer", idempotencyKey,
+            request.getToUserId() + "|" + request.getAmount().stripTrailingZeros().toPlainString()
+                + "|" + request.getDescription(),
+            RESPONSE_TYPE, message -> Map.of("success", false, "message", message),
+            response -> response.getBody() != null && response.getBody().get("referenceId") != null,
+            () -> doTransferPoints(userPrincipal, request));
+    }
 
+    private ResponseEntity<Map<String, Object>> doTransferPoints(UserPrincipal userPrincipal, TransferRequest request) {
+        String referenceId = null;
         try {
             java.util.UUID fromUserId = userPrincipal.getId();
             java.util.UUID toUserUuid;
@@ -179,34 +197,36 @@ public class PointsController {
                 ));
             }
 
-            boolean success = pointsService.transferPoints(
+            referenceId = pointsService.transferPoints(
                 fromUserId,
                 toUserUuid,
                 request.getAmount(),
                 request.getDescription()
             );
 
-            if (success) {
-                log.info("P2P transfer successful: {} points from {} to {}",
-                    request.getAmount(), fromUserId, toUserUuid);
-
-                return ResponseEntity.ok(Map.of(
-                    "success", true,
-                    "message", "Transfer completed successfully",
-                    "data", Map.of(
-                        "amount", request.getAmount(),
-                        "toUserId", toUserUuid.toString(),
-                        "description", request.getDescription()
-                    )
-                ));
-            } else {
+            if (referenceId == null) {
                 return ResponseEntity.ok(Map.of(
                     "success", false,
                     "message", "Transfer failed"
                 ));
             }
 
+            log.info("P2P transfer successful: {} points from {} to {} (ref={})",
+                request.getAmount(), fromUserId, toUserUuid, referenceId);
+
+            // description có thể null: không dùng Map.of
+            Map<String, Object> data = new java.util.HashMap<>();
+            data.put("amount", request.getAmount());
+            data.put("toUserId", toUserUuid.toString());
+            data.put("description", request.getDescription());
+            return transferCompleted(referenceId, data);
+
         } catch (Exception e) {
+            if (referenceId != null) {
+                // Transfer đã commit: không trả lỗi (client retry sẽ chuyển lần 2)
+                log.error("P2P transfer {} committed but building response failed", referenceId, e);
+                return transferCompleted(referenceId, Map.of());
+            }
             log.error("Error in P2P transfer", e);
             return ResponseEntity.ok(Map.of(
                 "success", false,
@@ -215,6 +235,94 @@ public class PointsController {
         }
     }
 
+    private ResponseEntity<Map<String, Object>> transferCompleted(String referenceId, Map<String, Object> data) {
+        Map<String, Object> response = new java.util.HashMap<>();
+        response.put("success", true);
+        response.put("message", "Transfer completed successfully");
+        response.put("referenceId", referenceId);
+        response.put("data", data);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Batch transfer: 1 sender -> nhiều người nhận (merchant payout)
+     */
+    @PostMapping("/transfer/batch")
+    public ResponseEntity<Map<String, Object>> transferPointsBatch(
+            @AuthenticationPrincipal UserPrincipal userPrincipal,
+            @Valid @RequestBody BatchTransferRequest request,
+            @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey) {
+        StringBuilder fingerprint = new StringBuilder(String.valueOf(request.getDescription()));
+        for (BatchTransferRequest.Recipient recipient : request.getRecipients()) {
+            fingerprint.append('|').append(recipient.getToUserId())
+                .append(':').append(recipient.getAmount().stripTrailingZeros().toPlainString());
+        }
+        return idempotencyService.execute(userPrincipal.getId(), "points.transfer.batch", idempotencyKey,
+            fingerprint.toString(),
+            RESPONSE_TYPE, message -> Map.of("success", false, "message", message),
+            response -> Boolean.TRUE.equals(response.getBody() != null ? response.getBody().get("success") : null),
+            () -> doTransferPointsBatch(userPrincipal, request));
+    }
+
+    private ResponseEntity<Map<String, Object>> doTransferPointsBatch(UserPrincipal userPrincipal,
+                                                                       BatchTransferRequest request) {
+        try {
+            // Gộp người nhận trùng, giữ thứ tự request
+            Map<java.util.UUID, BigDecimal> amounts = new java.util.LinkedHashMap<>();
+            for (BatchTransferRequest.Recipient recipient : request.getRecipients()) {
+                java.util.UUID toUserUuid;
+                try {
+                    toUserUuid = java.util.UUID.fromString(recipient.getToUserId());
+                } catch (Exception ex) {
+                    return ResponseEntity.ok(Map.of(
+                        "success", false,
+                        "message", "Invalid recipient user ID format: " + recipient.getToUserId()
+                    ));
+                }
+                amounts.merge(toUserUuid, recipient.getAmount(), BigDecimal::add);
+            }
+
+            var user = userRepository.findById(userPrincipal.getId())
+                .orElseThrow(() -> new RuntimeException("User not found"));
+            if (!passwordEncoder.matches(request.getPassword(), user.getPassword())) {
+                return ResponseEntity.ok(Map.of(
+                    "success", false,
+                    "message", "Invalid password"
+                ));
+            }
+
+            PointsService.BatchTransferResult result = pointsService.transferPointsBatch(
+                userPrincipal.getId(), amounts, request.getDescription());
+
+            return ResponseEntity.ok(Map.of(
+                "success", true,
+                "message", "Batch transfer completed successfully",
+                "data", Map.of(
+                    "referenceId", result.referenceId(),
+                    "recipients", result.recipients(),
+                    "totalAmount", result.totalAmount(),
+                    "totalFee", result.totalFee(),
+                    "balance", result.balanceAfter()
+                )
+            ));
+
+        } catch (Exception e) {
+            log.error("Error in batch transfer from {}", userPrincipal.getId(), e);
+            return ResponseEntity.ok(Map.of(
+                "success", false,
+                "message", "Batch transfer failed: " + e.getMessage()
+            ));
+        }
+    }
+
+    private Map<String, Object> pageResponse(KeysetPage<?> page) {
+        Map<String, Object> response = new java.util.HashMap<>();
+        response.put("success", true);
+        response.put("data", page.items());
+        response.put("nextCursor", page.nextCursor());
+        return response;
+    }
+
     /**
      * Request class for P2P transfer
      */
@@ -244,4 +352,41 @@ public class PointsController {
         public String getPassword() { return password; }
         public void setPassword(String password) { this.password = password; }
     }
+
+    /**
+     * Request class for batch transfer
+     */
+    public static class BatchTransferRequest {
+        @NotEmpty(message = "Recipients are required")
+        private List<@Valid Recipient> recipients;
+
+        private String description;
+
+        @NotBlank(message = "Password is required")
+        private String password;
+
+        public static class Recipient {
+            @NotBlank(message = "Recipient user ID is required")
+            private String toUserId;
+
+            @NotNull(message = "Amount is required")
+            @DecimalMin(value = "0.01", message = "Minimum transfer amount is 0.01")
+            private BigDecimal amount;
+
+            public String getToUserId() { return toUserId; }
+            public void setToUserId(String toUserId) { this.toUserId = toUserId; }
+
+            public BigDecimal getAmount() { return amount; }
+            public void setAmount(BigDecimal amount) { this.amount = amount; }
+        }
+
+        public List<Recipient> getRecipients() { return recipients; }
+        public void setRecipients(List<Recipient> recipients) { this.recipients = recipients; }
+
+        public String getDescription() { return description; }
+        public void setDescription(String description) { this.description = description; }
+
+        public String getPassword() { return password; }
+        public void setPassword(String password) { this.password = password; }
+    }
 }
@@ -1,5 +1,6 @@
 package com.UsdtWallet.UsdtWallet.controller;
 
+import com.UsdtWallet.UsdtWallet.model.dto.KeysetPage;
 import com.UsdtWallet.UsdtWallet.model.entity.WalletTransaction;
 import com.UsdtWallet.UsdtWallet.service.WalletTransactionService;
 import com.UsdtWallet.UsdtWallet.security.UserPrincipal;
@@ -8,10 +9,13 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.time.LocalDateTime;
 import java.util.Map;
@@ -52,6 +56,43 @@ public class TransactionController {
         return ResponseEntity.ok(transactions);
     }
 
+    /**
+     * Lịch sử giao dịch phân trang keyset: truyền nextCursor của trang trước vào cursor
+     */
+    @GetMapping("/history")
+    public ResponseEntity<KeysetPage<WalletTransaction>> getTransactionHistory(
+            @AuthenticationPrincipal UserPrincipal currentUser,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "50") int limit) {
+
+        return ResponseEntity.ok(walletTransactionService
+            .getTransactionHistory(currentUser.getId(), cursor, limit));
+    }
+
+    /**
+     * Export giao dịch dạng CSV hoặc NDJSON, stream thẳng ra response
+     */
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> exportTransactions(
+            @AuthenticationPrincipal UserPrincipal currentUser,
+            @RequestParam(defaultValue = "csv") String format,
+            @RequestParam(required = false) String startDate,
+            @RequestParam(required = false) String endDate) {
+
+        WalletTransactionService.ExportFormat exportFormat = WalletTransactionService.ExportFormat.from(format);
+        java.util.UUID userId = currentUser.getId();
+        boolean csv = exportFormat == WalletTransactionService.ExportFormat.CSV;
+
+        StreamingResponseBody body = out ->
+            walletTransactionService.exportTransactions(userId, startDate, endDate, exportFormat, out);
+
+        return ResponseEntity.ok()
+            .contentType(csv ? new MediaType("text", "csv") : MediaType.parseMediaType("application/x-ndjson"))
+            .header(HttpHeaders.CONTENT_DISPOSITION,
+                "attachment; filename=\"transactions." + (csv ? "csv" : "ndjson") + "\"")
+            .body(body);
+    }
+
     /**
      * Lấy chi tiết giao dịch cụ thể theo ID
      */
@@ -5,7 +5,9 @@ import com.UsdtWallet.UsdtWallet.model.dto.request.WithdrawalRequest;
 import com.UsdtWallet.UsdtWallet.model.dto.response.ApiResponse;
 import com.UsdtWallet.UsdtWallet.model.entity.WithdrawalTransaction;
 import com.UsdtWallet.UsdtWallet.security.UserPrincipal;
+import com.UsdtWallet.UsdtWallet.service.IdempotencyService;
 import com.UsdtWallet.UsdtWallet.service.WithdrawalService;
+import com.fasterxml.jackson.core.type.TypeReference;
 import jakarta.validation.Valid;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -22,11 +24,25 @@ import java.util.Map;
 public class WithdrawalController {
 
     private final WithdrawalService withdrawalService;
+    private final IdempotencyService idempotencyService;
+
+    private static final TypeReference<ApiResponse<Map<String, Object>>> RESPONSE_TYPE = new TypeReference<>() {
+    };
 
     @PostMapping("/request")
     public ResponseEntity<ApiResponse<Map<String, Object>>> createWithdrawal(
             @Valid @RequestBody com.UsdtWallet.UsdtWallet.model.dto.request.WithdrawalCreateRequest request,
-            @AuthenticationPrincipal UserPrincipal userPrincipal) {
+            @AuthenticationPrincipal UserPrincipal userPrincipal,
+            @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey) {
+        return idempotencyService.execute(userPrincipal.getId(), "withdrawal.create", idempotencyKey,
+            request.getToAddress() + "|" + request.getAmount().stripTrailingZeros().toPlainString(),
+            RESPONSE_TYPE, this::errorResponse, response -> response.getStatusCode().is2xxSuccessful(),
+            () -> doCreateWithdrawal(request, userPrincipal));
+    }
+
+    private ResponseEntity<ApiResponse<Map<String, Object>>> doCreateWithdrawal(
+            com.UsdtWallet.UsdtWallet.model.dto.request.WithdrawalCreateRequest request,
+            UserPrincipal userPrincipal) {
         try {
             log.info("Automated withdrawal request from user: {}, amount: {}, address: {}",
                 userPrincipal.getId(), request.getAmount(), request.getToAddress());
@@ -59,16 +75,19 @@ public class WithdrawalController {
     }
 
     /**
-     * Get withdrawal history
+     * Get withdrawal history.
+     * Có cursor (nextCursor của trang trước, hoặc rỗng cho trang đầu) thì phân trang keyset, không thì theo page.
      */
     @GetMapping("/history")
     public ResponseEntity<ApiResponse<Map<String, Object>>> getWithdrawalHistory(
             @AuthenticationPrincipal UserPrincipal userPrincipal,
             @RequestParam(defaultValue = "0") int page,
-            @RequestParam(defaultValue = "20") int size) {
+            @RequestParam(defaultValue = "20") int size,
+            @RequestParam(required = false) String cursor) {
         try {
-            Map<String, Object> history = withdrawalService.getUserWithdrawalHistory(
-                userPrincipal.getId(), page, size);
+            Map<String, Object> history = cursor != null
+                ? withdrawalService.getUserWithdrawalHistory(userPrincipal.getId(), cursor, size)
+                : withdrawalService.getUserWithdrawalHistory(userPrincipal.getId(), page, size);
 
             return ResponseEntity.ok(ApiResponse.success(history));
 
@@ -159,7 +178,16 @@ public class WithdrawalController {
     @PostMapping("/confirm")
     public ResponseEntity<ApiResponse<Map<String, Object>>> confirmWithdrawal(
             @Valid @RequestBody WithdrawalConfirmRequest request,
-            @AuthenticationPrincipal UserPrincipal userPrincipal) {
+            @AuthenticationPrincipal UserPrincipal userPrincipal,
+            @RequestHeader(value = IdempotencyService.HEADER, required = false) String idempotencyKey) {
+        return idempotencyService.execute(userPrincipal.getId(), "withdrawal.confirm", idempotencyKey,
+            String.valueOf(request.getWithdrawalId()),
+            RESPONSE_TYPE, this::errorResponse, response -> response.getStatusCode().is2xxSuccessful(),
+            () -> doConfirmWithdrawal(request, userPrincipal));
+    }
+
+    private ResponseEntity<ApiResponse<Map<String, Object>>> doConfirmWithdrawal(
+            WithdrawalConfirmRequest request, UserPrincipal userPrincipal) {
         try {
             Map<String, Object> result = withdrawalService.confirmWithdrawal(userPrincipal.getId(), request);
             return ResponseEntity.ok(ApiResponse.success("Withdrawal confirmed", result));
@@ -172,4 +200,11 @@ public class WithdrawalController {
                     .build());
         }
     }
+
+    private ApiResponse<Map<String, Object>> errorResponse(String message) {
+        return ApiResponse.<Map<String, Object>>builder()
+            .success(false)
+            .message(message)
+            .build();
+    }
 }
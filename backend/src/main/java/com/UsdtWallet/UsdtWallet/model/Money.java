@@ -0,0 +1,133 @@
+package com.UsdtWallet.UsdtWallet.model;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+
+/**
+ * Số tiền 6 chữ số thập phân lưu bằng long đơn vị nhỏ nhất (micro-USDT / sun của TRX),
+ * khớp đơn vị on-chain. Cộng/trừ/nhân kiểm tra tràn (ArithmeticException), không qua double.
+ * Chuyển từ BigDecimal: of(amount) yêu cầu chính xác (tối đa 6 chữ số thập phân),
+ * of(amount, rounding) làm tròn theo chỉ định.
+ */
+public final class Money implements Comparable<Money> {
+
+    public static final int DECIMALS = 6;
+    public static final long UNITS_PER_WHOLE = 1_000_000L;
+
+    public static final Money ZERO = new Money(0);
+
+    private final long micros;
+
+    private Money(long micros) {
+        this.micros = micros;
+    }
+
+    public static Money ofMicros(long micros) {
+        return micros == 0 ? ZERO : new Money(micros);
+    }
+
+    /**
+     * Giá trị nguyên on-chain (uint256 của TRC20, sun); throw nếu vượt long
+     */
+    public static Money ofMicros(BigInteger micros) {
+        return ofMicros(micros.longValueExact());
+    }
+
+    public static Money ofMicros(String micros) {
+        return ofMicros(new BigInteger(micros.trim()));
+    }
+
+    /**
+     * Chính xác: throw ArithmeticException nếu amount có hơn 6 chữ số thập phân
+     */
+    public static Money of(BigDecimal amount) {
+        return of(amount, RoundingMode.UNNECESSARY);
+    }
+
+    public static Money of(BigDecimal amount, RoundingMode rounding) {
+        return ofMicros(amount.setScale(DECIMALS, rounding).unscaledValue().longValueExact());
+    }
+
+    public static Money ofWhole(long whole) {
+        return ofMicros(Math.multiplyExact(whole, UNITS_PER_WHOLE));
+    }
+
+    public Money plus(Money other) {
+        return ofMicros(Math.addExact(micros, other.micros));
+    }
+
+    public Money minus(Money other) {
+        return ofMicros(Math.subtractExact(micros, other.micros));
+    }
+
+    public Money times(long factor) {
+        return ofMicros(Math.multiplyExact(micros, factor));
+    }
+
+    /**
+     * Nhân tỉ lệ (phí %), làm tròn về đơn vị nhỏ nhất
+     */
+    public Money times(BigDecimal rate, RoundingMode rounding) {
+        return of(toBigDecimal().multiply(rate), rounding);
+    }
+
+    public Money negate() {
+        return ofMicros(Math.negateExact(micros));
+    }
+
+    public Money max(Money other) {
+        return micros >= other.micros ? this : other;
+    }
+
+    public Money min(Money other) {
+        return micros <= other.micros ? this : other;
+    }
+
+    public boolean isZero() {
+        return micros == 0;
+    }
+
+    public boolean isPositive() {
+        return micros > 0;
+    }
+
+    public boolean isNegative() {
+        return micros < 0;
+    }
+
+    public long toMicros() {
+        return micros;
+    }
+
+    public BigInteger toBigInteger() {
+        return BigInteger.valueOf(micros);
+    }
+
+    /**
+     * Scale 6; cột NUMERIC(36,18) vẫn lưu chính xác
+     */
+    public BigDecimal toBigDecimal() {
+        return BigDecimal.valueOf(micros, DECIMALS);
+    }
+
+    @Override
+    public int compareTo(Money other) {
+        return Long.compare(micros, other.micros);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Money other && micros == other.micros;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(micros);
+    }
+
+    @Override
+    public String toString() {
+        return toBigDecimal().toPlainString();
+    }
+}
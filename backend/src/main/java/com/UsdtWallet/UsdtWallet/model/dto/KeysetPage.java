@@ -0,0 +1,30 @@
+package com.UsdtWallet.UsdtWallet.model.dto;
+
+import com.UsdtWallet.UsdtWallet.util.KeysetCursor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 1 trang keyset: items + cursor của trang kế tiếp (null nếu hết)
+ */
+public record KeysetPage<T>(List<T> items, String nextCursor) {
+
+    /**
+     * rows được query với limit + 1: có dòng thừa nghĩa là còn trang sau
+     */
+    public static <T> KeysetPage<T> of(List<T> rows, int limit,
+                                       Function<T, LocalDateTime> createdAt, Function<T, Object> id) {
+        if (rows.size() <= limit) {
+            return new KeysetPage<>(rows, null);
+        }
+        List<T> items = rows.subList(0, limit);
+        T last = items.get(limit - 1);
+        return new KeysetPage<>(items, KeysetCursor.of(createdAt.apply(last), id.apply(last)).encode());
+    }
+
+    public <R> KeysetPage<R> map(Function<T, R> mapper) {
+        return new KeysetPage<>(items.stream().map(mapper).toList(), nextCursor);
+    }
+}
@@ -0,0 +1,16 @@
+package com.UsdtWallet.UsdtWallet.model.dto;
+
+import com.UsdtWallet.UsdtWallet.model.entity.PointsLedger;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Các cột points_ledger cần cho kiểm tra chuỗi balance (projection, không phải entity managed)
+ */
+public record LedgerChainRow(String id, LocalDateTime createdAt,
+                             PointsLedger.PointsTransactionType transactionType,
+                             PointsLedger.PointsTransactionStatus status,
+                             BigDecimal amount, BigDecimal balanceBefore, BigDecimal balanceAfter,
+                             String referenceId, String transactionId) {
+}
@@ -0,0 +1,89 @@
+package com.UsdtWallet.UsdtWallet.model.dto;
+
+import com.UsdtWallet.UsdtWallet.model.entity.WalletTransaction;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Một lượt sweep do SweepPolicyEngine sinh ra
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class SweepPlanDto {
+    private int batchNumber;
+    private List<SweepCandidate> candidates;
+    private BigDecimal totalAmount;
+
+    /**
+     * Child wallet có deposit chưa sweep
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SweepCandidate {
+        private String address;
+        private List<WalletTransaction> deposits;
+        private BigDecimal totalAmount;
+        private int pendingDepositCount;
+        private LocalDateTime oldestDepositAt;
+        private boolean forced;
+        private String reason;
+
+        public static SweepCandidate of(String address, List<WalletTransaction> deposits) {
+            return SweepCandidate.builder()
+                .address(address)
+                .deposits(deposits)
+                .totalAmount(deposits.stream()
+                    .map(WalletTransaction::getAmount)
+                    .reduce(BigDecimal.ZERO, BigDecimal::add))
+                .pendingDepositCount(deposits.size())
+                .oldestDepositAt(deposits.stream()
+                    .map(WalletTransaction::getCreatedAt)
+                    .filter(t -> t != null)
+                    .min(Comparator.naturalOrder())
+                    .orElse(LocalDateTime.now()))
+                .build();
+        }
+
+        /**
+         * Candidate từ aggregate trong DB, deposits được claim sau khi policy chọn
+         */
+        public static SweepCandidate summary(String address, long depositCount, BigDecimal totalAmount,
+                                             LocalDateTime oldestDepositAt) {
+            return SweepCandidate.builder()
+                .address(address)
+                .totalAmount(totalAmount)
+                .pendingDepositCount((int) depositCount)
+                .oldestDepositAt(oldestDepositAt != null ? oldestDepositAt : LocalDateTime.now())
+                .build();
+        }
+    }
+
+    /**
+     * Trạng thái chain / master wallet tại thời điểm lập kế hoạch
+     */
+    @Data
+    @Builder
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class SweepContext {
+        private boolean energyDelegationMode;
+        // Giá energy hiện tại (sun/energy), theo EnergyEstimatorService
+        private Long energyFeeSun;
+        // TRX stake (sun) master còn delegate được
+        private long delegatableSun;
+        private BigDecimal masterUsdtBalance;
+        // Tổng netAmount các lệnh rút đang chờ xử lý
+        private BigDecimal pendingWithdrawalAmount;
+    }
+}
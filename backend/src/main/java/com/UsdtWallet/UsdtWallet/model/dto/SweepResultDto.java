@@ -27,6 +27,7 @@ public class SweepResultDto {
     @NoArgsConstructor
     @AllArgsConstructor
     public static class SweepTransactionDto {
+        private Long tokenSweepId;
         private String fromAddress;
         private String txHash;
         private BigDecimal amount;
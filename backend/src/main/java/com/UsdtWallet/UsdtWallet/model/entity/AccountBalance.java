@@ -0,0 +1,56 @@
+package com.UsdtWallet.UsdtWallet.model.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Số dư points hiện tại của user, cập nhật cùng transaction với mỗi dòng points_ledger.
+ * total = balance_after của ledger COMPLETED mới nhất; locked = tổng lock withdrawal PENDING.
+ * Version dùng optimistic locking: 2 transaction cùng sửa 1 user thì 1 bên fail thay vì ghi đè.
+ */
+@Entity
+@Table(name = "account_balances")
+@Data
+@NoArgsConstructor
+public class AccountBalance {
+
+    @Id
+    @Column(name = "user_id", nullable = false, updatable = false)
+    private UUID userId;
+
+    @Column(name = "total_balance", precision = 36, scale = 18, nullable = false)
+    private BigDecimal totalBalance = BigDecimal.ZERO;
+
+    @Column(name = "locked_balance", precision = 36, scale = 18, nullable = false)
+    private BigDecimal lockedBalance = BigDecimal.ZERO;
+
+    @Column(name = "available_balance", precision = 36, scale = 18, nullable = false)
+    private BigDecimal availableBalance = BigDecimal.ZERO;
+
+    @Version
+    @Column(name = "version", nullable = false)
+    private Long version;
+
+    @UpdateTimestamp
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    public AccountBalance(UUID userId, BigDecimal totalBalance, BigDecimal lockedBalance) {
+        this.userId = userId;
+        this.totalBalance = totalBalance;
+        this.lockedBalance = lockedBalance;
+        this.availableBalance = totalBalance.subtract(lockedBalance);
+    }
+
+    public void apply(BigDecimal totalDelta, BigDecimal lockedDelta) {
+        totalBalance = totalBalance.add(totalDelta);
+        lockedBalance = lockedBalance.add(lockedDelta);
+        availableBalance = totalBalance.subtract(lockedBalance);
+    }
+}
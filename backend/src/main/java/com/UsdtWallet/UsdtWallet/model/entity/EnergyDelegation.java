@@ -0,0 +1,65 @@
+package com.UsdtWallet.UsdtWallet.model.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "energy_delegations")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EnergyDelegation {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "child_index", nullable = false)
+    private Integer childIndex;
+
+    @Column(name = "receiver_address", length = 64, nullable = false)
+    private String receiverAddress;
+
+    // TokenSweep dùng energy này
+    @Column(name = "token_sweep_id")
+    private Long tokenSweepId;
+
+    @Column(name = "energy_amount")
+    private Long energyAmount;
+
+    // Số TRX đã stake (sun) được delegate
+    @Column(name = "balance_sun", nullable = false)
+    private Long balanceSun;
+
+    @Column(name = "delegate_tx_hash", length = 128)
+    private String delegateTxHash;
+
+    @Column(name = "undelegate_tx_hash", length = 128)
+    private String undelegateTxHash;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status")
+    private DelegationStatus status = DelegationStatus.PENDING;
+
+    // Sweep đã xong, chờ job thu hồi energy
+    @Column(name = "reclaim_requested")
+    private Boolean reclaimRequested = false;
+
+    @CreationTimestamp
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    @UpdateTimestamp
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    public enum DelegationStatus {
+        PENDING, SENT, DELEGATED, RECLAIMING, RECLAIMED, FAILED
+    }
+}
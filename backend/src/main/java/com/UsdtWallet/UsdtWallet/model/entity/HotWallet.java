@@ -0,0 +1,58 @@
+package com.UsdtWallet.UsdtWallet.model.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.AllArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+/**
+ * Ví gửi withdrawal (derivation index cấu hình trong withdrawal.hot-wallets.indices, index 0 = master)
+ */
+@Entity
+@Table(name = "hot_wallets")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotWallet {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "derivation_index", unique = true, nullable = false)
+    private Integer derivationIndex;
+
+    @Column(name = "address", length = 64, unique = true, nullable = false)
+    private String address;
+
+    // Balance on-chain lần đọc gần nhất
+    @Column(name = "usdt_balance", precision = 36, scale = 6)
+    private BigDecimal usdtBalance = BigDecimal.ZERO;
+
+    @Column(name = "trx_balance", precision = 30, scale = 6)
+    private BigDecimal trxBalance = BigDecimal.ZERO;
+
+    @Column(name = "balance_updated_at")
+    private LocalDateTime balanceUpdatedAt;
+
+    // Bỏ index khỏi cấu hình thì ví bị disable, không xoá
+    @Column(name = "enabled", nullable = false)
+    private Boolean enabled = true;
+
+    @CreationTimestamp
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    @UpdateTimestamp
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    public boolean isMaster() {
+        return derivationIndex == 0;
+    }
+}
@@ -0,0 +1,43 @@
+package com.UsdtWallet.UsdtWallet.model.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Điểm đã kiểm tra tới của chuỗi ledger 1 user: lượt INCREMENTAL tiếp tục từ đây
+ * (balance + rolling hash), lượt FULL tính lại từ đầu và so hash để phát hiện lịch sử bị sửa.
+ */
+@Entity
+@Table(name = "ledger_integrity_checkpoints")
+@Data
+@NoArgsConstructor
+public class LedgerIntegrityCheckpoint {
+
+    @Id
+    @Column(name = "user_id", nullable = false, updatable = false)
+    private UUID userId;
+
+    @Column(name = "last_ledger_id", length = 36, nullable = false)
+    private String lastLedgerId;
+
+    @Column(name = "last_created_at", nullable = false)
+    private LocalDateTime lastCreatedAt;
+
+    @Column(name = "balance_after", precision = 36, scale = 18, nullable = false)
+    private BigDecimal balanceAfter;
+
+    // SHA-256 (hex) nối tiếp qua mọi dòng tới last_ledger_id
+    @Column(name = "chain_hash", length = 64, nullable = false)
+    private String chainHash;
+
+    @Column(name = "row_count", nullable = false)
+    private long rowCount;
+
+    @Column(name = "verified_at", nullable = false)
+    private LocalDateTime verifiedAt;
+}
@@ -0,0 +1,63 @@
+package com.UsdtWallet.UsdtWallet.model.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * 1 sai lệch tìm thấy bởi LedgerIntegrityService (chi tiết báo cáo của 1 run)
+ */
+@Entity
+@Table(name = "ledger_integrity_issues")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LedgerIntegrityIssue {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "run_id", nullable = false)
+    private Long runId;
+
+    @Column(name = "user_id", nullable = false)
+    private UUID userId;
+
+    // Dòng points_ledger liên quan (null với lỗi đối chiếu account_balances)
+    @Column(name = "ledger_id", length = 36)
+    private String ledgerId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "issue_type", nullable = false)
+    private IssueType issueType;
+
+    @Column(name = "expected", precision = 36, scale = 18)
+    private BigDecimal expected;
+
+    @Column(name = "actual", precision = 36, scale = 18)
+    private BigDecimal actual;
+
+    @Column(name = "detail")
+    private String detail;
+
+    @CreationTimestamp
+    @Column(name = "created_at")
+    private LocalDateTime createdAt;
+
+    public enum IssueType {
+        CHAIN_BREAK,        // balance_before != balance_after của dòng trước
+        DELTA_MISMATCH,     // balance_after - balance_before không khớp amount/status
+        HISTORY_MODIFIED,   // Hash các dòng trước checkpoint đã đổi (sửa/xoá/chèn)
+        BALANCE_MISMATCH,   // account_balances.total/available khác cuối chuỗi ledger
+        LOCKED_MISMATCH     // account_balances.locked khác tổng lock withdrawal PENDING
+    }
+}
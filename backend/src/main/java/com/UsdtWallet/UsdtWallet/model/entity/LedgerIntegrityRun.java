@@ -0,0 +1,69 @@
+package com.UsdtWallet.UsdtWallet.model.entity;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 1 lượt kiểm tra tính toàn vẹn points_ledger (báo cáo tổng).
+ * watermark: mốc created_at mà lượt INCREMENTAL sau bắt đầu tìm user có thay đổi.
+ */
+@Entity
+@Table(name = "ledger_integrity_runs")
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class LedgerIntegrityRun {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "mode", nullable = false)
+    private Mode mode;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "status", nullable = false)
+    private Status status;
+
+    @Column(name = "since")
+    private LocalDateTime since;
+
+    @Column(name = "watermark", nullable = false)
+    private LocalDateTime watermark;
+
+    @Column(name = "users_checked", nullable = false)
+    private long usersChecked;
+
+    @Column(name = "rows_verified", nullable = false)
+    private long rowsVerified;
+
+    @Column(name = "issue_count", nullable = false)
+    private long issueCount;
+
+    @Column(name = "error_message", columnDefinition = "TEXT")
+    private String errorMessage;
+
+    @Column(name = "started_at", nullable = false)
+    private LocalDateTime startedAt;
+
+    @Column(name = "finished_at")
+    private LocalDateTime finishedAt;
+
+    public enum Mode {
+        FULL,        // Toàn bộ ledger, đối chiếu lại hash của checkpoint cũ
+        INCREMENTAL  // Chỉ user có thay đổi sau watermark, tiếp tục từ checkpoint
+    }
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        FAILED
+    }
+}
@@ -49,6 +49,19 @@ public class TokenSweep {
     @Column(name = "error_message")
     private String errorMessage;
 
+    // GasTopup đang chờ khi sweep ở trạng thái GAS_REQUESTED
+    @Column(name = "gas_topup_id")
+    private Long gasTopupId;
+
+    // Aggregated sweep: chuyển tổng mọi deposit đã ghi nhận của child wallet (gắn thêm lúc broadcast),
+    // USDT chưa có deposit row ở lại cho sweep sau
+    @Column(name = "full_balance")
+    private Boolean fullBalance = false;
+
+    // Thời điểm chuyển trạng thái gần nhất (dùng cho timeout của state machine)
+    @Column(name = "state_changed_at")
+    private LocalDateTime stateChangedAt;
+
     @CreationTimestamp
     @Column(name = "created_at")
     private LocalDateTime createdAt;
@@ -58,9 +71,15 @@ public class TokenSweep {
     private LocalDateTime updatedAt;
 
     public enum SweepStatus {
-        PENDING,     // Đã tạo record, chưa broadcast
-        SENT,        // Đã broadcast, chờ confirm
-        CONFIRMED,   // Transaction confirmed trên blockchain
-        FAILED       // Có lỗi xảy ra
+        PENDING,        // Đã tạo record, chưa kiểm tra gas
+        GAS_REQUESTED,  // Đã gửi TRX gas cho child wallet, chờ gas về
+        GAS_CONFIRMED,  // Child wallet đủ gas, sẵn sàng build + broadcast
+        SENT,           // Đã broadcast, chờ confirm
+        CONFIRMED,      // Transaction confirmed trên blockchain
+        FAILED;         // Có lỗi xảy ra
+
+        public boolean isActive() {
+            return this == PENDING || this == GAS_REQUESTED || this == GAS_CONFIRMED;
+        }
     }
 }
\ No newline at end of file
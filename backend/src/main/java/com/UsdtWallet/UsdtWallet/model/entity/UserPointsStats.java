@@ -0,0 +1,99 @@
+package com.UsdtWallet.UsdtWallet.model.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+/**
+ * Thống kê points theo user (chỉ ledger COMPLETED), cập nhật cùng transaction với mỗi dòng points_ledger.
+ * Các tổng đều dương trừ totalOther (ADJUSTMENT/BONUS/REFUND, giữ dấu).
+ */
+@Entity
+@Table(name = "user_points_stats")
+@Data
+@NoArgsConstructor
+public class UserPointsStats {
+
+    @Id
+    @Column(name = "user_id", nullable = false, updatable = false)
+    private UUID userId;
+
+    @Column(name = "total_deposits", precision = 36, scale = 18, nullable = false)
+    private BigDecimal totalDeposits = BigDecimal.ZERO;
+
+    @Column(name = "deposit_count", nullable = false)
+    private long depositCount;
+
+    @Column(name = "total_sent", precision = 36, scale = 18, nullable = false)
+    private BigDecimal totalSent = BigDecimal.ZERO;
+
+    @Column(name = "sent_count", nullable = false)
+    private long sentCount;
+
+    @Column(name = "total_received", precision = 36, scale = 18, nullable = false)
+    private BigDecimal totalReceived = BigDecimal.ZERO;
+
+    @Column(name = "received_count", nullable = false)
+    private long receivedCount;
+
+    @Column(name = "total_withdrawn", precision = 36, scale = 18, nullable = false)
+    private BigDecimal totalWithdrawn = BigDecimal.ZERO;
+
+    @Column(name = "withdrawal_count", nullable = false)
+    private long withdrawalCount;
+
+    @Column(name = "total_other", precision = 36, scale = 18, nullable = false)
+    private BigDecimal totalOther = BigDecimal.ZERO;
+
+    @Column(name = "other_count", nullable = false)
+    private long otherCount;
+
+    @Column(name = "first_activity_at")
+    private LocalDateTime firstActivityAt;
+
+    @Column(name = "last_activity_at")
+    private LocalDateTime lastActivityAt;
+
+    @UpdateTimestamp
+    @Column(name = "updated_at")
+    private LocalDateTime updatedAt;
+
+    public void apply(PointsLedger entry) {
+        BigDecimal amount = entry.getAmount();
+        switch (entry.getTransactionType()) {
+            case DEPOSIT_CREDIT -> {
+                totalDeposits = totalDeposits.add(amount);
+                depositCount++;
+            }
+            case P2P_SEND -> {
+                totalSent = totalSent.add(amount.abs());
+                sentCount++;
+            }
+            case P2P_RECEIVE -> {
+                totalReceived = totalReceived.add(amount);
+                receivedCount++;
+            }
+            case WITHDRAWAL_DEBIT -> {
+                totalWithdrawn = totalWithdrawn.add(amount.abs());
+                withdrawalCount++;
+            }
+            default -> {
+                totalOther = totalOther.add(amount);
+                otherCount++;
+            }
+        }
+
+        LocalDateTime at = entry.getCreatedAt() != null ? entry.getCreatedAt() : LocalDateTime.now();
+        if (firstActivityAt == null || at.isBefore(firstActivityAt)) {
+            firstActivityAt = at;
+        }
+        if (lastActivityAt == null || at.isAfter(lastActivityAt)) {
+            lastActivityAt = at;
+        }
+    }
+}
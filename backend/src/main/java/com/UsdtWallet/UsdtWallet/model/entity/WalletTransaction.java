@@ -79,6 +79,10 @@ public class WalletTransaction {
     @Column(name = "sweep_tx_hash")
     private String sweepTxHash;
 
+    // TokenSweep đang xử lý deposit này (null = chưa được claim bởi sweep nào)
+    @Column(name = "token_sweep_id")
+    private Long tokenSweepId;
+
     @Column(name = "swept_at")
     private LocalDateTime sweptAt;
 
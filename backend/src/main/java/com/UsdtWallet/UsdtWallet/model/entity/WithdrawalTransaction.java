@@ -30,6 +30,10 @@ public class WithdrawalTransaction {
     @Column(name = "to_address", nullable = false)
     private String toAddress;
 
+    // Hot wallet gửi withdrawal này
+    @Column(name = "from_address")
+    private String fromAddress;
+
     @Column(name = "amount", precision = 36, scale = 18, nullable = false)
     private BigDecimal amount;
 
@@ -46,6 +50,10 @@ public class WithdrawalTransaction {
     @Column(name = "tx_hash")
     private String txHash;
 
+    // Vị trí trong batch payout (nhiều withdrawal chung 1 txHash), null nếu gửi riêng
+    @Column(name = "batch_index")
+    private Integer batchIndex;
+
     @Column(name = "block_number")
     private Long blockNumber;
 
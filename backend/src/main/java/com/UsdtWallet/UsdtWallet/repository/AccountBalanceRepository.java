@@ -0,0 +1,45 @@
+package com.UsdtWallet.UsdtWallet.repository;
+
+import com.UsdtWallet.UsdtWallet.model.entity.AccountBalance;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface AccountBalanceRepository extends JpaRepository<AccountBalance, UUID> {
+
+    // SELECT ... FOR UPDATE, chờ tối đa 5s
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "5000"))
+    @Query("SELECT b FROM AccountBalance b WHERE b.userId = :userId")
+    Optional<AccountBalance> findByIdForUpdate(@Param("userId") UUID userId);
+
+    // Khoá nhiều dòng 1 lần; ORDER BY để PostgreSQL khoá theo thứ tự uuid (cùng thứ tự với PointsService)
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "5000"))
+    @Query("SELECT b FROM AccountBalance b WHERE b.userId IN :userIds ORDER BY b.userId")
+    List<AccountBalance> findAllByIdForUpdate(@Param("userIds") Collection<UUID> userIds);
+
+    @Query("SELECT b.userId FROM AccountBalance b WHERE b.userId IN :userIds")
+    List<UUID> findExistingUserIds(@Param("userIds") Collection<UUID> userIds);
+
+    // Tạo dòng balance nếu chưa có (transaction khác tạo trước thì giữ dòng đó)
+    @Modifying
+    @Query(value = "INSERT INTO account_balances (user_id, total_balance, locked_balance, available_balance, version, updated_at) " +
+                   "VALUES (:userId, :total, :locked, :total - :locked, 0, NOW()) " +
+                   "ON CONFLICT (user_id) DO NOTHING", nativeQuery = true)
+    int insertIfAbsent(@Param("userId") UUID userId, @Param("total") BigDecimal total,
+                       @Param("locked") BigDecimal locked);
+}
@@ -0,0 +1,22 @@
+package com.UsdtWallet.UsdtWallet.repository;
+
+import com.UsdtWallet.UsdtWallet.model.entity.EnergyDelegation;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface EnergyDelegationRepository extends JpaRepository<EnergyDelegation, Long> {
+
+    List<EnergyDelegation> findByStatus(EnergyDelegation.DelegationStatus status);
+
+    List<EnergyDelegation> findByStatusAndReclaimRequestedTrue(EnergyDelegation.DelegationStatus status);
+
+    Optional<EnergyDelegation> findFirstByTokenSweepIdOrderByIdDesc(Long tokenSweepId);
+
+    List<EnergyDelegation> findByTokenSweepIdAndStatusIn(Long tokenSweepId,
+                                                        Collection<EnergyDelegation.DelegationStatus> statuses);
+}
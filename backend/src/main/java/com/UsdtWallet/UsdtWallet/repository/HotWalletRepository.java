@@ -0,0 +1,18 @@
+package com.UsdtWallet.UsdtWallet.repository;
+
+import com.UsdtWallet.UsdtWallet.model.entity.HotWallet;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface HotWalletRepository extends JpaRepository<HotWallet, Long> {
+
+    Optional<HotWallet> findByDerivationIndex(Integer derivationIndex);
+
+    Optional<HotWallet> findByAddress(String address);
+
+    List<HotWallet> findByEnabledTrueOrderByDerivationIndexAsc();
+}
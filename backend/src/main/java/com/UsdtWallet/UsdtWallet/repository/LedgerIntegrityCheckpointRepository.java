@@ -0,0 +1,11 @@
+package com.UsdtWallet.UsdtWallet.repository;
+
+import com.UsdtWallet.UsdtWallet.model.entity.LedgerIntegrityCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.UUID;
+
+@Repository
+public interface LedgerIntegrityCheckpointRepository extends JpaRepository<LedgerIntegrityCheckpoint, UUID> {
+}
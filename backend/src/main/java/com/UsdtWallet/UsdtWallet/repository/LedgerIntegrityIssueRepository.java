@@ -0,0 +1,15 @@
+package com.UsdtWallet.UsdtWallet.repository;
+
+import com.UsdtWallet.UsdtWallet.model.entity.LedgerIntegrityIssue;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface LedgerIntegrityIssueRepository extends JpaRepository<LedgerIntegrityIssue, Long> {
+
+    // Keyset theo id trong 1 run
+    List<LedgerIntegrityIssue> findByRunIdAndIdGreaterThanOrderByIdAsc(Long runId, Long afterId, Pageable pageable);
+}
@@ -0,0 +1,20 @@
+package com.UsdtWallet.UsdtWallet.repository;
+
+import com.UsdtWallet.UsdtWallet.model.entity.LedgerIntegrityRun;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface LedgerIntegrityRunRepository extends JpaRepository<LedgerIntegrityRun, Long> {
+
+    Optional<LedgerIntegrityRun> findFirstByStatusOrderByStartedAtDesc(LedgerIntegrityRun.Status status);
+
+    Optional<LedgerIntegrityRun> findFirstByModeAndStatusOrderByStartedAtDesc(LedgerIntegrityRun.Mode mode,
+                                                                              LedgerIntegrityRun.Status status);
+
+    List<LedgerIntegrityRun> findAllByOrderByStartedAtDesc(Pageable pageable);
+}
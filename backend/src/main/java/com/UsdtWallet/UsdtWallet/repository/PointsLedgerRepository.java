@@ -1,18 +1,24 @@
 package com.UsdtWallet.UsdtWallet.repository;
 
+import com.UsdtWallet.UsdtWallet.model.dto.LedgerChainRow;
 import com.UsdtWallet.UsdtWallet.model.entity.PointsLedger;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 @Repository
 public interface PointsLedgerRepository extends JpaRepository<PointsLedger, String> {
@@ -37,12 +43,33 @@ public interface PointsLedgerRepository extends JpaRepository<PointsLedger, Stri
     List<PointsLedger> findByUserIdAndTransactionTypeOrderByCreatedAtDesc(
        UUID userId, PointsLedger.PointsTransactionType transactionType);
 
-    // Find P2P transactions between users
-    @Query("SELECT pl FROM PointsLedger pl WHERE " +
-           "(pl.fromUserId = :userId OR pl.toUserId = :userId) " +
+    // Keyset pagination trên (createdAt, id): trang đầu / các trang sau cursor
+    @Query("SELECT pl FROM PointsLedger pl WHERE pl.userId = :userId " +
+           "ORDER BY pl.createdAt DESC, pl.id DESC")
+       List<PointsLedger> findHistoryFirstPage(@Param("userId") UUID userId, Pageable pageable);
+
+    @Query("SELECT pl FROM PointsLedger pl WHERE pl.userId = :userId " +
+           "AND (pl.createdAt < :createdAt OR (pl.createdAt = :createdAt AND pl.id < :id)) " +
+           "ORDER BY pl.createdAt DESC, pl.id DESC")
+       List<PointsLedger> findHistoryAfter(@Param("userId") UUID userId,
+                                           @Param("createdAt") LocalDateTime createdAt,
+                                           @Param("id") String id,
+                                           Pageable pageable);
+
+    // P2P history: dòng P2P_SEND/P2P_RECEIVE của chính user (mỗi transfer có 1 dòng cho mỗi bên)
+    @Query("SELECT pl FROM PointsLedger pl WHERE pl.userId = :userId " +
            "AND pl.transactionType IN ('P2P_SEND', 'P2P_RECEIVE') " +
-           "ORDER BY pl.createdAt DESC")
-       List<PointsLedger> findP2PTransactionsByUserId(@Param("userId") UUID userId);
+           "ORDER BY pl.createdAt DESC, pl.id DESC")
+       List<PointsLedger> findP2PFirstPage(@Param("userId") UUID userId, Pageable pageable);
+
+    @Query("SELECT pl FROM PointsLedger pl WHERE pl.userId = :userId " +
+           "AND pl.transactionType IN ('P2P_SEND', 'P2P_RECEIVE') " +
+           "AND (pl.createdAt < :createdAt OR (pl.createdAt = :createdAt AND pl.id < :id)) " +
+           "ORDER BY pl.createdAt DESC, pl.id DESC")
+       List<PointsLedger> findP2PAfter(@Param("userId") UUID userId,
+                                       @Param("createdAt") LocalDateTime createdAt,
+                                       @Param("id") String id,
+                                       Pageable pageable);
 
     // Find pending transactions
     List<PointsLedger> findByStatusOrderByCreatedAtAsc(PointsLedger.PointsTransactionStatus status);
@@ -81,4 +108,42 @@ public interface PointsLedgerRepository extends JpaRepository<PointsLedger, Stri
     @Query("SELECT COALESCE(SUM(pl.amount), 0) FROM PointsLedger pl WHERE pl.userId = :userId " +
            "AND pl.transactionType = 'WITHDRAWAL_DEBIT' AND pl.status = 'PENDING'")
        BigDecimal getTotalPendingWithdrawalLocks(@Param("userId") UUID userId);
+
+    // Lock withdrawal PENDING theo user: [userId, sum(amount)] (amount âm)
+    @Query("SELECT pl.userId, COALESCE(SUM(pl.amount), 0) FROM PointsLedger pl WHERE pl.userId IN :userIds " +
+           "AND pl.transactionType = 'WITHDRAWAL_DEBIT' AND pl.status = 'PENDING' GROUP BY pl.userId")
+       List<Object[]> sumPendingWithdrawalLocksByUserIds(@Param("userIds") Collection<UUID> userIds);
+
+    // --- Ledger integrity verifier ---
+
+    // Chuỗi ledger của 1 user theo thứ tự ghi, đọc tuần tự với fetch size cố định (projection, không managed)
+    @QueryHints({
+           @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "1000"),
+           @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true")
+    })
+    @Query("SELECT new com.UsdtWallet.UsdtWallet.model.dto.LedgerChainRow(pl.id, pl.createdAt, pl.transactionType, " +
+           "pl.status, pl.amount, pl.balanceBefore, pl.balanceAfter, pl.referenceId, pl.transactionId) " +
+           "FROM PointsLedger pl WHERE pl.userId = :userId AND pl.createdAt > :after " +
+           "ORDER BY pl.createdAt ASC, pl.id ASC")
+       Stream<LedgerChainRow> streamChainRows(@Param("userId") UUID userId, @Param("after") LocalDateTime after);
+
+    // Keyset qua mọi user có ledger hoặc account_balances
+    @Query(value = "SELECT u.user_id FROM (" +
+                   "(SELECT DISTINCT pl.user_id FROM points_ledger pl WHERE pl.user_id > :afterUserId " +
+                   "ORDER BY pl.user_id LIMIT :limit) " +
+                   "UNION " +
+                   "(SELECT ab.user_id FROM account_balances ab WHERE ab.user_id > :afterUserId " +
+                   "ORDER BY ab.user_id LIMIT :limit)" +
+                   ") u ORDER BY u.user_id LIMIT :limit", nativeQuery = true)
+       List<UUID> findIntegrityUserIdsAfter(@Param("afterUserId") UUID afterUserId, @Param("limit") int limit);
+
+    // Keyset qua các user có ledger mới hoặc account_balances đổi sau :since
+    @Query(value = "SELECT u.user_id FROM (" +
+                   "SELECT pl.user_id FROM points_ledger pl WHERE pl.created_at > :since AND pl.user_id > :afterUserId " +
+                   "UNION " +
+                   "SELECT ab.user_id FROM account_balances ab WHERE ab.updated_at > :since AND ab.user_id > :afterUserId" +
+                   ") u ORDER BY u.user_id LIMIT :limit", nativeQuery = true)
+       List<UUID> findChangedUserIdsAfter(@Param("since") LocalDateTime since,
+                                          @Param("afterUserId") UUID afterUserId,
+                                          @Param("limit") int limit);
 }
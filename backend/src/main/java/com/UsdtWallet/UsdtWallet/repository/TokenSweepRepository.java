@@ -2,8 +2,11 @@ package com.UsdtWallet.UsdtWallet.repository;
 
 import com.UsdtWallet.UsdtWallet.model.entity.TokenSweep;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -15,4 +18,17 @@ public interface TokenSweepRepository extends JpaRepository<TokenSweep, Long> {
     Optional<TokenSweep> findBySweepTxHash(String sweepTxHash);
 
     List<TokenSweep> findByChildIndexAndStatus(Integer childIndex, TokenSweep.SweepStatus status);
+
+    // Các sweep còn đang chạy trong state machine
+    @Query("SELECT s.id FROM TokenSweep s WHERE s.status IN :statuses ORDER BY s.id ASC")
+    List<Long> findIdsByStatusIn(@Param("statuses") Collection<TokenSweep.SweepStatus> statuses);
+
+    boolean existsByChildAddressAndStatusIn(String childAddress, Collection<TokenSweep.SweepStatus> statuses);
+
+    // Sweep chờ energy nhưng chưa được delegate (energy delegation mode)
+    @Query("SELECT s FROM TokenSweep s WHERE s.status = :status AND s.gasTopupId IS NULL " +
+           "AND NOT EXISTS (SELECT d.id FROM EnergyDelegation d WHERE d.tokenSweepId = s.id) ORDER BY s.id ASC")
+    List<TokenSweep> findAwaitingEnergyDelegation(@Param("status") TokenSweep.SweepStatus status);
+
+    List<TokenSweep> findByGasTopupIdAndStatus(Long gasTopupId, TokenSweep.SweepStatus status);
 }
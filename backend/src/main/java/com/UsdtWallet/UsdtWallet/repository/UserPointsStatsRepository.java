@@ -0,0 +1,44 @@
+package com.UsdtWallet.UsdtWallet.repository;
+
+import com.UsdtWallet.UsdtWallet.model.entity.UserPointsStats;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+
+@Repository
+public interface UserPointsStatsRepository extends JpaRepository<UserPointsStats, UUID> {
+
+    // Tạo dòng stats từ ledger COMPLETED cho các user chưa có (user đã có dòng thì giữ nguyên)
+    @Modifying
+    @Query(value = "INSERT INTO user_points_stats (user_id, total_deposits, deposit_count, total_sent, sent_count, " +
+                   "total_received, received_count, total_withdrawn, withdrawal_count, total_other, other_count, " +
+                   "first_activity_at, last_activity_at, updated_at) " +
+                   "SELECT pl.user_id, " +
+                   "COALESCE(SUM(pl.amount) FILTER (WHERE pl.transaction_type = 'DEPOSIT_CREDIT'), 0), " +
+                   "COUNT(*) FILTER (WHERE pl.transaction_type = 'DEPOSIT_CREDIT'), " +
+                   "COALESCE(-SUM(pl.amount) FILTER (WHERE pl.transaction_type = 'P2P_SEND'), 0), " +
+                   "COUNT(*) FILTER (WHERE pl.transaction_type = 'P2P_SEND'), " +
+                   "COALESCE(SUM(pl.amount) FILTER (WHERE pl.transaction_type = 'P2P_RECEIVE'), 0), " +
+                   "COUNT(*) FILTER (WHERE pl.transaction_type = 'P2P_RECEIVE'), " +
+                   "COALESCE(-SUM(pl.amount) FILTER (WHERE pl.transaction_type = 'WITHDRAWAL_DEBIT'), 0), " +
+                   "COUNT(*) FILTER (WHERE pl.transaction_type = 'WITHDRAWAL_DEBIT'), " +
+                   "COALESCE(SUM(pl.amount) FILTER (WHERE pl.transaction_type IN ('ADJUSTMENT', 'BONUS', 'REFUND')), 0), " +
+                   "COUNT(*) FILTER (WHERE pl.transaction_type IN ('ADJUSTMENT', 'BONUS', 'REFUND')), " +
+                   "MIN(pl.created_at), MAX(pl.created_at), NOW() " +
+                   "FROM points_ledger pl " +
+                   "WHERE pl.status = 'COMPLETED' AND pl.user_id IN (:userIds) " +
+                   "GROUP BY pl.user_id " +
+                   "ON CONFLICT (user_id) DO NOTHING", nativeQuery = true)
+    int insertFromLedger(@Param("userIds") Collection<UUID> userIds);
+
+    // Keyset qua các user có ledger (backfill theo chunk)
+    @Query(value = "SELECT DISTINCT pl.user_id FROM points_ledger pl WHERE pl.user_id > :afterUserId " +
+                   "ORDER BY pl.user_id LIMIT :limit", nativeQuery = true)
+    List<UUID> findLedgerUserIdsAfter(@Param("afterUserId") UUID afterUserId, @Param("limit") int limit);
+}
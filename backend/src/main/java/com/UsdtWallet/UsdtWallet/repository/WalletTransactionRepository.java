@@ -1,10 +1,13 @@
 package com.UsdtWallet.UsdtWallet.repository;
 
 import com.UsdtWallet.UsdtWallet.model.entity.WalletTransaction;
+import jakarta.persistence.QueryHint;
+import org.hibernate.jpa.HibernateHints;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
@@ -13,6 +16,7 @@ import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 @Repository
 public interface WalletTransactionRepository extends JpaRepository<WalletTransaction, Long> {
@@ -31,17 +35,41 @@ public interface WalletTransactionRepository extends JpaRepository<WalletTransac
     // Find transactions by address
     List<WalletTransaction> findByToAddressOrderByCreatedAtDesc(String toAddress);
 
-    // Find unswept deposits
-    @Query("SELECT wt FROM WalletTransaction wt WHERE wt.transactionType = 'DEPOSIT' " +
-            "AND wt.status = 'CONFIRMED' AND wt.isSwept = false")
-    List<WalletTransaction> findUnsweptDeposits();
+    // Count / sum unswept deposits (not yet claimed by an in-flight TokenSweep)
+    @Query("SELECT COUNT(wt) FROM WalletTransaction wt WHERE wt.transactionType = 'DEPOSIT' " +
+            "AND wt.status IN ('PENDING', 'CONFIRMED') AND wt.isSwept = false " +
+            "AND wt.tokenSweepId IS NULL")
+    long countUnsweptDeposits();
+
+    @Query("SELECT COALESCE(SUM(wt.amount), 0) FROM WalletTransaction wt WHERE wt.transactionType = 'DEPOSIT' " +
+            "AND wt.status IN ('PENDING', 'CONFIRMED') AND wt.isSwept = false " +
+            "AND wt.tokenSweepId IS NULL")
+    BigDecimal sumUnsweptDepositAmount();
+
+    // Unswept deposits grouped by child wallet: [address, count, sum(amount), min(createdAt)]
+    @Query("SELECT wt.toAddress, COUNT(wt), COALESCE(SUM(wt.amount), 0), MIN(wt.createdAt) " +
+            "FROM WalletTransaction wt WHERE wt.transactionType = 'DEPOSIT' " +
+            "AND wt.status IN ('PENDING', 'CONFIRMED') AND wt.isSwept = false " +
+            "AND wt.tokenSweepId IS NULL GROUP BY wt.toAddress ORDER BY MIN(wt.createdAt) ASC")
+    List<Object[]> summarizeUnsweptDepositsByAddress(Pageable pageable);
+
+    // Claim unswept deposits of an address for a sweep; rows locked by another worker are skipped
+    @Query(value = "SELECT * FROM wallet_transactions WHERE to_address = :address " +
+            "AND transaction_type = 'DEPOSIT' AND status IN ('PENDING', 'CONFIRMED') " +
+            "AND is_swept = false AND token_sweep_id IS NULL " +
+            "ORDER BY created_at ASC LIMIT :limit FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<WalletTransaction> claimUnsweptDepositsByAddress(@Param("address") String address,
+                                                          @Param("limit") int limit);
 
     // Find deposits by address that are not swept
     @Query("SELECT wt FROM WalletTransaction wt WHERE wt.toAddress = :address " +
-            "AND wt.transactionType = 'DEPOSIT' AND wt.status = 'CONFIRMED' " +
-            "AND wt.isSwept = false")
+            "AND wt.transactionType = 'DEPOSIT' AND wt.status IN ('PENDING', 'CONFIRMED') " +
+            "AND wt.isSwept = false AND wt.tokenSweepId IS NULL")
     List<WalletTransaction> findUnsweptDepositsByAddress(@Param("address") String address);
 
+    // Deposits covered by a TokenSweep
+    List<WalletTransaction> findByTokenSweepId(Long tokenSweepId);
+
     // Find pending transactions
     List<WalletTransaction> findByStatusOrderByCreatedAtAsc(WalletTransaction.TransactionStatus status);
 
@@ -142,6 +170,47 @@ public interface WalletTransactionRepository extends JpaRepository<WalletTransac
             @Param("endDate") LocalDateTime endDate
     );
 
+    // Keyset pagination trên (createdAt, id): trang đầu / các trang sau cursor
+    @Query("SELECT w FROM WalletTransaction w WHERE w.userId = :userId " +
+            "ORDER BY w.createdAt DESC, w.id DESC")
+        List<WalletTransaction> findHistoryFirstPage(@Param("userId") UUID userId, Pageable pageable);
+
+    @Query("SELECT w FROM WalletTransaction w WHERE w.userId = :userId " +
+            "AND (w.createdAt < :createdAt OR (w.createdAt = :createdAt AND w.id < :id)) " +
+            "ORDER BY w.createdAt DESC, w.id DESC")
+        List<WalletTransaction> findHistoryAfter(
+                        @Param("userId") UUID userId,
+            @Param("createdAt") LocalDateTime createdAt,
+            @Param("id") Long id,
+            Pageable pageable
+    );
+
+    // Export: đọc tuần tự (forward-only) với fetch size cố định, không load cả lịch sử vào bộ nhớ
+    @QueryHints({
+            @QueryHint(name = HibernateHints.HINT_FETCH_SIZE, value = "500"),
+            @QueryHint(name = HibernateHints.HINT_READ_ONLY, value = "true"),
+            @QueryHint(name = HibernateHints.HINT_CACHEABLE, value = "false")
+    })
+    @Query("SELECT w FROM WalletTransaction w WHERE w.userId = :userId " +
+            "AND w.createdAt >= :startDate AND w.createdAt < :endDate " +
+            "ORDER BY w.createdAt DESC, w.id DESC")
+        Stream<WalletTransaction> streamByUserIdAndDateRange(
+                        @Param("userId") UUID userId,
+            @Param("startDate") LocalDateTime startDate,
+            @Param("endDate") LocalDateTime endDate
+    );
+
+    // Tìm theo txHash / amount trong DB thay vì lọc toàn bộ lịch sử trong bộ nhớ
+    @Query("SELECT w FROM WalletTransaction w WHERE w.userId = :userId " +
+            "AND (LOWER(w.txHash) LIKE :pattern ESCAPE '!' " +
+            "OR CAST(w.amount AS string) LIKE :pattern ESCAPE '!') " +
+            "ORDER BY w.createdAt DESC, w.id DESC")
+        List<WalletTransaction> searchByUserId(
+                        @Param("userId") UUID userId,
+            @Param("pattern") String pattern,
+            Pageable pageable
+    );
+
     // --- Admin UI specific queries ---
     Page<WalletTransaction> findByTransactionTypeOrderByCreatedAtDesc(
             WalletTransaction.TransactionType type,
@@ -10,6 +10,7 @@ import org.springframework.stereotype.Repository;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -27,6 +28,21 @@ public interface WithdrawalTransactionRepository extends JpaRepository<Withdrawa
      */
     Page<WithdrawalTransaction> findByUserIdOrderByCreatedAtDesc(UUID userId, Pageable pageable);
 
+    /**
+     * Keyset pagination trên (createdAt, id): trang đầu / các trang sau cursor
+     */
+    @Query("SELECT w FROM WithdrawalTransaction w WHERE w.userId = :userId " +
+           "ORDER BY w.createdAt DESC, w.id DESC")
+    List<WithdrawalTransaction> findHistoryFirstPage(@Param("userId") UUID userId, Pageable pageable);
+
+    @Query("SELECT w FROM WithdrawalTransaction w WHERE w.userId = :userId " +
+           "AND (w.createdAt < :createdAt OR (w.createdAt = :createdAt AND w.id < :id)) " +
+           "ORDER BY w.createdAt DESC, w.id DESC")
+    List<WithdrawalTransaction> findHistoryAfter(@Param("userId") UUID userId,
+                                                 @Param("createdAt") LocalDateTime createdAt,
+                                                 @Param("id") Long id,
+                                                 Pageable pageable);
+
     /**
      * Find withdrawals by status
      */
@@ -55,6 +71,19 @@ public interface WithdrawalTransactionRepository extends JpaRepository<Withdrawa
         @Param("endDate") LocalDateTime endDate
     );
 
+    /**
+     * Sum net amounts of withdrawals in the given statuses (pending payout demand)
+     */
+    @Query("SELECT COALESCE(SUM(w.netAmount), 0) FROM WithdrawalTransaction w WHERE w.status IN :statuses")
+    BigDecimal sumNetAmountByStatusIn(@Param("statuses") List<WithdrawalTransaction.WithdrawalStatus> statuses);
+
+    /**
+     * Ids among the given withdrawals that are still in one of the statuses
+     */
+    @Query("SELECT w.id FROM WithdrawalTransaction w WHERE w.id IN :ids AND w.status IN :statuses")
+    List<Long> findIdsByIdInAndStatusIn(@Param("ids") Collection<Long> ids,
+                                        @Param("statuses") List<WithdrawalTransaction.WithdrawalStatus> statuses);
+
     /**
      * Find failed withdrawals that can be retried
      */
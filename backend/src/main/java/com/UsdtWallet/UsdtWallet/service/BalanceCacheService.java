@@ -0,0 +1,176 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Cache số dư points 2 tầng: near-cache trong process (Caffeine, có giới hạn) trước Redis.
+ * Giá trị lưu dạng chuỗi "{version}:{balance}" (BigDecimal.toPlainString, không qua double);
+ * version là version của account_balances nên ghi cũ tới sau không đè được ghi mới.
+ * Node ghi publish invalidation qua Redis pub/sub để các node khác bỏ entry near-cache cũ.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class BalanceCacheService {
+
+    private final RedisTemplate<String, String> customStringRedisTemplate;
+    private final RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Value("${points.balance-cache.near.max-size:100000}")
+    private long nearMaxSize;
+
+    // Lưới an toàn nếu lỡ mất message invalidation
+    @Value("${points.balance-cache.near.ttl-seconds:30}")
+    private long nearTtlSeconds;
+
+    @Value("${points.balance-cache.ttl-minutes:30}")
+    private long redisTtlMinutes;
+
+    private static final String KEY_PREFIX = "user:balance:";
+    private static final String INVALIDATE_CHANNEL = "points:balance:invalidate";
+
+    // Version cho user chưa có dòng account_balances (số dư seed từ ledger)
+    public static final long SEEDED_VERSION = -1;
+
+    /**
+     * balance == null: chỉ biết đã có version này (từ invalidation), chưa có giá trị
+     */
+    private record CachedBalance(long version, BigDecimal balance) {
+    }
+
+    // Chỉ ghi nếu chưa có hoặc version mới hơn
+    private static final DefaultRedisScript<Long> PUT_SCRIPT = new DefaultRedisScript<>(
+        "local cur = redis.call('GET', KEYS[1]) " +
+        "if cur then " +
+        "  local v = tonumber(string.match(cur, '^(-?%d+):')) " +
+        "  if v and v >= tonumber(ARGV[1]) then return 0 end " +
+        "end " +
+        "redis.call('SET', KEYS[1], ARGV[1] .. ':' .. ARGV[2], 'EX', ARGV[3]) return 1", Long.class);
+
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+    private Cache<UUID, CachedBalance> nearCache;
+
+    @PostConstruct
+    public void init() {
+        nearCache = Caffeine.newBuilder()
+            .maximumSize(nearMaxSize)
+            .expireAfterWrite(Duration.ofSeconds(nearTtlSeconds))
+            .build();
+        redisMessageListenerContainer.addMessageListener(this::onInvalidate, new ChannelTopic(INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * Số dư đã cache; null nếu miss
+     */
+    public BigDecimal get(UUID userId) {
+        CachedBalance near = nearCache.getIfPresent(userId);
+        if (near != null && near.balance() != null) {
+            return near.balance();
+        }
+
+        String value = customStringRedisTemplate.opsForValue().get(KEY_PREFIX + userId);
+        CachedBalance cached = decode(value);
+        if (cached == null) {
+            return null;
+        }
+        // Redis cũ hơn version đã biết qua invalidation thì coi như miss
+        CachedBalance merged = nearCache.asMap().merge(userId, cached, BalanceCacheService::newer);
+        return merged.balance();
+    }
+
+    /**
+     * Số dư vừa thay đổi (sau commit): cập nhật cả 2 tầng và báo các node khác
+     */
+    public void put(UUID userId, long version, BigDecimal balance) {
+        // Near-cache trước: invalidation do node khác ghi sau luôn tới sau lần put này
+        nearCache.asMap().merge(userId, new CachedBalance(version, balance), BalanceCacheService::newer);
+        try {
+            if (writeRedis(userId, version, balance)) {
+                customStringRedisTemplate.convertAndSend(INVALIDATE_CHANNEL, nodeId + ":" + userId + ":" + version);
+            }
+        } catch (Exception e) {
+            nearCache.invalidate(userId);
+            log.warn("Failed to update balance cache for user: {}", userId, e);
+        }
+    }
+
+    /**
+     * Đọc từ DB khi miss: chỉ ghi cache, không publish
+     */
+    public void fill(UUID userId, long version, BigDecimal balance) {
+        nearCache.asMap().merge(userId, new CachedBalance(version, balance), BalanceCacheService::newer);
+        try {
+            writeRedis(userId, version, balance);
+        } catch (Exception e) {
+            log.warn("Failed to fill balance cache for user: {}", userId, e);
+        }
+    }
+
+    public long getNearCacheSize() {
+        return nearCache.estimatedSize();
+    }
+
+    private boolean writeRedis(UUID userId, long version, BigDecimal balance) {
+        Long written = customStringRedisTemplate.execute(PUT_SCRIPT, List.of(KEY_PREFIX + userId),
+            String.valueOf(version), balance.toPlainString(), String.valueOf(redisTtlMinutes * 60));
+        return written != null && written == 1;
+    }
+
+    private void onInvalidate(Message message, byte[] pattern) {
+        try {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split(":");
+            if (parts.length != 3 || nodeId.equals(parts[0])) {
+                return;
+            }
+            UUID userId = UUID.fromString(parts[1]);
+            long version = Long.parseLong(parts[2]);
+            nearCache.asMap().merge(userId, new CachedBalance(version, null), BalanceCacheService::newer);
+        } catch (Exception e) {
+            log.warn("Invalid balance invalidation message: {}", e.getMessage());
+        }
+    }
+
+    private static CachedBalance newer(CachedBalance current, CachedBalance candidate) {
+        if (candidate.version() > current.version()) {
+            return candidate;
+        }
+        if (candidate.version() == current.version() && current.balance() == null) {
+            return candidate;
+        }
+        return current;
+    }
+
+    private static CachedBalance decode(String value) {
+        if (value == null) {
+            return null;
+        }
+        int separator = value.indexOf(':');
+        if (separator <= 0) {
+            // Entry định dạng cũ (không có version): bỏ qua, sẽ được ghi lại
+            return null;
+        }
+        try {
+            return new CachedBalance(Long.parseLong(value.substring(0, separator)),
+                new BigDecimal(value.substring(separator + 1)));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
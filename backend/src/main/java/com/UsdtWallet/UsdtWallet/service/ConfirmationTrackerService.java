@@ -0,0 +1,312 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Theo dõi confirmation cho mọi tx đã broadcast (sweep, gas topup, energy delegation, withdrawal).
+ * Mỗi block mới chỉ gọi 1 lần gettransactioninfobyblocknum thay vì gettransactioninfobyid cho từng tx.
+ * Tick chạy trên thread riêng; callback và HeadBlockEvent chạy trên executor khác để listener chậm
+ * không làm trễ tick (và không chiếm thread của Spring scheduler).
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class ConfirmationTrackerService {
+
+    private final TronApiService tronApiService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final RedisTemplate<String, Object> redisTemplate;
+
+    @Value("${confirmation.tracker.max-blocks-per-tick:20}")
+    private int maxBlocksPerTick;
+
+    @Value("${confirmation.tracker.timeout-minutes:60}")
+    private long timeoutMinutes;
+
+    @Value("${confirmation.tracker.tick-ms:3000}")
+    private long tickMs;
+
+    // Callback của cùng 1 txid luôn vào cùng 1 thread (onIncluded trước onConfirmed)
+    @Value("${confirmation.tracker.callback-threads:4}")
+    private int callbackThreads;
+
+    private static final String DISPATCH_LOCK_KEY = "confirmation:dispatch:";
+
+    /**
+     * Callback của subsystem đăng ký tx
+     */
+    public interface ConfirmationListener {
+
+        // Tx đã vào block (chưa đủ depth)
+        default void onIncluded(String txid, long blockNumber) {
+        }
+
+        void onConfirmed(String txid, Map<String, Object> txInfo, long confirmations);
+
+        void onFailed(String txid, Map<String, Object> txInfo);
+
+        // Không thấy tx trên chain sau timeoutMinutes
+        void onTimeout(String txid);
+    }
+
+    /**
+     * Publish mỗi khi thấy block mới
+     */
+    public record HeadBlockEvent(long blockNumber) {
+    }
+
+    private static class TrackedTransaction {
+        private final String txid;
+        private final int requiredDepth;
+        private final ConfirmationListener listener;
+        private final LocalDateTime registeredAt = LocalDateTime.now();
+        private volatile boolean lookedUp;
+        private volatile Long blockNumber;
+        private volatile Map<String, Object> txInfo;
+
+        private TrackedTransaction(String txid, int requiredDepth, ConfirmationListener listener) {
+            this.txid = txid;
+            this.requiredDepth = requiredDepth;
+            this.listener = listener;
+        }
+    }
+
+    private final Map<String, TrackedTransaction> tracked = new ConcurrentHashMap<>();
+
+    private volatile Long lastHeadBlock;
+    private volatile long lastProcessedBlock = -1;
+
+    private ScheduledExecutorService tickExecutor;
+    private ExecutorService[] callbackExecutors;
+    private ExecutorService eventExecutor;
+
+    // Head chưa publish; listener chậm thì các block dồn lại chỉ publish head mới nhất
+    private final AtomicLong pendingHeadEvent = new AtomicLong(-1);
+
+    /**
+     * Đăng ký tx cần theo dõi; gọi lại nhiều lần với cùng txid không có tác dụng
+     */
+    public void register(String txid, int requiredDepth, ConfirmationListener listener) {
+        if (txid == null || txid.isEmpty()) {
+            return;
+        }
+        if (tracked.putIfAbsent(txid, new TrackedTransaction(txid, requiredDepth, listener)) == null) {
+            log.debug("📌 Tracking {} (depth {})", txid, requiredDepth);
+        }
+    }
+
+    public int getTrackedCount() {
+        return tracked.size();
+    }
+
+    public Long getHeadBlock() {
+        return lastHeadBlock;
+    }
+
+    /**
+     * Start tick thread khi app sẵn sàng (listener của HeadBlockEvent đã được tạo)
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        callbackExecutors = new ExecutorService[Math.max(1, callbackThreads)];
+        for (int i = 0; i < callbackExecutors.length; i++) {
+            callbackExecutors[i] = Executors.newSingleThreadExecutor(daemon("confirmation-callback-" + (i + 1)));
+        }
+        eventExecutor = Executors.newSingleThreadExecutor(daemon("confirmation-head-event"));
+        tickExecutor = Executors.newSingleThreadScheduledExecutor(daemon("confirmation-tracker"));
+        tickExecutor.scheduleWithFixedDelay(this::onTick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (tickExecutor != null) {
+            tickExecutor.shutdownNow();
+            eventExecutor.shutdownNow();
+            for (ExecutorService executor : callbackExecutors) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Block tick: resolve các tx đang theo dõi rồi publish HeadBlockEvent
+     */
+    private void onTick() {
+        try {
+            Long head = tronApiService.getLatestBlockNumber();
+            if (head == null || head.equals(lastHeadBlock)) {
+                return;
+            }
+            lastHeadBlock = head;
+
+            try {
+                resolve(head);
+            } catch (Exception e) {
+                log.error("❌ Lỗi resolve confirmations tại block {}: {}", head, e.getMessage(), e);
+            }
+
+            publishHeadBlock(head);
+        } catch (Exception e) {
+            // Exception lọt ra scheduleWithFixedDelay sẽ huỷ tick
+            log.error("❌ Lỗi confirmation tick: {}", e.getMessage(), e);
+        }
+    }
+
+    private void publishHeadBlock(long head) {
+        if (pendingHeadEvent.getAndSet(head) >= 0) {
+            return; // Task đang chờ sẽ publish head mới nhất
+        }
+        eventExecutor.execute(() -> {
+            long latest = pendingHeadEvent.getAndSet(-1);
+            try {
+                eventPublisher.publishEvent(new HeadBlockEvent(latest));
+            } catch (Exception e) {
+                log.error("❌ Lỗi xử lý HeadBlockEvent {}: {}", latest, e.getMessage(), e);
+            }
+        });
+    }
+
+    private void resolve(long head) {
+        if (tracked.isEmpty()) {
+            lastProcessedBlock = head;
+            return;
+        }
+
+        // Tx mới đăng ký có thể đã nằm trong block trước khi được track: tra riêng 1 lần
+        for (TrackedTransaction t : tracked.values()) {
+            if (!t.lookedUp) {
+                t.lookedUp = true;
+                try {
+                    Map<String, Object> txInfo = tronApiService.getTransactionInfo(t.txid);
+                    if (txInfo != null && txInfo.get("blockNumber") instanceof Number) {
+                        markIncluded(t, txInfo);
+                    }
+                } catch (Exception e) {
+                    log.warn("Không lấy được transaction info cho {}: {}", t.txid, e.getMessage());
+                }
+            }
+        }
+
+        // Receipts theo block cho phần còn lại
+        long from = lastProcessedBlock < 0 ? head : lastProcessedBlock + 1;
+        long to = Math.min(head, from + maxBlocksPerTick - 1);
+        for (long block = from; block <= to; block++) {
+            List<Map<String, Object>> infos = tronApiService.getTransactionInfoByBlockNum(block);
+            if (infos == null) {
+                break; // Thử lại block này ở tick sau
+            }
+            for (Map<String, Object> txInfo : infos) {
+                TrackedTransaction t = tracked.get(String.valueOf(txInfo.get("id")));
+                if (t != null && t.blockNumber == null) {
+                    markIncluded(t, txInfo);
+                }
+            }
+            lastProcessedBlock = block;
+        }
+
+        LocalDateTime deadline = LocalDateTime.now().minusMinutes(timeoutMinutes);
+        for (TrackedTransaction t : tracked.values()) {
+            if (t.blockNumber != null) {
+                long confirmations = head - t.blockNumber;
+                if (isFailed(t.txInfo)) {
+                    dispatch(t, () -> t.listener.onFailed(t.txid, t.txInfo));
+                } else if (confirmations >= t.requiredDepth) {
+                    dispatch(t, () -> t.listener.onConfirmed(t.txid, t.txInfo, confirmations));
+                }
+            } else if (t.registeredAt.isBefore(deadline)) {
+                // Không lock: tx có thể được đăng ký lại và confirm sau đó
+                tracked.remove(t.txid);
+                callbackExecutor(t.txid).execute(() -> {
+                    try {
+                        t.listener.onTimeout(t.txid);
+                    } catch (Exception e) {
+                        log.error("❌ Lỗi onTimeout cho {}: {}", t.txid, e.getMessage(), e);
+                    }
+                });
+            }
+        }
+    }
+
+    private void markIncluded(TrackedTransaction t, Map<String, Object> txInfo) {
+        t.txInfo = txInfo;
+        long blockNumber = ((Number) txInfo.get("blockNumber")).longValue();
+        t.blockNumber = blockNumber;
+        callbackExecutor(t.txid).execute(() -> {
+            try {
+                t.listener.onIncluded(t.txid, blockNumber);
+            } catch (Exception e) {
+                log.error("❌ Lỗi onIncluded cho {}: {}", t.txid, e.getMessage(), e);
+            }
+        });
+    }
+
+    /**
+     * Gọi callback đúng 1 lần trên toàn cluster (lock theo txid), rồi bỏ theo dõi
+     */
+    private void dispatch(TrackedTransaction t, Runnable callback) {
+        tracked.remove(t.txid);
+
+        callbackExecutor(t.txid).execute(() -> {
+            try {
+                Boolean lockAcquired = redisTemplate.opsForValue()
+                    .setIfAbsent(DISPATCH_LOCK_KEY + t.txid, "locked", 300, TimeUnit.SECONDS);
+                if (!Boolean.TRUE.equals(lockAcquired)) {
+                    return;
+                }
+                callback.run();
+            } catch (Exception e) {
+                // Reconcile job của subsystem sẽ đăng ký lại tx
+                log.error("❌ Lỗi xử lý confirmation cho {}: {}", t.txid, e.getMessage(), e);
+            }
+        });
+    }
+
+    private ExecutorService callbackExecutor(String txid) {
+        return callbackExecutors[Math.floorMod(txid.hashCode(), callbackExecutors.length)];
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Contract call thất bại có result=FAILED hoặc receipt.result khác SUCCESS;
+     * system contract (TRX transfer, delegate) thành công thì không có result
+     */
+    private boolean isFailed(Map<String, Object> txInfo) {
+        if (txInfo == null) {
+            return false;
+        }
+        if ("FAILED".equals(txInfo.get("result"))) {
+            return true;
+        }
+        Object receipt = txInfo.get("receipt");
+        if (receipt instanceof Map<?, ?> receiptMap && receiptMap.get("result") != null) {
+            return !"SUCCESS".equals(receiptMap.get("result"));
+        }
+        return false;
+    }
+}
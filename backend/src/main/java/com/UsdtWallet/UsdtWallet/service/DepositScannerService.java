@@ -1,5 +1,6 @@
 package com.UsdtWallet.UsdtWallet.service;
 
+import com.UsdtWallet.UsdtWallet.model.Money;
 import com.UsdtWallet.UsdtWallet.model.entity.ChildWalletPool;
 import com.UsdtWallet.UsdtWallet.model.entity.WalletTransaction;
 import com.UsdtWallet.UsdtWallet.repository.ChildWalletPoolRepository;
@@ -208,8 +209,7 @@ public class DepositScannerService {
             }
 
             // Convert USDT amount (6 decimals)
-            BigDecimal amount = new BigDecimal(valueObj.toString())
-                .divide(new BigDecimal("1000000"));
+            BigDecimal amount = Money.ofMicros(valueObj.toString()).toBigDecimal();
 
             // Skip small amounts
             if (amount.compareTo(minimumDepositAmount) < 0) {
@@ -0,0 +1,335 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.UsdtWallet.UsdtWallet.model.entity.EnergyDelegation;
+import com.UsdtWallet.UsdtWallet.model.entity.TokenSweep;
+import com.UsdtWallet.UsdtWallet.repository.EnergyDelegationRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Cho child wallet mượn energy (Stake 2.0 DelegateResource) từ master wallet đã stake,
+ * thay cho việc gửi TRX gas rồi đốt TRX lấy energy
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class EnergyDelegationService {
+
+    private final TronApiService tronApiService;
+    private final EnergyDelegationRepository energyDelegationRepository;
+    private final HdWalletService hdWalletService;
+    private final ConfirmationTrackerService confirmationTrackerService;
+
+    // Energy cho 1 lần TRC20 transfer tới địa chỉ đã có USDT (master wallet)
+    @Value("${sweep.energy.required:65000}")
+    private long requiredEnergy;
+
+    @Value("${sweep.energy.margin-percent:10}")
+    private int marginPercent;
+
+    private static final long SUN_PER_TRX = 1_000_000L;
+
+    /**
+     * Energy còn dùng được của địa chỉ
+     */
+    public long getAvailableEnergy(String address) {
+        Map<String, Object> resource = tronApiService.getAccountResource(address);
+        return toLong(resource.get("EnergyLimit")) - toLong(resource.get("EnergyUsed"));
+    }
+
+    public boolean hasEnoughEnergy(String address) {
+        return getAvailableEnergy(address) >= requiredEnergy;
+    }
+
+    public Optional<EnergyDelegation> findForSweep(Long tokenSweepId) {
+        return energyDelegationRepository.findFirstByTokenSweepIdOrderByIdDesc(tokenSweepId);
+    }
+
+    /**
+     * Delegate energy cho một lượt sweep, 1 DelegateResource tx cho mỗi child wallet.
+     * Dừng khi master không còn đủ TRX stake để delegate.
+     */
+    public int delegateForSweeps(List<TokenSweep> sweeps) {
+        if (sweeps.isEmpty()) {
+            return 0;
+        }
+
+        String masterAddress = hdWalletService.getMasterWallet().getMasterAddress();
+        long balanceSun = calculateDelegateBalanceSun(masterAddress);
+        long delegatable = tronApiService.getCanDelegatedMaxSize(masterAddress);
+        String masterPrivateKey = hdWalletService.getMasterPrivateKey();
+
+        log.info("⚡ Delegating energy for {} sweeps: {} sun each, master can delegate {} sun",
+            sweeps.size(), balanceSun, delegatable);
+
+        int delegated = 0;
+        for (TokenSweep sweep : sweeps) {
+            if (delegatable < balanceSun) {
+                log.warn("⚠️ Master wallet không đủ TRX stake để delegate energy ({} < {} sun)", delegatable, balanceSun);
+                break;
+            }
+
+            if (delegate(sweep, masterAddress, masterPrivateKey, balanceSun)) {
+                delegatable -= balanceSun;
+                delegated++;
+            }
+        }
+        return delegated;
+    }
+
+    private boolean delegate(TokenSweep sweep, String masterAddress, String masterPrivateKey, long balanceSun) {
+        EnergyDelegation delegation = new EnergyDelegation();
+        delegation.setChildIndex(sweep.getChildIndex());
+        delegation.setReceiverAddress(sweep.getChildAddress());
+        delegation.setTokenSweepId(sweep.getId());
+        delegation.setEnergyAmount(requiredEnergy);
+        delegation.setBalanceSun(balanceSun);
+        delegation.setStatus(EnergyDelegation.DelegationStatus.PENDING);
+        delegation = energyDelegationRepository.save(delegation);
+
+        try {
+            String rawTransaction = tronApiService.createDelegateResourceTransaction(
+                masterAddress, sweep.getChildAddress(), balanceSun);
+            if (rawTransaction == null) {
+                throw new RuntimeException("Failed to create delegate resource transaction");
+            }
+
+            String signedTransaction = tronApiService.signTransaction(rawTransaction, masterPrivateKey);
+            if (signedTransaction == null) {
+                throw new RuntimeException("Failed to sign delegate resource transaction");
+            }
+
+            String txHash = tronApiService.broadcastTransaction(signedTransaction);
+            if (txHash == null) {
+                throw new RuntimeException("Failed to broadcast delegate resource transaction");
+            }
+
+            delegation.setDelegateTxHash(txHash);
+            delegation.setStatus(EnergyDelegation.DelegationStatus.SENT);
+            energyDelegationRepository.save(delegation);
+            trackDelegation(delegation.getId(), txHash);
+
+            log.info("✅ Energy delegated to {} for TokenSweep {} - TX: {}",
+                sweep.getChildAddress(), sweep.getId(), txHash);
+            return true;
+
+        } catch (Exception e) {
+            log.error("Error delegating energy to {}: {}", sweep.getChildAddress(), e.getMessage());
+
+            delegation.setStatus(EnergyDelegation.DelegationStatus.FAILED);
+            delegation.setDelegateTxHash("ERROR: " + e.getMessage());
+            energyDelegationRepository.save(delegation);
+            return false;
+        }
+    }
+
+    /**
+     * TRX stake (sun) cần delegate để receiver có requiredEnergy (+ margin),
+     * theo tỉ lệ TotalEnergyLimit / TotalEnergyWeight hiện tại của mạng
+     */
+    private long calculateDelegateBalanceSun(String masterAddress) {
+        Map<String, Object> resource = tronApiService.getAccountResource(masterAddress);
+        long totalEnergyLimit = toLong(resource.get("TotalEnergyLimit"));
+        long totalEnergyWeight = toLong(resource.get("TotalEnergyWeight"));
+
+        if (totalEnergyLimit <= 0 || totalEnergyWeight <= 0) {
+            throw new RuntimeException("Cannot read network energy parameters from getaccountresource");
+        }
+
+        long energyWithMargin = requiredEnergy * (100 + marginPercent) / 100;
+        // TotalEnergyWeight tính bằng TRX, làm tròn lên để không thiếu energy
+        long trx = (energyWithMargin * totalEnergyWeight + totalEnergyLimit - 1) / totalEnergyLimit;
+        return Math.max(trx, 1) * SUN_PER_TRX;
+    }
+
+    /**
+     * Đánh dấu thu hồi energy khi sweep đã CONFIRMED/FAILED
+     */
+    @Transactional
+    public void requestReclaim(Long tokenSweepId) {
+        List<EnergyDelegation> delegations = energyDelegationRepository.findByTokenSweepIdAndStatusIn(
+            tokenSweepId, EnumSet.of(EnergyDelegation.DelegationStatus.SENT, EnergyDelegation.DelegationStatus.DELEGATED));
+
+        for (EnergyDelegation delegation : delegations) {
+            delegation.setReclaimRequested(true);
+            energyDelegationRepository.save(delegation);
+        }
+    }
+
+    /**
+     * Đăng ký delegate tx với ConfirmationTrackerService
+     */
+    private void trackDelegation(Long delegationId, String txHash) {
+        confirmationTrackerService.register(txHash, 0, new ConfirmationTrackerService.ConfirmationListener() {
+            @Override
+            public void onConfirmed(String txid, Map<String, Object> txInfo, long confirmations) {
+                resolveDelegation(delegationId, EnergyDelegation.DelegationStatus.DELEGATED);
+            }
+
+            @Override
+            public void onFailed(String txid, Map<String, Object> txInfo) {
+                resolveDelegation(delegationId, EnergyDelegation.DelegationStatus.FAILED);
+            }
+
+            @Override
+            public void onTimeout(String txid) {
+                resolveDelegation(delegationId, EnergyDelegation.DelegationStatus.FAILED);
+            }
+        });
+    }
+
+    private void resolveDelegation(Long delegationId, EnergyDelegation.DelegationStatus status) {
+        EnergyDelegation delegation = energyDelegationRepository.findById(delegationId).orElse(null);
+        if (delegation == null || delegation.getStatus() != EnergyDelegation.DelegationStatus.SENT) {
+            return;
+        }
+
+        delegation.setStatus(status);
+        energyDelegationRepository.save(delegation);
+
+        if (status == EnergyDelegation.DelegationStatus.DELEGATED) {
+            log.info("✅ Energy delegation confirmed: {} energy to {} (ID: {})",
+                delegation.getEnergyAmount(), delegation.getReceiverAddress(), delegation.getId());
+        } else {
+            log.warn("❌ Energy delegation failed: {} (ID: {})", delegation.getDelegateTxHash(), delegation.getId());
+        }
+    }
+
+    /**
+     * Đăng ký undelegate tx với ConfirmationTrackerService
+     */
+    private void trackReclaim(Long delegationId, String txHash) {
+        confirmationTrackerService.register(txHash, 0, new ConfirmationTrackerService.ConfirmationListener() {
+            @Override
+            public void onConfirmed(String txid, Map<String, Object> txInfo, long confirmations) {
+                resolveReclaim(delegationId, true);
+            }
+
+            @Override
+            public void onFailed(String txid, Map<String, Object> txInfo) {
+                resolveReclaim(delegationId, false);
+            }
+
+            @Override
+            public void onTimeout(String txid) {
+                resolveReclaim(delegationId, false);
+            }
+        });
+    }
+
+    /**
+     * Đăng ký sau khi commit, để callback luôn thấy trạng thái RECLAIMING
+     */
+    private void trackReclaimAfterCommit(Long delegationId, String txHash) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    trackReclaim(delegationId, txHash);
+                }
+            });
+        } else {
+            trackReclaim(delegationId, txHash);
+        }
+    }
+
+    private void resolveReclaim(Long delegationId, boolean confirmed) {
+        EnergyDelegation delegation = energyDelegationRepository.findById(delegationId).orElse(null);
+        if (delegation == null || delegation.getStatus() != EnergyDelegation.DelegationStatus.RECLAIMING) {
+            return;
+        }
+
+        if (confirmed) {
+            delegation.setStatus(EnergyDelegation.DelegationStatus.RECLAIMED);
+            energyDelegationRepository.save(delegation);
+            log.info("✅ Energy reclaimed from {} - TX: {}", delegation.getReceiverAddress(), delegation.getUndelegateTxHash());
+        } else {
+            // reclaimRequested vẫn true: reclaimDelegations sẽ gửi lại undelegate
+            delegation.setStatus(EnergyDelegation.DelegationStatus.DELEGATED);
+            energyDelegationRepository.save(delegation);
+            log.warn("❌ Energy undelegate failed: {} (ID: {}), will retry",
+                delegation.getUndelegateTxHash(), delegation.getId());
+        }
+    }
+
+    /**
+     * Đăng ký lại các delegate / undelegate tx chưa confirm (sau restart)
+     */
+    @Scheduled(initialDelay = 10000, fixedDelay = 300000)
+    public void registerPendingDelegations() {
+        try {
+            for (EnergyDelegation delegation : energyDelegationRepository.findByStatus(EnergyDelegation.DelegationStatus.SENT)) {
+                trackDelegation(delegation.getId(), delegation.getDelegateTxHash());
+            }
+            for (EnergyDelegation delegation : energyDelegationRepository.findByStatus(EnergyDelegation.DelegationStatus.RECLAIMING)) {
+                trackReclaim(delegation.getId(), delegation.getUndelegateTxHash());
+            }
+        } catch (Exception e) {
+            log.error("❌ Lỗi đăng ký pending energy delegations: {}", e.getMessage(), e);
+        }
+    }
+
+    /**
+     * SCHEDULED: Thu hồi energy đã cho mượn sau khi sweep xong (theo lượt)
+     */
+    @Scheduled(fixedDelay = 60000)
+    @Transactional
+    public void reclaimDelegations() {
+        try {
+            List<EnergyDelegation> toReclaim = energyDelegationRepository
+                .findByStatusAndReclaimRequestedTrue(EnergyDelegation.DelegationStatus.DELEGATED);
+
+            if (toReclaim.isEmpty()) {
+                return;
+            }
+
+            log.info("♻️ Reclaiming energy from {} child wallets", toReclaim.size());
+
+            String masterAddress = hdWalletService.getMasterWallet().getMasterAddress();
+            String masterPrivateKey = hdWalletService.getMasterPrivateKey();
+
+            for (EnergyDelegation delegation : toReclaim) {
+                try {
+                    String rawTransaction = tronApiService.createUndelegateResourceTransaction(
+                        masterAddress, delegation.getReceiverAddress(), delegation.getBalanceSun());
+                    if (rawTransaction == null) {
+                        continue; // Thử lại lượt sau
+                    }
+
+                    String signedTransaction = tronApiService.signTransaction(rawTransaction, masterPrivateKey);
+                    String txHash = signedTransaction != null ? tronApiService.broadcastTransaction(signedTransaction) : null;
+
+                    if (txHash != null) {
+                        // RECLAIMED chỉ khi undelegate tx confirm; fail/drop thì quay lại DELEGATED để thử lại
+                        delegation.setUndelegateTxHash(txHash);
+                        delegation.setStatus(EnergyDelegation.DelegationStatus.RECLAIMING);
+                        energyDelegationRepository.save(delegation);
+                        trackReclaimAfterCommit(delegation.getId(), txHash);
+
+                        log.info("♻️ Energy undelegate broadcast for {} - TX: {}", delegation.getReceiverAddress(), txHash);
+                    }
+                } catch (Exception e) {
+                    log.error("❌ Lỗi reclaim energy delegation {}: {}", delegation.getId(), e.getMessage());
+                }
+            }
+
+        } catch (Exception e) {
+            log.error("❌ Lỗi reclaim energy delegations: {}", e.getMessage(), e);
+        }
+    }
+
+    private long toLong(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+}
@@ -0,0 +1,129 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.UsdtWallet.UsdtWallet.util.TronAddressUtil;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.util.encoders.Hex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Ước lượng energy và fee_limit cho TRC20 transfer.
+ * Energy đo bằng dry run (triggerconstantcontract) trên transfer mẫu, cache theo
+ * (contract, người nhận đã có token hay chưa); giá energy lấy từ getchainparameters.
+ * Build transfer chỉ đọc cache, không gọi thêm API.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class EnergyEstimatorService {
+
+    private final TronApiService tronApiService;
+    private final HdWalletService hdWalletService;
+
+    @Value("${tron.usdt.contract:TXYZopYRdj2D9XRtbG411XZZ3kM5VkAeBf}")
+    private String usdtContractAddress;
+
+    // Dùng khi chưa ước lượng được (người nhận đã có / chưa có USDT)
+    @Value("${fee.estimator.default-energy.funded:65000}")
+    private long defaultFundedEnergy;
+
+    @Value("${fee.estimator.default-energy.unfunded:130000}")
+    private long defaultUnfundedEnergy;
+
+    @Value("${fee.estimator.default-energy-price-sun:420}")
+    private long defaultEnergyPriceSun;
+
+    @Value("${fee.estimator.margin-percent:20}")
+    private int marginPercent;
+
+    @Value("${fee.estimator.max-fee-limit-trx:50}")
+    private long maxFeeLimitTrx;
+
+    private static final long SUN_PER_TRX = 1_000_000L;
+    // 0.000001 USDT: đủ để chạy code path của transfer
+    private static final BigDecimal SAMPLE_AMOUNT = new BigDecimal("0.000001");
+
+    private final Map<String, Long> energyCache = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    private volatile Long energyPriceSun;
+
+    /**
+     * fee_limit (sun) cho 1 USDT transfer; recipientFunded = người nhận đã có USDT
+     * (vd master wallet khi sweep). Không chắc thì truyền false.
+     */
+    public long getFeeLimitSun(boolean recipientFunded) {
+        return getFeeLimitSun(usdtContractAddress, recipientFunded);
+    }
+
+    public long getFeeLimitSun(String contractAddress, boolean recipientFunded) {
+        long energy = getTransferEnergy(contractAddress, recipientFunded);
+        long feeSun = energy * getEnergyPriceSun() * (100 + marginPercent) / 100;
+        return Math.min(Math.max(feeSun, SUN_PER_TRX), maxFeeLimitTrx * SUN_PER_TRX);
+    }
+
+    public long getTransferEnergy(String contractAddress, boolean recipientFunded) {
+        Long energy = energyCache.get(cacheKey(contractAddress, recipientFunded));
+        if (energy != null) {
+            return energy;
+        }
+        return recipientFunded ? defaultFundedEnergy : defaultUnfundedEnergy;
+    }
+
+    /**
+     * Giá energy hiện tại (sun/energy)
+     */
+    public long getEnergyPriceSun() {
+        Long price = energyPriceSun;
+        return price != null ? price : defaultEnergyPriceSun;
+    }
+
+    /**
+     * SCHEDULED: Cập nhật giá energy và ước lượng lại energy cho transfer mẫu
+     */
+    @Scheduled(initialDelay = 5000, fixedDelayString = "${fee.estimator.refresh-ms:600000}")
+    public void refresh() {
+        try {
+            Long price = tronApiService.getChainParameter("getEnergyFee");
+            if (price != null && price > 0) {
+                energyPriceSun = price;
+            }
+
+            // Transfer mẫu từ master wallet: tới chính nó (ô balance đã có) và tới địa chỉ mới (ô balance trống)
+            String masterAddress = hdWalletService.getMasterWallet().getMasterAddress();
+            estimate(usdtContractAddress, true, masterAddress, masterAddress);
+            estimate(usdtContractAddress, false, masterAddress, randomAddress());
+
+            log.debug("⛽ Energy estimates: funded={}, unfunded={}, price={} sun",
+                getTransferEnergy(usdtContractAddress, true), getTransferEnergy(usdtContractAddress, false),
+                getEnergyPriceSun());
+
+        } catch (Exception e) {
+            log.warn("Không cập nhật được energy estimates: {}", e.getMessage());
+        }
+    }
+
+    private void estimate(String contractAddress, boolean recipientFunded, String owner, String recipient) {
+        Long energy = tronApiService.estimateTrc20TransferEnergy(owner, contractAddress, recipient, SAMPLE_AMOUNT);
+        if (energy != null && energy > 0) {
+            energyCache.put(cacheKey(contractAddress, recipientFunded), energy);
+        }
+    }
+
+    private String randomAddress() {
+        byte[] bytes = new byte[20];
+        random.nextBytes(bytes);
+        return TronAddressUtil.hexToBase58("0x" + Hex.toHexString(bytes));
+    }
+
+    private String cacheKey(String contractAddress, boolean recipientFunded) {
+        return contractAddress + ":" + (recipientFunded ? "funded" : "unfunded");
+    }
+}
@@ -1,9 +1,11 @@
 package com.UsdtWallet.UsdtWallet.service;
 
+import com.UsdtWallet.UsdtWallet.model.Money;
 import com.UsdtWallet.UsdtWallet.model.entity.ChildWalletPool;
 import com.UsdtWallet.UsdtWallet.model.entity.HdMasterWallet;
 import com.UsdtWallet.UsdtWallet.repository.ChildWalletPoolRepository;
 import com.UsdtWallet.UsdtWallet.repository.HdMasterWalletRepository;
+import com.UsdtWallet.UsdtWallet.repository.HotWalletRepository;
 import com.UsdtWallet.UsdtWallet.util.TronAddressUtil;
 import com.UsdtWallet.UsdtWallet.util.EncryptionUtil;
 import lombok.extern.slf4j.Slf4j;
@@ -18,9 +20,11 @@ import jakarta.annotation.PostConstruct;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 @Service
@@ -30,6 +34,7 @@ public class HdWalletService {
     private final TronAddressUtil tronAddressUtil;
     private final HdMasterWalletRepository masterWalletRepository;
     private final ChildWalletPoolRepository childWalletPoolRepository;
+    private final HotWalletRepository hotWalletRepository;
     private final RedisTemplate<String, String> redisTemplate;
     private final RestTemplate restTemplate = new RestTemplate();
     private final EncryptionUtil encryptionUtil;
@@ -52,6 +57,10 @@ public class HdWalletService {
     @Value("${wallet.master.minTrxBalance:100}")
     private BigDecimal minTrxBalance;
 
+    // Index dành cho hot wallet: child pool không bao giờ cấp các index này
+    @Value("${withdrawal.hot-wallets.indices:0}")
+    private List<Integer> hotWalletIndices;
+
     private static final String REDIS_ADDRESS_SET_KEY = "child_wallet_addresses";
     private static final String REDIS_ADDRESS_INDEX_KEY = "child_wallet_address_index";
 
@@ -60,11 +69,13 @@ public class HdWalletService {
             TronAddressUtil tronAddressUtil,
             HdMasterWalletRepository masterWalletRepository,
             ChildWalletPoolRepository childWalletPoolRepository,
+            HotWalletRepository hotWalletRepository,
             @Qualifier("customStringRedisTemplate") RedisTemplate<String, String> redisTemplate,
             EncryptionUtil encryptionUtil) {
         this.tronAddressUtil = tronAddressUtil;
         this.masterWalletRepository = masterWalletRepository;
         this.childWalletPoolRepository = childWalletPoolRepository;
+        this.hotWalletRepository = hotWalletRepository;
         this.redisTemplate = redisTemplate;
         this.encryptionUtil = encryptionUtil;
     }
@@ -166,8 +177,7 @@ public class HdWalletService {
                     Object balanceObj = data.get(0).get("balance");
                     if (balanceObj != null) {
                         // TRX balance is in SUN (1 TRX = 1,000,000 SUN)
-                        BigDecimal sunBalance = new BigDecimal(balanceObj.toString());
-                        return sunBalance.divide(new BigDecimal("1000000"));
+                        return Money.ofMicros(balanceObj.toString()).toBigDecimal();
                     }
                 }
             }
@@ -195,17 +205,22 @@ public class HdWalletService {
     }
 
     /**
-     * Generate batch of child wallets
+     * Generate batch of child wallets (bỏ qua index của hot wallet, kể cả ví đã tắt vì có thể còn tiền)
      */
     @Transactional
     public void generateChildWallets(int count) {
         int lastIndex = childWalletPoolRepository.findMaxDerivationIndex().orElse(0);
+        Set<Integer> reservedIndices = new HashSet<>(hotWalletIndices);
+        hotWalletRepository.findAll().forEach(hotWallet -> reservedIndices.add(hotWallet.getDerivationIndex()));
         List<ChildWalletPool> wallets = new ArrayList<>();
 
         log.info("Starting generation of {} child wallets from index {}", count, lastIndex + 1);
 
+        int currentIndex = lastIndex;
         for (int i = 1; i <= count; i++) {
-            int currentIndex = lastIndex + i;
+            do {
+                currentIndex++;
+            } while (reservedIndices.contains(currentIndex));
             TronAddressUtil.WalletInfo walletInfo = tronAddressUtil.deriveWallet(mnemonicSeed, currentIndex);
 
             ChildWalletPool wallet = new ChildWalletPool();
@@ -296,6 +311,13 @@ public class HdWalletService {
         return walletInfo.privateKey();
     }
 
+    /**
+     * Get address for wallet index
+     */
+    public String getAddressForIndex(int index) {
+        return tronAddressUtil.deriveWallet(mnemonicSeed, index).address();
+    }
+
     /**
      * Get master wallet private key
      */
@@ -0,0 +1,196 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.UsdtWallet.UsdtWallet.model.Money;
+import com.UsdtWallet.UsdtWallet.model.entity.HotWallet;
+import com.UsdtWallet.UsdtWallet.repository.HotWalletRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tự nạp lại USDT/TRX từ master cho các hot wallet xuống dưới ngưỡng.
+ * Master (index 0) cũng gửi withdrawal, nên mỗi lượt nạp giữ chỗ qua LiquidityService
+ * trước khi broadcast và settle / release theo kết quả on-chain.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class HotWalletRebalanceService {
+
+    private final HotWalletService hotWalletService;
+    private final HotWalletRepository hotWalletRepository;
+    private final LiquidityService liquidityService;
+    private final ConfirmationTrackerService confirmationTrackerService;
+    private final HdWalletService hdWalletService;
+    private final TronApiService tronApiService;
+    private final EnergyEstimatorService energyEstimatorService;
+    private final RedisTemplate<String, Object> redisTemplate;
+
+    // TRX tối thiểu luôn giữ lại trên hot wallet / master
+    @Value("${withdrawal.hot-wallets.min-trx:20}")
+    private BigDecimal minTrxBalance;
+
+    // Rebalance: nạp lại ví (không phải master) khi xuống dưới min, tới mức target
+    @Value("${withdrawal.hot-wallets.rebalance.enabled:true}")
+    private boolean rebalanceEnabled;
+
+    @Value("${withdrawal.hot-wallets.rebalance.min-usdt:500}")
+    private BigDecimal rebalanceMinUsdt;
+
+    @Value("${withdrawal.hot-wallets.rebalance.target-usdt:2000}")
+    private BigDecimal rebalanceTargetUsdt;
+
+    @Value("${withdrawal.hot-wallets.rebalance.min-trx:50}")
+    private BigDecimal rebalanceMinTrx;
+
+    @Value("${withdrawal.hot-wallets.rebalance.target-trx:200}")
+    private BigDecimal rebalanceTargetTrx;
+
+    private static final String REBALANCE_LOCK_KEY = "hotwallet:rebalance:lock";
+    private static final String REBALANCE_PENDING_KEY = "hotwallet:rebalance:pending:";
+
+    /**
+     * SCHEDULED: Nạp lại USDT/TRX từ master cho hot wallet xuống dưới ngưỡng - runs every 5 minutes
+     */
+    @Scheduled(initialDelay = 60000, fixedDelay = 300000)
+    public void rebalance() {
+        if (!rebalanceEnabled) {
+            return;
+        }
+
+        Boolean lockAcquired = redisTemplate.opsForValue()
+            .setIfAbsent(REBALANCE_LOCK_KEY, "locked", 240, TimeUnit.SECONDS);
+        if (!Boolean.TRUE.equals(lockAcquired)) {
+            return;
+        }
+
+        try {
+            HotWallet master = hotWalletRepository.findByDerivationIndex(0)
+                .orElseGet(() -> {
+                    HotWallet wallet = new HotWallet();
+                    wallet.setDerivationIndex(0);
+                    wallet.setAddress(hdWalletService.getMasterWallet().getMasterAddress());
+                    return wallet;
+                });
+            BigDecimal masterUsdt = tronApiService.getUsdtBalance(master.getAddress());
+            BigDecimal masterTrx = tronApiService.getTrxBalance(master.getAddress());
+            String masterPrivateKey = hdWalletService.getMasterPrivateKey();
+
+            for (HotWallet wallet : hotWalletService.getHotWallets()) {
+                if (wallet.isMaster()) {
+                    continue;
+                }
+                // Chờ lượt nạp trước confirm rồi mới xét lại
+                if (Boolean.TRUE.equals(redisTemplate.hasKey(REBALANCE_PENDING_KEY + wallet.getDerivationIndex()))) {
+                    continue;
+                }
+
+                wallet = hotWalletService.refreshBalance(wallet);
+                boolean sent = false;
+
+                if (wallet.getTrxBalance().compareTo(rebalanceMinTrx) < 0) {
+                    BigDecimal topup = rebalanceTargetTrx.subtract(wallet.getTrxBalance());
+                    if (masterTrx.subtract(topup).compareTo(minTrxBalance) >= 0
+                            && send(master.getAddress(), masterPrivateKey, wallet, topup, false)) {
+                        masterTrx = masterTrx.subtract(topup);
+                        sent = true;
+                    } else {
+                        log.warn("⚠️ Master không đủ TRX để nạp {} TRX cho hot wallet {}", topup, wallet.getAddress());
+                    }
+                }
+
+                if (wallet.getUsdtBalance().compareTo(rebalanceMinUsdt) < 0) {
+                    BigDecimal topup = rebalanceTargetUsdt.subtract(wallet.getUsdtBalance());
+                    if (masterUsdt.compareTo(topup) >= 0
+                            && send(master.getAddress(), masterPrivateKey, wallet, topup, true)) {
+                        masterUsdt = masterUsdt.subtract(topup);
+                        sent = true;
+                    } else {
+                        log.warn("⚠️ Master không đủ USDT để nạp {} USDT cho hot wallet {}", topup, wallet.getAddress());
+                    }
+                }
+
+                if (sent) {
+                    redisTemplate.opsForValue().set(REBALANCE_PENDING_KEY + wallet.getDerivationIndex(),
+                        "pending", 2, TimeUnit.MINUTES);
+                }
+            }
+
+        } catch (Exception e) {
+            log.error("❌ Lỗi rebalance hot wallets: {}", e.getMessage(), e);
+        } finally {
+            redisTemplate.delete(REBALANCE_LOCK_KEY);
+        }
+    }
+
+    /**
+     * Giữ chỗ trên master (phần withdrawal chưa dùng) rồi mới broadcast; không đủ thì bỏ lượt nạp này
+     */
+    private boolean send(String masterAddress, String masterPrivateKey, HotWallet wallet, BigDecimal amount, boolean usdt) {
+        String reservationKey = "rebalance:" + wallet.getDerivationIndex() + ":" + UUID.randomUUID();
+        long feeLimitSun = energyEstimatorService.getFeeLimitSun(wallet.getUsdtBalance().signum() > 0);
+        BigDecimal reservedUsdt = usdt ? amount : BigDecimal.ZERO;
+        BigDecimal reservedTrx = usdt ? Money.ofMicros(feeLimitSun).toBigDecimal() : amount;
+        if (!liquidityService.reserveTransfer(reservationKey, masterAddress, reservedUsdt, reservedTrx)) {
+            log.warn("⚠️ Master đang giữ chỗ cho withdrawal, hoãn nạp {} {} cho hot wallet {}",
+                amount, usdt ? "USDT" : "TRX", wallet.getAddress());
+            return false;
+        }
+
+        try {
+            String rawTransaction = usdt
+                ? tronApiService.createUsdtTransferTransaction(masterAddress, wallet.getAddress(), amount, feeLimitSun)
+                : tronApiService.createTrxTransferTransaction(masterAddress, wallet.getAddress(), amount);
+            if (rawTransaction == null) {
+                liquidityService.releaseTransfer(reservationKey);
+                return false;
+            }
+
+            String signedTransaction = tronApiService.signTransaction(rawTransaction, masterPrivateKey);
+            String txHash = signedTransaction != null ? tronApiService.broadcastTransaction(signedTransaction) : null;
+            if (txHash == null) {
+                liquidityService.releaseTransfer(reservationKey);
+                return false;
+            }
+
+            trackTransfer(txHash, reservationKey);
+            log.info("♻️ Rebalanced hot wallet {} (index {}): {} {} - TX: {}",
+                wallet.getAddress(), wallet.getDerivationIndex(), amount, usdt ? "USDT" : "TRX", txHash);
+            return true;
+
+        } catch (Exception e) {
+            liquidityService.releaseTransfer(reservationKey);
+            log.error("❌ Lỗi nạp {} cho hot wallet {}: {}", usdt ? "USDT" : "TRX", wallet.getAddress(), e.getMessage());
+            return false;
+        }
+    }
+
+    private void trackTransfer(String txHash, String reservationKey) {
+        confirmationTrackerService.register(txHash, 0, new ConfirmationTrackerService.ConfirmationListener() {
+            @Override
+            public void onConfirmed(String txid, Map<String, Object> txInfo, long confirmations) {
+                liquidityService.settleTransfer(reservationKey);
+            }
+
+            @Override
+            public void onFailed(String txid, Map<String, Object> txInfo) {
+                log.warn("⚠️ Rebalance TX {} failed on chain", txid);
+                liquidityService.releaseTransfer(reservationKey);
+            }
+
+            @Override
+            public void onTimeout(String txid) {
+                log.warn("⚠️ Rebalance TX {} not found on chain", txid);
+                liquidityService.releaseTransfer(reservationKey);
+            }
+        });
+    }
+}
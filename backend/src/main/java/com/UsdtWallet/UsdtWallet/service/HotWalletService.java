@@ -0,0 +1,96 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.UsdtWallet.UsdtWallet.model.entity.HotWallet;
+import com.UsdtWallet.UsdtWallet.repository.ChildWalletPoolRepository;
+import com.UsdtWallet.UsdtWallet.repository.HotWalletRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * Quản lý tập hot wallet gửi withdrawal (nhiều derivation index thay vì chỉ master index 0):
+ * theo dõi balance từng ví. Chọn ví cho withdrawal: LiquidityService, nạp lại từ master: HotWalletRebalanceService.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class HotWalletService {
+
+    private final HotWalletRepository hotWalletRepository;
+    private final ChildWalletPoolRepository childWalletPoolRepository;
+    private final HdWalletService hdWalletService;
+    private final TronApiService tronApiService;
+
+    // Index 0 = master. Index khác không được trùng child wallet đã cấp (child pool tự bỏ qua các index này)
+    @Value("${withdrawal.hot-wallets.indices:0}")
+    private List<Integer> hotWalletIndices;
+
+    /**
+     * Đồng bộ bảng hot_wallets với cấu hình
+     */
+    @PostConstruct
+    public void initialize() {
+        for (Integer index : hotWalletIndices) {
+            // Child pool bỏ qua index hot wallet khi sinh ví mới; chỉ chặn index đã cấp cho child trước đó
+            if (index != 0 && childWalletPoolRepository.findByDerivationIndex(index).isPresent()) {
+                throw new IllegalStateException("Hot wallet index " + index + " is already used by a child wallet");
+            }
+
+            HotWallet wallet = hotWalletRepository.findByDerivationIndex(index).orElseGet(() -> {
+                HotWallet created = new HotWallet();
+                created.setDerivationIndex(index);
+                created.setAddress(hdWalletService.getAddressForIndex(index));
+                return created;
+            });
+            wallet.setEnabled(true);
+            hotWalletRepository.save(wallet);
+        }
+
+        for (HotWallet wallet : hotWalletRepository.findByEnabledTrueOrderByDerivationIndexAsc()) {
+            if (!hotWalletIndices.contains(wallet.getDerivationIndex())) {
+                wallet.setEnabled(false);
+                hotWalletRepository.save(wallet);
+                log.info("Hot wallet {} (index {}) disabled - removed from config",
+                    wallet.getAddress(), wallet.getDerivationIndex());
+            }
+        }
+
+        log.info("🔥 Hot wallets: {}", hotWalletIndices);
+    }
+
+    public List<HotWallet> getHotWallets() {
+        return hotWalletRepository.findByEnabledTrueOrderByDerivationIndexAsc();
+    }
+
+    public String getPrivateKey(HotWallet wallet) {
+        return hdWalletService.getPrivateKeyForIndex(wallet.getDerivationIndex());
+    }
+
+    /**
+     * Đọc lại balance on-chain của 1 hot wallet
+     */
+    public HotWallet refreshBalance(HotWallet wallet) {
+        wallet.setUsdtBalance(tronApiService.getUsdtBalance(wallet.getAddress()));
+        wallet.setTrxBalance(tronApiService.getTrxBalance(wallet.getAddress()));
+        wallet.setBalanceUpdatedAt(LocalDateTime.now());
+        return hotWalletRepository.save(wallet);
+    }
+
+    /**
+     * Cập nhật balance các hot wallet (LiquidityService gọi theo block tick)
+     */
+    public void refreshBalances() {
+        for (HotWallet wallet : getHotWallets()) {
+            try {
+                refreshBalance(wallet);
+            } catch (Exception e) {
+                log.warn("Không cập nhật được balance hot wallet {}: {}", wallet.getAddress(), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.util.encoders.Hex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Idempotency-Key cho API tạo tiền (withdrawal, transfer).
+ * Request đầu tiên claim key trong Redis (SET NX) và chạy; response thành công được lưu theo TTL
+ * và trả lại nguyên vẹn cho các lần retry. Request trùng đang chạy song song thì chờ request đầu
+ * (cùng node: chờ future, khác node: poll Redis) thay vì chạy lại.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class IdempotencyService {
+
+    public static final String HEADER = "Idempotency-Key";
+    public static final String REPLAYED_HEADER = "Idempotent-Replayed";
+
+    private final RedisTemplate<String, String> customStringRedisTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${idempotency.ttl-hours:24}")
+    private long ttlHours;
+
+    // Request giữ key tối đa chừng này nếu node chết giữa chừng
+    @Value("${idempotency.in-progress-ttl-seconds:60}")
+    private long inProgressTtlSeconds;
+
+    // Request trùng chờ request đầu tối đa chừng này rồi trả 409
+    @Value("${idempotency.wait-ms:10000}")
+    private long waitMs;
+
+    private static final String KEY_PREFIX = "idempotency:";
+    private static final int MAX_KEY_LENGTH = 128;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    private record StoredResponse(String state, String fingerprint, int status, String body) {
+    }
+
+    private static final String IN_PROGRESS = "IN_PROGRESS";
+    private static final String DONE = "DONE";
+
+    // Request đang chạy trên node này, để request trùng chờ mà không poll Redis
+    private final Map<String, CompletableFuture<StoredResponse>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * Chạy action đúng 1 lần cho mỗi (scope, user, key).
+     *
+     * @param fingerprint nội dung nhận diện request (không chứa password); key dùng lại với request khác thì bị từ chối
+     * @param storable    response nào được lưu để replay; response khác thả key ra cho client retry
+     */
+    public <T> ResponseEntity<T> execute(UUID userId, String scope, String idempotencyKey, String fingerprint,
+                                         TypeReference<T> bodyType, Function<String, T> errorBody,
+                                         Predicate<ResponseEntity<T>> storable, Supplier<ResponseEntity<T>> action) {
+        if (idempotencyKey == null || idempotencyKey.isBlank()) {
+            return action.get();
+        }
+        if (idempotencyKey.length() > MAX_KEY_LENGTH) {
+            return ResponseEntity.badRequest().body(errorBody.apply(HEADER + " must be at most " + MAX_KEY_LENGTH + " characters"));
+        }
+
+        String redisKey = KEY_PREFIX + scope + ":" + userId + ":" + idempotencyKey;
+        String fingerprintHash = sha256(fingerprint);
+        long deadline = System.currentTimeMillis() + waitMs;
+
+        while (true) {
+            CompletableFuture<StoredResponse> mine = new CompletableFuture<>();
+            CompletableFuture<StoredResponse> running = inFlight.putIfAbsent(redisKey, mine);
+
+            if (running != null) {
+                // Trùng với request đang chạy trên node này
+                StoredResponse stored = await(running, deadline);
+                if (stored != null) {
+                    return replay(stored, fingerprintHash, bodyType, errorBody);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    return conflict(errorBody);
+                }
+                // Request đầu không lưu kết quả (thất bại): thử claim lại
+                continue;
+            }
+
+            try {
+                Boolean claimed = customStringRedisTemplate.opsForValue().setIfAbsent(redisKey,
+                    write(new StoredResponse(IN_PROGRESS, fingerprintHash, 0, null)),
+                    inProgressTtlSeconds, TimeUnit.SECONDS);
+
+                if (Boolean.TRUE.equals(claimed)) {
+                    return run(redisKey, fingerprintHash, storable, action, mine);
+                }
+
+                // Key đã có: replay, hoặc chờ request đang chạy trên node khác
+                StoredResponse stored = poll(redisKey, deadline);
+                if (stored != null) {
+                    mine.complete(stored);
+                    return replay(stored, fingerprintHash, bodyType, errorBody);
+                }
+                if (System.currentTimeMillis() >= deadline) {
+                    return conflict(errorBody);
+                }
+            } finally {
+                inFlight.remove(redisKey, mine);
+                mine.complete(null);
+            }
+        }
+    }
+
+    private <T> ResponseEntity<T> run(String redisKey, String fingerprintHash, Predicate<ResponseEntity<T>> storable,
+                                      Supplier<ResponseEntity<T>> action, CompletableFuture<StoredResponse> mine) {
+        ResponseEntity<T> response;
+        try {
+            response = action.get();
+        } catch (RuntimeException e) {
+            customStringRedisTemplate.delete(redisKey);
+            throw e;
+        }
+
+        if (!storable.test(response)) {
+            customStringRedisTemplate.delete(redisKey);
+            return response;
+        }
+
+        try {
+            StoredResponse stored = new StoredResponse(DONE, fingerprintHash,
+                response.getStatusCode().value(), objectMapper.writeValueAsString(response.getBody()));
+            customStringRedisTemplate.opsForValue().set(redisKey, write(stored), ttlHours, TimeUnit.HOURS);
+            mine.complete(stored);
+        } catch (Exception e) {
+            // Action đã chạy xong: không throw, retry sau sẽ thấy key hết hạn IN_PROGRESS
+            log.error("Failed to store idempotent response {}: {}", redisKey, e.getMessage());
+        }
+        return response;
+    }
+
+    /**
+     * Chờ tới khi key DONE; null nếu key bị thả (request đầu thất bại) hoặc hết thời gian chờ
+     */
+    private StoredResponse poll(String redisKey, long deadline) {
+        while (true) {
+            String json = customStringRedisTemplate.opsForValue().get(redisKey);
+            if (json == null) {
+                return null;
+            }
+            StoredResponse stored = read(json);
+            if (DONE.equals(stored.state())) {
+                return stored;
+            }
+            if (System.currentTimeMillis() + POLL_INTERVAL_MS > deadline) {
+                return null;
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private StoredResponse await(CompletableFuture<StoredResponse> running, long deadline) {
+        try {
+            return running.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            // TimeoutException: hết thời gian chờ
+            return null;
+        }
+    }
+
+    private <T> ResponseEntity<T> replay(StoredResponse stored, String fingerprintHash,
+                                         TypeReference<T> bodyType, Function<String, T> errorBody) {
+        if (!stored.fingerprint().equals(fingerprintHash)) {
+            return ResponseEntity.unprocessableEntity()
+                .body(errorBody.apply(HEADER + " was already used for a different request"));
+        }
+        try {
+            T body = objectMapper.readValue(stored.body(), bodyType);
+            return ResponseEntity.status(stored.status()).header(REPLAYED_HEADER, "true").body(body);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to replay idempotent response: " + e.getMessage(), e);
+        }
+    }
+
+    private <T> ResponseEntity<T> conflict(Function<String, T> errorBody) {
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+            .body(errorBody.apply("A request with the same " + HEADER + " is still in progress"));
+    }
+
+    private String write(StoredResponse stored) {
+        try {
+            return objectMapper.writeValueAsString(stored);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to serialize idempotency record", e);
+        }
+    }
+
+    private StoredResponse read(String json) {
+        try {
+            return objectMapper.readValue(json, StoredResponse.class);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to read idempotency record", e);
+        }
+    }
+
+    private String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Hex.toHexString(digest.digest((value != null ? value : "").getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            throw new RuntimeException("SHA-256 not available", e);
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.UsdtWallet.UsdtWallet.model.dto.LedgerChainRow;
+import com.UsdtWallet.UsdtWallet.model.entity.AccountBalance;
+import com.UsdtWallet.UsdtWallet.model.entity.LedgerIntegrityCheckpoint;
+import com.UsdtWallet.UsdtWallet.model.entity.LedgerIntegrityIssue;
+import com.UsdtWallet.UsdtWallet.model.entity.LedgerIntegrityRun;
+import com.UsdtWallet.UsdtWallet.model.entity.PointsLedger;
+import com.UsdtWallet.UsdtWallet.repository.AccountBalanceRepository;
+import com.UsdtWallet.UsdtWallet.repository.LedgerIntegrityCheckpointRepository;
+import com.UsdtWallet.UsdtWallet.repository.LedgerIntegrityIssueRepository;
+import com.UsdtWallet.UsdtWallet.repository.LedgerIntegrityRunRepository;
+import com.UsdtWallet.UsdtWallet.repository.PointsLedgerRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bouncycastle.util.encoders.Hex;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Kiểm tra tính toàn vẹn points_ledger theo từng user:
+ * balance_before mỗi dòng = balance_after dòng trước, balance_after - balance_before khớp amount
+ * (0 với dòng không COMPLETED và dòng phí P2P), cuối chuỗi khớp account_balances.
+ * Mỗi chuỗi có rolling hash SHA-256 lưu ở checkpoint: lượt INCREMENTAL chỉ đọc các dòng sau checkpoint
+ * của user có thay đổi từ watermark lượt trước, lượt FULL tính lại từ đầu và so hash để phát hiện lịch sử bị sửa.
+ * User được lấy theo chunk (keyset) và chia đôi đệ quy trên ForkJoinPool; mỗi chuỗi được stream từ DB
+ * nên bộ nhớ không phụ thuộc số dòng. Kết quả ghi vào ledger_integrity_runs / ledger_integrity_issues.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class LedgerIntegrityService {
+
+    private final PointsLedgerRepository pointsLedgerRepository;
+    private final AccountBalanceRepository accountBalanceRepository;
+    private final LedgerIntegrityRunRepository runRepository;
+    private final LedgerIntegrityIssueRepository issueRepository;
+    private final LedgerIntegrityCheckpointRepository checkpointRepository;
+    private final PlatformTransactionManager transactionManager;
+    private final TransactionTemplate transactionTemplate;
+    private final RedisTemplate<String, String> customStringRedisTemplate;
+
+    @Value("${points.integrity.enabled:true}")
+    private boolean enabled;
+
+    // Số thread verify; mỗi thread giữ 1 connection DB khi đang đọc nên phải nhỏ hơn pool Hikari
+    @Value("${points.integrity.parallelism:4}")
+    private int parallelism;
+
+    @Value("${points.integrity.chunk-size:5000}")
+    private int chunkSize;
+
+    // Số user mỗi task lá (1 snapshot đọc + 1 transaction ghi checkpoint)
+    @Value("${points.integrity.leaf-size:64}")
+    private int leafSize;
+
+    // Dòng commit chậm hơn created_at tối đa chừng này vẫn được lượt INCREMENTAL sau nhìn thấy
+    @Value("${points.integrity.safety-lag-seconds:300}")
+    private long safetyLagSeconds;
+
+    @Value("${points.integrity.full-interval-hours:168}")
+    private long fullIntervalHours;
+
+    // Số issue tối đa lưu cho 1 run (vẫn đếm đủ trong issue_count)
+    @Value("${points.integrity.max-issues:10000}")
+    private long maxStoredIssues;
+
+    private static final String RUN_LOCK_KEY = "points:integrity:lock";
+    private static final long RUN_LOCK_TTL_HOURS = 6;
+    private static final UUID MIN_UUID = new UUID(0, 0);
+    private static final LocalDateTime EPOCH = LocalDateTime.of(1970, 1, 1, 0, 0);
+    private static final byte[] GENESIS_HASH = new byte[32];
+    private static final int MAX_ISSUES_PER_USER = 100;
+    // Nhóm dòng cùng created_at lớn hơn mức này thì giữ thứ tự id, không sắp lại theo chuỗi
+    private static final int MAX_TIE_GROUP = 10_000;
+
+    private TransactionTemplate snapshotTemplate;
+
+    // Thread riêng cho các lượt kiểm tra (scheduled + admin), lock Redis đảm bảo mỗi lúc chỉ 1 lượt
+    private final ExecutorService runner = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ledger-integrity");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private record Totals(long users, long rows, long issues) {
+        private static final Totals EMPTY = new Totals(0, 0, 0);
+
+        private Totals plus(Totals other) {
+            return new Totals(users + other.users, rows + other.rows, issues + other.issues);
+        }
+    }
+
+    private record ChainResult(List<LedgerIntegrityIssue> issues, long issueCount, long rows,
+                               LedgerIntegrityCheckpoint checkpoint) {
+    }
+
+    @PostConstruct
+    public void initSnapshotTemplate() {
+        // Ledger, account_balances và lock PENDING của 1 nhóm user đọc trong cùng 1 snapshot
+        snapshotTemplate = new TransactionTemplate(transactionManager);
+        snapshotTemplate.setReadOnly(true);
+        snapshotTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_REPEATABLE_READ);
+    }
+
+    @PreDestroy
+    public void shutdownRunner() {
+        runner.shutdownNow();
+    }
+
+    /**
+     * SCHEDULED: INCREMENTAL mỗi 15 phút, FULL khi lượt FULL cuối đã quá full-interval-hours.
+     * Chỉ lấy lock rồi giao cho runner: lượt FULL chạy hàng giờ không được giữ thread của scheduler.
+     */
+    @Scheduled(initialDelay = 300000, fixedDelayString = "${points.integrity.interval-ms:900000}")
+    public void scheduledRun() {
+        if (!enabled) {
+            return;
+        }
+        boolean fullDue = runRepository.findFirstByModeAndStatusOrderByStartedAtDesc(
+                LedgerIntegrityRun.Mode.FULL, LedgerIntegrityRun.Status.COMPLETED)
+            .map(run -> run.getStartedAt().isBefore(LocalDateTime.now().minusHours(fullIntervalHours)))
+            .orElse(true);
+        if (!startAsync(fullDue ? LedgerIntegrityRun.Mode.FULL : LedgerIntegrityRun.Mode.INCREMENTAL)) {
+            log.debug("Ledger integrity run already in progress, skipping");
+        }
+    }
+
+    /**
+     * Chạy 1 lượt kiểm tra trên runner; false nếu đang có lượt khác chạy (node này hoặc node khác)
+     */
+    public boolean startAsync(LedgerIntegrityRun.Mode mode) {
+        if (!acquireRunLock()) {
+            return false;
+        }
+        try {
+            runner.execute(() -> {
+                try {
+                    execute(mode);
+                } catch (Exception e) {
+                    log.error("Ledger integrity run failed: {}", e.getMessage(), e);
+                } finally {
+                    customStringRedisTemplate.delete(RUN_LOCK_KEY);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            customStringRedisTemplate.delete(RUN_LOCK_KEY);
+            return false;
+        }
+    }
+
+    public List<LedgerIntegrityRun> getRecentRuns(int limit) {
+        return runRepository.findAllByOrderByStartedAtDesc(PageRequest.ofSize(Math.max(1, Math.min(limit, 200))));
+    }
+
+    public List<LedgerIntegrityIssue> getIssues(Long runId, Long afterId, int limit) {
+        return issueRepository.findByRunIdAndIdGreaterThanOrderByIdAsc(runId, afterId != null ? afterId : 0L,
+            PageRequest.ofSize(Math.max(1, Math.min(limit, 1000))));
+    }
+
+    private boolean acquireRunLock() {
+        return Boolean.TRUE.equals(customStringRedisTemplate.opsForValue()
+            .setIfAbsent(RUN_LOCK_KEY, "1", RUN_LOCK_TTL_HOURS, TimeUnit.HOURS));
+    }
+
+    private LedgerIntegrityRun execute(LedgerIntegrityRun.Mode requested) {
+        LocalDateTime startedAt = LocalDateTime.now();
+        Optional<LedgerIntegrityRun> previous = runRepository.findFirstByStatusOrderByStartedAtDesc(
+            LedgerIntegrityRun.Status.COMPLETED);
+        // Chưa có lượt nào hoàn tất thì chưa có watermark/checkpoint để tiếp tục
+        LedgerIntegrityRun.Mode mode = previous.isEmpty() ? LedgerIntegrityRun.Mode.FULL : requested;
+        LocalDateTime since = mode == LedgerIntegrityRun.Mode.INCREMENTAL ? previous.get().getWatermark() : null;
+
+        LedgerIntegrityRun run = runRepository.save(LedgerIntegrityRun.builder()
+            .mode(mode)
+            .status(LedgerIntegrityRun.Status.RUNNING)
+            .since(since)
+            .watermark(startedAt.minusSeconds(safetyLagSeconds))
+            .startedAt(startedAt)
+            .build());
+        log.info("🔍 Ledger integrity run {} started ({}, since {})", run.getId(), mode, since);
+
+        AtomicLong storedIssues = new AtomicLong();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism), p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("ledger-integrity-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        Totals totals = Totals.EMPTY;
+
+        try {
+            UUID after = MIN_UUID;
+            while (true) {
+                List<UUID> chunk = since == null
+                    ? pointsLedgerRepository.findIntegrityUserIdsAfter(after, chunkSize)
+                    : pointsLedgerRepository.findChangedUserIdsAfter(since, after, chunkSize);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                after = chunk.get(chunk.size() - 1);
+                totals = totals.plus(pool.invoke(new VerifyTask(run, chunk, storedIssues)));
+            }
+            run.setStatus(LedgerIntegrityRun.Status.COMPLETED);
+        } catch (Exception e) {
+            log.error("Ledger integrity run {} failed after {} users", run.getId(), totals.users(), e);
+            run.setStatus(LedgerIntegrityRun.Status.FAILED);
+            run.setErrorMessage(e.getMessage());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        run.setUsersChecked(totals.users());
+        run.setRowsVerified(totals.rows());
+        run.setIssueCount(totals.issues());
+        run.setFinishedAt(LocalDateTime.now());
+        run = runRepository.save(run);
+
+        long elapsedMs = Duration.between(startedAt, run.getFinishedAt()).toMillis();
+        if (totals.issues() > 0) {
+            log.warn("🚨 Ledger integrity run {} ({}) found {} issues: {} users, {} rows in {} ms",
+                run.getId(), mode, totals.issues(), totals.users(), totals.rows(), elapsedMs);
+        } else {
+            log.info("✅ Ledger integrity run {} ({}) clean: {} users, {} rows in {} ms",
+                run.getId(), mode, totals.users(), totals.rows(), elapsedMs);
+        }
+        return run;
+    }
+
+    /**
+     * Chia đôi danh sách user tới khi còn leafSize user thì verify tuần tự
+     */
+    private final class VerifyTask extends RecursiveTask<Totals> {
+
+        private final LedgerIntegrityRun run;
+        private final List<UUID> userIds;
+        private final AtomicLong storedIssues;
+
+        private VerifyTask(LedgerIntegrityRun run, List<UUID> userIds, AtomicLong storedIssues) {
+            this.run = run;
+            this.userIds = userIds;
+            this.storedIssues = storedIssues;
+        }
+
+        @Override
+        protected Totals compute() {
+            if (userIds.size() <= Math.max(1, leafSize)) {
+                return verifyLeaf(run, userIds, storedIssues);
+            }
+            int mid = userIds.size() / 2;
+            VerifyTask left = new VerifyTask(run, userIds.subList(0, mid), storedIssues);
+            VerifyTask right = new VerifyTask(run, userIds.subList(mid, userIds.size()), storedIssues);
+            left.fork();
+            return right.compute().plus(left.join());
+        }
+    }
+
+    private Totals verifyLeaf(LedgerIntegrityRun run, List<UUID> userIds, AtomicLong storedIssues) {
+        boolean full = run.getMode() == LedgerIntegrityRun.Mode.FULL;
+
+        List<ChainResult> results = snapshotTemplate.execute(status -> {
+            Map<UUID, LedgerIntegrityCheckpoint> checkpoints = new HashMap<>();
+            checkpointRepository.findAllById(userIds).forEach(c -> checkpoints.put(c.getUserId(), c));
+            Map<UUID, AccountBalance> balances = new HashMap<>();
+            accountBalanceRepository.findAllById(userIds).forEach(b -> balances.put(b.getUserId(), b));
+            Map<UUID, BigDecimal> pendingLocks = new HashMap<>();
+            for (Object[] row : pointsLedgerRepository.sumPendingWithdrawalLocksByUserIds(userIds)) {
+                pendingLocks.put((UUID) row[0], (BigDecimal) row[1]);
+            }
+
+            List<ChainResult> chains = new ArrayList<>(userIds.size());
+            for (UUID userId : userIds) {
+                ChainVerifier chain = new ChainVerifier(run.getId(), userId, checkpoints.get(userId), full);
+                try (Stream<LedgerChainRow> rows = pointsLedgerRepository.streamChainRows(userId, chain.resumeAfter())) {
+                    rows.forEach(chain::accept);
+                }
+                chain.finish(balances.get(userId), pendingLocks.getOrDefault(userId, BigDecimal.ZERO));
+                chains.add(chain.result());
+            }
+            return chains;
+        });
+
+        long rows = 0;
+        long issues = 0;
+        List<LedgerIntegrityCheckpoint> checkpoints = new ArrayList<>();
+        List<LedgerIntegrityIssue> toStore = new ArrayList<>();
+        for (ChainResult result : results) {
+            rows += result.rows();
+            issues += result.issueCount();
+            if (result.checkpoint() != null) {
+                checkpoints.add(result.checkpoint());
+            }
+            for (LedgerIntegrityIssue issue : result.issues()) {
+                if (storedIssues.incrementAndGet() <= maxStoredIssues) {
+                    toStore.add(issue);
+                }
+            }
+        }
+
+        // Ghi sau khi đóng snapshot: không giữ transaction đọc dài hơn cần thiết
+        transactionTemplate.executeWithoutResult(status -> {
+            checkpointRepository.saveAll(checkpoints);
+            issueRepository.saveAll(toStore);
+        });
+        return new Totals(userIds.size(), rows, issues);
+    }
+
+    /**
+     * Kiểm tra chuỗi ledger của 1 user (dùng trên 1 thread).
+     * Dòng cùng created_at (transfer batch) được sắp theo chuỗi balance rồi tới id trước khi kiểm tra.
+     */
+    private static final class ChainVerifier {
+
+        private final Long runId;
+        private final UUID userId;
+        private final LedgerIntegrityCheckpoint checkpoint;
+        // Tính lại từ đầu chuỗi (FULL hoặc user chưa có checkpoint)
+        private final boolean rehash;
+        private final MessageDigest digest;
+        private final List<LedgerChainRow> tieGroup = new ArrayList<>();
+        private final List<LedgerIntegrityIssue> issues = new ArrayList<>();
+
+        private BigDecimal balance;
+        private byte[] hash;
+        private long rowCount;
+        private long newRows;
+        private long issueCount;
+        private LedgerChainRow last;
+        private boolean checkpointPassed;
+
+        private ChainVerifier(Long runId, UUID userId, LedgerIntegrityCheckpoint checkpoint, boolean full) {
+            this.runId = runId;
+            this.userId = userId;
+            this.checkpoint = checkpoint;
+            this.rehash = full || checkpoint == null;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 not available", e);
+            }
+
+            if (rehash) {
+                balance = BigDecimal.ZERO;
+                hash = GENESIS_HASH;
+                checkpointPassed = checkpoint == null;
+            } else {
+                balance = checkpoint.getBalanceAfter();
+                hash = Hex.decode(checkpoint.getChainHash());
+                rowCount = checkpoint.getRowCount();
+                checkpointPassed = true;
+            }
+        }
+
+        private LocalDateTime resumeAfter() {
+            return rehash ? EPOCH : checkpoint.getLastCreatedAt();
+        }
+
+        private void accept(LedgerChainRow row) {
+            if (!tieGroup.isEmpty()
+                    && (!row.createdAt().equals(tieGroup.get(0).createdAt()) || tieGroup.size() >= MAX_TIE_GROUP)) {
+                flushGroup();
+            }
+            tieGroup.add(row);
+        }
+
+        private void finish(AccountBalance accountBalance, BigDecimal pendingLockSum) {
+            if (!tieGroup.isEmpty()) {
+                flushGroup();
+            }
+            if (!checkpointPassed) {
+                compareCheckpoint();
+            }
+            if (accountBalance == null) {
+                // Chưa có dòng account_balances: sẽ được seed từ ledger ở lần ghi đầu
+                return;
+            }
+
+            String lastLedgerId = last != null ? last.id() : checkpoint != null ? checkpoint.getLastLedgerId() : null;
+            if (accountBalance.getTotalBalance().compareTo(balance) != 0) {
+                addIssue(LedgerIntegrityIssue.IssueType.BALANCE_MISMATCH, lastLedgerId, balance,
+                    accountBalance.getTotalBalance(), "account_balances.total_balance");
+            }
+            BigDecimal locked = pendingLockSum.negate();
+            if (accountBalance.getLockedBalance().compareTo(locked) != 0) {
+                addIssue(LedgerIntegrityIssue.IssueType.LOCKED_MISMATCH, null, locked,
+                    accountBalance.getLockedBalance(), "account_balances.locked_balance");
+            }
+            BigDecimal available = accountBalance.getTotalBalance().subtract(accountBalance.getLockedBalance());
+            if (accountBalance.getAvailableBalance().compareTo(available) != 0) {
+                addIssue(LedgerIntegrityIssue.IssueType.BALANCE_MISMATCH, null, available,
+                    accountBalance.getAvailableBalance(), "account_balances.available_balance");
+            }
+        }
+
+        private ChainResult result() {
+            LedgerIntegrityCheckpoint updated = null;
+            if (last != null) {
+                updated = checkpoint != null ? checkpoint : new LedgerIntegrityCheckpoint();
+                updated.setUserId(userId);
+                updated.setLastLedgerId(last.id());
+                updated.setLastCreatedAt(last.createdAt());
+                updated.setBalanceAfter(balance);
+                updated.setChainHash(Hex.toHexString(hash));
+                updated.setRowCount(rowCount);
+                updated.setVerifiedAt(LocalDateTime.now());
+            }
+            return new ChainResult(issues, issueCount, newRows, updated);
+        }
+
+        private void flushGroup() {
+            LocalDateTime createdAt = tieGroup.get(0).createdAt();
+            if (!checkpointPassed && createdAt.isAfter(checkpoint.getLastCreatedAt())) {
+                // Đã qua mốc checkpoint mà không gặp nhóm dòng của nó: dòng cũ bị xoá hoặc sửa created_at
+                compareCheckpoint();
+            }
+            for (LedgerChainRow row : chainOrder(tieGroup)) {
+                verify(row);
+            }
+            tieGroup.clear();
+            if (!checkpointPassed && createdAt.equals(checkpoint.getLastCreatedAt())) {
+                compareCheckpoint();
+            }
+        }
+
+        private List<LedgerChainRow> chainOrder(List<LedgerChainRow> group) {
+            if (group.size() == 1) {
+                return group;
+            }
+            List<LedgerChainRow> remaining = new ArrayList<>(group);
+            remaining.sort(Comparator.comparing(LedgerChainRow::id));
+            if (remaining.size() >= MAX_TIE_GROUP) {
+                return remaining;
+            }
+
+            List<LedgerChainRow> ordered = new ArrayList<>(remaining.size());
+            BigDecimal running = balance;
+            while (!remaining.isEmpty()) {
+                int next = 0;
+                for (int i = 0; i < remaining.size(); i++) {
+                    if (remaining.get(i).balanceBefore().compareTo(running) == 0) {
+                        next = i;
+                        break;
+                    }
+                }
+                LedgerChainRow row = remaining.remove(next);
+                ordered.add(row);
+                running = row.balanceAfter();
+            }
+            return ordered;
+        }
+
+        private void verify(LedgerChainRow row) {
+            if (row.balanceBefore().compareTo(balance) != 0) {
+                addIssue(LedgerIntegrityIssue.IssueType.CHAIN_BREAK, row.id(), balance, row.balanceBefore(),
+                    "balance_before does not match previous balance_after");
+            }
+            BigDecimal expectedAfter = row.balanceBefore().add(expectedDelta(row));
+            if (row.balanceAfter().compareTo(expectedAfter) != 0) {
+                addIssue(LedgerIntegrityIssue.IssueType.DELTA_MISMATCH, row.id(), expectedAfter, row.balanceAfter(),
+                    row.transactionType() + "/" + row.status() + " amount " + row.amount().toPlainString());
+            }
+
+            digest.update(hash);
+            digest.update(canonical(row).getBytes(StandardCharsets.UTF_8));
+            hash = digest.digest();
+
+            // Tiếp tục từ giá trị thực: 1 chỗ lệch chỉ báo 1 lần thay vì cả phần còn lại của chuỗi
+            balance = row.balanceAfter();
+            last = row;
+            rowCount++;
+            newRows++;
+        }
+
+        private void compareCheckpoint() {
+            checkpointPassed = true;
+            if (rowCount != checkpoint.getRowCount() || !Hex.toHexString(hash).equals(checkpoint.getChainHash())) {
+                addIssue(LedgerIntegrityIssue.IssueType.HISTORY_MODIFIED, checkpoint.getLastLedgerId(),
+                    checkpoint.getBalanceAfter(), balance,
+                    "rows up to checkpoint changed (" + checkpoint.getRowCount() + " -> " + rowCount + " rows)");
+            }
+        }
+
+        private void addIssue(LedgerIntegrityIssue.IssueType type, String ledgerId,
+                              BigDecimal expected, BigDecimal actual, String detail) {
+            issueCount++;
+            if (issues.size() < MAX_ISSUES_PER_USER) {
+                issues.add(LedgerIntegrityIssue.builder()
+                    .runId(runId)
+                    .userId(userId)
+                    .ledgerId(ledgerId)
+                    .issueType(type)
+                    .expected(expected)
+                    .actual(actual)
+                    .detail(detail)
+                    .build());
+            }
+        }
+
+        /**
+         * PENDING/CANCELLED/FAILED không đổi total; dòng phí P2P (ADJUSTMENT có referenceId)
+         * chỉ ghi lại phần phí đã nằm trong dòng debit
+         */
+        private static BigDecimal expectedDelta(LedgerChainRow row) {
+            if (row.status() != PointsLedger.PointsTransactionStatus.COMPLETED) {
+                return BigDecimal.ZERO;
+            }
+            if (row.transactionType() == PointsLedger.PointsTransactionType.ADJUSTMENT && row.referenceId() != null) {
+                return BigDecimal.ZERO;
+            }
+            return row.amount();
+        }
+
+        /**
+         * Các cột bất biến của dòng (status không nằm trong hash: lock PENDING được đổi sang CANCELLED)
+         */
+        private static String canonical(LedgerChainRow row) {
+            return String.join("|",
+                row.id(),
+                row.createdAt().toString(),
+                row.transactionType().name(),
+                plain(row.amount()),
+                plain(row.balanceBefore()),
+                plain(row.balanceAfter()),
+                row.referenceId() != null ? row.referenceId() : "",
+                row.transactionId() != null ? row.transactionId() : "");
+        }
+
+        private static String plain(BigDecimal value) {
+            return value.stripTrailingZeros().toPlainString();
+        }
+    }
+}
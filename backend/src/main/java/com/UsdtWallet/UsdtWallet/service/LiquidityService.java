@@ -0,0 +1,468 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.UsdtWallet.UsdtWallet.model.Money;
+import com.UsdtWallet.UsdtWallet.model.entity.HotWallet;
+import com.UsdtWallet.UsdtWallet.model.entity.WithdrawalTransaction;
+import com.UsdtWallet.UsdtWallet.repository.WithdrawalTransactionRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sổ giữ chỗ thanh khoản của các hot wallet, dùng chung giữa các node qua Redis.
+ * Balance on-chain được mỗi node đọc lại theo block tick; mỗi withdrawal giữ chỗ netAmount + phí dự kiến
+ * trước khi broadcast, và được settle khi confirm / release khi thất bại (ở bất kỳ node nào).
+ * Reserve là 1 Lua script nên 2 withdrawal (kể cả ở 2 node) không thể cùng dùng 1 phần balance.
+ *
+ * Redis: liquidity:reservations:{address} = hash field -> "usdtMicros|trxMicros|reservedAtMs|settledAtMs"
+ * (settledAtMs = 0 khi còn giữ chỗ), liquidity:reservation-owners = hash field -> address.
+ * Entry đã settle vẫn tính vào phần giữ chỗ của node nào đọc balance trước lúc settle,
+ * tới khi mọi node đã refresh lại.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class LiquidityService {
+
+    private final HotWalletService hotWalletService;
+    private final EnergyEstimatorService energyEstimatorService;
+    private final WithdrawalTransactionRepository withdrawalRepository;
+    private final RedisTemplate<String, String> customStringRedisTemplate;
+
+    @Value("${liquidity.refresh-blocks:5}")
+    private int refreshEveryBlocks;
+
+    // TRX tối thiểu giữ lại trên mỗi hot wallet ngoài phần phí đã giữ chỗ
+    @Value("${withdrawal.hot-wallets.min-trx:20}")
+    private BigDecimal minTrxBalance;
+
+    // Giữ chỗ của withdrawal không còn PROCESSING/BROADCASTING/SENT quá lâu (node giữ chỗ chết giữa chừng)
+    @Value("${liquidity.stale-reservation-minutes:10}")
+    private long staleReservationMinutes;
+
+    // Transfer nội bộ không có row để đối chiếu: quá timeout của confirmation tracker là bỏ
+    @Value("${liquidity.stale-transfer-minutes:90}")
+    private long staleTransferMinutes;
+
+    // Giữ entry đã settle tới khi mọi node đã đọc lại balance sau đó
+    @Value("${liquidity.settled-retention-minutes:10}")
+    private long settledRetentionMinutes;
+
+    private static final String RESERVATIONS_KEY = "liquidity:reservations:";
+    private static final String OWNERS_KEY = "liquidity:reservation-owners";
+    private static final String WITHDRAWAL_FIELD = "withdrawal:";
+
+    private static final List<WithdrawalTransaction.WithdrawalStatus> IN_FLIGHT = List.of(
+        WithdrawalTransaction.WithdrawalStatus.PROCESSING,
+        WithdrawalTransaction.WithdrawalStatus.BROADCASTING,
+        WithdrawalTransaction.WithdrawalStatus.SENT);
+
+    // KEYS: ví, owners. ARGV: usdt limit, trx limit, balanceReadAt, now, address, rồi (field, usdt, trx)...
+    // 1 = đã giữ chỗ, 0 = không đủ, -1 = field đã có giữ chỗ
+    private static final DefaultRedisScript<Long> RESERVE_SCRIPT = new DefaultRedisScript<>(
+        "local usdt, trx = 0, 0 " +
+        "local entries = redis.call('HGETALL', KEYS[1]) " +
+        "for i = 2, #entries, 2 do " +
+        "  local u, t, r, s = string.match(entries[i], '^(%d+)|(%d+)|(%d+)|(%d+)$') " +
+        "  if s == '0' or tonumber(s) >= tonumber(ARGV[3]) then " +
+        "    usdt = usdt + tonumber(u) trx = trx + tonumber(t) " +
+        "  end " +
+        "end " +
+        "for i = 6, #ARGV, 3 do " +
+        "  if redis.call('HEXISTS', KEYS[2], ARGV[i]) == 1 then return -1 end " +
+        "  usdt = usdt + tonumber(ARGV[i + 1]) trx = trx + tonumber(ARGV[i + 2]) " +
+        "end " +
+        "if usdt > tonumber(ARGV[1]) or trx > tonumber(ARGV[2]) then return 0 end " +
+        "for i = 6, #ARGV, 3 do " +
+        "  redis.call('HSET', KEYS[1], ARGV[i], ARGV[i + 1] .. '|' .. ARGV[i + 2] .. '|' .. ARGV[4] .. '|0') " +
+        "  redis.call('HSET', KEYS[2], ARGV[i], ARGV[5]) " +
+        "end " +
+        "return 1", Long.class);
+
+    // KEYS: ví, owners. ARGV: field, settledAt (0 = release), reservedAt mong đợi ('' = bất kỳ)
+    private static final DefaultRedisScript<Long> FINISH_SCRIPT = new DefaultRedisScript<>(
+        "local entry = redis.call('HGET', KEYS[1], ARGV[1]) " +
+        "if not entry then redis.call('HDEL', KEYS[2], ARGV[1]) return 0 end " +
+        "local u, t, r, s = string.match(entry, '^(%d+)|(%d+)|(%d+)|(%d+)$') " +
+        "if s ~= '0' or (ARGV[3] ~= '' and r ~= ARGV[3]) then return 0 end " +
+        "redis.call('HDEL', KEYS[2], ARGV[1]) " +
+        "if ARGV[2] == '0' then redis.call('HDEL', KEYS[1], ARGV[1]) " +
+        "else redis.call('HSET', KEYS[1], ARGV[1], u .. '|' .. t .. '|' .. r .. '|' .. ARGV[2]) end " +
+        "return 1", Long.class);
+
+    private record Reservation(long usdt, long trx, long reservedAt, long settledAt) {
+        private static Reservation parse(String value) {
+            String[] parts = value.split("\\|");
+            return new Reservation(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+        }
+
+        private boolean countsAgainst(long balanceReadAt) {
+            return settledAt == 0 || settledAt >= balanceReadAt;
+        }
+    }
+
+    private record WalletBalance(long usdt, long trx) {
+    }
+
+    // Balance on-chain (micros) đọc lúc readAt
+    private record Snapshot(Map<String, WalletBalance> balances, long readAt) {
+    }
+
+    private record WalletLiquidity(String address, WalletBalance balance, long reservedUsdt, long reservedTrx,
+                                   int reservationCount) {
+        private long availableUsdt() {
+            return balance.usdt() - reservedUsdt;
+        }
+
+        private long availableTrx() {
+            return balance.trx() - reservedTrx;
+        }
+    }
+
+    private record StaleReservation(String address, String field, long reservedAt) {
+    }
+
+    private ThreadPoolExecutor refreshExecutor;
+    private volatile Snapshot snapshot;
+
+    @PostConstruct
+    public void initRefreshExecutor() {
+        // 1 thread, bỏ tick mới nếu lần refresh trước chưa xong
+        refreshExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(1), r -> {
+                Thread t = new Thread(r, "liquidity-refresh");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    @PreDestroy
+    public void shutdownRefreshExecutor() {
+        refreshExecutor.shutdownNow();
+    }
+
+    /**
+     * Block tick: đọc lại balance hot wallet mỗi refreshEveryBlocks block
+     */
+    @EventListener
+    public void onHeadBlock(ConfirmationTrackerService.HeadBlockEvent event) {
+        if (snapshot != null && event.blockNumber() % refreshEveryBlocks != 0) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(this::refresh);
+        } catch (RejectedExecutionException e) {
+            log.debug("Liquidity refresh already running, skipping block {}", event.blockNumber());
+        }
+    }
+
+    /**
+     * Đọc lại balance on-chain rồi dọn giữ chỗ đã settle / bị bỏ rơi
+     */
+    public void refresh() {
+        try {
+            long readAt = System.currentTimeMillis();
+            hotWalletService.refreshBalances();
+            Map<String, WalletBalance> balances = new HashMap<>();
+            for (HotWallet hotWallet : hotWalletService.getHotWallets()) {
+                balances.put(hotWallet.getAddress(), new WalletBalance(
+                    Money.of(hotWallet.getUsdtBalance(), RoundingMode.DOWN).toMicros(),
+                    Money.of(hotWallet.getTrxBalance(), RoundingMode.DOWN).toMicros()));
+            }
+            snapshot = new Snapshot(Map.copyOf(balances), readAt);
+            pruneReservations(balances.keySet(), readAt);
+        } catch (Exception e) {
+            log.warn("Không cập nhật được liquidity hot wallets: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Giữ chỗ netAmount + phí dự kiến cho withdrawal trên hot wallet ít tải nhất còn đủ thanh khoản.
+     * Trả về hot wallet đã giữ chỗ; throw nếu không ví nào đủ.
+     */
+    public HotWallet reserve(Long withdrawalId, BigDecimal amount) {
+        return reserveBatch(Map.of(withdrawalId, amount));
+    }
+
+    /**
+     * Giữ chỗ cho cả batch payout trên cùng 1 hot wallet (withdrawalId -> netAmount)
+     */
+    public HotWallet reserveBatch(Map<Long, BigDecimal> amounts) {
+        Snapshot current = currentSnapshot();
+        List<HotWallet> hotWallets = hotWalletService.getHotWallets();
+
+        if (amounts.size() == 1) {
+            Object existing = customStringRedisTemplate.opsForHash()
+                .get(OWNERS_KEY, withdrawalField(amounts.keySet().iterator().next()));
+            if (existing != null) {
+                return findWallet(hotWallets, (String) existing);
+            }
+        }
+
+        long feeTrx = energyEstimatorService.getFeeLimitSun(false);
+        long totalUsdt = 0;
+        List<String> entries = new ArrayList<>();
+        for (Map.Entry<Long, BigDecimal> entry : amounts.entrySet()) {
+            long usdt = Money.of(entry.getValue()).toMicros();
+            totalUsdt += usdt;
+            entries.add(withdrawalField(entry.getKey()));
+            entries.add(String.valueOf(usdt));
+            entries.add(String.valueOf(feeTrx));
+        }
+        long totalFeeTrx = feeTrx * amounts.size();
+
+        List<WalletLiquidity> candidates = new ArrayList<>();
+        for (HotWallet hotWallet : hotWallets) {
+            WalletLiquidity liquidity = liquidity(current, hotWallet.getAddress());
+            if (liquidity != null && liquidity.availableUsdt() >= totalUsdt
+                    && liquidity.availableTrx() - minTrxMicros() >= totalFeeTrx) {
+                candidates.add(liquidity);
+            }
+        }
+        candidates.sort(LOAD_ORDER);
+
+        for (WalletLiquidity candidate : candidates) {
+            long result = tryReserve(current, candidate.address(), entries);
+            if (result == 1) {
+                log.debug("💧 Reserved {} USDT + {} TRX on {} for withdrawals {}", Money.ofMicros(totalUsdt),
+                    Money.ofMicros(totalFeeTrx), candidate.address(), amounts.keySet());
+                return findWallet(hotWallets, candidate.address());
+            }
+            if (result == -1) {
+                throw new RuntimeException("Liquidity already reserved for withdrawals " + amounts.keySet());
+            }
+            // 0: node khác vừa giữ chỗ phần balance này, thử ví tiếp theo
+        }
+
+        throw new RuntimeException("Insufficient hot wallet liquidity for withdrawal of "
+            + Money.ofMicros(totalUsdt) + " USDT");
+    }
+
+    /**
+     * Withdrawal thất bại: trả lại phần đã giữ chỗ
+     */
+    public void release(Long withdrawalId) {
+        finish(withdrawalField(withdrawalId), 0);
+    }
+
+    /**
+     * Withdrawal đã confirm: bỏ giữ chỗ khi mọi node đã đọc lại balance sau thời điểm này
+     */
+    public void settle(Long withdrawalId) {
+        finish(withdrawalField(withdrawalId), System.currentTimeMillis());
+    }
+
+    /**
+     * Giữ chỗ USDT + TRX cho transfer nội bộ (rebalance) đi từ 1 hot wallet cụ thể, để withdrawal
+     * không dùng trùng phần balance đó. Ví ngoài tập hot wallet thì không cần giữ chỗ.
+     *
+     * @return false nếu ví không đủ thanh khoản khả dụng
+     */
+    public boolean reserveTransfer(String key, String fromAddress, BigDecimal usdt, BigDecimal trx) {
+        Snapshot current = currentSnapshot();
+        if (!current.balances().containsKey(fromAddress)) {
+            return true;
+        }
+        boolean reserved = tryReserve(current, fromAddress, List.of(key,
+            String.valueOf(Money.of(usdt).toMicros()), String.valueOf(Money.of(trx).toMicros()))) == 1;
+        if (reserved) {
+            log.debug("💧 Reserved {} USDT + {} TRX on {} for transfer {}", usdt, trx, fromAddress, key);
+        }
+        return reserved;
+    }
+
+    public void releaseTransfer(String key) {
+        finish(key, 0);
+    }
+
+    /**
+     * Transfer nội bộ đã confirm: bỏ giữ chỗ khi mọi node đã đọc lại balance
+     */
+    public void settleTransfer(String key) {
+        finish(key, System.currentTimeMillis());
+    }
+
+    public Map<String, Object> getStats() {
+        Snapshot current = snapshot;
+        Map<String, Object> stats = new HashMap<>();
+        if (current == null) {
+            return stats;
+        }
+        for (String address : current.balances().keySet()) {
+            WalletLiquidity liquidity = liquidity(current, address);
+            stats.put(address, Map.of(
+                "usdtBalance", Money.ofMicros(liquidity.balance().usdt()).toBigDecimal(),
+                "trxBalance", Money.ofMicros(liquidity.balance().trx()).toBigDecimal(),
+                "reservedUsdt", Money.ofMicros(liquidity.reservedUsdt()).toBigDecimal(),
+                "reservedTrx", Money.ofMicros(liquidity.reservedTrx()).toBigDecimal(),
+                "availableUsdt", Money.ofMicros(liquidity.availableUsdt()).toBigDecimal(),
+                "reservations", liquidity.reservationCount()
+            ));
+        }
+        return stats;
+    }
+
+    /**
+     * Snapshot cũ hơn settledRetention không dùng được: entry đã settle sau lúc đọc balance có thể đã bị xoá
+     */
+    private Snapshot currentSnapshot() {
+        long oldest = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(settledRetentionMinutes);
+        if (snapshot == null || snapshot.readAt() < oldest) {
+            refresh();
+        }
+        Snapshot current = snapshot;
+        if (current == null || current.readAt() < oldest) {
+            throw new RuntimeException("Hot wallet liquidity not loaded");
+        }
+        return current;
+    }
+
+    private long tryReserve(Snapshot current, String address, List<String> entries) {
+        WalletBalance balance = current.balances().get(address);
+        List<String> args = new ArrayList<>(List.of(
+            String.valueOf(balance.usdt()),
+            String.valueOf(balance.trx() - minTrxMicros()),
+            String.valueOf(current.readAt()),
+            String.valueOf(System.currentTimeMillis()),
+            address));
+        args.addAll(entries);
+        Long result = customStringRedisTemplate.execute(RESERVE_SCRIPT,
+            List.of(RESERVATIONS_KEY + address, OWNERS_KEY), args.toArray());
+        return result != null ? result : 0;
+    }
+
+    /**
+     * Lỗi Redis ở đây không chặn callback: giữ chỗ còn sót sẽ được refresh dọn khi withdrawal hết in-flight
+     */
+    private void finish(String field, long settledAt) {
+        try {
+            Object address = customStringRedisTemplate.opsForHash().get(OWNERS_KEY, field);
+            if (address != null) {
+                customStringRedisTemplate.execute(FINISH_SCRIPT, List.of(RESERVATIONS_KEY + address, OWNERS_KEY),
+                    field, String.valueOf(settledAt), "");
+            }
+        } catch (Exception e) {
+            log.warn("Không cập nhật được giữ chỗ liquidity {}: {}", field, e.getMessage());
+        }
+    }
+
+    /**
+     * Phần đã giữ chỗ trên ví theo góc nhìn balance của snapshot; null nếu ví không có trong snapshot
+     */
+    private WalletLiquidity liquidity(Snapshot current, String address) {
+        WalletBalance balance = current.balances().get(address);
+        if (balance == null) {
+            return null;
+        }
+        long reservedUsdt = 0;
+        long reservedTrx = 0;
+        int count = 0;
+        for (Object value : customStringRedisTemplate.opsForHash().values(RESERVATIONS_KEY + address)) {
+            Reservation reservation = Reservation.parse((String) value);
+            if (reservation.countsAgainst(current.readAt())) {
+                reservedUsdt += reservation.usdt();
+                reservedTrx += reservation.trx();
+            }
+            if (reservation.settledAt() == 0) {
+                count++;
+            }
+        }
+        return new WalletLiquidity(address, balance, reservedUsdt, reservedTrx, count);
+    }
+
+    /**
+     * Xoá entry đã settle đủ lâu; release giữ chỗ cũ mà withdrawal không còn in-flight
+     * (node giữ chỗ chết trước khi release / settle) hoặc transfer nội bộ quá hạn
+     */
+    private void pruneReservations(Collection<String> addresses, long now) {
+        long settledBefore = now - TimeUnit.MINUTES.toMillis(settledRetentionMinutes);
+        long staleBefore = now - TimeUnit.MINUTES.toMillis(staleReservationMinutes);
+        long staleTransferBefore = now - TimeUnit.MINUTES.toMillis(staleTransferMinutes);
+
+        List<StaleReservation> stale = new ArrayList<>();
+        List<Long> withdrawalIds = new ArrayList<>();
+        for (String address : addresses) {
+            String key = RESERVATIONS_KEY + address;
+            for (Map.Entry<Object, Object> entry : customStringRedisTemplate.opsForHash().entries(key).entrySet()) {
+                String field = (String) entry.getKey();
+                Reservation reservation = Reservation.parse((String) entry.getValue());
+                boolean withdrawal = field.startsWith(WITHDRAWAL_FIELD);
+                if (reservation.settledAt() != 0) {
+                    if (reservation.settledAt() < settledBefore) {
+                        customStringRedisTemplate.opsForHash().delete(key, field);
+                    }
+                } else if (reservation.reservedAt() < (withdrawal ? staleBefore : staleTransferBefore)) {
+                    stale.add(new StaleReservation(address, field, reservation.reservedAt()));
+                    if (withdrawal) {
+                        withdrawalIds.add(withdrawalId(field));
+                    }
+                }
+            }
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        Set<Long> inFlight = withdrawalIds.isEmpty() ? Set.of()
+            : new HashSet<>(withdrawalRepository.findIdsByIdInAndStatusIn(withdrawalIds, IN_FLIGHT));
+        for (StaleReservation reservation : stale) {
+            if (reservation.field().startsWith(WITHDRAWAL_FIELD) && inFlight.contains(withdrawalId(reservation.field()))) {
+                continue;
+            }
+            // reservedAt mong đợi: không đụng tới giữ chỗ mới của cùng field
+            Long released = customStringRedisTemplate.execute(FINISH_SCRIPT,
+                List.of(RESERVATIONS_KEY + reservation.address(), OWNERS_KEY),
+                reservation.field(), "0", String.valueOf(reservation.reservedAt()));
+            if (Objects.equals(released, 1L)) {
+                log.warn("🧹 Released stale liquidity reservation {} on {}", reservation.field(), reservation.address());
+            }
+        }
+    }
+
+    private long minTrxMicros() {
+        return Money.of(minTrxBalance).toMicros();
+    }
+
+    private static String withdrawalField(Long withdrawalId) {
+        return WITHDRAWAL_FIELD + withdrawalId;
+    }
+
+    private static Long withdrawalId(String field) {
+        return Long.valueOf(field.substring(WITHDRAWAL_FIELD.length()));
+    }
+
+    // Ít withdrawal đang giữ chỗ nhất, hoà thì nhiều USDT khả dụng nhất
+    private static final Comparator<WalletLiquidity> LOAD_ORDER = Comparator
+        .comparingInt(WalletLiquidity::reservationCount)
+        .thenComparing(WalletLiquidity::availableUsdt, Comparator.reverseOrder());
+
+    private HotWallet findWallet(List<HotWallet> hotWallets, String address) {
+        return hotWallets.stream()
+            .filter(w -> w.getAddress().equals(address))
+            .findFirst()
+            .orElseThrow(() -> new RuntimeException("Hot wallet not found: " + address));
+    }
+}
@@ -1,27 +1,121 @@
 package com.UsdtWallet.UsdtWallet.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionPhase;
+import org.springframework.transaction.event.TransactionalEventListener;
 import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
-
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * SSE notification. Các notifyX chỉ publish event; event được gửi sau khi transaction commit
+ * (hoặc ngay nếu không có transaction) trên executor riêng có giới hạn, nên client SSE chậm
+ * không kéo dài transaction / lock của nghiệp vụ. Balance update của cùng user được gộp lại,
+ * chỉ gửi số dư mới nhất.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class NotificationService {
 
     private final ObjectMapper objectMapper;
-    
+    private final ApplicationEventPublisher eventPublisher;
+
+    @Value("${notification.dispatch.threads:4}")
+    private int dispatchThreads;
+
+    // Hàng đợi đầy thì bỏ notification (best-effort, client tự load lại khi reconnect)
+    @Value("${notification.dispatch.queue-capacity:10000}")
+    private int dispatchQueueCapacity;
+
     // Store active SSE connections by userId
     private final Map<UUID, List<SseEmitter>> userConnections = new ConcurrentHashMap<>();
 
+    // Số dư mới nhất chờ gửi theo user (có entry = đã có task gửi đang chờ)
+    private final Map<UUID, BigDecimal> pendingBalances = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor dispatchExecutor;
+
+    public record UserNotificationEvent(UUID userId, NotificationMessage message) {
+    }
+
+    public record BalanceUpdateEvent(UUID userId, BigDecimal balance) {
+    }
+
+    @PostConstruct
+    public void initDispatchExecutor() {
+        AtomicInteger threadIndex = new AtomicInteger();
+        dispatchExecutor = new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(dispatchQueueCapacity), r -> {
+                Thread t = new Thread(r, "notification-dispatch-" + threadIndex.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void shutdownDispatchExecutor() {
+        dispatchExecutor.shutdown();
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onUserNotification(UserNotificationEvent event) {
+        if (!userConnections.containsKey(event.userId())) {
+            return;
+        }
+        dispatch(event.userId(), () -> sendToUser(event.userId(), event.message()));
+    }
+
+    @TransactionalEventListener(phase = TransactionPhase.AFTER_COMMIT, fallbackExecution = true)
+    public void onBalanceUpdate(BalanceUpdateEvent event) {
+        if (!userConnections.containsKey(event.userId())) {
+            return;
+        }
+        // Đã có task chờ gửi: chỉ thay số dư, task đó sẽ gửi giá trị mới nhất
+        if (pendingBalances.put(event.userId(), event.balance()) != null) {
+            return;
+        }
+        boolean queued = dispatch(event.userId(), () -> {
+            BigDecimal latest = pendingBalances.remove(event.userId());
+            if (latest != null) {
+                sendToUser(event.userId(), balanceMessage(latest));
+            }
+        });
+        if (!queued) {
+            pendingBalances.remove(event.userId());
+        }
+    }
+
+    private boolean dispatch(UUID userId, Runnable task) {
+        try {
+            dispatchExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            log.warn("Notification queue full, dropping notification for user: {}", userId);
+            return false;
+        }
+    }
+
+    private void publish(UUID userId, NotificationMessage message) {
+        eventPublisher.publishEvent(new UserNotificationEvent(userId, message));
+    }
+
     public void addUserConnection(UUID userId, SseEmitter emitter) {
         userConnections.computeIfAbsent(userId, k -> new CopyOnWriteArrayList<>()).add(emitter);
         log.debug("Added SSE connection for user: {}, total connections: {}", 
@@ -76,7 +170,7 @@ public class NotificationService {
 
     // Notification methods for different events
     public void notifyDepositDetected(UUID userId, String txHash, BigDecimal amount) {
-        sendToUser(userId, NotificationMessage.builder()
+        publish(userId, NotificationMessage.builder()
             .type(NotificationType.DEPOSIT_DETECTED)
             .title("Deposit Detected")
             .message(String.format("%.2f USDT deposit detected", amount))
@@ -89,7 +183,7 @@ public class NotificationService {
     }
 
     public void notifyDepositConfirmed(UUID userId, String txHash, BigDecimal amount, BigDecimal pointsCredited) {
-        sendToUser(userId, NotificationMessage.builder()
+        publish(userId, NotificationMessage.builder()
             .type(NotificationType.DEPOSIT_CONFIRMED)
             .title("Deposit Confirmed")
             .message(String.format("%.2f USDT confirmed, %.2f points credited", amount, pointsCredited))
@@ -103,7 +197,7 @@ public class NotificationService {
     }
 
     public void notifyWithdrawalCreated(UUID userId, String withdrawalId, BigDecimal amount) {
-        sendToUser(userId, NotificationMessage.builder()
+        publish(userId, NotificationMessage.builder()
             .type(NotificationType.WITHDRAWAL_CREATED)
             .title("Withdrawal Request Created")
             .message(String.format("Withdrawal request for %.2f USDT created", amount))
@@ -116,7 +210,7 @@ public class NotificationService {
     }
 
     public void notifyWithdrawalProcessing(UUID userId, String withdrawalId, String txHash, BigDecimal amount) {
-        sendToUser(userId, NotificationMessage.builder()
+        publish(userId, NotificationMessage.builder()
             .type(NotificationType.WITHDRAWAL_PROCESSING)
             .title("Withdrawal Processing")
             .message(String.format("Your %.2f USDT withdrawal is being processed", amount))
@@ -130,7 +224,7 @@ public class NotificationService {
     }
 
     public void notifyWithdrawalCompleted(UUID userId, String txHash, BigDecimal amount) {
-        sendToUser(userId, NotificationMessage.builder()
+        publish(userId, NotificationMessage.builder()
             .type(NotificationType.WITHDRAWAL_COMPLETED)
             .title("Withdrawal Completed")
             .message(String.format("%.2f USDT withdrawal completed successfully", amount))
@@ -144,7 +238,7 @@ public class NotificationService {
 
     public void notifyPointsTransferred(UUID userId, BigDecimal amount, String fromTo, boolean isReceived) {
         String action = isReceived ? "received from" : "sent to";
-        sendToUser(userId, NotificationMessage.builder()
+        publish(userId, NotificationMessage.builder()
             .type(NotificationType.POINTS_TRANSFER)
             .title("Points Transfer")
             .message(String.format("%.2f points %s %s", amount, action, fromTo))
@@ -156,7 +250,11 @@ public class NotificationService {
     }
 
     public void notifyBalanceUpdate(UUID userId, BigDecimal newBalance) {
-        sendToUser(userId, NotificationMessage.builder()
+        eventPublisher.publishEvent(new BalanceUpdateEvent(userId, newBalance));
+    }
+
+    private NotificationMessage balanceMessage(BigDecimal newBalance) {
+        return NotificationMessage.builder()
             .type(NotificationType.BALANCE_UPDATE)
             .title("Balance Updated")
             .message("Your balance has been updated")
@@ -164,7 +262,7 @@ public class NotificationService {
             .timestamp(LocalDateTime.now())
             .autoHide(true)
             .hideAfterMs(3000)
-            .build());
+            .build();
     }
 
     // Placeholder methods for unread count and marking as read
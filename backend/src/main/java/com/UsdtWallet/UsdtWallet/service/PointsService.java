@@ -1,20 +1,39 @@
 package com.UsdtWallet.UsdtWallet.service;
 
+import com.UsdtWallet.UsdtWallet.model.Money;
+import com.UsdtWallet.UsdtWallet.model.dto.KeysetPage;
+import com.UsdtWallet.UsdtWallet.model.entity.AccountBalance;
 import com.UsdtWallet.UsdtWallet.model.entity.PointsLedger;
+import com.UsdtWallet.UsdtWallet.model.entity.UserPointsStats;
+import com.UsdtWallet.UsdtWallet.repository.AccountBalanceRepository;
 import com.UsdtWallet.UsdtWallet.repository.PointsLedgerRepository;
+import com.UsdtWallet.UsdtWallet.util.KeysetCursor;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 @Service
 @RequiredArgsConstructor
@@ -22,8 +41,11 @@ import java.util.concurrent.TimeUnit;
 public class PointsService {
 
     private final PointsLedgerRepository pointsLedgerRepository;
-    private final RedisTemplate<String, Object> redisTemplate;
+    private final AccountBalanceRepository accountBalanceRepository;
+    private final BalanceCacheService balanceCacheService;
+    private final UserPointsStatsService userPointsStatsService;
     private final NotificationService notificationService;
+    private final TransactionTemplate transactionTemplate;
 
     @Value("${points.exchange.rate:1.0}")
     private BigDecimal defaultExchangeRate; // 1 USDT = 1 Point
@@ -31,8 +53,36 @@ public class PointsService {
     @Value("${points.transfer.fee:0}")
     private BigDecimal transferFeeRate; // 0% fee by default
 
-    private static final String BALANCE_CACHE_KEY = "user:balance:";
-    private static final String TRANSFER_LOCK_KEY = "transfer:lock:";
+
+    // Số stripe lock cho transfer trong process
+    @Value("${points.transfer.lock-stripes:256}")
+    private int transferLockStripes;
+
+    // Transfer chờ lock tối đa chừng này rồi mới trả false
+    @Value("${points.transfer.lock-wait-ms:5000}")
+    private long transferLockWaitMs;
+
+    private ReentrantLock[] transferStripes;
+
+    @Value("${points.transfer.batch.max-recipients:500}")
+    private int batchMaxRecipients;
+
+    // Thứ tự khoá dòng account_balances: so sánh chuỗi uuid = thứ tự uuid của PostgreSQL (ORDER BY user_id)
+    private static final Comparator<UUID> ROW_LOCK_ORDER = Comparator.comparing(UUID::toString);
+
+    private static final int MAX_HISTORY_PAGE_SIZE = 200;
+
+    public record BatchTransferResult(String referenceId, int recipients, BigDecimal totalAmount,
+                                      BigDecimal totalFee, BigDecimal balanceAfter) {
+    }
+
+    @PostConstruct
+    public void initTransferStripes() {
+        transferStripes = new ReentrantLock[Math.max(1, transferLockStripes)];
+        for (int i = 0; i < transferStripes.length; i++) {
+            transferStripes[i] = new ReentrantLock();
+        }
+    }
 
     /**
      * Credit points for USDT deposit
@@ -47,26 +97,18 @@ public class PointsService {
                 return false;
             }
 
-            BigDecimal currentBalance = getCurrentBalance(userId);
-            BigDecimal newBalance = currentBalance.add(pointsAmount);
-
             PointsLedger ledgerEntry = PointsLedger.builder()
                 .userId(userId)
                 .transactionId(transactionId)
                 .transactionType(PointsLedger.PointsTransactionType.DEPOSIT_CREDIT)
                 .amount(pointsAmount)
-                .balanceBefore(currentBalance)
-                .balanceAfter(newBalance)
                 .usdtAmount(usdtAmount)
                 .exchangeRate(defaultExchangeRate)
                 .description("USDT deposit credit")
                 .status(PointsLedger.PointsTransactionStatus.COMPLETED)
                 .build();
 
-            pointsLedgerRepository.save(ledgerEntry);
-
-            // Update cached balance
-            updateBalanceCache(userId, newBalance);
+            appendLedgerEntry(ledgerEntry, pointsAmount, BigDecimal.ZERO);
 
             log.info("✅ Credited {} points to user {} for USDT deposit", pointsAmount, userId);
             return true;
@@ -78,121 +120,283 @@ public class PointsService {
     }
 
     /**
-     * Transfer points between users (P2P)
+     * Transfer points between users (P2P).
+     * Khoá theo thứ tự cố định: striped lock trong process trước (transfer cùng account xếp hàng ở đây
+     * thay vì tranh row lock), rồi row lock account_balances theo thứ tự UUID trong transaction.
+     *
+     * @return referenceId của transfer đã commit, null nếu không chuyển được
      */
-    @Transactional
-    public boolean transferPoints(UUID fromUserId, UUID toUserId, BigDecimal amount, String description) {
-        String lockKey = TRANSFER_LOCK_KEY + fromUserId;
-
+    public String transferPoints(UUID fromUserId, UUID toUserId, BigDecimal amount, String description) {
+        String referenceId = UUID.randomUUID().toString();
+        List<ReentrantLock> acquired = new ArrayList<>();
         try {
-            // Acquire lock to prevent double spending
-            Boolean lockAcquired = redisTemplate.opsForValue()
-                .setIfAbsent(lockKey, "locked", 30, TimeUnit.SECONDS);
+            for (ReentrantLock stripe : stripesFor(fromUserId, toUserId)) {
+                if (!stripe.tryLock(transferLockWaitMs, TimeUnit.MILLISECONDS)) {
+                    log.warn("Transfer lock wait timed out: from={}, to={}", fromUserId, toUserId);
+                    return null;
+                }
+                acquired.add(stripe);
+            }
 
-            if (!Boolean.TRUE.equals(lockAcquired)) {
-                log.warn("Transfer already in progress for user: {}", fromUserId);
-                return false;
+            boolean transferred = Boolean.TRUE.equals(transactionTemplate.execute(
+                status -> doTransferPoints(referenceId, fromUserId, toUserId, amount, description)));
+            return transferred ? referenceId : null;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            // Lỗi có thể đến từ afterCommit (cache, notification): ledger đã ghi thì transfer vẫn thành công
+            if (!pointsLedgerRepository.findByReferenceId(referenceId).isEmpty()) {
+                log.warn("P2P transfer {} committed but post-commit step failed: {}", referenceId, e.getMessage());
+                return referenceId;
+            }
+            log.error("Error in P2P transfer: from={}, to={}, amount={}", fromUserId, toUserId, amount, e);
+            return null;
+        } finally {
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                acquired.get(i).unlock();
             }
+        }
+    }
 
-            // Validate users exist (add user validation if needed)
+    private boolean doTransferPoints(String referenceId, UUID fromUserId, UUID toUserId, BigDecimal amount,
+                                     String description) {
+        // Row lock 2 account theo thứ tự UUID (2 transfer ngược chiều không deadlock)
+        Map<UUID, AccountBalance> locked = lockAccountBalances(fromUserId, toUserId);
 
-            // Check sender balance
-            BigDecimal senderBalance = getCurrentBalance(fromUserId);
-            if (senderBalance.compareTo(amount) < 0) {
-                log.warn("Insufficient balance for transfer: user={}, balance={}, amount={}",
-                    fromUserId, senderBalance, amount);
-                return false;
+        // Check sender available balance (trừ phần đang lock cho withdrawal) trên dòng đã khoá
+        BigDecimal senderAvailable = locked.get(fromUserId).getAvailableBalance();
+        if (senderAvailable.compareTo(amount) < 0) {
+            log.warn("Insufficient balance for transfer: user={}, available={}, amount={}",
+                fromUserId, senderAvailable, amount);
+            return false;
+        }
+
+        // Calculate fee
+        BigDecimal fee = amount.multiply(transferFeeRate);
+        BigDecimal netAmount = amount.subtract(fee);
+
+        if (netAmount.compareTo(BigDecimal.ZERO) <= 0) {
+            log.warn("Transfer amount too small after fee: {}", netAmount);
+            return false;
+        }
+
+        // Debit from sender
+        PointsLedger senderEntry = PointsLedger.builder()
+            .userId(fromUserId)
+            .referenceId(referenceId)
+            .transactionType(PointsLedger.PointsTransactionType.P2P_SEND)
+            .amount(amount.negate()) // Negative for debit
+            .toUserId(toUserId)
+            .description(description != null ? description : "P2P transfer sent")
+            .status(PointsLedger.PointsTransactionStatus.COMPLETED)
+            .build();
+
+        appendLedgerEntry(senderEntry, amount.negate(), BigDecimal.ZERO);
+
+        // Credit to receiver
+        PointsLedger receiverEntry = PointsLedger.builder()
+            .userId(toUserId)
+            .referenceId(referenceId)
+            .transactionType(PointsLedger.PointsTransactionType.P2P_RECEIVE)
+            .amount(netAmount)
+            .fromUserId(fromUserId)
+            .description(description != null ? description : "P2P transfer received")
+            .status(PointsLedger.PointsTransactionStatus.COMPLETED)
+            .build();
+
+        appendLedgerEntry(receiverEntry, netAmount, BigDecimal.ZERO);
+
+        // Handle fee if applicable
+        if (fee.compareTo(BigDecimal.ZERO) > 0) {
+            // Fee entry for sender (đã nằm trong amount debit ở trên, balance không đổi)
+            PointsLedger feeEntry = PointsLedger.builder()
+                .userId(fromUserId)
+                .referenceId(referenceId)
+                .transactionType(PointsLedger.PointsTransactionType.ADJUSTMENT)
+                .amount(fee.negate())
+                .description("P2P transfer fee")
+                .status(PointsLedger.PointsTransactionStatus.COMPLETED)
+                .build();
+
+            appendLedgerEntry(feeEntry, BigDecimal.ZERO, BigDecimal.ZERO);
+        }
+
+        log.info("✅ P2P transfer completed: {} points from {} to {} (net: {}, fee: {})",
+            amount, fromUserId, toUserId, netAmount, fee);
+
+        // Notifications gửi sau commit (balance update do appendLedgerEntry publish)
+        notificationService.notifyPointsTransferred(fromUserId, amount, "user", false);
+        notificationService.notifyPointsTransferred(toUserId, amount, "user", true);
+
+        return true;
+    }
+
+    /**
+     * Chuyển points từ 1 user cho nhiều người nhận (merchant payout): 1 transaction,
+     * sender bị trừ 1 lần, ledger insert theo JDBC batch, balance update flush 1 lần khi commit,
+     * notification gửi sau commit. Throw RuntimeException nếu không hợp lệ / không đủ số dư.
+     *
+     * @param amounts toUserId -> amount (đã gộp người nhận trùng)
+     */
+    public BatchTransferResult transferPointsBatch(UUID fromUserId, Map<UUID, BigDecimal> amounts, String description) {
+        if (amounts.isEmpty()) {
+            throw new RuntimeException("No recipients");
+        }
+        if (amounts.size() > batchMaxRecipients) {
+            throw new RuntimeException("Too many recipients (max " + batchMaxRecipients + ")");
+        }
+        if (amounts.containsKey(fromUserId)) {
+            throw new RuntimeException("Cannot transfer to yourself");
+        }
+
+        // Tính bằng micro-unit: cộng dồn N người nhận không tràn / không làm tròn ngầm
+        Map<UUID, Money> items = new LinkedHashMap<>();
+        for (Map.Entry<UUID, BigDecimal> item : amounts.entrySet()) {
+            if (item.getValue().stripTrailingZeros().scale() > Money.DECIMALS) {
+                throw new RuntimeException("Transfer amount supports at most " + Money.DECIMALS + " decimal places");
             }
+            items.put(item.getKey(), Money.of(item.getValue()));
+        }
 
-            // Calculate fee
-            BigDecimal fee = amount.multiply(transferFeeRate);
-            BigDecimal netAmount = amount.subtract(fee);
+        // Chỉ khoá stripe của sender (N người nhận sẽ chiếm gần hết stripe); người nhận được
+        // bảo vệ bằng row lock theo cùng thứ tự với transfer đơn
+        ReentrantLock stripe = transferStripes[Math.floorMod(fromUserId.hashCode(), transferStripes.length)];
+        try {
+            if (!stripe.tryLock(transferLockWaitMs, TimeUnit.MILLISECONDS)) {
+                throw new RuntimeException("Another transfer is in progress, please retry");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Transfer interrupted");
+        }
 
-            if (netAmount.compareTo(BigDecimal.ZERO) <= 0) {
-                log.warn("Transfer amount too small after fee: {}", netAmount);
-                return false;
+        try {
+            return transactionTemplate.execute(status -> doTransferPointsBatch(fromUserId, items, description));
+        } finally {
+            stripe.unlock();
+        }
+    }
+
+    private BatchTransferResult doTransferPointsBatch(UUID fromUserId, Map<UUID, Money> amounts, String description) {
+        List<UUID> userIds = new ArrayList<>(amounts.keySet());
+        userIds.add(fromUserId);
+
+        // Tạo trước dòng balance còn thiếu, rồi khoá tất cả bằng 1 query
+        Set<UUID> existing = new HashSet<>(accountBalanceRepository.findExistingUserIds(userIds));
+        for (UUID userId : userIds) {
+            if (!existing.contains(userId)) {
+                AccountBalance seeded = seedAccountBalance(userId);
+                accountBalanceRepository.insertIfAbsent(userId, seeded.getTotalBalance(), seeded.getLockedBalance());
             }
+        }
+        Map<UUID, AccountBalance> balances = new HashMap<>();
+        for (AccountBalance balance : accountBalanceRepository.findAllByIdForUpdate(userIds)) {
+            balances.put(balance.getUserId(), balance);
+        }
 
-            // Generate reference ID for this P2P transfer
-            String referenceId = UUID.randomUUID().toString();
+        AccountBalance sender = balances.get(fromUserId);
+        Money totalAmount = amounts.values().stream().reduce(Money.ZERO, Money::plus);
+        if (sender.getAvailableBalance().compareTo(totalAmount.toBigDecimal()) < 0) {
+            throw new RuntimeException("Insufficient balance");
+        }
 
-            // Debit from sender
-            BigDecimal senderNewBalance = senderBalance.subtract(amount);
-            PointsLedger senderEntry = PointsLedger.builder()
+        String referenceId = UUID.randomUUID().toString();
+        List<PointsLedger> entries = new ArrayList<>(amounts.size() * 2 + 1);
+        BigDecimal senderBalance = sender.getTotalBalance();
+        Money totalFee = Money.ZERO;
+
+        for (Map.Entry<UUID, Money> item : amounts.entrySet()) {
+            UUID toUserId = item.getKey();
+            BigDecimal amount = item.getValue().toBigDecimal();
+            Money fee = item.getValue().times(transferFeeRate, RoundingMode.DOWN);
+            BigDecimal netAmount = item.getValue().minus(fee).toBigDecimal();
+            if (netAmount.compareTo(BigDecimal.ZERO) <= 0) {
+                throw new RuntimeException("Transfer amount too small after fee for " + toUserId);
+            }
+            totalFee = totalFee.plus(fee);
+
+            // 1 dòng P2P_SEND mỗi người nhận để lịch sử/thống kê P2P giữ nguyên; balance chỉ cập nhật 1 lần
+            entries.add(PointsLedger.builder()
                 .userId(fromUserId)
                 .referenceId(referenceId)
                 .transactionType(PointsLedger.PointsTransactionType.P2P_SEND)
-                .amount(amount.negate()) // Negative for debit
+                .amount(amount.negate())
                 .balanceBefore(senderBalance)
-                .balanceAfter(senderNewBalance)
+                .balanceAfter(senderBalance.subtract(amount))
                 .toUserId(toUserId)
-                .description(description != null ? description : "P2P transfer sent")
+                .description(description != null ? description : "Batch transfer sent")
                 .status(PointsLedger.PointsTransactionStatus.COMPLETED)
-                .build();
-
-            pointsLedgerRepository.save(senderEntry);
+                .build());
+            senderBalance = senderBalance.subtract(amount);
 
-            // Credit to receiver
-            BigDecimal receiverBalance = getCurrentBalance(toUserId);
-            BigDecimal receiverNewBalance = receiverBalance.add(netAmount);
-
-            PointsLedger receiverEntry = PointsLedger.builder()
+            AccountBalance receiver = balances.get(toUserId);
+            BigDecimal receiverBefore = receiver.getTotalBalance();
+            receiver.apply(netAmount, BigDecimal.ZERO);
+            entries.add(PointsLedger.builder()
                 .userId(toUserId)
                 .referenceId(referenceId)
                 .transactionType(PointsLedger.PointsTransactionType.P2P_RECEIVE)
                 .amount(netAmount)
-                .balanceBefore(receiverBalance)
-                .balanceAfter(receiverNewBalance)
+                .balanceBefore(receiverBefore)
+                .balanceAfter(receiver.getTotalBalance())
                 .fromUserId(fromUserId)
-                .description(description != null ? description : "P2P transfer received")
+                .description(description != null ? description : "Batch transfer received")
                 .status(PointsLedger.PointsTransactionStatus.COMPLETED)
-                .build();
+                .build());
+        }
 
-            pointsLedgerRepository.save(receiverEntry);
-
-            // Handle fee if applicable
-            if (fee.compareTo(BigDecimal.ZERO) > 0) {
-                // Fee entry for sender (additional debit)
-                PointsLedger feeEntry = PointsLedger.builder()
-                    .userId(fromUserId)
-                    .referenceId(referenceId)
-                    .transactionType(PointsLedger.PointsTransactionType.ADJUSTMENT)
-                    .amount(fee.negate())
-                    .balanceBefore(senderNewBalance)
-                    .balanceAfter(senderNewBalance) // Already calculated above
-                    .description("P2P transfer fee")
-                    .status(PointsLedger.PointsTransactionStatus.COMPLETED)
-                    .build();
-
-                pointsLedgerRepository.save(feeEntry);
-            }
+        sender.apply(totalAmount.negate().toBigDecimal(), BigDecimal.ZERO);
+
+        if (totalFee.isPositive()) {
+            // Fee đã nằm trong các dòng debit ở trên, balance không đổi
+            entries.add(PointsLedger.builder()
+                .userId(fromUserId)
+                .referenceId(referenceId)
+                .transactionType(PointsLedger.PointsTransactionType.ADJUSTMENT)
+                .amount(totalFee.negate().toBigDecimal())
+                .balanceBefore(sender.getTotalBalance())
+                .balanceAfter(sender.getTotalBalance())
+                .description("Batch transfer fee")
+                .status(PointsLedger.PointsTransactionStatus.COMPLETED)
+                .build());
+        }
 
-            // Update cached balances
-            updateBalanceCache(fromUserId, senderNewBalance);
-            updateBalanceCache(toUserId, receiverNewBalance);
+        // Insert theo batch (hibernate.jdbc.batch_size); balance là entity managed nên flush 1 lần khi commit
+        pointsLedgerRepository.saveAll(entries);
+        userPointsStatsService.record(entries);
 
-            log.info("✅ P2P transfer completed: {} points from {} to {} (net: {}, fee: {})",
-                amount, fromUserId, toUserId, netAmount, fee);
+        // Entity flush lúc commit nên cache đọc version/total sau commit là giá trị cuối
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                balances.values().forEach(PointsService.this::writeBalanceCache);
+            }
+        });
 
-            // Send notifications to both users
-            notificationService.notifyPointsTransferred(fromUserId, amount, "user", false);
-            notificationService.notifyPointsTransferred(toUserId, amount, "user", true);
+        // Notifications gửi sau commit
+        notificationService.notifyPointsTransferred(fromUserId, totalAmount.toBigDecimal(), amounts.size() + " users", false);
+        amounts.forEach((toUserId, amount) ->
+            notificationService.notifyPointsTransferred(toUserId, amount.toBigDecimal(), "user", true));
 
-            // Send balance updates
-            BigDecimal fromBalance = getCurrentBalance(fromUserId);
-            BigDecimal toBalance = getCurrentBalance(toUserId);
-            notificationService.notifyBalanceUpdate(fromUserId, fromBalance);
-            notificationService.notifyBalanceUpdate(toUserId, toBalance);
+        log.info("✅ Batch transfer completed: {} points from {} to {} recipients (fee: {}, ref: {})",
+            totalAmount, fromUserId, amounts.size(), totalFee, referenceId);
 
-            return true;
+        return new BatchTransferResult(referenceId, amounts.size(), totalAmount.toBigDecimal(), totalFee.toBigDecimal(),
+            sender.getTotalBalance());
+    }
 
-        } catch (Exception e) {
-            log.error("Error in P2P transfer: from={}, to={}, amount={}", fromUserId, toUserId, amount, e);
-            return false;
-        } finally {
-            // Release lock
-            redisTemplate.delete(lockKey);
+    /**
+     * Stripe của 2 account, theo thứ tự index (cùng stripe thì chỉ 1 lock)
+     */
+    private List<ReentrantLock> stripesFor(UUID first, UUID second) {
+        int a = Math.floorMod(first.hashCode(), transferStripes.length);
+        int b = Math.floorMod(second.hashCode(), transferStripes.length);
+        if (a == b) {
+            return List.of(transferStripes[a]);
         }
+        return List.of(transferStripes[Math.min(a, b)], transferStripes[Math.max(a, b)]);
     }
 
     /**
@@ -200,24 +404,19 @@ public class PointsService {
      */
     public BigDecimal getCurrentBalance(UUID userId) {
         try {
-            // Try cache first
-            String cacheKey = BALANCE_CACHE_KEY + userId;
-            Object cachedBalance = redisTemplate.opsForValue().get(cacheKey);
-
-            if (cachedBalance instanceof Number) {
-                return new BigDecimal(cachedBalance.toString());
+            // Try cache first (near-cache -> Redis)
+            BigDecimal cachedBalance = balanceCacheService.get(userId);
+            if (cachedBalance != null) {
+                return cachedBalance;
             }
 
-            // Calculate from database
-            BigDecimal balance = pointsLedgerRepository.getCurrentBalance(userId);
-            if (balance == null) {
-                balance = BigDecimal.ZERO;
-            }
+            // Primary key lookup trên account_balances
+            AccountBalance balance = loadAccountBalance(userId);
 
             // Cache for future use
-            redisTemplate.opsForValue().set(cacheKey, balance, 10, TimeUnit.MINUTES);
+            balanceCacheService.fill(userId, cacheVersion(balance), balance.getTotalBalance());
 
-            return balance;
+            return balance.getTotalBalance();
 
         } catch (Exception e) {
             log.error("Error getting balance for user: {}", userId, e);
@@ -233,32 +432,26 @@ public class PointsService {
         try {
             log.info("Deducting {} points from user: {}", amount, userId);
 
-            BigDecimal currentBalance = getCurrentBalance(userId);
-            if (currentBalance.compareTo(amount) < 0) {
-                throw new RuntimeException("Insufficient balance. Available: " + currentBalance + ", Required: " + amount);
+            // Khoá dòng trước rồi mới check, để check và ghi cùng nhìn 1 số dư
+            BigDecimal available = lockAccountBalance(userId).getAvailableBalance();
+            if (available.compareTo(amount) < 0) {
+                throw new RuntimeException("Insufficient balance. Available: " + available + ", Required: " + amount);
             }
 
-            BigDecimal newBalance = currentBalance.subtract(amount);
-
             // Create debit entry
             PointsLedger debitEntry = PointsLedger.builder()
                 .userId(userId)
                 .transactionType(PointsLedger.PointsTransactionType.WITHDRAWAL_DEBIT)
                 .amount(amount.negate()) // Negative for debit
-                .balanceBefore(currentBalance)
-                .balanceAfter(newBalance)
                 .description(description)
                 .transactionId("WITHDRAWAL_" + System.currentTimeMillis())
                 .status(PointsLedger.PointsTransactionStatus.COMPLETED)
                 .build();
 
-            pointsLedgerRepository.save(debitEntry);
-
-            // Update cache
-            updateBalanceCache(userId, newBalance);
+            AccountBalance balance = appendLedgerEntry(debitEntry, amount.negate(), BigDecimal.ZERO);
 
             log.info("Successfully deducted {} points from user: {}, new balance: {}",
-                amount, userId, newBalance);
+                amount, userId, balance.getTotalBalance());
             return true;
 
         } catch (Exception e) {
@@ -275,28 +468,20 @@ public class PointsService {
         try {
             log.info("Adding {} points to user: {}", amount, userId);
 
-            BigDecimal currentBalance = getCurrentBalance(userId);
-            BigDecimal newBalance = currentBalance.add(amount);
-
             // Create credit entry
             PointsLedger creditEntry = PointsLedger.builder()
                 .userId(userId)
                 .transactionType(PointsLedger.PointsTransactionType.ADJUSTMENT)
                 .amount(amount)
-                .balanceBefore(currentBalance)
-                .balanceAfter(newBalance)
                 .description(description)
                 .transactionId("CREDIT_" + System.currentTimeMillis())
                 .status(PointsLedger.PointsTransactionStatus.COMPLETED)
                 .build();
 
-            pointsLedgerRepository.save(creditEntry);
-
-            // Update cache
-            updateBalanceCache(userId, newBalance);
+            AccountBalance balance = appendLedgerEntry(creditEntry, amount, BigDecimal.ZERO);
 
             log.info("Successfully added {} points to user: {}, new balance: {}",
-                amount, userId, newBalance);
+                amount, userId, balance.getTotalBalance());
             return true;
 
         } catch (Exception e) {
@@ -306,19 +491,84 @@ public class PointsService {
     }
 
     /**
-     * Update balance cache
+     * Ghi 1 dòng ledger và cập nhật account_balances trong cùng transaction.
+     * balanceBefore/After lấy từ account_balances; flush ngay để version conflict lộ ra ở đây.
      */
-    private void updateBalanceCache(UUID userId, BigDecimal newBalance) {
-        try {
-            redisTemplate.opsForValue().set(
-                BALANCE_CACHE_KEY + userId,
-                newBalance.toString(),
-                30,
-                TimeUnit.MINUTES
-            );
-        } catch (Exception e) {
-            log.warn("Failed to update balance cache for user: {}", userId, e);
+    private AccountBalance appendLedgerEntry(PointsLedger entry, BigDecimal totalDelta, BigDecimal lockedDelta) {
+        AccountBalance balance = lockAccountBalance(entry.getUserId());
+        entry.setBalanceBefore(balance.getTotalBalance());
+        balance.apply(totalDelta, lockedDelta);
+        entry.setBalanceAfter(balance.getTotalBalance());
+
+        pointsLedgerRepository.save(entry);
+        userPointsStatsService.record(List.of(entry));
+        balance = accountBalanceRepository.saveAndFlush(balance);
+        updateBalanceCache(balance);
+        return balance;
+    }
+
+    /**
+     * SELECT ... FOR UPDATE dòng account_balances (tạo từ ledger nếu chưa có), giữ tới hết transaction
+     */
+    private AccountBalance lockAccountBalance(UUID userId) {
+        Optional<AccountBalance> balance = accountBalanceRepository.findByIdForUpdate(userId);
+        if (balance.isPresent()) {
+            return balance.get();
         }
+        AccountBalance seeded = seedAccountBalance(userId);
+        accountBalanceRepository.insertIfAbsent(userId, seeded.getTotalBalance(), seeded.getLockedBalance());
+        return accountBalanceRepository.findByIdForUpdate(userId)
+            .orElseThrow(() -> new RuntimeException("Account balance not found: " + userId));
+    }
+
+    /**
+     * Row lock nhiều account theo thứ tự UUID, trả về các dòng đã khoá
+     */
+    private Map<UUID, AccountBalance> lockAccountBalances(UUID... userIds) {
+        Map<UUID, AccountBalance> locked = new HashMap<>();
+        java.util.Arrays.stream(userIds).distinct().sorted(ROW_LOCK_ORDER)
+            .forEach(userId -> locked.put(userId, lockAccountBalance(userId)));
+        return locked;
+    }
+
+    private AccountBalance loadAccountBalance(UUID userId) {
+        return accountBalanceRepository.findById(userId)
+            .orElseGet(() -> seedAccountBalance(userId));
+    }
+
+    /**
+     * User chưa có dòng account_balances: tính từ ledger (lần ghi đầu tiên sẽ insert)
+     */
+    private AccountBalance seedAccountBalance(UUID userId) {
+        BigDecimal total = pointsLedgerRepository.getCurrentBalance(userId);
+        BigDecimal pendingLocks = pointsLedgerRepository.getTotalPendingWithdrawalLocks(userId);
+        return new AccountBalance(userId, total != null ? total : BigDecimal.ZERO, pendingLocks.negate());
+    }
+
+    /**
+     * Update balance cache + balance notification (sau khi commit, để rollback không làm sai cache).
+     * Đọc version/total lúc commit: entity có thể còn đổi tiếp trong cùng transaction.
+     */
+    private void updateBalanceCache(AccountBalance balance) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    writeBalanceCache(balance);
+                }
+            });
+        } else {
+            writeBalanceCache(balance);
+        }
+    }
+
+    private void writeBalanceCache(AccountBalance balance) {
+        balanceCacheService.put(balance.getUserId(), cacheVersion(balance), balance.getTotalBalance());
+        notificationService.notifyBalanceUpdate(balance.getUserId(), balance.getTotalBalance());
+    }
+
+    private long cacheVersion(AccountBalance balance) {
+        return balance.getVersion() != null ? balance.getVersion() : BalanceCacheService.SEEDED_VERSION;
     }
 
     /**
@@ -328,7 +578,7 @@ public class PointsService {
     public boolean adjustBalance(UUID userId, BigDecimal amount, String reason,
                                PointsLedger.PointsTransactionType type) {
         try {
-            BigDecimal currentBalance = getCurrentBalance(userId);
+            BigDecimal currentBalance = lockAccountBalance(userId).getTotalBalance();
             BigDecimal newBalance = currentBalance.add(amount);
 
             // Prevent negative balance for debits
@@ -342,14 +592,11 @@ public class PointsService {
                 .userId(userId)
                 .transactionType(type)
                 .amount(amount)
-                .balanceBefore(currentBalance)
-                .balanceAfter(newBalance)
                 .description(reason)
                 .status(PointsLedger.PointsTransactionStatus.COMPLETED)
                 .build();
 
-            pointsLedgerRepository.save(adjustment);
-            updateBalanceCache(userId, newBalance);
+            appendLedgerEntry(adjustment, amount, BigDecimal.ZERO);
 
             log.info("✅ Balance adjusted: user={}, amount={}, reason={}", userId, amount, reason);
             return true;
@@ -361,20 +608,31 @@ public class PointsService {
     }
 
     /**
-     * Get user's points transaction history
+     * Get user's points transaction history (keyset pagination, cursor null = trang đầu)
      */
-    public List<PointsLedger> getTransactionHistory(UUID userId, int limit) {
-        return pointsLedgerRepository.findByUserIdOrderByCreatedAtDesc(userId)
-            .stream()
-            .limit(limit)
-            .toList();
+    public KeysetPage<PointsLedger> getTransactionHistory(UUID userId, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE));
+        KeysetCursor after = KeysetCursor.decode(cursor);
+        Pageable pageable = PageRequest.ofSize(pageSize + 1);
+
+        List<PointsLedger> rows = after == null
+            ? pointsLedgerRepository.findHistoryFirstPage(userId, pageable)
+            : pointsLedgerRepository.findHistoryAfter(userId, after.createdAt(), after.id(), pageable);
+        return KeysetPage.of(rows, pageSize, PointsLedger::getCreatedAt, PointsLedger::getId);
     }
 
     /**
-     * Get user's P2P transaction history
+     * Get user's P2P transaction history (keyset pagination)
      */
-    public List<PointsLedger> getP2PHistory(UUID userId) {
-        return pointsLedgerRepository.findP2PTransactionsByUserId(userId);
+    public KeysetPage<PointsLedger> getP2PHistory(UUID userId, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_HISTORY_PAGE_SIZE));
+        KeysetCursor after = KeysetCursor.decode(cursor);
+        Pageable pageable = PageRequest.ofSize(pageSize + 1);
+
+        List<PointsLedger> rows = after == null
+            ? pointsLedgerRepository.findP2PFirstPage(userId, pageable)
+            : pointsLedgerRepository.findP2PAfter(userId, after.createdAt(), after.id(), pageable);
+        return KeysetPage.of(rows, pageSize, PointsLedger::getCreatedAt, PointsLedger::getId);
     }
 
     /**
@@ -382,17 +640,23 @@ public class PointsService {
      */
     public Map<String, Object> getUserStats(UUID userId) {
         BigDecimal currentBalance = getCurrentBalance(userId);
-        BigDecimal totalDeposits = pointsLedgerRepository.getTotalDepositCredits(userId);
-        BigDecimal totalSent = pointsLedgerRepository.getTotalP2PSent(userId);
-        BigDecimal totalReceived = pointsLedgerRepository.getTotalP2PReceived(userId);
-
-        return Map.of(
-            "currentBalance", currentBalance,
-            "totalDeposits", totalDeposits,
-            "totalSent", totalSent.abs(), // Make positive for display
-            "totalReceived", totalReceived,
-            "netP2P", totalReceived.subtract(totalSent.abs())
-        );
+        // 1 dòng user_points_stats thay vì SUM trên toàn bộ ledger
+        UserPointsStats stats = userPointsStatsService.getStats(userId);
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("currentBalance", currentBalance);
+        result.put("totalDeposits", stats.getTotalDeposits());
+        result.put("totalSent", stats.getTotalSent());
+        result.put("totalReceived", stats.getTotalReceived());
+        result.put("netP2P", stats.getTotalReceived().subtract(stats.getTotalSent()));
+        result.put("totalWithdrawn", stats.getTotalWithdrawn());
+        result.put("depositCount", stats.getDepositCount());
+        result.put("sentCount", stats.getSentCount());
+        result.put("receivedCount", stats.getReceivedCount());
+        result.put("withdrawalCount", stats.getWithdrawalCount());
+        result.put("firstActivityAt", stats.getFirstActivityAt());
+        result.put("lastActivityAt", stats.getLastActivityAt());
+        return result;
     }
 
     /**
@@ -404,13 +668,10 @@ public class PointsService {
     }
 
     /**
-     * Available balance = latest COMPLETED balance - pending withdrawal locks
+     * Available balance = latest COMPLETED balance - pending withdrawal locks (cột available_balance)
      */
     public BigDecimal getAvailableBalance(UUID userId) {
-        BigDecimal current = getCurrentBalance(userId);
-        BigDecimal pendingLocks = pointsLedgerRepository.getTotalPendingWithdrawalLocks(userId);
-        // pendingLocks is negative values summed, e.g. -100 => subtracting a negative equals adding
-        return current.add(pendingLocks); // because locks are negative amounts
+        return loadAccountBalance(userId).getAvailableBalance();
     }
 
     /**
@@ -419,26 +680,26 @@ public class PointsService {
     @Transactional
     public boolean lockPointsForWithdrawal(UUID userId, BigDecimal amount, String withdrawalId) {
         String lockTxId = "WITHDRAWAL_LOCK_" + withdrawalId;
+        // Row lock trước: check trùng lock và check số dư đều chạy trên dòng đã khoá
+        AccountBalance balance = lockAccountBalance(userId);
         if (pointsLedgerRepository.existsByTransactionId(lockTxId)) {
             log.info("Lock already exists: {}", lockTxId);
             return true;
         }
-        BigDecimal available = getAvailableBalance(userId);
+        BigDecimal available = balance.getAvailableBalance();
         if (available.compareTo(amount) < 0) {
             throw new RuntimeException("Insufficient available balance");
         }
-        // Create PENDING lock entry (negative amount)
+        // Create PENDING lock entry (negative amount), total unchanged for PENDING
         PointsLedger lockEntry = PointsLedger.builder()
             .userId(userId)
             .transactionId(lockTxId)
             .transactionType(PointsLedger.PointsTransactionType.WITHDRAWAL_DEBIT)
             .amount(amount.negate())
-            .balanceBefore(getCurrentBalance(userId))
-            .balanceAfter(getCurrentBalance(userId)) // unchanged for PENDING
             .description("Lock for withdrawal " + withdrawalId)
             .status(PointsLedger.PointsTransactionStatus.PENDING)
             .build();
-        pointsLedgerRepository.save(lockEntry);
+        appendLedgerEntry(lockEntry, BigDecimal.ZERO, amount);
         log.info("Locked {} points for withdrawal {} (txId={})", amount, withdrawalId, lockTxId);
         return true;
     }
@@ -453,8 +714,15 @@ public class PointsService {
         if (lockOpt.isEmpty()) return;
         PointsLedger lock = lockOpt.get();
         if (lock.getStatus() == PointsLedger.PointsTransactionStatus.PENDING) {
+            // Load trước khi đổi status (nếu phải seed từ ledger thì lock này vẫn đang PENDING)
+            AccountBalance balance = lockAccountBalance(lock.getUserId());
+
             lock.setStatus(PointsLedger.PointsTransactionStatus.CANCELLED);
             pointsLedgerRepository.save(lock);
+
+            // lock.amount âm: giảm locked đúng bằng phần đã lock
+            balance.apply(BigDecimal.ZERO, lock.getAmount());
+            accountBalanceRepository.saveAndFlush(balance);
             log.info("Unlocked points lock {} for user {}", lockTxId, userId);
         }
     }
@@ -465,10 +733,10 @@ public class PointsService {
     @Transactional
     public void finalizeWithdrawalDebit(UUID userId, BigDecimal amount, String withdrawalId) {
         String debitTxId = "WITHDRAWAL_DEBIT_" + withdrawalId;
+        AccountBalance balance = lockAccountBalance(userId);
         if (!pointsLedgerRepository.existsByTransactionId(debitTxId)) {
-            BigDecimal currentBalance = getCurrentBalance(userId);
-            BigDecimal newBalance = currentBalance.subtract(amount);
-            if (newBalance.compareTo(BigDecimal.ZERO) < 0) {
+            BigDecimal currentBalance = balance.getTotalBalance();
+            if (currentBalance.subtract(amount).compareTo(BigDecimal.ZERO) < 0) {
                 throw new RuntimeException("Insufficient balance to finalize withdrawal");
             }
             PointsLedger debit = PointsLedger.builder()
@@ -476,13 +744,10 @@ public class PointsService {
                 .transactionId(debitTxId)
                 .transactionType(PointsLedger.PointsTransactionType.WITHDRAWAL_DEBIT)
                 .amount(amount.negate())
-                .balanceBefore(currentBalance)
-                .balanceAfter(newBalance)
                 .description("Finalize withdrawal " + withdrawalId)
                 .status(PointsLedger.PointsTransactionStatus.COMPLETED)
                 .build();
-            pointsLedgerRepository.save(debit);
-            updateBalanceCache(userId, newBalance);
+            appendLedgerEntry(debit, amount.negate(), BigDecimal.ZERO);
             log.info("Finalized withdrawal debit {} for user {} amount {}", withdrawalId, userId, amount);
         }
         // Close lock if present
@@ -1,5 +1,6 @@
 package com.UsdtWallet.UsdtWallet.service;
 
+import com.UsdtWallet.UsdtWallet.model.Money;
 import com.UsdtWallet.UsdtWallet.util.TronAddressUtil;
 import com.UsdtWallet.UsdtWallet.util.TronKeys;
 import com.UsdtWallet.UsdtWallet.util.TronTransactionSigner;
@@ -22,6 +23,7 @@ import com.fasterxml.jackson.core.type.TypeReference;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.math.RoundingMode;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -164,7 +166,7 @@ public class TronApiService {
                         // Convert hex to BigInteger then to BigDecimal
                         BigInteger balanceWei = new BigInteger(balanceHex, 16);
                         // USDT has 6 decimals on Tron
-                        BigDecimal usdtBalance = new BigDecimal(balanceWei).divide(new BigDecimal("1000000"));
+                        BigDecimal usdtBalance = Money.ofMicros(balanceWei).toBigDecimal();
                         return usdtBalance;
                     }
                 }
@@ -204,7 +206,7 @@ public class TronApiService {
                             if (balanceObj instanceof String) {
                                 // USDT has 6 decimals on Tron
                                 BigInteger balanceWei = new BigInteger((String) balanceObj);
-                                return new BigDecimal(balanceWei).divide(new BigDecimal("1000000"));
+                                return Money.ofMicros(balanceWei).toBigDecimal();
                             }
                         }
                     }
@@ -237,8 +239,7 @@ public class TronApiService {
                 Object balanceObj = response.getBody().get("balance");
                 if (balanceObj instanceof Number) {
                     // Convert from sun to TRX (1 TRX = 1,000,000 sun)
-                    BigInteger balanceInSun = BigInteger.valueOf(((Number) balanceObj).longValue());
-                    BigDecimal trxBalance = new BigDecimal(balanceInSun).divide(new BigDecimal("1000000"));
+                    BigDecimal trxBalance = Money.ofMicros(((Number) balanceObj).longValue()).toBigDecimal();
                     log.debug("TRX balance for {}: {} TRX", address, trxBalance);
                     return trxBalance;
                 }
@@ -477,6 +478,24 @@ public class TronApiService {
         return res.getBody();
     }
 
+    /**
+     * Get receipts of all transactions in a block, null if the call failed
+     */
+    public List<Map<String, Object>> getTransactionInfoByBlockNum(long blockNumber) {
+        try {
+            String url = tronApiUrl + "/wallet/gettransactioninfobyblocknum";
+            HttpHeaders headers = createHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
+            Map<String, Object> req = Map.of("num", blockNumber);
+            ResponseEntity<Object> res = restTemplate.exchange(url, HttpMethod.POST, new HttpEntity<>(req, headers), Object.class);
+            // Block rỗng trả về {} thay vì []
+            return res.getBody() instanceof List ? (List<Map<String, Object>>) res.getBody() : new ArrayList<>();
+        } catch (Exception e) {
+            log.error("Error getting transaction infos for block {}: {}", blockNumber, e.getMessage());
+            return null;
+        }
+    }
+
 
     /**
      * Get transaction by hash from Nile testnet
@@ -668,7 +687,7 @@ public class TronApiService {
                                 transactions.add(txData);
                                 
                                 log.debug("Found valid deposit: {} USDT to {} in block {} (SUCCESS verified)",
-                                    new BigDecimal(result.get("value").toString()).divide(new BigDecimal("1000000")),
+                                    Money.ofMicros(result.get("value").toString()),
                                     toAddress, eventBlockNumber);
                             }
                         }
@@ -710,7 +729,7 @@ public class TronApiService {
             log.info("Creating TRX transfer: {} TRX from {} to {}", amount, fromAddress, toAddress);
 
             // Convert TRX to sun (1 TRX = 1,000,000 sun)
-            BigInteger amountInSun = amount.multiply(new BigDecimal("1000000")).toBigInteger();
+            BigInteger amountInSun = Money.of(amount, RoundingMode.DOWN).toBigInteger();
 
             Map<String, Object> request = new HashMap<>();
             request.put("owner_address", fromAddress);
@@ -762,83 +781,274 @@ public class TronApiService {
     }
 
     /**
-     * Calculate safe fee limit based on TRX balance
+     * Get account resource (energy/bandwidth limits and network totals)
      */
-    private long calculateSafeFeeLimit(String fromAddress) {
+    public Map<String, Object> getAccountResource(String address) {
         try {
-            BigDecimal trxBalance = getTrxBalance(fromAddress);
-            // Use maximum 80% of TRX balance for fee, minimum 1 TRX, maximum 15 TRX
-            BigDecimal maxFeeInTrx = trxBalance.multiply(new BigDecimal("0.8"));
-
-            // Clamp between 1 and 15 TRX
-            if (maxFeeInTrx.compareTo(BigDecimal.ONE) < 0) {
-                maxFeeInTrx = BigDecimal.ONE;
-            } else if (maxFeeInTrx.compareTo(new BigDecimal("15")) > 0) {
-                maxFeeInTrx = new BigDecimal("15");
-            }
+            Map<String, Object> request = new HashMap<>();
+            request.put("address", address);
+            request.put("visible", true);
 
-            // Convert to sun (1 TRX = 1,000,000 sun)
-            long feeLimit = maxFeeInTrx.multiply(new BigDecimal("1000000")).longValue();
+            String url = tronApiUrl + "/wallet/getaccountresource";
 
-            log.debug("Calculated safe fee limit: {} TRX ({} sun) based on balance {} TRX",
-                maxFeeInTrx, feeLimit, trxBalance);
+            HttpHeaders headers = createHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
 
-            return feeLimit;
+            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(request, headers);
+            ResponseEntity<Map> response = restTemplate.exchange(url, HttpMethod.POST, entity, Map.class);
 
+            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
+                return response.getBody();
+            }
         } catch (Exception e) {
-            log.warn("Could not calculate safe fee limit, using default: {}", e.getMessage());
-            return 8_000_000; // 8 TRX default
+            log.error("Error getting account resource for address: {}", address, e);
         }
+        return new HashMap<>();
     }
 
     /**
-     * Create USDT transfer transaction using TronGrid API
+     * Get a single chain parameter (e.g. getEnergyFee), null if unavailable
      */
-    public String createUsdtTransferTransaction(String fromAddress, String toAddress, BigDecimal amount) {
+    public Long getChainParameter(String key) {
         try {
-            log.info("Creating USDT transfer: {} USDT from {} to {}", amount, fromAddress, toAddress);
+            String url = tronApiUrl + "/wallet/getchainparameters";
+
+            HttpHeaders headers = createHeaders();
+            HttpEntity<String> entity = new HttpEntity<>(headers);
+            ResponseEntity<Map> response = restTemplate.exchange(url, HttpMethod.GET, entity, Map.class);
 
-            // Check TRX balance before creating transaction
-            BigDecimal trxBalance = getTrxBalance(fromAddress);
-            if (trxBalance.compareTo(new BigDecimal("1")) < 0) {
-                log.warn("⚠️ Low TRX balance ({} TRX) for USDT transfer from {}", trxBalance, fromAddress);
+            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
+                Object params = response.getBody().get("chainParameter");
+                if (params instanceof List<?> list) {
+                    for (Object item : list) {
+                        if (item instanceof Map<?, ?> param && key.equals(param.get("key"))
+                                && param.get("value") instanceof Number value) {
+                            return value.longValue();
+                        }
+                    }
+                }
             }
+        } catch (Exception e) {
+            log.error("Error getting chain parameter {}", key, e);
+        }
+        return null;
+    }
 
-            // Convert USDT to smallest unit (6 decimals)
-            BigInteger amountInWei = amount.multiply(new BigDecimal("1000000")).toBigInteger();
+    /**
+     * Max staked TRX (sun) that owner can still delegate as ENERGY (Stake 2.0)
+     */
+    public long getCanDelegatedMaxSize(String ownerAddress) {
+        try {
+            Map<String, Object> request = new HashMap<>();
+            request.put("owner_address", ownerAddress);
+            request.put("type", 1); // 1 = ENERGY
+            request.put("visible", true);
+
+            String url = tronApiUrl + "/wallet/getcandelegatedmaxsize";
+
+            HttpHeaders headers = createHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
 
-            // Create TRC20 transfer function call
-            String methodId = "a9059cbb";
+            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(request, headers);
+            ResponseEntity<Map> response = restTemplate.exchange(url, HttpMethod.POST, entity, Map.class);
 
-            // Convert Base58 to hex
-            String toAddressHex = TronAddressUtil.base58ToHex(toAddress);
-            if (toAddressHex.startsWith("0x")) {
-                toAddressHex = toAddressHex.substring(2);
+            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
+                Object maxSize = response.getBody().get("max_size");
+                if (maxSize instanceof Number) {
+                    return ((Number) maxSize).longValue();
+                }
             }
+        } catch (Exception e) {
+            log.error("Error getting delegatable size for address: {}", ownerAddress, e);
+        }
+        return 0L;
+    }
+
+    /**
+     * Create DelegateResourceContract (Stake 2.0) lending ENERGY from owner to receiver
+     */
+    public String createDelegateResourceTransaction(String ownerAddress, String receiverAddress, long balanceSun) {
+        log.info("Creating energy delegation: {} sun from {} to {}", balanceSun, ownerAddress, receiverAddress);
+
+        Map<String, Object> request = new HashMap<>();
+        request.put("owner_address", ownerAddress);
+        request.put("receiver_address", receiverAddress);
+        request.put("balance", balanceSun);
+        request.put("resource", "ENERGY");
+        request.put("lock", false); // Không lock để có thể undelegate ngay sau khi sweep
+        request.put("visible", true);
+
+        return createResourceTransaction("/wallet/delegateresource", request);
+    }
+
+    /**
+     * Create UnDelegateResourceContract (Stake 2.0) reclaiming ENERGY from receiver
+     */
+    public String createUndelegateResourceTransaction(String ownerAddress, String receiverAddress, long balanceSun) {
+        log.info("Creating energy undelegation: {} sun from {} back to {}", balanceSun, receiverAddress, ownerAddress);
+
+        Map<String, Object> request = new HashMap<>();
+        request.put("owner_address", ownerAddress);
+        request.put("receiver_address", receiverAddress);
+        request.put("balance", balanceSun);
+        request.put("resource", "ENERGY");
+        request.put("visible", true);
+
+        return createResourceTransaction("/wallet/undelegateresource", request);
+    }
+
+    private String createResourceTransaction(String path, Map<String, Object> request) {
+        try {
+            String url = tronApiUrl + path;
+
+            HttpHeaders headers = createHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
 
-            // ABI only accepts last 20 bytes (40 hex chars)
-            if (toAddressHex.length() == 42) {
-                toAddressHex = toAddressHex.substring(2); // remove 2 byte prefix (41 or A0)
+            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(request, headers);
+            ResponseEntity<Map> response = restTemplate.exchange(url, HttpMethod.POST, entity, Map.class);
+
+            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
+                Map<String, Object> txMap = response.getBody();
+                if (txMap.get("raw_data") != null && txMap.containsKey("raw_data_hex")) {
+                    return new ObjectMapper().writeValueAsString(txMap);
+                }
+                log.error("❌ No raw_data in TronGrid {} response: {}", path, txMap);
+            } else {
+                log.error("❌ TronGrid {} API error: {} - {}", path, response.getStatusCode(), response.getBody());
             }
 
-            String paddedToAddress = String.format("%64s", toAddressHex).replace(' ', '0');
+        } catch (Exception e) {
+            log.error("Error creating {} transaction", path, e);
+        }
+        return null;
+    }
+
+    /**
+     * Estimate energy of a TRC20 transfer via triggerconstantcontract (dry run, không broadcast).
+     * Null nếu call bị revert (vd owner không đủ token) hoặc không đọc được energy_used.
+     */
+    public Long estimateTrc20TransferEnergy(String ownerAddress, String contractAddress, String toAddress,
+                                            BigDecimal amount) {
+        try {
+            Map<String, Object> request = new HashMap<>();
+            request.put("owner_address", ownerAddress);
+            request.put("contract_address", contractAddress);
+            request.put("function_selector", "transfer(address,uint256)");
+            request.put("parameter", encodeTransferParameter(toAddress, amount));
+            request.put("visible", true);
+
+            String url = tronApiUrl + "/wallet/triggerconstantcontract";
+
+            HttpHeaders headers = createHeaders();
+            headers.setContentType(MediaType.APPLICATION_JSON);
+
+            HttpEntity<Map<String, Object>> entity = new HttpEntity<>(request, headers);
+            ResponseEntity<Map> response = restTemplate.exchange(url, HttpMethod.POST, entity, Map.class);
+
+            if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
+                Map<String, Object> body = response.getBody();
+                if (body.get("result") instanceof Map<?, ?> result
+                        && Boolean.TRUE.equals(result.get("result")) && result.get("message") == null
+                        && body.get("energy_used") instanceof Number energyUsed) {
+                    return energyUsed.longValue();
+                }
+                log.warn("⚠️ Energy estimation for transfer {} -> {} reverted: {}", ownerAddress, toAddress, body.get("result"));
+            }
+        } catch (Exception e) {
+            log.error("Error estimating TRC20 transfer energy: {}", e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * ABI-encode transfer(address,uint256) parameters (không gồm selector)
+     */
+    private String encodeTransferParameter(String toAddress, BigDecimal amount) {
+        return encodeAddressWord(toAddress) + encodeUsdtAmountWord(amount);
+    }
+
+    /**
+     * ABI word cho address (20 byte cuối, pad trái tới 32 byte)
+     */
+    private String encodeAddressWord(String address) {
+        // Convert Base58 to hex
+        String addressHex = TronAddressUtil.base58ToHex(address);
+        if (addressHex.startsWith("0x")) {
+            addressHex = addressHex.substring(2);
+        }
 
-            // Encode amount (pad to 64 chars)
-            String amountHex = amountInWei.toString(16);
-            String paddedAmount = String.format("%64s", amountHex).replace(' ', '0');
+        // ABI only accepts last 20 bytes (40 hex chars)
+        if (addressHex.length() == 42) {
+            addressHex = addressHex.substring(2); // remove 2 byte prefix (41 or A0)
+        }
 
-            // Only parameters (without selector)
-            String parameter = paddedToAddress + paddedAmount;
+        return String.format("%64s", addressHex).replace(' ', '0');
+    }
 
-            // Calculate safe fee limit based on actual TRX balance
-            long safeFeeLimit = calculateSafeFeeLimit(fromAddress);
+    /**
+     * ABI word cho số USDT (6 decimals)
+     */
+    private String encodeUsdtAmountWord(BigDecimal amount) {
+        BigInteger amountInWei = Money.of(amount, RoundingMode.DOWN).toBigInteger();
+        return encodeUintWord(amountInWei);
+    }
 
+    private String encodeUintWord(BigInteger value) {
+        return String.format("%64s", value.toString(16)).replace(' ', '0');
+    }
+
+    /**
+     * Create USDT transfer transaction using TronGrid API.
+     * feeLimitSun lấy từ EnergyEstimatorService (không tra balance cho từng transfer)
+     */
+    public String createUsdtTransferTransaction(String fromAddress, String toAddress, BigDecimal amount,
+                                                long feeLimitSun) {
+        log.info("Creating USDT transfer: {} USDT from {} to {}", amount, fromAddress, toAddress);
+
+        // Only parameters (without selector)
+        return createSmartContractTransaction(fromAddress, usdtContractAddress, "transfer(address,uint256)",
+            encodeTransferParameter(toAddress, amount), feeLimitSun);
+    }
+
+    /**
+     * Create batch USDT payout: 1 call tới batch contract với
+     * functionSelector dạng fn(address token, address[] recipients, uint256[] amounts).
+     * Batch contract dùng transferFrom nên owner phải approve USDT cho contract trước.
+     */
+    public String createBatchUsdtTransferTransaction(String fromAddress, String batchContractAddress,
+                                                     String functionSelector, List<String> recipients,
+                                                     List<BigDecimal> amounts, long feeLimitSun) {
+        log.info("Creating batch USDT payout: {} recipients from {} via {}", recipients.size(), fromAddress,
+            batchContractAddress);
+
+        int n = recipients.size();
+        StringBuilder parameter = new StringBuilder();
+        // Head: token + offset của 2 dynamic array (tính từ đầu phần parameter)
+        parameter.append(encodeAddressWord(usdtContractAddress));
+        parameter.append(encodeUintWord(BigInteger.valueOf(3 * 32)));
+        parameter.append(encodeUintWord(BigInteger.valueOf(3 * 32 + (n + 1) * 32L)));
+        // Tail: length + phần tử
+        parameter.append(encodeUintWord(BigInteger.valueOf(n)));
+        recipients.forEach(recipient -> parameter.append(encodeAddressWord(recipient)));
+        parameter.append(encodeUintWord(BigInteger.valueOf(n)));
+        amounts.forEach(amount -> parameter.append(encodeUsdtAmountWord(amount)));
+
+        return createSmartContractTransaction(fromAddress, batchContractAddress, functionSelector,
+            parameter.toString(), feeLimitSun);
+    }
+
+    /**
+     * triggersmartcontract -> unsigned transaction JSON (có raw_data_hex)
+     */
+    private String createSmartContractTransaction(String fromAddress, String contractAddress, String functionSelector,
+                                                  String parameter, long feeLimitSun) {
+        try {
             Map<String, Object> request = new HashMap<>();
             request.put("owner_address", fromAddress);
-            request.put("contract_address", usdtContractAddress);
-            request.put("function_selector", "transfer(address,uint256)");
+            request.put("contract_address", contractAddress);
+            request.put("function_selector", functionSelector);
             request.put("parameter", parameter);
-            request.put("fee_limit", safeFeeLimit);
+            request.put("fee_limit", feeLimitSun);
             request.put("call_value", 0);
             request.put("visible", true);
 
@@ -853,8 +1063,8 @@ public class TronApiService {
             if (response.getStatusCode() == HttpStatus.OK && response.getBody() != null) {
                 Object transactionObj = response.getBody().get("transaction");
                 if (transactionObj != null) {
-                    log.debug("USDT transaction created successfully with fee limit: {} TRX",
-                        safeFeeLimit / 1_000_000.0);
+                    log.debug("{} transaction created successfully with fee limit: {} TRX",
+                        functionSelector, feeLimitSun / 1_000_000.0);
 
                     // Convert transaction object to JSON string
                     ObjectMapper mapper = new ObjectMapper();
@@ -1,28 +1,47 @@
 package com.UsdtWallet.UsdtWallet.service;
 
+import com.UsdtWallet.UsdtWallet.model.Money;
+import com.UsdtWallet.UsdtWallet.model.dto.SweepPlanDto;
 import com.UsdtWallet.UsdtWallet.model.dto.SweepResultDto;
 import com.UsdtWallet.UsdtWallet.model.entity.WalletTransaction;
 import com.UsdtWallet.UsdtWallet.model.entity.TokenSweep;
 import com.UsdtWallet.UsdtWallet.model.entity.GasTopup;
+import com.UsdtWallet.UsdtWallet.model.entity.EnergyDelegation;
 import com.UsdtWallet.UsdtWallet.model.entity.HdMasterWallet;
 import com.UsdtWallet.UsdtWallet.repository.WalletTransactionRepository;
 import com.UsdtWallet.UsdtWallet.repository.TokenSweepRepository;
 import com.UsdtWallet.UsdtWallet.repository.GasTopupRepository;
+import com.UsdtWallet.UsdtWallet.service.sweep.SweepPolicyEngine;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 @RequiredArgsConstructor
@@ -36,30 +55,106 @@ public class UsdtSweepService {
     private final HdWalletService hdWalletService;
     private final RedisTemplate<String, Object> redisTemplate;
     private final PointsService pointsService;
-    private final NotificationService notificationService; 
-
-    @Value("${sweep.min.amount:5}")
-    private BigDecimal minimumSweepAmount;
+    private final NotificationService notificationService;
+    private final TransactionTemplate transactionTemplate;
+    private final EnergyDelegationService energyDelegationService;
+    private final SweepPolicyEngine sweepPolicyEngine;
+    private final ConfirmationTrackerService confirmationTrackerService;
+    private final EnergyEstimatorService energyEstimatorService;
 
     @Value("${sweep.gas.limit:15}")
     private BigDecimal gasLimitTrx;
 
-    @Value("${sweep.batch.size:10}")
-    private Integer sweepBatchSize;
-
     @Value("${sweep.enabled:true}")
     private Boolean sweepEnabled;
 
     @Value("${tron.usdt.contract:TXYZopYRdj2D9XRtbG411XZZ3kM5VkAeBf}")
     private String usdtContractAddress;
 
+    @Value("${sweep.aggregate.enabled:false}")
+    private Boolean aggregateEnabled;
+
+    // TRX_TOPUP: gửi TRX gas cho child wallet; ENERGY_DELEGATION: cho mượn energy từ master đã stake
+    @Value("${sweep.gas.mode:TRX_TOPUP}")
+    private String gasMode;
+
+    @Value("${sweep.energy.batch-size:20}")
+    private int energyDelegationBatchSize;
+
+    // Số child wallet tối đa đưa vào policy engine mỗi lần chạy
+    @Value("${sweep.claim.max-addresses:500}")
+    private int maxCandidateAddresses;
+
+    // Số deposit tối đa claim cho 1 child wallet trong 1 sweep
+    @Value("${sweep.claim.max-deposits-per-address:100}")
+    private int maxClaimPerAddress;
+
+    @Value("${sweep.policy.batches-per-run:1}")
+    private int sweepBatchesPerRun;
+
+    @Value("${sweep.gas.confirm-timeout-seconds:300}")
+    private long gasConfirmTimeoutSeconds;
+
+    @Value("${sweep.executor.pool-size:4}")
+    private int sweepExecutorPoolSize;
+
+    @Value("${sweep.executor.queue-capacity:1000}")
+    private int sweepExecutorQueueCapacity;
+
     private static final String SWEEP_LOCK_KEY = "sweep:lock";
     private static final String SWEEP_STATS_KEY = "sweep:stats";
+    private static final String SWEEP_ADVANCE_LOCK_KEY = "sweep:advance:";
+    private static final String ENERGY_DELEGATION_LOCK_KEY = "sweep:energy:lock";
+
+    private static final Set<TokenSweep.SweepStatus> ACTIVE_STATUSES = EnumSet.of(
+        TokenSweep.SweepStatus.PENDING,
+        TokenSweep.SweepStatus.GAS_REQUESTED,
+        TokenSweep.SweepStatus.GAS_CONFIRMED);
+
+    // Sweep chưa kết thúc trên địa chỉ (gồm SENT đang chờ confirm): không tạo sweep full-balance mới
+    private static final Set<TokenSweep.SweepStatus> IN_FLIGHT_STATUSES = EnumSet.of(
+        TokenSweep.SweepStatus.PENDING,
+        TokenSweep.SweepStatus.GAS_REQUESTED,
+        TokenSweep.SweepStatus.GAS_CONFIRMED,
+        TokenSweep.SweepStatus.SENT);
+
+    // Executor riêng cho state machine, không chiếm thread của scheduler
+    private ExecutorService sweepExecutor;
+
+    // Sweep đang được advance trên node này (tránh submit trùng)
+    private final Set<Long> advancingSweeps = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void initSweepExecutor() {
+        AtomicInteger threadCount = new AtomicInteger();
+        sweepExecutor = new ThreadPoolExecutor(
+            sweepExecutorPoolSize, sweepExecutorPoolSize,
+            60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(sweepExecutorQueueCapacity),
+            r -> {
+                Thread t = new Thread(r, "sweep-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+    }
+
+    @PreDestroy
+    public void shutdownSweepExecutor() {
+        sweepExecutor.shutdown();
+        try {
+            if (!sweepExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+                sweepExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            sweepExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
 
     /**
-     * Scheduled sweep every 5 minutes
+     * Scheduled sweep (mặc định mỗi phút, mỗi lần chạy sweepBatchesPerRun lượt)
      */
-    @Scheduled(fixedDelay = 300000) // 5 minutes
+    @Scheduled(fixedDelayString = "${sweep.schedule.delay-ms:60000}")
     public void scheduledSweep() {
         if (!sweepEnabled) {
             log.debug("USDT sweep is disabled");
@@ -95,9 +190,9 @@ public class UsdtSweepService {
     }
 
     /**
-     * Sweep all unswept deposits
+     * Sweep all unswept deposits theo kế hoạch của SweepPolicyEngine.
+     * Mỗi child wallet được claim và tạo sweep trong transaction riêng.
      */
-    @Transactional
     public SweepResultDto sweepUnsweptDeposits() {
         // Get master wallet info first
         HdMasterWallet masterWallet = hdWalletService.getMasterWallet();
@@ -112,32 +207,42 @@ public class UsdtSweepService {
             .totalTransactions(0);
 
         try {
-            // Get unswept deposits
-            List<WalletTransaction> unsweptDeposits = walletTransactionRepository.findUnsweptDeposits();
+            // Aggregate deposit chưa sweep theo child wallet ngay trong DB
+            List<SweepPlanDto.SweepCandidate> candidates = loadCandidates();
 
-            if (unsweptDeposits.isEmpty()) {
+            if (candidates.isEmpty()) {
                 log.info("No unswept deposits found");
                 return resultBuilder.status("SUCCESS").message("No deposits to sweep").build();
             }
 
-            log.info("Found {} unswept deposits to process", unsweptDeposits.size());
+            log.info("Found {} child wallets with unswept deposits to process", candidates.size());
 
-            // Check master wallet TRX balance for gas
-            BigDecimal masterTrxBalance = tronApiService.getTrxBalance(masterAddress);
-            BigDecimal requiredGas = gasLimitTrx.multiply(new BigDecimal(Math.min(unsweptDeposits.size(), sweepBatchSize)));
+            // Policy engine chọn child wallet cần sweep và chia lượt; mỗi lần chạy chỉ xử lý vài lượt đầu
+            List<SweepPlanDto.SweepCandidate> selected = sweepPolicyEngine.plan(candidates).stream()
+                .limit(sweepBatchesPerRun)
+                .flatMap(plan -> plan.getCandidates().stream())
+                .toList();
 
-            if (masterTrxBalance.compareTo(requiredGas) < 0) {
-                String message = String.format("Insufficient TRX for gas. Required: %s, Available: %s",
-                    requiredGas, masterTrxBalance);
-                log.error("❌ " + message);
-                return resultBuilder.status("FAILED").message(message).build();
+            if (selected.isEmpty()) {
+                return resultBuilder.status("SUCCESS")
+                    .message(String.format("%d addresses held by sweep policy", candidates.size()))
+                    .build();
             }
 
-            // Process deposits in batches
-            List<WalletTransaction> depositsToSweep = unsweptDeposits.stream()
-                .filter(tx -> tx.getAmount().compareTo(minimumSweepAmount) >= 0)
-                .limit(sweepBatchSize)
-                .toList();
+            // Check master wallet TRX balance for gas
+            if (!isEnergyDelegationMode()) {
+                long sweepCount = aggregateEnabled ? selected.size()
+                    : selected.stream().mapToLong(SweepPlanDto.SweepCandidate::getPendingDepositCount).sum();
+                BigDecimal masterTrxBalance = tronApiService.getTrxBalance(masterAddress);
+                BigDecimal requiredGas = gasLimitTrx.multiply(new BigDecimal(sweepCount));
+
+                if (masterTrxBalance.compareTo(requiredGas) < 0) {
+                    String message = String.format("Insufficient TRX for gas. Required: %s, Available: %s",
+                        requiredGas, masterTrxBalance);
+                    log.error("❌ " + message);
+                    return resultBuilder.status("FAILED").message(message).build();
+                }
+            }
 
             int successCount = 0;
             BigDecimal totalSwept = BigDecimal.ZERO;
@@ -145,36 +250,25 @@ public class UsdtSweepService {
             List<SweepResultDto.SweepTransactionDto> successfulSweeps = new ArrayList<>();
             List<SweepResultDto.SweepTransactionDto> failedSweeps = new ArrayList<>();
 
-            for (WalletTransaction deposit : depositsToSweep) {
-                try {
-                    SweepResultDto.SweepTransactionDto sweepResult = sweepSingleDeposit(deposit);
+            for (SweepPlanDto.SweepCandidate candidate : selected) {
+                log.debug("Sweeping {} ({} deposits, {} USDT) - policy: {}",
+                    candidate.getAddress(), candidate.getPendingDepositCount(), candidate.getTotalAmount(), candidate.getReason());
 
-                    if ("SUCCESS".equals(sweepResult.getStatus())) {
+                for (SweepResultDto.SweepTransactionDto sweepResult : claimAndSweep(candidate)) {
+                    if ("SCHEDULED".equals(sweepResult.getStatus())) {
                         successfulSweeps.add(sweepResult);
                         successCount++;
                         totalSwept = totalSwept.add(sweepResult.getAmount());
                         totalGas = totalGas.add(sweepResult.getGasUsed());
-                    } else {
+                    } else if ("FAILED".equals(sweepResult.getStatus())) {
                         failedSweeps.add(sweepResult);
                     }
-
-                } catch (Exception e) {
-                    log.error("Error sweeping deposit {}: {}", deposit.getTxHash(), e.getMessage());
-
-                    SweepResultDto.SweepTransactionDto failedSweep = SweepResultDto.SweepTransactionDto.builder()
-                        .fromAddress(deposit.getToAddress())
-                        .amount(deposit.getAmount())
-                        .status("FAILED")
-                        .errorMessage(e.getMessage())
-                        .build();
-
-                    failedSweeps.add(failedSweep);
                 }
             }
 
             String status = successCount > 0 ? "SUCCESS" : "FAILED";
-            String message = String.format("Swept %d/%d deposits, Total: %s USDT",
-                successCount, depositsToSweep.size(), totalSwept);
+            String message = String.format("Scheduled %d sweeps for %d addresses, Total: %s USDT",
+                successCount, selected.size(), totalSwept);
 
             return resultBuilder
                 .status(status)
@@ -196,165 +290,567 @@ public class UsdtSweepService {
     }
 
     /**
-     * Sweep a single deposit
+     * Sweep 1 child wallet: 1 TokenSweep cho cả địa chỉ khi aggregate, ngược lại 1 TokenSweep mỗi deposit
+     */
+    private List<SweepResultDto.SweepTransactionDto> sweepCandidate(SweepPlanDto.SweepCandidate candidate) {
+        if (aggregateEnabled) {
+            return List.of(sweepCandidateSafely(candidate.getAddress(), candidate.getDeposits()));
+        }
+        return candidate.getDeposits().stream()
+            .map(deposit -> sweepCandidateSafely(candidate.getAddress(), List.of(deposit)))
+            .toList();
+    }
+
+    private SweepResultDto.SweepTransactionDto sweepCandidateSafely(String address, List<WalletTransaction> deposits) {
+        try {
+            return aggregateEnabled ? sweepAddressDeposits(address, deposits) : sweepSingleDeposit(deposits.get(0));
+        } catch (Exception e) {
+            log.error("Error sweeping {}: {}", address, e.getMessage());
+
+            return SweepResultDto.SweepTransactionDto.builder()
+                .fromAddress(address)
+                .amount(deposits.stream().map(WalletTransaction::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add))
+                .status("FAILED")
+                .errorMessage(e.getMessage())
+                .build();
+        }
+    }
+
+    /**
+     * Sweep a single deposit: tạo TokenSweep PENDING và giao cho state machine,
+     * không block thread gọi để chờ gas
      */
     @Transactional
     public SweepResultDto.SweepTransactionDto sweepSingleDeposit(WalletTransaction deposit) {
         String fromAddress = deposit.getToAddress(); // Child wallet
         BigDecimal amount = deposit.getAmount();
 
+        TokenSweep tokenSweep = createSweep(fromAddress, amount, List.of(deposit), false);
+
+        return SweepResultDto.SweepTransactionDto.builder()
+            .tokenSweepId(tokenSweep.getId())
+            .fromAddress(fromAddress)
+            .amount(amount)
+            .status("SCHEDULED")
+            .gasUsed(gasLimitTrx)
+            .build();
+    }
+
+    /**
+     * Aggregated sweep: 1 TokenSweep chuyển toàn bộ USDT on-chain của child wallet,
+     * gắn tất cả deposit chưa sweep của địa chỉ đó
+     */
+    @Transactional
+    public SweepResultDto.SweepTransactionDto sweepAddressDeposits(String address, List<WalletTransaction> deposits) {
+        BigDecimal amount = sumDeposits(deposits).toBigDecimal();
+
+        if (tokenSweepRepository.existsByChildAddressAndStatusIn(address, IN_FLIGHT_STATUSES)) {
+            // Sweep đang chạy sẽ gắn thêm các deposit này lúc broadcast nếu balance đủ
+            log.debug("Address {} đã có sweep đang chạy, skipping {} deposits", address, deposits.size());
+            return SweepResultDto.SweepTransactionDto.builder()
+                .fromAddress(address)
+                .amount(amount)
+                .status("SKIPPED")
+                .build();
+        }
+
+        TokenSweep tokenSweep = createSweep(address, amount, deposits, true);
+
+        return SweepResultDto.SweepTransactionDto.builder()
+            .tokenSweepId(tokenSweep.getId())
+            .fromAddress(address)
+            .amount(amount)
+            .status("SCHEDULED")
+            .gasUsed(gasLimitTrx)
+            .build();
+    }
+
+    /**
+     * Child wallet có deposit chưa sweep (count/sum/oldest tính trong DB), deposit cũ nhất trước
+     */
+    private List<SweepPlanDto.SweepCandidate> loadCandidates() {
+        return walletTransactionRepository
+            .summarizeUnsweptDepositsByAddress(PageRequest.of(0, maxCandidateAddresses))
+            .stream()
+            .map(row -> SweepPlanDto.SweepCandidate.summary(
+                (String) row[0], ((Number) row[1]).longValue(), (BigDecimal) row[2], (LocalDateTime) row[3]))
+            .toList();
+    }
+
+    /**
+     * Claim deposit chưa sweep của candidate (FOR UPDATE SKIP LOCKED) và tạo sweep trong cùng transaction,
+     * deposit đang được worker khác claim sẽ bị bỏ qua
+     */
+    private List<SweepResultDto.SweepTransactionDto> claimAndSweep(SweepPlanDto.SweepCandidate candidate) {
+        return transactionTemplate.execute(status -> {
+            List<WalletTransaction> claimed = walletTransactionRepository
+                .claimUnsweptDepositsByAddress(candidate.getAddress(), maxClaimPerAddress);
+
+            if (claimed.isEmpty()) {
+                log.debug("Deposits of {} already claimed by another worker, skipping", candidate.getAddress());
+                return List.<SweepResultDto.SweepTransactionDto>of();
+            }
+
+            candidate.setDeposits(claimed);
+            return sweepCandidate(candidate);
+        });
+    }
+
+    /**
+     * Tạo TokenSweep PENDING, gắn các deposit vào sweep và lên lịch advance
+     */
+    private TokenSweep createSweep(String fromAddress, BigDecimal amount, List<WalletTransaction> deposits,
+                                   boolean fullBalance) {
         TokenSweep tokenSweep = new TokenSweep();
         tokenSweep.setChildIndex(hdWalletService.getChildIndexByAddress(fromAddress));
         tokenSweep.setChildAddress(fromAddress);
         tokenSweep.setMasterAddress(hdWalletService.getMasterWallet().getMasterAddress());
         tokenSweep.setAmount(amount);
+        tokenSweep.setFullBalance(fullBalance);
         tokenSweep.setStatus(TokenSweep.SweepStatus.PENDING);
+        tokenSweep.setStateChangedAt(LocalDateTime.now());
         tokenSweep.setRetryCount(0);
 
         tokenSweep = tokenSweepRepository.save(tokenSweep);
         log.info("Đã tạo TokenSweep record ID: {} cho việc sweep {} USDT từ {}",
             tokenSweep.getId(), amount, fromAddress);
 
+        for (WalletTransaction deposit : deposits) {
+            deposit.setTokenSweepId(tokenSweep.getId());
+            walletTransactionRepository.save(deposit);
+        }
+
+        scheduleAdvance(tokenSweep.getId());
+        return tokenSweep;
+    }
+
+    /**
+     * Lên lịch advance sau khi transaction hiện tại commit (nếu có)
+     */
+    private void scheduleAdvance(Long sweepId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    submitAdvance(sweepId);
+                }
+            });
+        } else {
+            submitAdvance(sweepId);
+        }
+    }
+
+    private void submitAdvance(Long sweepId) {
+        if (advancingSweeps.contains(sweepId)) {
+            return;
+        }
         try {
-            HdMasterWallet masterWallet = hdWalletService.getMasterWallet();
-            String masterAddress = masterWallet.getMasterAddress();
+            sweepExecutor.execute(() -> advanceSweep(sweepId));
+        } catch (RejectedExecutionException e) {
+            log.warn("Sweep executor đầy, TokenSweep {} sẽ được xử lý ở block tiếp theo", sweepId);
+        }
+    }
 
-            log.info("🧹 Sweeping {} USDT from {} to master wallet", amount, fromAddress);
+    /**
+     * Block tick: khi có block mới thì advance các sweep còn active.
+     * Thay cho việc sleep-poll balance trong thread sweep.
+     */
+    @EventListener
+    public void onHeadBlock(ConfirmationTrackerService.HeadBlockEvent event) {
+        if (!sweepEnabled) {
+            return;
+        }
 
-            BigDecimal currentUsdtBalance = tronApiService.getUsdtBalance(fromAddress);
-            if (currentUsdtBalance.compareTo(amount) < 0) {
-                String error = String.format("Insufficient USDT balance. Expected: %s, Current: %s", amount, currentUsdtBalance);
-                log.warn(error);
-
-                // CẬP NHẬT TOKENSWEEP STATUS
-                tokenSweep.setStatus(TokenSweep.SweepStatus.FAILED);
-                tokenSweep.setErrorMessage(error);
-                tokenSweepRepository.save(tokenSweep);
-
-                return SweepResultDto.SweepTransactionDto.builder()
-                    .fromAddress(fromAddress)
-                    .amount(amount)
-                    .status("FAILED")
-                    .errorMessage(error)
-                    .build();
+        try {
+            List<Long> activeSweepIds = tokenSweepRepository.findIdsByStatusIn(ACTIVE_STATUSES);
+            if (activeSweepIds.isEmpty()) {
+                return;
             }
+            long headBlock = event.blockNumber();
 
-            BigDecimal trxBalance = tronApiService.getTrxBalance(fromAddress);
-            log.debug("Child wallet TRX balance: {} TRX, Required gas: {} TRX", trxBalance, gasLimitTrx);
+            if (isEnergyDelegationMode()) {
+                delegateEnergyForWaitingSweeps();
+            }
 
-            if (trxBalance.compareTo(gasLimitTrx) < 0) {
-                log.info("⛽ Child wallet needs TRX for gas. Current: {} TRX, Required: {} TRX",
-                    trxBalance, gasLimitTrx);
+            log.debug("⛓️ New block {} - advancing {} active sweeps", headBlock, activeSweepIds.size());
+            activeSweepIds.forEach(this::submitAdvance);
 
-                boolean gasSent = sendGasToChildWallet(fromAddress, gasLimitTrx);
-                if (!gasSent) {
-                    String error = "Failed to send TRX gas to child wallet";
+        } catch (Exception e) {
+            log.error("❌ Lỗi block tick cho sweep: {}", e.getMessage(), e);
+        }
+    }
 
-                    tokenSweep.setStatus(TokenSweep.SweepStatus.FAILED);
-                    tokenSweep.setErrorMessage(error);
-                    tokenSweepRepository.save(tokenSweep);
+    /**
+     * Delegate energy theo lượt cho các sweep GAS_REQUESTED chưa có delegation
+     */
+    private void delegateEnergyForWaitingSweeps() {
+        Boolean lockAcquired = redisTemplate.opsForValue()
+            .setIfAbsent(ENERGY_DELEGATION_LOCK_KEY, "locked", 120, TimeUnit.SECONDS);
 
-                    return SweepResultDto.SweepTransactionDto.builder()
-                        .fromAddress(fromAddress)
-                        .amount(amount)
-                        .status("FAILED")
-                        .errorMessage(error)
-                        .build();
-                }
+        if (!Boolean.TRUE.equals(lockAcquired)) {
+            return;
+        }
 
-                // Wait for gas confirmation
-                if (!waitForGasConfirmation(fromAddress, gasLimitTrx, 60)) {
-                    String error = "Gas transaction not confirmed after 60 seconds";
-                    tokenSweep.setStatus(TokenSweep.SweepStatus.FAILED);
-                    tokenSweep.setErrorMessage(error);
-                    tokenSweepRepository.save(tokenSweep);
-
-                    return SweepResultDto.SweepTransactionDto.builder()
-                        .fromAddress(fromAddress)
-                        .amount(amount)
-                        .status("FAILED")
-                        .errorMessage(error)
-                        .build();
-                }
+        try {
+            List<TokenSweep> waiting = tokenSweepRepository.findAwaitingEnergyDelegation(TokenSweep.SweepStatus.GAS_REQUESTED);
+            if (!waiting.isEmpty()) {
+                energyDelegationService.delegateForSweeps(
+                    waiting.subList(0, Math.min(waiting.size(), energyDelegationBatchSize)));
             }
+        } catch (Exception e) {
+            log.error("❌ Lỗi delegate energy cho sweeps: {}", e.getMessage(), e);
+        } finally {
+            redisTemplate.delete(ENERGY_DELEGATION_LOCK_KEY);
+        }
+    }
 
-            String childPrivateKey = hdWalletService.getPrivateKeyForAddress(fromAddress);
-            String rawTransaction = tronApiService.createUsdtTransferTransaction(fromAddress, masterAddress, amount);
-            if (rawTransaction == null) {
-                throw new RuntimeException("Failed to create USDT transaction");
+    private boolean isEnergyDelegationMode() {
+        return "ENERGY_DELEGATION".equalsIgnoreCase(gasMode);
+    }
+
+    /**
+     * Được gọi khi GasTopup đổi trạng thái, đánh thức các sweep đang chờ gas đó
+     */
+    private void onGasTopupResolved(GasTopup topup) {
+        tokenSweepRepository.findByGasTopupIdAndStatus(topup.getId(), TokenSweep.SweepStatus.GAS_REQUESTED)
+            .forEach(sweep -> scheduleAdvance(sweep.getId()));
+    }
+
+    /**
+     * Đẩy sweep qua state machine cho tới khi gặp bước phải chờ blockchain
+     * PENDING -> GAS_REQUESTED -> GAS_CONFIRMED -> SENT -> CONFIRMED / FAILED
+     */
+    public void advanceSweep(Long sweepId) {
+        if (!advancingSweeps.add(sweepId)) {
+            return;
+        }
+
+        String lockKey = SWEEP_ADVANCE_LOCK_KEY + sweepId;
+        try {
+            Boolean lockAcquired = redisTemplate.opsForValue()
+                .setIfAbsent(lockKey, "locked", 120, TimeUnit.SECONDS);
+
+            if (!Boolean.TRUE.equals(lockAcquired)) {
+                log.debug("TokenSweep {} đang được advance ở node khác, skipping...", sweepId);
+                return;
             }
 
-            String signedTransaction = tronApiService.signTransaction(rawTransaction, childPrivateKey);
-            if (signedTransaction == null) {
-                throw new RuntimeException("Failed to sign USDT transaction");
+            try {
+                TokenSweep sweep = tokenSweepRepository.findById(sweepId).orElse(null);
+
+                while (sweep != null && sweep.getStatus().isActive()) {
+                    TokenSweep.SweepStatus before = sweep.getStatus();
+
+                    try {
+                        switch (before) {
+                            case PENDING -> handlePending(sweep);
+                            case GAS_REQUESTED -> handleGasRequested(sweep);
+                            case GAS_CONFIRMED -> handleGasConfirmed(sweep);
+                            default -> { }
+                        }
+                    } catch (Exception e) {
+                        log.error("❌ Error advancing TokenSweep {} from {}: {}", sweepId, before, e.getMessage(), e);
+                        failSweep(sweep, e.getMessage());
+                    }
+
+                    if (sweep.getStatus() == before) {
+                        break; // Phải chờ blockchain, tick sau sẽ tiếp tục
+                    }
+                }
+            } finally {
+                redisTemplate.delete(lockKey);
             }
 
-            
-            log.info("📡 Broadcasting USDT transaction");
-            String txHash = tronApiService.broadcastTransaction(signedTransaction);
-            if (txHash == null) {
-                throw new RuntimeException("Failed to broadcast USDT transaction");
+        } catch (Exception e) {
+            log.error("❌ Lỗi advance TokenSweep {}: {}", sweepId, e.getMessage(), e);
+        } finally {
+            advancingSweeps.remove(sweepId);
+        }
+    }
+
+    /**
+     * PENDING: kiểm tra USDT và TRX, gửi gas nếu thiếu
+     */
+    private void handlePending(TokenSweep sweep) {
+        String fromAddress = sweep.getChildAddress();
+
+        BigDecimal currentUsdtBalance = tronApiService.getUsdtBalance(fromAddress);
+        if (currentUsdtBalance.compareTo(sweep.getAmount()) < 0) {
+            String error = String.format("Insufficient USDT balance. Expected: %s, Current: %s",
+                sweep.getAmount(), currentUsdtBalance);
+            log.warn(error);
+            failSweep(sweep, error);
+            return;
+        }
+
+        if (isEnergyDelegationMode()) {
+            // Energy được delegate theo lượt ở block tick tiếp theo
+            transition(sweep, energyDelegationService.hasEnoughEnergy(fromAddress)
+                ? TokenSweep.SweepStatus.GAS_CONFIRMED
+                : TokenSweep.SweepStatus.GAS_REQUESTED);
+            return;
+        }
+
+        BigDecimal trxBalance = tronApiService.getTrxBalance(fromAddress);
+        log.debug("Child wallet TRX balance: {} TRX, Required gas: {} TRX", trxBalance, gasLimitTrx);
+
+        if (trxBalance.compareTo(gasLimitTrx) >= 0) {
+            transition(sweep, TokenSweep.SweepStatus.GAS_CONFIRMED);
+            return;
+        }
+
+        log.info("⛽ Child wallet needs TRX for gas. Current: {} TRX, Required: {} TRX",
+            trxBalance, gasLimitTrx);
+
+        GasTopup gasTopup = sendGasToChildWallet(fromAddress, gasLimitTrx);
+        if (gasTopup == null) {
+            failSweep(sweep, "Failed to send TRX gas to child wallet");
+            return;
+        }
+
+        sweep.setGasTopupId(gasTopup.getId());
+        transition(sweep, TokenSweep.SweepStatus.GAS_REQUESTED);
+    }
+
+    /**
+     * GAS_REQUESTED: chờ gas về child wallet (không sleep, chỉ kiểm tra 1 lần mỗi lần advance)
+     */
+    private void handleGasRequested(TokenSweep sweep) {
+        if (sweep.getGasTopupId() == null && isEnergyDelegationMode()) {
+            handleEnergyRequested(sweep);
+            return;
+        }
+
+        GasTopup gasTopup = sweep.getGasTopupId() != null
+            ? gasTopupRepository.findById(sweep.getGasTopupId()).orElse(null)
+            : null;
+
+        if (gasTopup != null && gasTopup.getStatus() == GasTopup.TopupStatus.FAILED) {
+            failSweep(sweep, "Gas topup failed: " + gasTopup.getTxHash());
+            return;
+        }
+
+        boolean gasArrived = (gasTopup != null && gasTopup.getStatus() == GasTopup.TopupStatus.CONFIRMED)
+            || tronApiService.getTrxBalance(sweep.getChildAddress()).compareTo(gasLimitTrx) >= 0;
+
+        if (gasArrived) {
+            transition(sweep, TokenSweep.SweepStatus.GAS_CONFIRMED);
+            return;
+        }
+
+        if (!failIfGasTimedOut(sweep)) {
+            log.debug("⏳ TokenSweep {} đang chờ gas (GasTopup {})", sweep.getId(), sweep.getGasTopupId());
+        }
+    }
+
+    /**
+     * GAS_REQUESTED (energy delegation mode): chờ delegate tx confirm
+     */
+    private void handleEnergyRequested(TokenSweep sweep) {
+        EnergyDelegation delegation = energyDelegationService.findForSweep(sweep.getId()).orElse(null);
+
+        if (delegation != null && delegation.getStatus() == EnergyDelegation.DelegationStatus.FAILED) {
+            failSweep(sweep, "Energy delegation failed: " + delegation.getDelegateTxHash());
+            return;
+        }
+
+        boolean energyArrived = delegation != null
+            && (delegation.getStatus() == EnergyDelegation.DelegationStatus.DELEGATED
+                || energyDelegationService.hasEnoughEnergy(sweep.getChildAddress()));
+
+        if (energyArrived) {
+            transition(sweep, TokenSweep.SweepStatus.GAS_CONFIRMED);
+            return;
+        }
+
+        if (!failIfGasTimedOut(sweep)) {
+            log.debug("⏳ TokenSweep {} đang chờ energy delegation", sweep.getId());
+        }
+    }
+
+    private boolean failIfGasTimedOut(TokenSweep sweep) {
+        LocalDateTime since = sweep.getStateChangedAt() != null ? sweep.getStateChangedAt() : sweep.getCreatedAt();
+        if (since != null && since.isBefore(LocalDateTime.now().minusSeconds(gasConfirmTimeoutSeconds))) {
+            failSweep(sweep, "Gas not available after " + gasConfirmTimeoutSeconds + " seconds");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * GAS_CONFIRMED: build, sign, broadcast USDT transfer về master wallet
+     */
+    private void handleGasConfirmed(TokenSweep sweep) {
+        String fromAddress = sweep.getChildAddress();
+        String masterAddress = sweep.getMasterAddress();
+
+        if (Boolean.TRUE.equals(sweep.getFullBalance())) {
+            // Gom thêm deposit đã ghi nhận trong lúc chờ gas; chỉ chuyển đúng tổng deposit đã gắn vào sweep
+            BigDecimal currentUsdtBalance = tronApiService.getUsdtBalance(fromAddress);
+            transactionTemplate.executeWithoutResult(status -> linkCoveredDeposits(sweep, currentUsdtBalance));
+        }
+        BigDecimal amount = sweep.getAmount();
+
+        log.info("🧹 Sweeping {} USDT from {} to master wallet", amount, fromAddress);
+
+        String childPrivateKey = hdWalletService.getPrivateKeyForAddress(fromAddress);
+        // Master wallet luôn đã có USDT
+        String rawTransaction = tronApiService.createUsdtTransferTransaction(fromAddress, masterAddress, amount,
+            energyEstimatorService.getFeeLimitSun(true));
+        if (rawTransaction == null) {
+            throw new RuntimeException("Failed to create USDT transaction");
+        }
+
+        String signedTransaction = tronApiService.signTransaction(rawTransaction, childPrivateKey);
+        if (signedTransaction == null) {
+            throw new RuntimeException("Failed to sign USDT transaction");
+        }
+
+        log.info("📡 Broadcasting USDT transaction");
+        String txHash = tronApiService.broadcastTransaction(signedTransaction);
+        if (txHash == null) {
+            throw new RuntimeException("Failed to broadcast USDT transaction");
+        }
+
+        recordSweepBroadcast(sweep, txHash);
+
+        log.info("✅ Sweep broadcasted: {} USDT from {} - TokenSweep ID: {} - TxHash: {}",
+            amount, fromAddress, sweep.getId(), txHash);
+    }
+
+    /**
+     * Đã lên chain: từ đây không được throw. Throw sẽ về failSweep, trả deposit lại cho sweep khác
+     * trong khi USDT đã rời child wallet (sweep sau thiếu balance, deposit không bao giờ được credit).
+     */
+    private void recordSweepBroadcast(TokenSweep sweep, String txHash) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> markSweepBroadcast(sweep, txHash));
+        } catch (Exception e) {
+            log.error("🚨 CRITICAL: TokenSweep {} broadcast {} but saving failed, retrying on fresh row: {}",
+                sweep.getId(), txHash, e.getMessage(), e);
+            try {
+                transactionTemplate.executeWithoutResult(status -> tokenSweepRepository.findById(sweep.getId())
+                    .ifPresent(fresh -> markSweepBroadcast(fresh, txHash)));
+            } catch (Exception retryError) {
+                log.error("🚨 CRITICAL: TokenSweep {} broadcast {} not recorded - needs manual review: {}",
+                    sweep.getId(), txHash, retryError.getMessage(), retryError);
             }
+            // Vòng advance trong bộ nhớ dừng ở SENT, không broadcast lại
+            sweep.setSweepTxHash(txHash);
+            sweep.setStatus(TokenSweep.SweepStatus.SENT);
+        }
+        trackSweepConfirmation(sweep.getId(), txHash);
+    }
+
+    /**
+     * Lưu TokenSweep SENT + cập nhật deposits + tạo sweep transaction record trong cùng 1 transaction
+     */
+    private void markSweepBroadcast(TokenSweep sweep, String txHash) {
+        sweep.setSweepTxHash(txHash);
+        sweep.setStatus(TokenSweep.SweepStatus.SENT); // Đã broadcast, chờ confirm
+        sweep.setStateChangedAt(LocalDateTime.now());
+        tokenSweepRepository.save(sweep);
 
-            tokenSweep.setSweepTxHash(txHash);
-            tokenSweep.setStatus(TokenSweep.SweepStatus.SENT); // Đã broadcast, chờ confirm
-            tokenSweepRepository.save(tokenSweep);
+        List<WalletTransaction> deposits = walletTransactionRepository.findByTokenSweepId(sweep.getId());
 
-            // Update WalletTransaction
+        for (WalletTransaction deposit : deposits) {
             deposit.setIsSwept(true);
             deposit.setSweepTxHash(txHash);
             deposit.setSweptAt(LocalDateTime.now());
             walletTransactionRepository.save(deposit);
+        }
 
-            // Tạo sweep transaction record
-            WalletTransaction sweepTx = WalletTransaction.builder()
-                .txHash(txHash)
-                .fromAddress(fromAddress)
-                .toAddress(masterAddress)
-                .amount(amount)
-                .tokenAddress(usdtContractAddress)
-                .transactionType(WalletTransaction.TransactionType.SWEEP)
-                .direction(WalletTransaction.TransactionDirection.OUT)
-                .status(WalletTransaction.TransactionStatus.PENDING)
-                .userId(deposit.getUserId())
-                .childWalletId(deposit.getChildWalletId())
-                .gasUsed(gasLimitTrx)
-                .build();
+        WalletTransaction firstDeposit = deposits.isEmpty() ? null : deposits.get(0);
+
+        // Tạo sweep transaction record
+        WalletTransaction sweepTx = WalletTransaction.builder()
+            .txHash(txHash)
+            .fromAddress(sweep.getChildAddress())
+            .toAddress(sweep.getMasterAddress())
+            .amount(sweep.getAmount())
+            .tokenAddress(usdtContractAddress)
+            .transactionType(WalletTransaction.TransactionType.SWEEP)
+            .direction(WalletTransaction.TransactionDirection.OUT)
+            .status(WalletTransaction.TransactionStatus.PENDING)
+            .userId(firstDeposit != null ? firstDeposit.getUserId() : null)
+            .childWalletId(firstDeposit != null ? firstDeposit.getChildWalletId() : null)
+            .gasUsed(gasLimitTrx)
+            .build();
 
-            walletTransactionRepository.save(sweepTx);
+        walletTransactionRepository.save(sweepTx);
+    }
 
-            log.info("✅ Sweep process completed: {} USDT from {} - TokenSweep ID: {} - TxHash: {}",
-                amount, fromAddress, tokenSweep.getId(), txHash);
+    /**
+     * Aggregated sweep: gắn thêm deposit chưa sweep của địa chỉ (còn vừa balance on-chain) vào sweep,
+     * rồi đặt amount = đúng tổng deposit đã gắn. USDT chưa có deposit row (scanner chưa ghi nhận, hoặc
+     * không vừa) ở lại child wallet cho sweep sau, nên không có tiền nào về master mà không được credit.
+     */
+    private void linkCoveredDeposits(TokenSweep sweep, BigDecimal onChainBalance) {
+        Money covered = sumDeposits(walletTransactionRepository.findByTokenSweepId(sweep.getId()));
+        Money available = Money.of(onChainBalance);
+
+        for (WalletTransaction extra : walletTransactionRepository
+                .claimUnsweptDepositsByAddress(sweep.getChildAddress(), maxClaimPerAddress)) {
+            Money withExtra = covered.plus(Money.of(extra.getAmount()));
+            if (withExtra.compareTo(available) > 0) {
+                continue;
+            }
+            covered = withExtra;
+            extra.setTokenSweepId(sweep.getId());
+            walletTransactionRepository.save(extra);
+            log.info("🔗 Linked deposit {} to aggregated TokenSweep {}", extra.getId(), sweep.getId());
+        }
 
-            return SweepResultDto.SweepTransactionDto.builder()
-                .fromAddress(fromAddress)
-                .txHash(txHash)
-                .amount(amount)
-                .status("SUCCESS")
-                .gasUsed(gasLimitTrx)
-                .build();
+        sweep.setAmount(covered.toBigDecimal());
+        tokenSweepRepository.save(sweep);
+    }
 
-        } catch (Exception e) {
-            log.error("❌ Error sweeping deposit {}: {}", deposit.getTxHash(), e.getMessage(), e);
+    /**
+     * Tổng deposit (đơn vị on-chain, cộng long có kiểm tra tràn)
+     */
+    private Money sumDeposits(List<WalletTransaction> deposits) {
+        Money total = Money.ZERO;
+        for (WalletTransaction deposit : deposits) {
+            total = total.plus(Money.of(deposit.getAmount()));
+        }
+        return total;
+    }
 
-            tokenSweep.setStatus(TokenSweep.SweepStatus.FAILED);
-            tokenSweep.setErrorMessage(e.getMessage());
-            tokenSweep.setRetryCount(tokenSweep.getRetryCount() + 1);
-            tokenSweepRepository.save(tokenSweep);
+    private void transition(TokenSweep sweep, TokenSweep.SweepStatus status) {
+        log.info("🔀 TokenSweep {}: {} -> {}", sweep.getId(), sweep.getStatus(), status);
+        sweep.setStatus(status);
+        sweep.setStateChangedAt(LocalDateTime.now());
+        tokenSweepRepository.save(sweep);
+    }
 
-            return SweepResultDto.SweepTransactionDto.builder()
-                .fromAddress(deposit.getToAddress())
-                .amount(deposit.getAmount())
-                .status("FAILED")
-                .errorMessage(e.getMessage())
-                .build();
-        }
+    /**
+     * Mark sweep FAILED và trả deposits về trạng thái chưa sweep để lần sau sweep lại
+     */
+    private void failSweep(TokenSweep sweep, String error) {
+        transactionTemplate.executeWithoutResult(status -> {
+            sweep.setStatus(TokenSweep.SweepStatus.FAILED);
+            sweep.setErrorMessage(error);
+            sweep.setRetryCount((sweep.getRetryCount() != null ? sweep.getRetryCount() : 0) + 1);
+            sweep.setStateChangedAt(LocalDateTime.now());
+            tokenSweepRepository.save(sweep);
+
+            for (WalletTransaction deposit : walletTransactionRepository.findByTokenSweepId(sweep.getId())) {
+                if (!Boolean.TRUE.equals(deposit.getIsSwept())) {
+                    deposit.setTokenSweepId(null);
+                    walletTransactionRepository.save(deposit);
+                }
+            }
+        });
+
+        energyDelegationService.requestReclaim(sweep.getId());
+
+        log.warn("❌ TokenSweep {} FAILED: {}", sweep.getId(), error);
     }
 
     /**
      * Send TRX for gas to child wallet
      */
-    private boolean sendGasToChildWallet(String childAddress, BigDecimal gasAmount) {
+    private GasTopup sendGasToChildWallet(String childAddress, BigDecimal gasAmount) {
         GasTopup gasTopup = null;
 
         try {
@@ -388,11 +884,12 @@ public class UsdtSweepService {
             if (txHash != null) {
                 gasTopup.setTxHash(txHash);
                 gasTopup.setStatus(GasTopup.TopupStatus.SENT);
-                gasTopupRepository.save(gasTopup);
+                gasTopup = gasTopupRepository.save(gasTopup);
+                trackGasTopupConfirmation(gasTopup.getId(), txHash);
 
                 log.info("✅ Gas sent: {} TRX to {}, TX: {} - GasTopup ID: {}",
                     gasAmount, childAddress, txHash, gasTopup.getId());
-                return true;
+                return gasTopup;
             } else {
                 // Broadcast thất bại
                 gasTopup.setStatus(GasTopup.TopupStatus.FAILED);
@@ -410,172 +907,113 @@ public class UsdtSweepService {
             }
         }
 
-        return false;
+        return null;
     }
 
     /**
-     * Wait for gas confirmation
+     * Đăng ký sweep đã broadcast với ConfirmationTrackerService
      */
-    private boolean waitForGasConfirmation(String address, BigDecimal requiredGas, int maxRetries) {
-        try {
-            int retries = 0;
-            BigDecimal trxBalance;
-
-            do {
-                trxBalance = tronApiService.getTrxBalance(address);
-                log.info("⏳ Waiting for gas confirmation... Attempt {}: TRX balance is {} TRX", retries + 1, trxBalance);
-
-                if (trxBalance.compareTo(requiredGas) >= 0) {
-                    return true;
-                }
-
-                Thread.sleep(5000);
-                retries++;
-
-            } while (retries < maxRetries);
+    private void trackSweepConfirmation(Long sweepId, String txHash) {
+        confirmationTrackerService.register(txHash, 0, new ConfirmationTrackerService.ConfirmationListener() {
+            @Override
+            public void onConfirmed(String txid, Map<String, Object> txInfo, long confirmations) {
+                transactionTemplate.executeWithoutResult(status -> onSweepConfirmed(sweepId));
+            }
 
-        } catch (Exception e) {
-            log.error("Error waiting for gas confirmation: {}", e.getMessage());
-        }
+            @Override
+            public void onFailed(String txid, Map<String, Object> txInfo) {
+                transactionTemplate.executeWithoutResult(status ->
+                    onSweepChainFailure(sweepId, "Transaction failed on blockchain - Result: " + txInfo.get("result")));
+            }
 
-        return false;
+            @Override
+            public void onTimeout(String txid) {
+                transactionTemplate.executeWithoutResult(status ->
+                    onSweepChainFailure(sweepId, "Timeout: Không thấy transaction trên blockchain"));
+            }
+        });
     }
 
     /**
-     * SCHEDULED: Confirm pending TokenSweeps trong database
+     * Đăng ký lại các tx chưa confirm (sau restart hoặc khi tracker bỏ sót)
      */
-    @Scheduled(fixedDelay = 45000) // Chạy mỗi 45 giây
-    @Transactional
-    public void confirmPendingTokenSweeps() {
+    @Scheduled(initialDelay = 10000, fixedDelay = 300000)
+    public void registerPendingConfirmations() {
         try {
-            List<TokenSweep> sentSweeps = tokenSweepRepository.findByStatus(TokenSweep.SweepStatus.SENT);
-
-            if (sentSweeps.isEmpty()) {
-                return;
+            for (TokenSweep sweep : tokenSweepRepository.findByStatus(TokenSweep.SweepStatus.SENT)) {
+                if (sweep.getSweepTxHash() != null && !sweep.getSweepTxHash().isEmpty()) {
+                    trackSweepConfirmation(sweep.getId(), sweep.getSweepTxHash());
+                } else {
+                    log.warn("⚠️ TokenSweep ID {} không có txHash", sweep.getId());
+                }
             }
 
-            log.info("🔍 Kiểm tra {} SENT token sweeps để confirm", sentSweeps.size());
-
-            for (TokenSweep sweep : sentSweeps) {
-                try {
-                    if (sweep.getSweepTxHash() != null && !sweep.getSweepTxHash().isEmpty()) {
-                        log.debug("🔍 Checking confirmation for TokenSweep ID {} with txHash: {}",
-                            sweep.getId(), sweep.getSweepTxHash());
-
-                        var txInfo = tronApiService.getTransactionInfo(sweep.getSweepTxHash());
-
-                        if (txInfo != null) {
-                            log.debug("📋 Transaction info cho {}: {}", sweep.getSweepTxHash(), txInfo);
-
-                            Object result = txInfo.get("result");
-                            Object receipt = txInfo.get("receipt");
-
-                            // Kiểm tra cả result và receipt
-                            if ("SUCCESS".equals(result) || (receipt != null && "SUCCESS".equals(((Map<?, ?>)receipt).get("result")))) {
-                                sweep.setStatus(TokenSweep.SweepStatus.CONFIRMED);
-                                sweep.setUpdatedAt(LocalDateTime.now());
-                                tokenSweepRepository.save(sweep);
-
-                                log.info("✅ TokenSweep confirmed: {} USDT from {} (ID: {}) - TxHash: {}",
-                                    sweep.getAmount(), sweep.getChildAddress(), sweep.getId(), sweep.getSweepTxHash());
-
-                                updateCorrespondingWalletTransaction(sweep.getSweepTxHash());
-
-                                // Credit points ONLY after sweep confirmed
-                                try {
-                                    var optDeposit = walletTransactionRepository.findBySweepTxHash(sweep.getSweepTxHash());
-                                    if (optDeposit.isPresent()) {
-                                        WalletTransaction deposit = optDeposit.get();
-                                        if (deposit.getPointsCredited() == null) {
-                                            boolean credited = pointsService.creditPointsForDeposit(
-                                                deposit.getUserId(),
-                                                deposit.getAmount(),
-                                                String.valueOf(deposit.getId()),
-                                                deposit.getAmount()
-                                            );
-                                            if (credited) {
-                                                deposit.setPointsCredited(deposit.getAmount());
-                                                deposit.setPointsCreditedAt(LocalDateTime.now());
-                                                // Mark deposit fully completed after points credited
-                                                deposit.setStatus(WalletTransaction.TransactionStatus.COMPLETED);
-                                                walletTransactionRepository.save(deposit);
-
-                                                //  Send notifications: deposit confirmed + balance update
-                                                try {
-                                                    notificationService.notifyDepositConfirmed(
-                                                        deposit.getUserId(),
-                                                        deposit.getTxHash(),
-                                                        deposit.getAmount(),
-                                                        deposit.getAmount()
-                                                    );
-                                                    
-                                                
-                                                    BigDecimal newBalance = pointsService.getCurrentBalance(deposit.getUserId());
-                                                    notificationService.notifyBalanceUpdate(deposit.getUserId(), newBalance);
-                                                    
-                                                    log.debug(" Sent deposit confirmation notifications to user: {}", deposit.getUserId());
-                                                } catch (Exception notifException) {
-                                                    log.warn(" Failed to send deposit confirmation notification (not critical): ", notifException);
-                                                }
-
-                                                log.info("🎁 Points credited after sweep confirmation: user={}, amount={} points, depositId={}",
-                                                    deposit.getUserId(), deposit.getAmount(), deposit.getId());
-                                            } else {
-                                                log.warn("Points already credited or failed for depositId={} (tx={})", deposit.getId(), deposit.getTxHash());
-                                            }
-                                        }
-                                    } else {
-                                        log.warn("No deposit transaction found for sweep txHash {} to credit points", sweep.getSweepTxHash());
-                                    }
-                                } catch (Exception ce) {
-                                    log.error("Failed to credit points after sweep confirmation tx={} : {}", sweep.getSweepTxHash(), ce.getMessage(), ce);
-                                }
-
-                            } else if ("FAILED".equals(result) || (receipt != null && "FAILED".equals(((Map<?, ?>)receipt).get("result")))) {
-                                sweep.setStatus(TokenSweep.SweepStatus.FAILED);
-                                sweep.setErrorMessage("Transaction failed on blockchain - Result: " + result);
-                                sweep.setUpdatedAt(LocalDateTime.now());
-                                tokenSweepRepository.save(sweep);
-
-                                log.warn("❌ TokenSweep failed on blockchain: {} (ID: {}) - Result: {}",
-                                    sweep.getSweepTxHash(), sweep.getId(), result);
-
-                            } else {
-                                // Transaction vẫn đang pending
-                                log.debug("⏳ TokenSweep {} vẫn đang pending - Result: {}",
-                                    sweep.getSweepTxHash(), result);
-
-                                // Check timeout - nếu quá 30 phút thì retry
-                                if (sweep.getCreatedAt().isBefore(LocalDateTime.now().minusMinutes(30))) {
-                                    log.warn("⚠️ TokenSweep {} đã pending quá 30 phút, có thể cần retry",
-                                        sweep.getSweepTxHash());
-                                }
-                            }
-                        } else {
-                            log.warn("⚠️ Không lấy được transaction info cho TokenSweep {}", sweep.getSweepTxHash());
-
-                            // Check timeout - nếu quá 1 giờ và không có txInfo thì mark failed
-                            if (sweep.getCreatedAt().isBefore(LocalDateTime.now().minusHours(1))) {
-                                sweep.setStatus(TokenSweep.SweepStatus.FAILED);
-                                sweep.setErrorMessage("Timeout: Không thể lấy transaction info sau 1 giờ");
-                                sweep.setUpdatedAt(LocalDateTime.now());
-                                tokenSweepRepository.save(sweep);
-
-                                log.error("❌ TokenSweep {} timeout - Mark as FAILED", sweep.getSweepTxHash());
-                            }
-                        }
-                    } else {
-                        log.warn("⚠️ TokenSweep ID {} không có txHash", sweep.getId());
-                    }
-                } catch (Exception e) {
-                    log.error("❌ Lỗi check confirmation cho TokenSweep {}: {}",
-                        sweep.getId(), e.getMessage(), e);
+            for (GasTopup topup : gasTopupRepository.findByStatus(GasTopup.TopupStatus.SENT)) {
+                if (topup.getTxHash() != null && !topup.getTxHash().startsWith("ERROR") && !topup.getTxHash().equals("BROADCAST_FAILED")) {
+                    trackGasTopupConfirmation(topup.getId(), topup.getTxHash());
+                } else {
+                    log.warn("⚠️ GasTopup ID {} có txHash không hợp lệ: {}", topup.getId(), topup.getTxHash());
                 }
             }
-
         } catch (Exception e) {
-            log.error("❌ Lỗi confirm pending token sweeps: {}", e.getMessage(), e);
+            log.error("❌ Lỗi đăng ký pending confirmations: {}", e.getMessage(), e);
+        }
+    }
+
+    private void onSweepConfirmed(Long sweepId) {
+        TokenSweep sweep = tokenSweepRepository.findById(sweepId).orElse(null);
+        if (sweep == null || sweep.getStatus() != TokenSweep.SweepStatus.SENT) {
+            return;
+        }
+
+        sweep.setStatus(TokenSweep.SweepStatus.CONFIRMED);
+        sweep.setStateChangedAt(LocalDateTime.now());
+        tokenSweepRepository.save(sweep);
+
+        log.info("✅ TokenSweep confirmed: {} USDT from {} (ID: {}) - TxHash: {}",
+            sweep.getAmount(), sweep.getChildAddress(), sweep.getId(), sweep.getSweepTxHash());
+
+        updateCorrespondingWalletTransaction(sweep.getSweepTxHash());
+        energyDelegationService.requestReclaim(sweep.getId());
+
+        // Credit points ONLY after sweep confirmed
+        creditDepositsForSweep(sweep);
+    }
+
+    private void onSweepChainFailure(Long sweepId, String error) {
+        TokenSweep sweep = tokenSweepRepository.findById(sweepId).orElse(null);
+        if (sweep == null || sweep.getStatus() != TokenSweep.SweepStatus.SENT) {
+            return;
         }
+
+        // Giống failSweep, nhưng deposits đã được đánh dấu swept lúc broadcast nên phải trả về hết
+        transactionTemplate.executeWithoutResult(status -> {
+            sweep.setStatus(TokenSweep.SweepStatus.FAILED);
+            sweep.setErrorMessage(error);
+            sweep.setRetryCount((sweep.getRetryCount() != null ? sweep.getRetryCount() : 0) + 1);
+            sweep.setStateChangedAt(LocalDateTime.now());
+            tokenSweepRepository.save(sweep);
+
+            for (WalletTransaction deposit : walletTransactionRepository.findByTokenSweepId(sweep.getId())) {
+                deposit.setIsSwept(false);
+                deposit.setSweepTxHash(null);
+                deposit.setSweptAt(null);
+                deposit.setTokenSweepId(null);
+                walletTransactionRepository.save(deposit);
+            }
+
+            walletTransactionRepository.findByTxHash(sweep.getSweepTxHash())
+                .filter(tx -> tx.getTransactionType() == WalletTransaction.TransactionType.SWEEP)
+                .ifPresent(tx -> {
+                    tx.setStatus(WalletTransaction.TransactionStatus.FAILED);
+                    walletTransactionRepository.save(tx);
+                });
+        });
+
+        energyDelegationService.requestReclaim(sweep.getId());
+
+        log.warn("❌ TokenSweep failed on blockchain: {} (ID: {}) - {}",
+            sweep.getSweepTxHash(), sweep.getId(), error);
     }
 
     /**
@@ -603,6 +1041,71 @@ public class UsdtSweepService {
         }
     }
 
+    /**
+     * Credit points cho các deposit thuộc sweep đã confirmed
+     */
+    private void creditDepositsForSweep(TokenSweep sweep) {
+        try {
+            List<WalletTransaction> deposits = walletTransactionRepository.findByTokenSweepId(sweep.getId());
+            if (deposits.isEmpty()) {
+                // Sweep tạo trước state machine chỉ liên kết qua sweepTxHash
+                deposits = walletTransactionRepository.findBySweepTxHash(sweep.getSweepTxHash())
+                    .map(List::of)
+                    .orElse(List.of());
+            }
+
+            if (deposits.isEmpty()) {
+                log.warn("No deposit transaction found for sweep txHash {} to credit points", sweep.getSweepTxHash());
+                return;
+            }
+
+            for (WalletTransaction deposit : deposits) {
+                creditDeposit(deposit);
+            }
+        } catch (Exception ce) {
+            log.error("Failed to credit points after sweep confirmation tx={} : {}", sweep.getSweepTxHash(), ce.getMessage(), ce);
+        }
+    }
+
+    private void creditDeposit(WalletTransaction deposit) {
+        if (deposit.getPointsCredited() != null) {
+            return;
+        }
+
+        boolean credited = pointsService.creditPointsForDeposit(
+            deposit.getUserId(),
+            deposit.getAmount(),
+            String.valueOf(deposit.getId()),
+            deposit.getAmount()
+        );
+        if (credited) {
+            deposit.setPointsCredited(deposit.getAmount());
+            deposit.setPointsCreditedAt(LocalDateTime.now());
+            // Mark deposit fully completed after points credited
+            deposit.setStatus(WalletTransaction.TransactionStatus.COMPLETED);
+            walletTransactionRepository.save(deposit);
+
+            //  Send notification: deposit confirmed (balance update do PointsService gửi sau commit)
+            try {
+                notificationService.notifyDepositConfirmed(
+                    deposit.getUserId(),
+                    deposit.getTxHash(),
+                    deposit.getAmount(),
+                    deposit.getAmount()
+                );
+
+                log.debug(" Sent deposit confirmation notifications to user: {}", deposit.getUserId());
+            } catch (Exception notifException) {
+                log.warn(" Failed to send deposit confirmation notification (not critical): ", notifException);
+            }
+
+            log.info("🎁 Points credited after sweep confirmation: user={}, amount={} points, depositId={}",
+                deposit.getUserId(), deposit.getAmount(), deposit.getId());
+        } else {
+            log.warn("Points already credited or failed for depositId={} (tx={})", deposit.getId(), deposit.getTxHash());
+        }
+    }
+
     /**
      * Manual sweep for specific address
      */
@@ -611,7 +1114,7 @@ public class UsdtSweepService {
         log.info("🧹 Manual sweep for address: {}", address);
 
         List<WalletTransaction> unsweptDeposits = walletTransactionRepository
-            .findUnsweptDepositsByAddress(address);
+            .claimUnsweptDepositsByAddress(address, maxClaimPerAddress);
 
         if (unsweptDeposits.isEmpty()) {
             return SweepResultDto.builder()
@@ -622,15 +1125,18 @@ public class UsdtSweepService {
                 .build();
         }
 
-        // Process each deposit
+        // Process each deposit (hoặc 1 sweep cho cả địa chỉ khi aggregate)
         List<SweepResultDto.SweepTransactionDto> successful = new ArrayList<>();
         List<SweepResultDto.SweepTransactionDto> failed = new ArrayList<>();
 
-        for (WalletTransaction deposit : unsweptDeposits) {
-            SweepResultDto.SweepTransactionDto result = sweepSingleDeposit(deposit);
-            if ("SUCCESS".equals(result.getStatus())) {
+        List<SweepResultDto.SweepTransactionDto> results = aggregateEnabled
+            ? List.of(sweepAddressDeposits(address, unsweptDeposits))
+            : unsweptDeposits.stream().map(this::sweepSingleDeposit).toList();
+
+        for (SweepResultDto.SweepTransactionDto result : results) {
+            if ("SCHEDULED".equals(result.getStatus())) {
                 successful.add(result);
-            } else {
+            } else if ("FAILED".equals(result.getStatus())) {
                 failed.add(result);
             }
         }
@@ -649,7 +1155,7 @@ public class UsdtSweepService {
             .successfulSweeps(successful)
             .failedSweeps(failed)
             .status(successful.size() > 0 ? "SUCCESS" : "FAILED")
-            .message(String.format("Swept %d/%d deposits", successful.size(), unsweptDeposits.size()))
+            .message(String.format("Scheduled %d sweeps for %d deposits", successful.size(), unsweptDeposits.size()))
             .build();
     }
 
@@ -659,16 +1165,11 @@ public class UsdtSweepService {
     public Map<String, Object> getSweepStats() {
         Object cachedStats = redisTemplate.opsForValue().get(SWEEP_STATS_KEY);
 
-        // Get current unswept count
-        List<WalletTransaction> unswept = walletTransactionRepository.findUnsweptDeposits();
-        BigDecimal unsweptAmount = unswept.stream()
-            .map(WalletTransaction::getAmount)
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
-
+        // Current unswept count / amount (aggregate trong DB)
         return Map.of(
             "lastSweepResult", cachedStats != null ? cachedStats : "No recent sweep",
-            "unsweptDeposits", unswept.size(),
-            "unsweptAmount", unsweptAmount,
+            "unsweptDeposits", walletTransactionRepository.countUnsweptDeposits(),
+            "unsweptAmount", walletTransactionRepository.sumUnsweptDepositAmount(),
             "isSweeping", redisTemplate.hasKey(SWEEP_LOCK_KEY),
             "sweepEnabled", sweepEnabled
         );
@@ -680,7 +1181,20 @@ public class UsdtSweepService {
     public void triggerSweepWithPointsCredit(WalletTransaction depositTransaction) {
         try {
             String address = depositTransaction.getToAddress();
-            log.info("🚀 Triggering immediate sweep with points credit for: {}", address);
+
+            // Policy engine quyết định sweep ngay hay để scheduled sweep gom sau
+            List<WalletTransaction> addressDeposits = walletTransactionRepository.findUnsweptDepositsByAddress(address);
+            if (addressDeposits.isEmpty()) {
+                return;
+            }
+            SweepPlanDto.SweepCandidate candidate = SweepPlanDto.SweepCandidate.of(address, addressDeposits);
+            if (!sweepPolicyEngine.shouldSweep(candidate)) {
+                log.info("⏸️ Sweep for {} held by policy ({} deposits, {} USDT), will be planned by scheduled sweep",
+                    address, candidate.getPendingDepositCount(), candidate.getTotalAmount());
+                return;
+            }
+
+            log.info("🚀 Triggering immediate sweep with points credit for: {} ({})", address, candidate.getReason());
 
             // Acquire lock to prevent interference with scheduled sweep
             String sweepLockKey = "sweep:address:" + address;
@@ -693,14 +1207,17 @@ public class UsdtSweepService {
             }
 
             try {
-                // Sweep the specific deposit
-                SweepResultDto.SweepTransactionDto result = sweepSingleDeposit(depositTransaction);
-
-                if ("SUCCESS".equals(result.getStatus())) {
-                    log.info("✅ Sweep transaction broadcasted for deposit {} (txHash={}). Waiting for confirmation before crediting points.",
-                        depositTransaction.getId(), result.getTxHash());
-                } else {
-                    log.warn("⚠️ Immediate sweep failed for {}: {}", address, result.getErrorMessage());
+                // Sweep các deposit chưa sweep của địa chỉ (1 sweep cho cả địa chỉ khi aggregate)
+                for (SweepResultDto.SweepTransactionDto result : claimAndSweep(candidate)) {
+                    if ("SKIPPED".equals(result.getStatus())) {
+                        log.info("Sweep for {} already in progress, deposit {} will be picked up by it or the next run",
+                            address, depositTransaction.getId());
+                    } else if (!"FAILED".equals(result.getStatus())) {
+                        log.info("✅ Sweep scheduled from {} (TokenSweep ID={}). Points will be credited after confirmation.",
+                            address, result.getTokenSweepId());
+                    } else {
+                        log.warn("⚠️ Immediate sweep failed for {}: {}", address, result.getErrorMessage());
+                    }
                 }
 
             } finally {
@@ -715,130 +1232,42 @@ public class UsdtSweepService {
     }
 
     /**
-     * SCHEDULED: Confirm pending GasTopups trong database
+     * Đăng ký gas topup đã broadcast với ConfirmationTrackerService
      */
-    @Scheduled(fixedDelay = 30000)
-    @Transactional
-    public void confirmPendingGasTopups() {
-        try {
-            List<GasTopup> sentTopups = gasTopupRepository.findByStatus(GasTopup.TopupStatus.SENT);
+    private void trackGasTopupConfirmation(Long topupId, String txHash) {
+        confirmationTrackerService.register(txHash, 0, new ConfirmationTrackerService.ConfirmationListener() {
+            @Override
+            public void onConfirmed(String txid, Map<String, Object> txInfo, long confirmations) {
+                transactionTemplate.executeWithoutResult(status -> resolveGasTopup(topupId, GasTopup.TopupStatus.CONFIRMED));
+            }
 
-            if (sentTopups.isEmpty()) {
-                return;
+            @Override
+            public void onFailed(String txid, Map<String, Object> txInfo) {
+                transactionTemplate.executeWithoutResult(status -> resolveGasTopup(topupId, GasTopup.TopupStatus.FAILED));
             }
 
-            log.info("🔍 Kiểm tra {} SENT gas topups để confirm", sentTopups.size());
-
-            for (GasTopup topup : sentTopups) {
-                try {
-                    if (topup.getTxHash() != null && !topup.getTxHash().startsWith("ERROR") && !topup.getTxHash().equals("BROADCAST_FAILED")) {
-                        log.debug("🔍 Checking confirmation for GasTopup ID {} with txHash: {}",
-                            topup.getId(), topup.getTxHash());
-
-                        var txInfo = tronApiService.getTransactionInfo(topup.getTxHash());
-
-                        if (txInfo != null) {
-                            log.debug("📋 Transaction info cho gas topup {}: {}", topup.getTxHash(), txInfo);
-
-                            Object result = txInfo.get("result");
-                            Object receipt = txInfo.get("receipt");
-                            Object contractResult = txInfo.get("contractResult");
-
-                            boolean isSuccess = false;
-
-                            if (receipt != null) {
-                                // Có receipt = transaction đã được process
-                                log.debug("🔍 Analyzing contractResult: {}, type: {}", contractResult,
-                                    contractResult != null ? contractResult.getClass().getSimpleName() : "null");
-
-                                boolean hasErrors = false;
-                                if (contractResult != null && contractResult instanceof java.util.List<?>) {
-                                    java.util.List<?> contractList = (java.util.List<?>)contractResult;
-                                    log.debug("📋 ContractResult is List with {} items: {}", contractList.size(), contractList);
-
-                                    // Đối với TRX transfer, contractResult=[] hoặc contractResult=[null] hoặc contractResult=[""]
-                                    // đều có nghĩa là SUCCESS
-                                    if (contractList.isEmpty()) {
-                                        hasErrors = false;
-                                        log.debug("✅ ContractResult empty - SUCCESS");
-                                    } else {
-                                        // Check nếu chỉ chứa null hoặc empty string
-                                        boolean hasRealErrors = contractList.stream()
-                                            .anyMatch(item -> item != null && !item.toString().trim().isEmpty());
-                                        hasErrors = hasRealErrors;
-
-                                        if (hasRealErrors) {
-                                            log.debug("❌ ContractResult has real errors: {}", contractList);
-                                          } else {
-                                            log.debug("✅ ContractResult only has null/empty items - SUCCESS");
-                                          }
-                                    }
-                                } else if (contractResult != null) {
-                                    String contractStr = contractResult.toString().trim();
-                                    hasErrors = !contractStr.isEmpty() && !"null".equals(contractStr);
-                                    log.debug("📋 ContractResult is not List: '{}' - hasErrors: {}", contractStr, hasErrors);
-                                }
-
-                                if (!hasErrors) {
-                                    isSuccess = true;
-                                    log.debug("✅ TRX transfer thành công - có receipt, không có contractResult errors");
-                                } else {
-                                    isSuccess = false;
-                                    log.debug("❌ TRX transfer thất bại - có contractResult errors: {}", contractResult);
-                                }
-                            } else if ("SUCCESS".equals(result)) {
-                                isSuccess = true;
-                                log.debug("✅ Transaction thành công - result=SUCCESS");
-                            } else {
-                                log.debug("⏳ Transaction chưa có receipt hoặc result - vẫn pending");
-                            }
-
-                            if (isSuccess) {
-                                topup.setStatus(GasTopup.TopupStatus.CONFIRMED);
-                                gasTopupRepository.save(topup);
-
-                                log.info("✅ GasTopup confirmed: {} TRX to child #{} (ID: {}) - TxHash: {}",
-                                    topup.getAmountTrx(), topup.getChildIndex(), topup.getId(), topup.getTxHash());
-
-                            } else if ("FAILED".equals(result)) {
-                                topup.setStatus(GasTopup.TopupStatus.FAILED);
-                                gasTopupRepository.save(topup);
-
-                                log.warn("❌ GasTopup failed on blockchain: {} (ID: {}) - Result: FAILED",
-                                    topup.getTxHash(), topup.getId());
-
-                            } else {
-                                log.debug("⏳ GasTopup {} vẫn đang pending - Receipt: {}, ContractResult: {}",
-                                    topup.getTxHash(), receipt, contractResult);
-
-                                // Check timeout - nếu quá 20 phút thì retry
-                                if (topup.getCreatedAt().isBefore(LocalDateTime.now().minusMinutes(20))) {
-                                    log.warn("⚠️ GasTopup {} đã pending quá 20 phút, có thể cần retry",
-                                        topup.getTxHash());
-                                }
-                            }
-                        } else {
-                            log.warn("⚠️ Không lấy được transaction info cho GasTopup {}", topup.getTxHash());
-
-                            // Check timeout - nếu quá 30 phút và không có txInfo thì mark failed
-                            if (topup.getCreatedAt().isBefore(LocalDateTime.now().minusMinutes(30))) {
-                                topup.setStatus(GasTopup.TopupStatus.FAILED);
-                                gasTopupRepository.save(topup);
-
-                                log.error("❌ GasTopup {} timeout - Mark as FAILED", topup.getTxHash());
-                            }
-                        }
-                    } else {
-                        log.warn("⚠️ GasTopup ID {} có txHash không hợp lệ: {}", topup.getId(), topup.getTxHash());
-                    }
-                } catch (Exception e) {
-                    log.error("❌ Lỗi check confirmation cho GasTopup {}: {}",
-                        topup.getId(), e.getMessage(), e);
-                }
+            @Override
+            public void onTimeout(String txid) {
+                transactionTemplate.executeWithoutResult(status -> resolveGasTopup(topupId, GasTopup.TopupStatus.FAILED));
             }
+        });
+    }
 
-        } catch (Exception e) {
-            log.error("❌ Lỗi confirm pending gas topups: {}", e.getMessage(), e);
+    private void resolveGasTopup(Long topupId, GasTopup.TopupStatus status) {
+        GasTopup topup = gasTopupRepository.findById(topupId).orElse(null);
+        if (topup == null || topup.getStatus() != GasTopup.TopupStatus.SENT) {
+            return;
+        }
+
+        topup.setStatus(status);
+        gasTopupRepository.save(topup);
+        onGasTopupResolved(topup);
+
+        if (status == GasTopup.TopupStatus.CONFIRMED) {
+            log.info("✅ GasTopup confirmed: {} TRX to child #{} (ID: {}) - TxHash: {}",
+                topup.getAmountTrx(), topup.getChildIndex(), topup.getId(), topup.getTxHash());
+        } else {
+            log.warn("❌ GasTopup failed: {} (ID: {})", topup.getTxHash(), topup.getId());
         }
     }
 }
@@ -0,0 +1,174 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.UsdtWallet.UsdtWallet.model.entity.PointsLedger;
+import com.UsdtWallet.UsdtWallet.model.entity.UserPointsStats;
+import com.UsdtWallet.UsdtWallet.repository.PointsLedgerRepository;
+import com.UsdtWallet.UsdtWallet.repository.UserPointsStatsRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thống kê points theo user (user_points_stats), cập nhật cùng transaction với ledger
+ * nên /api/points/stats chỉ cần đọc 1 dòng theo primary key.
+ * User chưa có dòng thì dòng được tính 1 lần từ ledger (lazy, hoặc bởi job backfill chạy song song theo chunk).
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UserPointsStatsService {
+
+    private final UserPointsStatsRepository statsRepository;
+    private final PointsLedgerRepository pointsLedgerRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final RedisTemplate<String, String> customStringRedisTemplate;
+
+    @Value("${points.stats.backfill.enabled:true}")
+    private boolean backfillEnabled;
+
+    @Value("${points.stats.backfill.threads:4}")
+    private int backfillThreads;
+
+    @Value("${points.stats.backfill.chunk-size:500}")
+    private int backfillChunkSize;
+
+    // 1 node chạy backfill; xong thì đánh dấu để lần khởi động sau bỏ qua
+    private static final String BACKFILL_LOCK_KEY = "points:stats:backfill:lock";
+    private static final String BACKFILL_DONE_KEY = "points:stats:backfill:done";
+    private static final UUID MIN_UUID = new UUID(0, 0);
+
+    /**
+     * Cập nhật stats cho các dòng ledger vừa save. Gọi trong transaction của ledger,
+     * khi đang giữ row lock account_balances của các user đó (2 transaction không cùng sửa 1 dòng stats).
+     */
+    public void record(List<PointsLedger> entries) {
+        Map<UUID, List<PointsLedger>> byUser = new LinkedHashMap<>();
+        for (PointsLedger entry : entries) {
+            if (entry.getStatus() == PointsLedger.PointsTransactionStatus.COMPLETED) {
+                byUser.computeIfAbsent(entry.getUserId(), k -> new ArrayList<>()).add(entry);
+            }
+        }
+
+        for (Map.Entry<UUID, List<PointsLedger>> user : byUser.entrySet()) {
+            Optional<UserPointsStats> stats = statsRepository.findById(user.getKey());
+            if (stats.isEmpty()) {
+                // Dòng mới tính từ ledger đã gồm các entry vừa save (flush trước)
+                pointsLedgerRepository.flush();
+                if (statsRepository.insertFromLedger(List.of(user.getKey())) > 0) {
+                    continue;
+                }
+                // Backfill / request khác vừa tạo dòng (chưa gồm các entry này)
+                stats = statsRepository.findById(user.getKey());
+            }
+            stats.ifPresent(s -> user.getValue().forEach(s::apply));
+        }
+    }
+
+    /**
+     * Stats của user: 1 lần đọc theo primary key (tạo từ ledger nếu chưa có)
+     */
+    public UserPointsStats getStats(UUID userId) {
+        return statsRepository.findById(userId)
+            .or(() -> Optional.ofNullable(transactionTemplate.execute(status -> {
+                statsRepository.insertFromLedger(List.of(userId));
+                return statsRepository.findById(userId).orElse(null);
+            })))
+            .orElseGet(() -> {
+                UserPointsStats empty = new UserPointsStats();
+                empty.setUserId(userId);
+                return empty;
+            });
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void startBackfill() {
+        if (!backfillEnabled) {
+            return;
+        }
+        Thread thread = new Thread(this::backfill, "points-stats-backfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Tạo dòng stats cho mọi user có ledger: đọc user id theo keyset, mỗi chunk 1 INSERT ... SELECT
+     * chạy song song trên backfillThreads thread. User đã có dòng được giữ nguyên.
+     */
+    public void backfill() {
+        if (Boolean.TRUE.equals(customStringRedisTemplate.hasKey(BACKFILL_DONE_KEY))) {
+            return;
+        }
+        Boolean locked = customStringRedisTemplate.opsForValue()
+            .setIfAbsent(BACKFILL_LOCK_KEY, "1", 1, TimeUnit.HOURS);
+        if (!Boolean.TRUE.equals(locked)) {
+            return;
+        }
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(backfillThreads, r -> {
+            Thread t = new Thread(r, "points-stats-backfill-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        long startTime = System.currentTimeMillis();
+        long created = 0;
+        int chunks = 0;
+
+        try {
+            Deque<Future<Integer>> inFlight = new ArrayDeque<>();
+            UUID after = MIN_UUID;
+            while (true) {
+                List<UUID> chunk = statsRepository.findLedgerUserIdsAfter(after, backfillChunkSize);
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                after = chunk.get(chunk.size() - 1);
+                inFlight.add(pool.submit(() -> transactionTemplate.execute(status -> statsRepository.insertFromLedger(chunk))));
+                chunks++;
+
+                // Giới hạn số chunk đang chờ
+                if (inFlight.size() >= backfillThreads * 2) {
+                    created += valueOrZero(inFlight.poll().get());
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                created += valueOrZero(inFlight.poll().get());
+            }
+
+            customStringRedisTemplate.opsForValue().set(BACKFILL_DONE_KEY, String.valueOf(created), 30, TimeUnit.DAYS);
+            log.info("📊 Backfilled {} user points stats rows in {} chunks ({} ms)",
+                created, chunks, System.currentTimeMillis() - startTime);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("User points stats backfill failed after {} chunks", chunks, e);
+        } finally {
+            pool.shutdownNow();
+            customStringRedisTemplate.delete(BACKFILL_LOCK_KEY);
+        }
+    }
+
+    private static long valueOrZero(Integer value) {
+        return value != null ? value : 0;
+    }
+}
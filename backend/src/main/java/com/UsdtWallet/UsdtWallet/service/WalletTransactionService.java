@@ -1,24 +1,45 @@
 package com.UsdtWallet.UsdtWallet.service;
 
+import com.UsdtWallet.UsdtWallet.model.dto.KeysetPage;
 import com.UsdtWallet.UsdtWallet.model.entity.WalletTransaction;
 import com.UsdtWallet.UsdtWallet.repository.WalletTransactionRepository;
+import com.UsdtWallet.UsdtWallet.util.KeysetCursor;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.persistence.EntityManager;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.stream.Stream;
 
 @Service
 @RequiredArgsConstructor
+@Slf4j
 public class WalletTransactionService {
 
     private final WalletTransactionRepository walletTransactionRepository;
+    private final EntityManager entityManager;
+    private final ObjectMapper objectMapper;
+
+    private static final int MAX_PAGE_SIZE = 200;
+    private static final int EXPORT_FLUSH_ROWS = 500;
 
     public Page<WalletTransaction> getDepositHistoryByUserId(UUID userId, Pageable pageable) {
         return walletTransactionRepository.findByUserIdAndTransactionTypeAndDirection(
@@ -122,23 +143,100 @@ public class WalletTransactionService {
         return walletTransactionRepository.findByUserIdAndDateRange(userId, startDate, endDate);
     }
 
-    public List<WalletTransaction> getTransactionsForExport(UUID userId, String startDate, String endDate) {
-        if (startDate != null && endDate != null) {
-            LocalDateTime start = LocalDateTime.parse(startDate + "T00:00:00");
-            LocalDateTime end = LocalDateTime.parse(endDate + "T23:59:59");
-            return walletTransactionRepository.findByUserIdAndDateRange(userId, start, end);
+    /**
+     * Lịch sử giao dịch phân trang keyset (createdAt, id); cursor null = trang đầu
+     */
+    public KeysetPage<WalletTransaction> getTransactionHistory(UUID userId, String cursor, int limit) {
+        int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        KeysetCursor after = KeysetCursor.decode(cursor);
+        Pageable pageable = PageRequest.ofSize(pageSize + 1);
+
+        List<WalletTransaction> rows = after == null
+            ? walletTransactionRepository.findHistoryFirstPage(userId, pageable)
+            : walletTransactionRepository.findHistoryAfter(userId, after.createdAt(), after.longId(), pageable);
+        return KeysetPage.of(rows, pageSize, WalletTransaction::getCreatedAt, WalletTransaction::getId);
+    }
+
+    /**
+     * Stream lịch sử giao dịch ra CSV / NDJSON.
+     * Đọc bằng cursor DB (fetch size cố định) và detach từng entity sau khi ghi,
+     * nên bộ nhớ không tăng theo số dòng.
+     */
+    @Transactional(readOnly = true)
+    public void exportTransactions(UUID userId, String startDate, String endDate,
+                                   ExportFormat format, OutputStream out) throws IOException {
+        LocalDateTime start = startDate != null ? LocalDate.parse(startDate).atStartOfDay() : LocalDateTime.of(1970, 1, 1, 0, 0);
+        LocalDateTime end = endDate != null ? LocalDate.parse(endDate).plusDays(1).atStartOfDay() : LocalDateTime.now().plusDays(1);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        if (format == ExportFormat.CSV) {
+            writer.write(CSV_HEADER);
         }
-        return walletTransactionRepository.findByUserIdOrderByCreatedAtDesc(userId);
+
+        long count = 0;
+        try (Stream<WalletTransaction> rows = walletTransactionRepository.streamByUserIdAndDateRange(userId, start, end)) {
+            for (WalletTransaction tx : (Iterable<WalletTransaction>) rows::iterator) {
+                writer.write(format == ExportFormat.CSV ? toCsvRow(tx) : objectMapper.writeValueAsString(tx) + "\n");
+                entityManager.detach(tx);
+                if (++count % EXPORT_FLUSH_ROWS == 0) {
+                    writer.flush();
+                }
+            }
+        }
+        writer.flush();
+        log.debug("Exported {} transactions for user {} as {}", count, userId, format);
     }
 
     public List<WalletTransaction> searchTransactions(UUID userId, String keyword, int limit) {
-        // Implement search logic - search by txHash, amount, etc.
-        List<WalletTransaction> allTransactions = walletTransactionRepository.findByUserIdOrderByCreatedAtDesc(userId);
-        return allTransactions.stream()
-            .filter(tx -> tx.getTxHash().toLowerCase().contains(keyword.toLowerCase()) ||
-                         tx.getAmount().toString().contains(keyword))
-            .limit(limit)
-            .collect(java.util.stream.Collectors.toList());
+        if (keyword == null || keyword.isBlank()) {
+            return List.of();
+        }
+        String escaped = keyword.trim().toLowerCase()
+            .replace("!", "!!")
+            .replace("%", "!%")
+            .replace("_", "!_");
+        return walletTransactionRepository.searchByUserId(userId, "%" + escaped + "%",
+            PageRequest.ofSize(Math.max(1, Math.min(limit, MAX_PAGE_SIZE))));
+    }
+
+    public enum ExportFormat {
+        CSV, NDJSON;
+
+        public static ExportFormat from(String value) {
+            try {
+                return valueOf(value.trim().toUpperCase());
+            } catch (Exception e) {
+                throw new RuntimeException("Unsupported export format: " + value);
+            }
+        }
+    }
+
+    private static final String CSV_HEADER =
+        "id,tx_hash,type,direction,status,amount,from_address,to_address,block_number,created_at\n";
+
+    private String toCsvRow(WalletTransaction tx) {
+        return String.join(",",
+            String.valueOf(tx.getId()),
+            csv(tx.getTxHash()),
+            csv(tx.getTransactionType()),
+            csv(tx.getDirection()),
+            csv(tx.getStatus()),
+            tx.getAmount() != null ? tx.getAmount().toPlainString() : "",
+            csv(tx.getFromAddress()),
+            csv(tx.getToAddress()),
+            tx.getBlockNumber() != null ? tx.getBlockNumber().toString() : "",
+            csv(tx.getCreatedAt())) + "\n";
+    }
+
+    private static String csv(Object value) {
+        if (value == null) {
+            return "";
+        }
+        String text = value.toString();
+        if (text.indexOf(',') >= 0 || text.indexOf('"') >= 0 || text.indexOf('\n') >= 0) {
+            return '"' + text.replace("\"", "\"\"") + '"';
+        }
+        return text;
     }
 }
 
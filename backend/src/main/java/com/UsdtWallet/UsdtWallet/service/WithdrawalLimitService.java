@@ -0,0 +1,268 @@
+package com.UsdtWallet.UsdtWallet.service;
+
+import com.UsdtWallet.UsdtWallet.model.Money;
+import com.UsdtWallet.UsdtWallet.model.entity.WithdrawalTransaction;
+import com.UsdtWallet.UsdtWallet.repository.WithdrawalTransactionRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hạn mức rút theo ngày của từng user, đếm trong Redis (đơn vị micro-USDT).
+ * Counter được seed từ DB khi chưa có, check-and-increment bằng Lua nên 2 request
+ * đồng thời của cùng user không thể cùng vượt hạn mức. Job reconcile đối chiếu lại với DB.
+ * Cùng ngữ nghĩa với sumAmountByUserIdAndDateRange: tính theo ngày tạo, bỏ CANCELLED/FAILED.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class WithdrawalLimitService {
+
+    private final WithdrawalTransactionRepository withdrawalRepository;
+    private final RedisTemplate<String, String> customStringRedisTemplate;
+
+    @Value("${withdrawal.daily.limit:50000.0}")
+    private BigDecimal dailyLimit;
+
+    private static final String DAILY_USED_KEY = "withdrawal:daily:used:";
+    // Set user có counter trong ngày, để reconcile không cần KEYS/SCAN
+    private static final String DAILY_USERS_KEY = "withdrawal:daily:users:";
+    private static final long COUNTER_TTL_SECONDS = 2 * 24 * 3600;
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+    /**
+     * Trả về {1, used mới} nếu giữ chỗ được, {0, used hiện tại} nếu vượt hạn mức, {-1, 0} nếu chưa seed
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static final DefaultRedisScript<List> RESERVE_SCRIPT = new DefaultRedisScript<>(
+        "local used = redis.call('GET', KEYS[1]) " +
+        "if not used then return {-1, 0} end " +
+        "used = tonumber(used) " +
+        "if used + tonumber(ARGV[1]) > tonumber(ARGV[2]) then return {0, used} end " +
+        "return {1, redis.call('INCRBY', KEYS[1], ARGV[1])}", List.class);
+
+    // Cộng/trừ chỉ khi counter còn (counter hết hạn thì lần seed sau đọc lại từ DB)
+    private static final DefaultRedisScript<Long> ADJUST_SCRIPT = new DefaultRedisScript<>(
+        "if redis.call('EXISTS', KEYS[1]) == 0 then return nil end " +
+        "return redis.call('INCRBY', KEYS[1], ARGV[1])", Long.class);
+
+    // Reconcile: chỉ ghi đè nếu counter không đổi trong lúc đọc DB
+    private static final DefaultRedisScript<Long> COMPARE_AND_SET_SCRIPT = new DefaultRedisScript<>(
+        "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+        "  redis.call('SET', KEYS[1], ARGV[2], 'KEEPTTL') return 1 " +
+        "end return 0", Long.class);
+
+    // Drift thấy ở lượt reconcile trước (key -> "redis|db"). Counter gồm cả phần giữ chỗ của transaction
+    // chưa commit (có thể trên node khác), nên chỉ sửa drift còn y nguyên ở lượt sau.
+    private final Map<String, String> suspectedDrift = new ConcurrentHashMap<>();
+
+    public BigDecimal getDailyLimit() {
+        return dailyLimit;
+    }
+
+    /**
+     * Giữ chỗ hạn mức hôm nay cho withdrawal mới; throw nếu vượt.
+     * Nếu transaction hiện tại rollback thì tự trả lại.
+     */
+    public void reserve(UUID userId, BigDecimal amount) {
+        LocalDate day = LocalDate.now();
+        String key = usedKey(userId, day);
+        long micros = toMicros(amount);
+
+        List<?> result = executeReserve(key, micros);
+        if (toLong(result.get(0)) < 0) {
+            seed(userId, day);
+            result = executeReserve(key, micros);
+        }
+
+        if (toLong(result.get(0)) != 1) {
+            BigDecimal remaining = dailyLimit.subtract(fromMicros(toLong(result.get(1))));
+            throw new RuntimeException("Daily withdrawal limit exceeded. Remaining: " + remaining.max(BigDecimal.ZERO) + " USDT");
+        }
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    if (status != STATUS_COMMITTED) {
+                        adjust(key, -micros);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Hạn mức đã dùng hôm nay
+     */
+    public BigDecimal getDailyUsed(UUID userId) {
+        LocalDate day = LocalDate.now();
+        String used = customStringRedisTemplate.opsForValue().get(usedKey(userId, day));
+        if (used == null) {
+            return fromMicros(seed(userId, day));
+        }
+        return fromMicros(Long.parseLong(used));
+    }
+
+    /**
+     * Gọi khi đổi status withdrawal: vào CANCELLED/FAILED thì trả hạn mức, FAILED -> retry thì tính lại.
+     * Áp dụng sau khi commit (nếu đang trong transaction).
+     */
+    public void onStatusChange(WithdrawalTransaction withdrawal, WithdrawalTransaction.WithdrawalStatus previous) {
+        boolean wasCounted = isCounted(previous);
+        boolean isCounted = isCounted(withdrawal.getStatus());
+        if (wasCounted == isCounted || withdrawal.getCreatedAt() == null) {
+            return;
+        }
+
+        String key = usedKey(withdrawal.getUserId(), withdrawal.getCreatedAt().toLocalDate());
+        long delta = isCounted ? toMicros(withdrawal.getAmount()) : -toMicros(withdrawal.getAmount());
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    adjust(key, delta);
+                }
+            });
+        } else {
+            adjust(key, delta);
+        }
+    }
+
+    /**
+     * SCHEDULED: Đối chiếu counter hôm nay với DB - runs every 10 minutes.
+     * Chỉ ghi đè khi cùng 1 drift (counter và DB không đổi) thấy ở 2 lượt liên tiếp.
+     */
+    @Scheduled(initialDelay = 120000, fixedDelay = 600000)
+    public void reconcile() {
+        LocalDate day = LocalDate.now();
+        Set<String> userIds = customStringRedisTemplate.opsForSet().members(DAILY_USERS_KEY + day.format(DAY_FORMAT));
+        if (userIds == null || userIds.isEmpty()) {
+            return;
+        }
+
+        int corrected = 0;
+        Map<String, String> seenDrift = new HashMap<>();
+        for (String userIdStr : userIds) {
+            try {
+                UUID userId = UUID.fromString(userIdStr);
+                String key = usedKey(userId, day);
+                String cached = customStringRedisTemplate.opsForValue().get(key);
+                if (cached == null) {
+                    continue;
+                }
+
+                long actual = loadDailyUsedMicros(userId, day);
+                if (actual != Long.parseLong(cached)) {
+                    String drift = cached + "|" + actual;
+                    seenDrift.put(key, drift);
+                    if (!drift.equals(suspectedDrift.get(key))) {
+                        // Có thể là reservation của transaction đang mở: chờ lượt sau
+                        continue;
+                    }
+                    Long updated = customStringRedisTemplate.execute(COMPARE_AND_SET_SCRIPT, List.of(key),
+                        cached, String.valueOf(actual));
+                    if (updated != null && updated == 1) {
+                        seenDrift.remove(key);
+                        corrected++;
+                        log.warn("Withdrawal limit counter drift for user {}: redis={}, db={}",
+                            userId, fromMicros(Long.parseLong(cached)), fromMicros(actual));
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Error reconciling withdrawal limit for user {}", userIdStr, e);
+            }
+        }
+
+        suspectedDrift.clear();
+        suspectedDrift.putAll(seenDrift);
+
+        if (corrected > 0) {
+            log.info("Reconciled {} withdrawal limit counters", corrected);
+        }
+    }
+
+    private List<?> executeReserve(String key, long micros) {
+        List<?> result = customStringRedisTemplate.execute(RESERVE_SCRIPT, List.of(key),
+            String.valueOf(micros), String.valueOf(toMicros(dailyLimit)));
+        if (result == null || result.size() < 2) {
+            throw new RuntimeException("Failed to check withdrawal limit");
+        }
+        return result;
+    }
+
+    /**
+     * Seed counter từ DB (SET NX: node khác seed trước thì giữ giá trị đó)
+     */
+    private long seed(UUID userId, LocalDate day) {
+        long used = loadDailyUsedMicros(userId, day);
+        String key = usedKey(userId, day);
+        String usersKey = DAILY_USERS_KEY + day.format(DAY_FORMAT);
+
+        Boolean created = customStringRedisTemplate.opsForValue()
+            .setIfAbsent(key, String.valueOf(used), COUNTER_TTL_SECONDS, TimeUnit.SECONDS);
+        customStringRedisTemplate.opsForSet().add(usersKey, userId.toString());
+        customStringRedisTemplate.expire(usersKey, COUNTER_TTL_SECONDS, TimeUnit.SECONDS);
+
+        if (!Boolean.TRUE.equals(created)) {
+            String existing = customStringRedisTemplate.opsForValue().get(key);
+            return existing != null ? Long.parseLong(existing) : used;
+        }
+        return used;
+    }
+
+    private long loadDailyUsedMicros(UUID userId, LocalDate day) {
+        return toMicros(withdrawalRepository.sumAmountByUserIdAndDateRange(
+                userId, day.atStartOfDay(), day.plusDays(1).atStartOfDay())
+            .orElse(BigDecimal.ZERO));
+    }
+
+    private void adjust(String key, long delta) {
+        try {
+            customStringRedisTemplate.execute(ADJUST_SCRIPT, List.of(key), String.valueOf(delta));
+        } catch (Exception e) {
+            // Reconcile sẽ sửa lại
+            log.warn("Failed to adjust withdrawal limit counter {}: {}", key, e.getMessage());
+        }
+    }
+
+    private boolean isCounted(WithdrawalTransaction.WithdrawalStatus status) {
+        return status != WithdrawalTransaction.WithdrawalStatus.CANCELLED
+            && status != WithdrawalTransaction.WithdrawalStatus.FAILED;
+    }
+
+    private String usedKey(UUID userId, LocalDate day) {
+        return DAILY_USED_KEY + userId + ":" + day.format(DAY_FORMAT);
+    }
+
+    private static long toMicros(BigDecimal amount) {
+        return Money.of(amount, RoundingMode.UP).toMicros();
+    }
+
+    private static BigDecimal fromMicros(long micros) {
+        return Money.ofMicros(micros).toBigDecimal();
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number number ? number.longValue() : Long.parseLong(value.toString());
+    }
+}
@@ -1,18 +1,25 @@
 package com.UsdtWallet.UsdtWallet.service;
 
 import com.UsdtWallet.UsdtWallet.model.entity.WithdrawalTransaction;
-import com.UsdtWallet.UsdtWallet.model.entity.HdMasterWallet;
+import com.UsdtWallet.UsdtWallet.model.entity.HotWallet;
 import com.UsdtWallet.UsdtWallet.repository.WithdrawalTransactionRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
@@ -24,11 +31,50 @@ public class WithdrawalProcessorService {
     private final TronApiService tronApiService;
     private final AuditLogService auditLogService;
     private final PointsService pointsService;
-    private final NotificationService notificationService; 
+    private final NotificationService notificationService;
+    private final ConfirmationTrackerService confirmationTrackerService;
+    private final TransactionTemplate transactionTemplate;
+    private final EnergyEstimatorService energyEstimatorService;
+    private final HotWalletService hotWalletService;
+    private final LiquidityService liquidityService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final WithdrawalLimitService withdrawalLimitService;
 
     @Value("${withdrawal.confirmations.required:20}")
     private Integer requiredConfirmations;
 
+    // Batch payout: gom nhiều withdrawal vào 1 call tới batch contract (cần approve USDT cho contract)
+    @Value("${withdrawal.batch.enabled:false}")
+    private boolean batchEnabled;
+
+    @Value("${withdrawal.batch.contract:}")
+    private String batchContractAddress;
+
+    @Value("${withdrawal.batch.function:batchTransfer(address,address[],uint256[])}")
+    private String batchFunction;
+
+    @Value("${withdrawal.batch.max-fee-limit-trx:500}")
+    private long batchMaxFeeLimitTrx;
+
+    /**
+     * Batch chưa được broadcast: an toàn để gửi lại từng withdrawal riêng
+     */
+    public static class BatchNotBroadcastException extends RuntimeException {
+        public BatchNotBroadcastException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Yêu cầu đưa withdrawal trở lại queue (vd batch thất bại on-chain)
+     */
+    public record WithdrawalRequeueEvent(Long withdrawalId) {
+    }
+
+    public boolean isBatchPayoutEnabled() {
+        return batchEnabled && batchContractAddress != null && !batchContractAddress.isEmpty();
+    }
+
     /**
      * Process withdrawal transaction
      */
@@ -38,21 +84,14 @@ public class WithdrawalProcessorService {
             log.info("Processing withdrawal: ID={}, Amount={}, ToAddress={}",
                     withdrawal.getId(), withdrawal.getAmount(), withdrawal.getToAddress());
 
-            // Check master wallet balance and TRX gas as before
-            HdMasterWallet masterWallet = hdWalletService.getMasterWallet();
-            BigDecimal masterBalance = tronApiService.getUsdtBalance(masterWallet.getMasterAddress());
-            if (masterBalance.compareTo(withdrawal.getNetAmount()) < 0) {
-                throw new RuntimeException("Insufficient USDT balance in master wallet: " + masterBalance);
-            }
-            BigDecimal trxBalance = hdWalletService.getTrxBalance(masterWallet.getMasterAddress());
-            if (trxBalance.compareTo(new BigDecimal("20")) < 0) {
-                throw new RuntimeException("Insufficient TRX balance for gas fees: " + trxBalance);
-            }
+            // Giữ chỗ netAmount + phí trên hot wallet còn đủ thanh khoản (không tra balance on-chain mỗi withdrawal)
+            HotWallet hotWallet = liquidityService.reserve(withdrawal.getId(), withdrawal.getNetAmount());
 
             // Create and broadcast transaction
-            String txHash = createAndBroadcastTransaction(withdrawal, masterWallet);
+            String txHash = createAndBroadcastTransaction(withdrawal, hotWallet);
 
             // Update status
+            withdrawal.setFromAddress(hotWallet.getAddress());
             withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.BROADCASTING);
             withdrawal.setTxHash(txHash);
             withdrawal.setProcessedAt(LocalDateTime.now());
@@ -74,13 +113,16 @@ public class WithdrawalProcessorService {
             auditLogService.logWithdrawal(withdrawal, "Transaction broadcasted successfully");
             log.info("Withdrawal transaction broadcasted: ID={}, TxHash={}", withdrawal.getId(), txHash);
 
-            monitorTransactionConfirmation(withdrawal.getId());
+            monitorTransactionConfirmation(List.of(withdrawal.getId()), txHash);
 
         } catch (Exception e) {
             log.error("Error processing withdrawal: {}", withdrawal.getId(), e);
+            liquidityService.release(withdrawal.getId());
+            WithdrawalTransaction.WithdrawalStatus previousStatus = withdrawal.getStatus();
             withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.FAILED);
             withdrawal.setFailureReason(e.getMessage());
             withdrawalRepository.save(withdrawal);
+            withdrawalLimitService.onStatusChange(withdrawal, previousStatus);
 
             // Unlock on failure
             try {
@@ -94,18 +136,94 @@ public class WithdrawalProcessorService {
         }
     }
 
+    /**
+     * Batch payout: 1 transaction cho nhiều withdrawal (cùng hot wallet).
+     * Throw BatchNotBroadcastException nếu chưa broadcast được, caller sẽ gửi riêng từng withdrawal.
+     */
+    @Transactional
+    public String processBatch(List<WithdrawalTransaction> batch) {
+        log.info("Processing batch payout: {} withdrawals", batch.size());
+
+        Map<Long, BigDecimal> amounts = new LinkedHashMap<>();
+        batch.forEach(w -> amounts.put(w.getId(), w.getNetAmount()));
+
+        String txHash;
+        HotWallet hotWallet;
+        try {
+            hotWallet = liquidityService.reserveBatch(amounts);
+            txHash = createAndBroadcastBatch(batch, hotWallet);
+        } catch (Exception e) {
+            amounts.keySet().forEach(liquidityService::release);
+            throw new BatchNotBroadcastException("Batch payout failed: " + e.getMessage(), e);
+        }
+
+        // Đã lên chain: từ đây không được throw để caller không gửi lại
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < batch.size(); i++) {
+            WithdrawalTransaction withdrawal = batch.get(i);
+            try {
+                withdrawal.setFromAddress(hotWallet.getAddress());
+                withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.BROADCASTING);
+                withdrawal.setTxHash(txHash);
+                withdrawal.setBatchIndex(i);
+                withdrawal.setProcessedAt(now);
+                withdrawalRepository.save(withdrawal);
+
+                notificationService.notifyWithdrawalProcessing(
+                    withdrawal.getUserId(),
+                    withdrawal.getId().toString(),
+                    txHash,
+                    withdrawal.getAmount()
+                );
+                auditLogService.logWithdrawal(withdrawal, "Batch transaction broadcasted (index " + i + ")");
+            } catch (Exception e) {
+                log.error("❌ CRITICAL: batch {} broadcasted but failed to record withdrawal {}: {}",
+                    txHash, withdrawal.getId(), e.getMessage(), e);
+            }
+        }
+
+        log.info("Batch payout broadcasted: {} withdrawals, TxHash={}", batch.size(), txHash);
+        monitorTransactionConfirmation(batch.stream().map(WithdrawalTransaction::getId).toList(), txHash);
+        return txHash;
+    }
+
+    private String createAndBroadcastBatch(List<WithdrawalTransaction> batch, HotWallet hotWallet) {
+        long feeLimitSun = Math.min(energyEstimatorService.getFeeLimitSun(false) * batch.size(),
+            batchMaxFeeLimitTrx * 1_000_000L);
+
+        String rawTx = tronApiService.createBatchUsdtTransferTransaction(
+            hotWallet.getAddress(),
+            batchContractAddress,
+            batchFunction,
+            batch.stream().map(WithdrawalTransaction::getToAddress).toList(),
+            batch.stream().map(WithdrawalTransaction::getNetAmount).toList(),
+            feeLimitSun
+        );
+        if (rawTx == null) {
+            throw new RuntimeException("Failed to create batch transaction");
+        }
+
+        String signedTx = tronApiService.signTransaction(rawTx, hotWalletService.getPrivateKey(hotWallet));
+        String txHash = tronApiService.broadcastTransaction(signedTx);
+        if (txHash == null || txHash.isEmpty()) {
+            throw new RuntimeException("Failed to broadcast batch transaction");
+        }
+        return txHash;
+    }
+
     /**
      * Create and broadcast USDT transfer transaction
      */
-    private String createAndBroadcastTransaction(WithdrawalTransaction withdrawal, HdMasterWallet masterWallet) {
+    private String createAndBroadcastTransaction(WithdrawalTransaction withdrawal, HotWallet hotWallet) {
         try {
-            String privateKey = hdWalletService.getMasterPrivateKey();
+            String privateKey = hotWalletService.getPrivateKey(hotWallet);
 
-            // create raw tx
+            // create raw tx (địa chỉ nhận có thể chưa có USDT -> fee limit theo trường hợp xấu)
             String rawTx = tronApiService.createUsdtTransferTransaction(
-                    masterWallet.getMasterAddress(),
+                    hotWallet.getAddress(),
                     withdrawal.getToAddress(),
-                    withdrawal.getNetAmount()
+                    withdrawal.getNetAmount(),
+                    energyEstimatorService.getFeeLimitSun(false)
             );
 
             // sign tx
@@ -127,17 +245,56 @@ public class WithdrawalProcessorService {
     }
 
     /**
-     * Monitor transaction confirmation
+     * Monitor transaction confirmation: đăng ký với ConfirmationTrackerService sau khi commit.
+     * Batch payout: mọi withdrawal trong batch dùng chung 1 txHash.
      */
-    private void monitorTransactionConfirmation(Long withdrawalId) {
-        log.info("Started monitoring confirmation for withdrawal: {}", withdrawalId);
+    private void monitorTransactionConfirmation(List<Long> withdrawalIds, String txHash) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    trackWithdrawalConfirmation(withdrawalIds, txHash);
+                }
+            });
+        } else {
+            trackWithdrawalConfirmation(withdrawalIds, txHash);
+        }
+        log.info("Started monitoring confirmation for withdrawals: {}", withdrawalIds);
+    }
+
+    private void trackWithdrawalConfirmation(List<Long> withdrawalIds, String txHash) {
+        confirmationTrackerService.register(txHash, requiredConfirmations, new ConfirmationTrackerService.ConfirmationListener() {
+            @Override
+            public void onIncluded(String txid, long blockNumber) {
+                withdrawalIds.forEach(withdrawalId -> transactionTemplate.executeWithoutResult(
+                    status -> onWithdrawalIncluded(withdrawalId, blockNumber)));
+            }
+
+            @Override
+            public void onConfirmed(String txid, Map<String, Object> txInfo, long confirmations) {
+                withdrawalIds.forEach(withdrawalId -> transactionTemplate.executeWithoutResult(
+                    status -> onWithdrawalConfirmed(withdrawalId, (int) confirmations)));
+            }
+
+            @Override
+            public void onFailed(String txid, Map<String, Object> txInfo) {
+                withdrawalIds.forEach(withdrawalId -> transactionTemplate.executeWithoutResult(
+                    status -> onWithdrawalChainFailure(withdrawalId, txInfo)));
+            }
+
+            @Override
+            public void onTimeout(String txid) {
+                // Không tự fail: tx có thể vẫn đang chờ, reconcile job sẽ đăng ký lại
+                log.warn("Transaction not found on blockchain yet: {}", txid);
+            }
+        });
     }
 
     /**
-     * Check and update withdrawal confirmations - scheduled job
+     * Đăng ký lại các withdrawal đã broadcast nhưng chưa confirm (sau restart)
      */
-    @org.springframework.scheduling.annotation.Scheduled(fixedDelay = 60000)
-    public void checkWithdrawalConfirmations() {
+    @Scheduled(initialDelay = 10000, fixedDelay = 300000)
+    public void registerPendingConfirmations() {
         try {
             List<WithdrawalTransaction> pendingWithdrawals = withdrawalRepository.findByStatusIn(
                     List.of(
@@ -146,93 +303,123 @@ public class WithdrawalProcessorService {
                     )
             );
 
-            for (WithdrawalTransaction withdrawal : pendingWithdrawals) {
-                updateWithdrawalConfirmations(withdrawal);
-            }
+            // Gom theo txHash (batch payout có nhiều withdrawal chung 1 tx)
+            Map<String, List<Long>> byTxHash = pendingWithdrawals.stream()
+                .filter(w -> w.getTxHash() != null)
+                .collect(Collectors.groupingBy(WithdrawalTransaction::getTxHash,
+                    Collectors.mapping(WithdrawalTransaction::getId, Collectors.toList())));
+
+            byTxHash.forEach((txHash, withdrawalIds) -> trackWithdrawalConfirmation(withdrawalIds, txHash));
 
         } catch (Exception e) {
-            log.error("Error checking withdrawal confirmations", e);
+            log.error("Error registering withdrawal confirmations", e);
         }
     }
 
+    private void onWithdrawalIncluded(Long withdrawalId, long blockNumber) {
+        WithdrawalTransaction withdrawal = withdrawalRepository.findById(withdrawalId).orElse(null);
+        if (withdrawal == null || withdrawal.getStatus() != WithdrawalTransaction.WithdrawalStatus.BROADCASTING) {
+            return;
+        }
+
+        withdrawal.setBlockNumber(blockNumber);
+        withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.SENT);
+        withdrawalRepository.save(withdrawal);
+    }
+
     /**
-     * Update withdrawal confirmation status
+     * Update withdrawal confirmation status khi đủ requiredConfirmations
      */
-    @Transactional
-    public void updateWithdrawalConfirmations(WithdrawalTransaction withdrawal) {
-        try {
-            if (withdrawal.getTxHash() == null) return;
+    private void onWithdrawalConfirmed(Long withdrawalId, int confirmations) {
+        WithdrawalTransaction withdrawal = withdrawalRepository.findById(withdrawalId).orElse(null);
+        if (withdrawal == null
+                || (withdrawal.getStatus() != WithdrawalTransaction.WithdrawalStatus.BROADCASTING
+                    && withdrawal.getStatus() != WithdrawalTransaction.WithdrawalStatus.SENT)) {
+            return;
+        }
 
-            Map<String, Object> txInfo = tronApiService.getTransactionInfo(withdrawal.getTxHash());
+        withdrawal.setConfirmations(confirmations);
+        withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.CONFIRMED);
+        withdrawal.setConfirmedAt(LocalDateTime.now());
+        liquidityService.settle(withdrawalId);
 
-            if (txInfo == null) {
-                log.warn("Transaction not found on blockchain yet: {}", withdrawal.getTxHash());
-                return;
-            }
+        // Finalize deduction now
+        try {
+            pointsService.finalizeWithdrawalDebit(
+                withdrawal.getUserId(),
+                withdrawal.getAmount(),
+                withdrawal.getId().toString()
+            );
+        } catch (Exception e) {
+            log.error("Failed to finalize points for withdrawal {}", withdrawal.getId(), e);
+            // keep status but log critical
+        }
 
-            // Fix: cast an toàn qua Number thay vì ép thẳng Long
-            Object blockNumObj = txInfo.get("blockNumber");
-            if (blockNumObj == null) {
-                log.warn("blockNumber not found in txInfo: {}", txInfo);
-                return;
-            }
-            long blockNumber = ((Number) blockNumObj).longValue();
+        // Send notification: withdrawal completed (balance update do PointsService gửi sau commit)
+        try {
+            notificationService.notifyWithdrawalCompleted(
+                withdrawal.getUserId(),
+                withdrawal.getTxHash(),
+                withdrawal.getAmount()
+            );
 
-            long currentBlock = tronApiService.getLatestBlockNumber();
-            int confirmations = (int) (currentBlock - blockNumber);
+            log.debug(" Sent withdrawal completion notifications to user: {}", withdrawal.getUserId());
+        } catch (Exception notifException) {
+            log.warn(" Failed to send withdrawal completion notification (not critical): ", notifException);
+        }
 
-            withdrawal.setBlockNumber(blockNumber);
-            withdrawal.setConfirmations(confirmations);
+        auditLogService.logWithdrawal(withdrawal,
+                "Transaction confirmed with " + confirmations + " confirmations");
 
-            if (withdrawal.getStatus() == WithdrawalTransaction.WithdrawalStatus.BROADCASTING) {
-                withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.SENT);
-            }
+        log.info("Withdrawal confirmed: ID={}, TxHash={}, Confirmations={}",
+                withdrawal.getId(), withdrawal.getTxHash(), confirmations);
 
-            if (confirmations >= requiredConfirmations) {
-                withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.CONFIRMED);
-                withdrawal.setConfirmedAt(LocalDateTime.now());
-
-                // Finalize deduction now
-                try {
-                    pointsService.finalizeWithdrawalDebit(
-                        withdrawal.getUserId(),
-                        withdrawal.getAmount(),
-                        withdrawal.getId().toString()
-                    );
-                } catch (Exception e) {
-                    log.error("Failed to finalize points for withdrawal {}", withdrawal.getId(), e);
-                    // keep status but log critical
-                }
+        withdrawalRepository.save(withdrawal);
+    }
 
-                // Send notifications: withdrawal completed + balance update
-                try {
-                    notificationService.notifyWithdrawalCompleted(
-                        withdrawal.getUserId(),
-                        withdrawal.getTxHash(),
-                        withdrawal.getAmount()
-                    );
-                    
-                    // Send balance update notification
-                    BigDecimal newBalance = pointsService.getCurrentBalance(withdrawal.getUserId());
-                    notificationService.notifyBalanceUpdate(withdrawal.getUserId(), newBalance);
-                    
-                    log.debug(" Sent withdrawal completion notifications to user: {}", withdrawal.getUserId());
-                } catch (Exception notifException) {
-                    log.warn(" Failed to send withdrawal completion notification (not critical): ", notifException);
-                }
+    /**
+     * USDT transfer bị revert trên chain: tiền chưa rời master wallet, trả lại points đã lock
+     */
+    private void onWithdrawalChainFailure(Long withdrawalId, Map<String, Object> txInfo) {
+        WithdrawalTransaction withdrawal = withdrawalRepository.findById(withdrawalId).orElse(null);
+        if (withdrawal == null
+                || (withdrawal.getStatus() != WithdrawalTransaction.WithdrawalStatus.BROADCASTING
+                    && withdrawal.getStatus() != WithdrawalTransaction.WithdrawalStatus.SENT)) {
+            return;
+        }
 
-                auditLogService.logWithdrawal(withdrawal,
-                        "Transaction confirmed with " + confirmations + " confirmations");
+        liquidityService.release(withdrawalId);
+
+        if (withdrawal.getBatchIndex() != null) {
+            // Batch thất bại: gửi lại riêng (retryCount > 0 nên không vào batch nữa), points vẫn giữ lock
+            withdrawal.incrementRetry();
+            withdrawal.setFailureReason("Batch transaction failed on blockchain: " + txInfo.get("receipt"));
+            withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.PENDING);
+            withdrawal.setTxHash(null);
+            withdrawal.setBatchIndex(null);
+            withdrawal.setFromAddress(null);
+            withdrawal.setBlockNumber(null);
+            withdrawalRepository.save(withdrawal);
 
-                log.info("Withdrawal confirmed: ID={}, TxHash={}, Confirmations={}",
-                        withdrawal.getId(), withdrawal.getTxHash(), confirmations);
-            }
+            auditLogService.logWithdrawal(withdrawal, "Batch transaction failed on blockchain, resending individually");
+            eventPublisher.publishEvent(new WithdrawalRequeueEvent(withdrawalId));
+            return;
+        }
 
-            withdrawalRepository.save(withdrawal);
+        WithdrawalTransaction.WithdrawalStatus previousStatus = withdrawal.getStatus();
+        withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.FAILED);
+        withdrawal.setFailureReason("Transaction failed on blockchain: " + txInfo.get("receipt"));
+        withdrawalRepository.save(withdrawal);
+        withdrawalLimitService.onStatusChange(withdrawal, previousStatus);
 
-        } catch (Exception e) {
-            log.error("Error updating withdrawal confirmations: {}", withdrawal.getId(), e);
+        try {
+            pointsService.unlockPointsForWithdrawal(withdrawal.getUserId(), withdrawal.getId().toString());
+        } catch (Exception ex) {
+            log.error("Failed to unlock points for withdrawal {}", withdrawal.getId(), ex);
         }
+
+        auditLogService.logWithdrawal(withdrawal, "Transaction failed on blockchain");
+        log.warn("Withdrawal failed on blockchain: ID={}, TxHash={}", withdrawal.getId(), withdrawal.getTxHash());
     }
 
     /**
@@ -2,17 +2,35 @@ package com.UsdtWallet.UsdtWallet.service;
 
 import com.UsdtWallet.UsdtWallet.model.entity.WithdrawalTransaction;
 import com.UsdtWallet.UsdtWallet.repository.WithdrawalTransactionRepository;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.connection.RedisListCommands;
 import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 @Slf4j
@@ -20,28 +38,112 @@ public class WithdrawalQueueService {
 
     private final WithdrawalTransactionRepository withdrawalRepository;
     private final WithdrawalProcessorService withdrawalProcessorService;
-    private final RedisTemplate<String, Object> redisTemplate;
+    private final WithdrawalLimitService withdrawalLimitService;
     private final RedisTemplate<String, String> customStringRedisTemplate;
 
     public WithdrawalQueueService(
             WithdrawalTransactionRepository withdrawalRepository,
             WithdrawalProcessorService withdrawalProcessorService,
-            RedisTemplate<String, Object> redisTemplate,
+            WithdrawalLimitService withdrawalLimitService,
             @Qualifier("customStringRedisTemplate") RedisTemplate<String, String> customStringRedisTemplate) {
         this.withdrawalRepository = withdrawalRepository;
         this.withdrawalProcessorService = withdrawalProcessorService;
-        this.redisTemplate = redisTemplate;
+        this.withdrawalLimitService = withdrawalLimitService;
         this.customStringRedisTemplate = customStringRedisTemplate;
     }
 
     private static final String WITHDRAWAL_QUEUE_KEY = "withdrawal:queue";
+    // ZSET withdrawalId -> hạn lease (ms); thay cho key withdrawal:processing:{id} + KEYS
     private static final String WITHDRAWAL_PROCESSING_KEY = "withdrawal:processing";
+    // HASH withdrawalId -> thời điểm vào queue (ms), để tính tuổi item cũ nhất
+    private static final String WITHDRAWAL_ENQUEUED_AT_KEY = "withdrawal:enqueued_at";
+    // Counter dequeue theo phút (TTL), để tính dequeue rate
+    private static final String WITHDRAWAL_DEQUEUED_KEY = "withdrawal:stats:dequeued:";
+    // Mỗi worker giữ withdrawal đang xử lý trong list riêng cho tới khi ack
+    private static final String WITHDRAWAL_INFLIGHT_KEY = "withdrawal:inflight:";
+    private static final String WITHDRAWAL_CONSUMERS_KEY = "withdrawal:consumers";
+    private static final String WITHDRAWAL_HEARTBEAT_KEY = "withdrawal:consumer:heartbeat:";
+    private static final String WITHDRAWAL_DELAYED_KEY = "withdrawal:delayed";
 
     /**
-     * Add withdrawal to queue
+     * Chuyển các withdrawal đã tới hạn từ delayed zset sang queue trong 1 lệnh atomic,
+     * nên 2 node không thể promote cùng 1 withdrawal.
+     * Member cũ được ghi bằng JSON serializer ("\"123\"") nên bỏ dấu nháy trước khi push.
+     */
+    private static final DefaultRedisScript<Long> PROMOTE_DUE_SCRIPT = new DefaultRedisScript<>(
+        "local due = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2]) " +
+        "for _, member in ipairs(due) do " +
+        "  local id = (string.gsub(member, '\"', '')) " +
+        "  redis.call('ZREM', KEYS[1], member) " +
+        "  redis.call('RPUSH', KEYS[2], id) " +
+        "  redis.call('HSET', KEYS[3], id, ARGV[1]) " +
+        "end " +
+        "return #due", Long.class);
+
+    @Value("${withdrawal.workers.count:2}")
+    private int workerCount;
+
+    @Value("${withdrawal.workers.block-timeout-seconds:5}")
+    private long blockTimeoutSeconds;
+
+    @Value("${withdrawal.workers.heartbeat-ttl-seconds:30}")
+    private long heartbeatTtlSeconds;
+
+    @Value("${withdrawal.workers.lease-seconds:600}")
+    private long leaseSeconds;
+
+    // Dequeue rate = trung bình số withdrawal lấy ra mỗi phút trong chừng này phút gần nhất
+    @Value("${withdrawal.stats.rate-window-minutes:5}")
+    private int rateWindowMinutes;
+
+    // Delayed entry do node khác thêm vào được thấy trễ tối đa chừng này
+    @Value("${withdrawal.delayed.max-sleep-ms:1000}")
+    private long delayedMaxSleepMs;
+
+    @Value("${withdrawal.delayed.promote-batch-size:100}")
+    private int promoteBatchSize;
+
+    // Batch payout (withdrawal.batch.enabled): gom withdrawal tới trong cửa sổ này thành 1 transaction
+    @Value("${withdrawal.batch.window-ms:3000}")
+    private long batchWindowMs;
+
+    @Value("${withdrawal.batch.max-size:50}")
+    private int batchMaxSize;
+
+    // Khác nhau mỗi lần khởi động để entry của process cũ được reclaim
+    private final String nodeId = UUID.randomUUID().toString().substring(0, 8);
+
+    private ExecutorService workerExecutor;
+    private volatile boolean running;
+
+    // Heartbeat của worker trên node này được gia hạn từ thread riêng, kể cả khi worker đang
+    // xử lý 1 withdrawal/batch lâu hơn heartbeat TTL
+    private ScheduledExecutorService heartbeatExecutor;
+    private final Set<String> activeConsumers = ConcurrentHashMap.newKeySet();
+
+    private Thread delayedWaker;
+    private final Object delayedMonitor = new Object();
+
+    /**
+     * Add withdrawal to queue (sau khi transaction hiện tại commit, nếu có)
      */
     public void addToQueue(Long withdrawalId) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    pushToQueue(withdrawalId);
+                }
+            });
+        } else {
+            pushToQueue(withdrawalId);
+        }
+    }
+
+    private void pushToQueue(Long withdrawalId) {
         try {
+            customStringRedisTemplate.opsForHash().putIfAbsent(WITHDRAWAL_ENQUEUED_AT_KEY,
+                withdrawalId.toString(), String.valueOf(System.currentTimeMillis()));
             customStringRedisTemplate.opsForList().rightPush(WITHDRAWAL_QUEUE_KEY, withdrawalId.toString());
             log.info("Added withdrawal {} to queue", withdrawalId);
         } catch (Exception e) {
@@ -55,10 +157,12 @@ public class WithdrawalQueueService {
     public void removeFromQueues(Long withdrawalId) {
         try {
             String idStr = withdrawalId.toString();
-            // Remove from delayed zset
-            Long removedDelayed = redisTemplate.opsForZSet().remove("withdrawal:delayed", idStr);
+            // Remove from delayed zset (cả member dạng JSON cũ)
+            Long removedDelayed = customStringRedisTemplate.opsForZSet()
+                .remove(WITHDRAWAL_DELAYED_KEY, idStr, "\"" + idStr + "\"");
             // Remove all occurrences from main list
             Long removedMain = customStringRedisTemplate.opsForList().remove(WITHDRAWAL_QUEUE_KEY, 0, idStr);
+            customStringRedisTemplate.opsForHash().delete(WITHDRAWAL_ENQUEUED_AT_KEY, idStr);
             log.info("Removed withdrawal {} from queues. delayedRemoved={}, mainRemoved={}", withdrawalId, removedDelayed, removedMain);
         } catch (Exception e) {
             log.error("Failed to remove withdrawal {} from queues", withdrawalId, e);
@@ -66,20 +170,266 @@ public class WithdrawalQueueService {
     }
 
     /**
-     * Process withdrawal queue - runs every 30 seconds
+     * Start delayed waker thread khi app sẵn sàng
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startDelayedWaker() {
+        delayedWaker = new Thread(this::runDelayedWaker, "withdrawal-delayed-waker");
+        delayedWaker.setDaemon(true);
+        delayedWaker.start();
+    }
+
+    /**
+     * Start worker pool khi app sẵn sàng
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void startWorkers() {
+        if (workerCount <= 0) {
+            log.warn("Withdrawal workers disabled (withdrawal.workers.count={})", workerCount);
+            return;
+        }
+
+        AtomicInteger threadIndex = new AtomicInteger();
+        workerExecutor = Executors.newFixedThreadPool(workerCount, r -> {
+            Thread thread = new Thread(r, "withdrawal-worker-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running = true;
+        for (int i = 1; i <= workerCount; i++) {
+            String consumerId = nodeId + "-" + i;
+            activeConsumers.add(consumerId);
+            heartbeat(consumerId);
+            workerExecutor.execute(() -> runWorker(consumerId));
+        }
+
+        heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "withdrawal-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long heartbeatIntervalMs = Math.max(1000, heartbeatTtlSeconds * 1000 / 3);
+        heartbeatExecutor.scheduleWithFixedDelay(this::refreshHeartbeats,
+            heartbeatIntervalMs, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("🚀 Started {} withdrawal workers (node {})", workerCount, nodeId);
+    }
+
+    @PreDestroy
+    public void stopWorkers() {
+        running = false;
+        if (delayedWaker != null) {
+            delayedWaker.interrupt();
+        }
+        if (heartbeatExecutor != null) {
+            heartbeatExecutor.shutdownNow();
+        }
+        if (workerExecutor != null) {
+            workerExecutor.shutdown();
+            try {
+                // Worker thoát sau tối đa 1 lần block; entry chưa ack sẽ được reclaim
+                workerExecutor.awaitTermination(blockTimeoutSeconds + 5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Worker loop: BLMOVE withdrawal:queue -> in-flight list của worker, xử lý, rồi ack.
+     * Nếu node chết giữa chừng, withdrawal vẫn nằm trong in-flight list và được reclaim.
+     */
+    private void runWorker(String consumerId) {
+        String inflightKey = WITHDRAWAL_INFLIGHT_KEY + consumerId;
+
+        while (running) {
+            try {
+                heartbeat(consumerId);
+
+                String withdrawalIdStr = customStringRedisTemplate.opsForList().move(
+                    WITHDRAWAL_QUEUE_KEY, RedisListCommands.Direction.LEFT,
+                    inflightKey, RedisListCommands.Direction.RIGHT,
+                    blockTimeoutSeconds, TimeUnit.SECONDS);
+
+                if (withdrawalIdStr == null) {
+                    continue;
+                }
+
+                List<String> withdrawalIdStrs = new ArrayList<>(List.of(withdrawalIdStr));
+                try {
+                    if (withdrawalProcessorService.isBatchPayoutEnabled()) {
+                        collectBatch(inflightKey, withdrawalIdStrs);
+                    }
+                    recordDequeued(withdrawalIdStrs);
+
+                    if (withdrawalIdStrs.size() > 1) {
+                        processBatch(withdrawalIdStrs.stream().map(Long::parseLong).toList());
+                    } else {
+                        processWithdrawal(Long.parseLong(withdrawalIdStr));
+                    }
+                } finally {
+                    // Ack: withdrawal đã BROADCASTING, hoặc đã được xử lý lỗi / retry
+                    for (String id : withdrawalIdStrs) {
+                        customStringRedisTemplate.opsForList().remove(inflightKey, 1, id);
+                    }
+                }
+
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.error("Error in withdrawal worker {}", consumerId, e);
+                sleepQuietly(1000);
+            }
+        }
+
+        activeConsumers.remove(consumerId);
+        customStringRedisTemplate.delete(WITHDRAWAL_HEARTBEAT_KEY + consumerId);
+        log.info("Withdrawal worker {} stopped", consumerId);
+    }
+
+    /**
+     * Gom thêm withdrawal vào in-flight list của worker tới khi hết cửa sổ batch hoặc đủ max-size
+     */
+    private void collectBatch(String inflightKey, List<String> withdrawalIdStrs) {
+        long deadline = System.currentTimeMillis() + batchWindowMs;
+        while (running && withdrawalIdStrs.size() < batchMaxSize) {
+            long remainingMs = deadline - System.currentTimeMillis();
+            if (remainingMs <= 0) {
+                break;
+            }
+            String next = customStringRedisTemplate.opsForList().move(
+                WITHDRAWAL_QUEUE_KEY, RedisListCommands.Direction.LEFT,
+                inflightKey, RedisListCommands.Direction.RIGHT,
+                Duration.ofMillis(remainingMs));
+            if (next == null) {
+                break;
+            }
+            withdrawalIdStrs.add(next);
+        }
+    }
+
+    private void recordDequeued(List<String> withdrawalIdStrs) {
+        try {
+            customStringRedisTemplate.opsForHash().delete(WITHDRAWAL_ENQUEUED_AT_KEY, withdrawalIdStrs.toArray());
+            String bucketKey = WITHDRAWAL_DEQUEUED_KEY + currentMinute();
+            customStringRedisTemplate.opsForValue().increment(bucketKey, withdrawalIdStrs.size());
+            customStringRedisTemplate.expire(bucketKey, rateWindowMinutes + 1L, TimeUnit.MINUTES);
+        } catch (Exception e) {
+            log.debug("Failed to record dequeue stats: {}", e.getMessage());
+        }
+    }
+
+    private long currentMinute() {
+        return System.currentTimeMillis() / 60000;
+    }
+
+    /**
+     * SADD lại consumer mỗi lần: node khác có thể đã reclaim (và xoá khỏi set) trong lúc heartbeat bị trễ
+     */
+    private void heartbeat(String consumerId) {
+        customStringRedisTemplate.opsForSet().add(WITHDRAWAL_CONSUMERS_KEY, consumerId);
+        customStringRedisTemplate.opsForValue()
+            .set(WITHDRAWAL_HEARTBEAT_KEY + consumerId, nodeId, heartbeatTtlSeconds, TimeUnit.SECONDS);
+    }
+
+    private void refreshHeartbeats() {
+        for (String consumerId : activeConsumers) {
+            try {
+                heartbeat(consumerId);
+            } catch (Exception e) {
+                log.warn("Failed to refresh heartbeat for {}: {}", consumerId, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reclaim withdrawal trong in-flight list của worker đã chết (hết heartbeat) - runs every 30 seconds
      */
     @Scheduled(fixedDelay = 30000)
-    @Async
-    public void processQueue() {
+    public void reclaimDeadConsumers() {
         try {
-            String withdrawalIdStr = customStringRedisTemplate.opsForList().leftPop(WITHDRAWAL_QUEUE_KEY);
+            Set<String> consumers = customStringRedisTemplate.opsForSet().members(WITHDRAWAL_CONSUMERS_KEY);
+            if (consumers == null) {
+                return;
+            }
 
-            if (withdrawalIdStr != null) {
-                Long withdrawalId = Long.parseLong(withdrawalIdStr);
-                processWithdrawal(withdrawalId);
+            for (String consumerId : consumers) {
+                if (Boolean.TRUE.equals(customStringRedisTemplate.hasKey(WITHDRAWAL_HEARTBEAT_KEY + consumerId))) {
+                    continue;
+                }
+                reclaimConsumer(consumerId);
             }
+
+            // Lease hết hạn (worker chết khi đang xử lý) không còn ý nghĩa sau khi đã reclaim
+            customStringRedisTemplate.opsForZSet().removeRangeByScore(WITHDRAWAL_PROCESSING_KEY,
+                Double.NEGATIVE_INFINITY, System.currentTimeMillis());
         } catch (Exception e) {
-            log.error("Error processing withdrawal queue", e);
+            log.error("Error reclaiming withdrawals from dead consumers", e);
+        }
+    }
+
+    private void reclaimConsumer(String consumerId) {
+        String inflightKey = WITHDRAWAL_INFLIGHT_KEY + consumerId;
+        int reclaimed = 0;
+
+        // Hết heartbeat nhưng withdrawal in-flight vẫn còn lease: owner có thể vẫn đang xử lý
+        // (vd Redis chậm, GC pause), requeue lúc này sẽ gửi 2 lần. Chờ lease hết hạn.
+        String leased = findLeasedEntry(inflightKey);
+        if (leased != null) {
+            log.warn("Consumer {} missed heartbeat but withdrawal {} is still leased, not reclaiming yet",
+                consumerId, leased);
+            return;
+        }
+
+        // LMOVE từng entry về đầu queue (atomic từng phần tử, không mất entry nếu node này chết giữa chừng)
+        String withdrawalIdStr;
+        while ((withdrawalIdStr = customStringRedisTemplate.opsForList().move(
+                inflightKey, RedisListCommands.Direction.LEFT,
+                WITHDRAWAL_QUEUE_KEY, RedisListCommands.Direction.LEFT)) != null) {
+            reclaimed++;
+            customStringRedisTemplate.opsForHash().putIfAbsent(WITHDRAWAL_ENQUEUED_AT_KEY,
+                withdrawalIdStr, String.valueOf(System.currentTimeMillis()));
+            warnIfPossiblyBroadcast(Long.parseLong(withdrawalIdStr), consumerId);
+        }
+
+        customStringRedisTemplate.opsForSet().remove(WITHDRAWAL_CONSUMERS_KEY, consumerId);
+        if (reclaimed > 0) {
+            log.warn("♻️ Reclaimed {} withdrawals from dead consumer {}", reclaimed, consumerId);
+        }
+    }
+
+    private String findLeasedEntry(String inflightKey) {
+        List<String> inflight = customStringRedisTemplate.opsForList().range(inflightKey, 0, -1);
+        if (inflight == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        for (String withdrawalIdStr : inflight) {
+            Double leaseUntil = customStringRedisTemplate.opsForZSet().score(WITHDRAWAL_PROCESSING_KEY, withdrawalIdStr);
+            if (leaseUntil != null && leaseUntil > now) {
+                return withdrawalIdStr;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Withdrawal đã sang PROCESSING thì có thể đã broadcast trước khi worker chết:
+     * không tự chuyển về PENDING (tránh gửi 2 lần), để admin kiểm tra
+     */
+    private void warnIfPossiblyBroadcast(Long withdrawalId, String consumerId) {
+        withdrawalRepository.findById(withdrawalId)
+            .filter(w -> w.getStatus() == WithdrawalTransaction.WithdrawalStatus.PROCESSING)
+            .ifPresent(w -> log.error("⚠️ Withdrawal {} was PROCESSING on dead consumer {} - needs manual review",
+                withdrawalId, consumerId));
+    }
+
+    private void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -91,13 +441,8 @@ public class WithdrawalQueueService {
         try {
             log.info("Processing withdrawal: {}", withdrawalId);
 
-            // Mark as processing
-            redisTemplate.opsForValue().set(
-                WITHDRAWAL_PROCESSING_KEY + ":" + withdrawalId,
-                "true",
-                10,
-                TimeUnit.MINUTES
-            );
+            // Mark as processing (lease hết hạn sau leaseSeconds)
+            markProcessing(withdrawalId);
 
             WithdrawalTransaction withdrawal = withdrawalRepository.findById(withdrawalId)
                 .orElseThrow(() -> new RuntimeException("Withdrawal not found: " + withdrawalId));
@@ -119,10 +464,79 @@ public class WithdrawalQueueService {
             handleWithdrawalFailure(withdrawalId, e.getMessage());
         } finally {
             // Remove from processing set
-            redisTemplate.delete(WITHDRAWAL_PROCESSING_KEY + ":" + withdrawalId);
+            unmarkProcessing(withdrawalId);
+        }
+    }
+
+    private void markProcessing(Long withdrawalId) {
+        customStringRedisTemplate.opsForZSet().add(WITHDRAWAL_PROCESSING_KEY, withdrawalId.toString(),
+            System.currentTimeMillis() + leaseSeconds * 1000);
+    }
+
+    private void unmarkProcessing(Long withdrawalId) {
+        customStringRedisTemplate.opsForZSet().remove(WITHDRAWAL_PROCESSING_KEY, withdrawalId.toString());
+    }
+
+    /**
+     * Process 1 batch payout. Withdrawal đã retry (vd batch trước thất bại) được gửi riêng;
+     * batch không broadcast được thì fallback gửi riêng từng withdrawal.
+     */
+    public void processBatch(List<Long> withdrawalIds) {
+        log.info("Processing withdrawal batch: {}", withdrawalIds);
+        List<WithdrawalTransaction> batch = new ArrayList<>();
+
+        for (Long withdrawalId : withdrawalIds) {
+            WithdrawalTransaction withdrawal = withdrawalRepository.findById(withdrawalId).orElse(null);
+            if (withdrawal == null || withdrawal.getStatus() != WithdrawalTransaction.WithdrawalStatus.PENDING) {
+                log.warn("Withdrawal {} is not in PENDING status, skipping", withdrawalId);
+                continue;
+            }
+            if (withdrawal.getRetryCount() > 0) {
+                processWithdrawal(withdrawalId);
+                continue;
+            }
+            batch.add(withdrawal);
+        }
+
+        if (batch.size() == 1) {
+            processWithdrawal(batch.get(0).getId());
+            return;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        for (WithdrawalTransaction withdrawal : batch) {
+            withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.PROCESSING);
+            markProcessing(withdrawal.getId());
+        }
+        withdrawalRepository.saveAll(batch);
+
+        try {
+            withdrawalProcessorService.processBatch(batch);
+        } catch (WithdrawalProcessorService.BatchNotBroadcastException e) {
+            log.warn("Batch payout not broadcast, falling back to single transfers: {}", e.getMessage());
+            for (WithdrawalTransaction withdrawal : batch) {
+                try {
+                    withdrawalProcessorService.processWithdrawal(withdrawal);
+                } catch (Exception ex) {
+                    log.error("Error processing withdrawal {}", withdrawal.getId(), ex);
+                    handleWithdrawalFailure(withdrawal.getId(), ex.getMessage());
+                }
+            }
+        } finally {
+            batch.forEach(withdrawal -> unmarkProcessing(withdrawal.getId()));
         }
     }
 
+    /**
+     * Batch payout thất bại on-chain: đưa withdrawal trở lại queue để gửi riêng
+     */
+    @EventListener
+    public void onWithdrawalRequeue(WithdrawalProcessorService.WithdrawalRequeueEvent event) {
+        addToQueue(event.withdrawalId());
+    }
+
     /**
      * Handle withdrawal failure
      */
@@ -132,6 +546,7 @@ public class WithdrawalQueueService {
             WithdrawalTransaction withdrawal = withdrawalRepository.findById(withdrawalId).orElse(null);
             if (withdrawal == null) return;
 
+            WithdrawalTransaction.WithdrawalStatus previousStatus = withdrawal.getStatus();
             withdrawal.incrementRetry();
             withdrawal.setFailureReason(errorMessage);
 
@@ -141,6 +556,7 @@ public class WithdrawalQueueService {
 
                 withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.PENDING);
                 withdrawalRepository.save(withdrawal);
+                withdrawalLimitService.onStatusChange(withdrawal, previousStatus);
 
                 // Add back to queue with delay
                 addToQueueWithDelay(withdrawalId, 60); // 1 minute delay
@@ -150,6 +566,7 @@ public class WithdrawalQueueService {
 
                 withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.FAILED);
                 withdrawalRepository.save(withdrawal);
+                withdrawalLimitService.onStatusChange(withdrawal, previousStatus);
             }
 
         } catch (Exception e) {
@@ -163,53 +580,109 @@ public class WithdrawalQueueService {
     public void addToQueueWithDelay(Long withdrawalId, int delaySeconds) {
         // Use Redis sorted set for delayed processing
         long score = System.currentTimeMillis() + (delaySeconds * 1000L);
-        redisTemplate.opsForZSet().add("withdrawal:delayed", withdrawalId.toString(), score);
+        customStringRedisTemplate.opsForZSet().add(WITHDRAWAL_DELAYED_KEY, withdrawalId.toString(), score);
+
+        // Đánh thức waker để tính lại thời điểm tới hạn sớm nhất
+        synchronized (delayedMonitor) {
+            delayedMonitor.notifyAll();
+        }
     }
 
     /**
-     * Process delayed withdrawals - runs every minute
+     * Promote các delayed withdrawal đã tới hạn, trả về số withdrawal đã chuyển sang queue
      */
-    @Scheduled(fixedDelay = 60000)
-    @Async
-    public void processDelayedQueue() {
-        try {
-            long currentTime = System.currentTimeMillis();
-            var delayedWithdrawals = redisTemplate.opsForZSet()
-                .rangeByScore("withdrawal:delayed", 0, currentTime);
-
-            if (delayedWithdrawals != null && !delayedWithdrawals.isEmpty()) {
-                for (Object withdrawalIdObj : delayedWithdrawals) {
-                    String withdrawalIdStr = withdrawalIdObj.toString();
-                    // Remove from delayed queue
-                    redisTemplate.opsForZSet().remove("withdrawal:delayed", withdrawalIdStr);
+    public long promoteDueWithdrawals() {
+        long promoted = 0;
+        Long moved;
+        do {
+            moved = customStringRedisTemplate.execute(PROMOTE_DUE_SCRIPT,
+                List.of(WITHDRAWAL_DELAYED_KEY, WITHDRAWAL_QUEUE_KEY, WITHDRAWAL_ENQUEUED_AT_KEY),
+                String.valueOf(System.currentTimeMillis()), String.valueOf(promoteBatchSize));
+            promoted += moved != null ? moved : 0;
+        } while (moved != null && moved >= promoteBatchSize);
+
+        if (promoted > 0) {
+            log.info("Moved {} delayed withdrawals to main queue", promoted);
+        }
+        return promoted;
+    }
 
-                    // Add to main queue using customStringRedisTemplate for String operations
-                    customStringRedisTemplate.opsForList().rightPush(WITHDRAWAL_QUEUE_KEY, withdrawalIdStr);
+    /**
+     * Waker loop: ngủ tới thời điểm tới hạn sớm nhất trong delayed zset
+     * (tối đa delayedMaxSleepMs), thay cho poll cố định mỗi phút
+     */
+    private void runDelayedWaker() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                promoteDueWithdrawals();
+
+                long sleepMs = delayedMaxSleepMs;
+                Set<ZSetOperations.TypedTuple<String>> next = customStringRedisTemplate.opsForZSet()
+                    .rangeWithScores(WITHDRAWAL_DELAYED_KEY, 0, 0);
+                if (next != null && !next.isEmpty()) {
+                    Double dueAt = next.iterator().next().getScore();
+                    if (dueAt != null) {
+                        sleepMs = Math.min(sleepMs, Math.max(0, dueAt.longValue() - System.currentTimeMillis()));
+                    }
+                }
 
-                    log.info("Moved delayed withdrawal {} to main queue", withdrawalIdStr);
+                if (sleepMs > 0) {
+                    synchronized (delayedMonitor) {
+                        delayedMonitor.wait(sleepMs);
+                    }
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Error processing delayed withdrawal queue", e);
+                sleepQuietly(delayedMaxSleepMs);
             }
-        } catch (Exception e) {
-            log.error("Error processing delayed withdrawal queue", e);
         }
     }
 
     /**
-     * Get queue statistics
+     * Get queue statistics: chỉ dùng lệnh O(1)/O(log n) (LLEN, ZCARD, ZCOUNT, LINDEX, HGET, MGET),
+     * không KEYS/SCAN nên dashboard poll không ảnh hưởng Redis dùng chung
      */
     public java.util.Map<String, Object> getQueueStats() {
         try {
+            long now = System.currentTimeMillis();
             Long queueSize = customStringRedisTemplate.opsForList().size(WITHDRAWAL_QUEUE_KEY);
-            Long delayedSize = redisTemplate.opsForZSet().zCard("withdrawal:delayed");
+            Long delayedSize = customStringRedisTemplate.opsForZSet().zCard(WITHDRAWAL_DELAYED_KEY);
+
+            // Lease còn hạn = đang xử lý; lease hết hạn = worker chết giữa chừng
+            Long processingCount = customStringRedisTemplate.opsForZSet().count(WITHDRAWAL_PROCESSING_KEY, now, Double.POSITIVE_INFINITY);
+            Long expiredLeases = customStringRedisTemplate.opsForZSet().count(WITHDRAWAL_PROCESSING_KEY, Double.NEGATIVE_INFINITY, now);
+
+            long oldestAgeSeconds = 0;
+            String head = customStringRedisTemplate.opsForList().index(WITHDRAWAL_QUEUE_KEY, 0);
+            if (head != null) {
+                Object enqueuedAt = customStringRedisTemplate.opsForHash().get(WITHDRAWAL_ENQUEUED_AT_KEY, head);
+                if (enqueuedAt != null) {
+                    oldestAgeSeconds = Math.max(0, (now - Long.parseLong(enqueuedAt.toString())) / 1000);
+                }
+            }
 
-            // Count processing withdrawals
-            var processingKeys = redisTemplate.keys(WITHDRAWAL_PROCESSING_KEY + ":*");
-            int processingCount = processingKeys != null ? processingKeys.size() : 0;
+            long minute = currentMinute();
+            List<String> bucketKeys = new ArrayList<>();
+            for (int i = 1; i <= rateWindowMinutes; i++) {
+                bucketKeys.add(WITHDRAWAL_DEQUEUED_KEY + (minute - i));
+            }
+            long dequeued = 0;
+            List<String> buckets = customStringRedisTemplate.opsForValue().multiGet(bucketKeys);
+            if (buckets != null) {
+                for (String bucket : buckets) {
+                    dequeued += bucket != null ? Long.parseLong(bucket) : 0;
+                }
+            }
 
             return java.util.Map.of(
                 "queueSize", queueSize != null ? queueSize : 0,
                 "delayedSize", delayedSize != null ? delayedSize : 0,
-                "processingCount", processingCount,
+                "processingCount", processingCount != null ? processingCount : 0,
+                "expiredLeases", expiredLeases != null ? expiredLeases : 0,
+                "oldestItemAgeSeconds", oldestAgeSeconds,
+                "dequeuedPerMinute", rateWindowMinutes > 0 ? (double) dequeued / rateWindowMinutes : 0.0,
                 "timestamp", LocalDateTime.now()
             );
         } catch (Exception e) {
@@ -232,8 +705,10 @@ public class WithdrawalQueueService {
             for (WithdrawalTransaction withdrawal : failedWithdrawals) {
                 if (withdrawal.canBeRetried()) {
                     log.info("Auto-retrying failed withdrawal: {}", withdrawal.getId());
+                    WithdrawalTransaction.WithdrawalStatus previousStatus = withdrawal.getStatus();
                     withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.PENDING);
                     withdrawalRepository.save(withdrawal);
+                    withdrawalLimitService.onStatusChange(withdrawal, previousStatus);
                     addToQueue(withdrawal.getId());
                 }
             }
@@ -1,15 +1,19 @@
 package com.UsdtWallet.UsdtWallet.service;
 
+import com.UsdtWallet.UsdtWallet.model.Money;
+import com.UsdtWallet.UsdtWallet.model.dto.KeysetPage;
 import com.UsdtWallet.UsdtWallet.model.entity.WithdrawalTransaction;
 import com.UsdtWallet.UsdtWallet.model.entity.User;
 import com.UsdtWallet.UsdtWallet.repository.WithdrawalTransactionRepository;
 import com.UsdtWallet.UsdtWallet.repository.UserRepository;
 import com.UsdtWallet.UsdtWallet.model.dto.request.WithdrawalConfirmRequest;
+import com.UsdtWallet.UsdtWallet.util.KeysetCursor;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
@@ -18,6 +22,7 @@ import org.springframework.transaction.annotation.Transactional;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.LocalDateTime;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -33,6 +38,7 @@ public class WithdrawalService {
     private final PasswordEncoder passwordEncoder;
     private final WithdrawalQueueService withdrawalQueueService;
     private final TwoFactorAuthService twoFactorAuthService;
+    private final WithdrawalLimitService withdrawalLimitService;
 
     @Value("${withdrawal.fee.fixed:1.0}")
     private BigDecimal fixedFee;
@@ -46,9 +52,6 @@ public class WithdrawalService {
     @Value("${withdrawal.max.amount:100000.0}")
     private BigDecimal maxWithdrawalAmount;
 
-    @Value("${withdrawal.daily.limit:50000.0}")
-    private BigDecimal dailyLimit;
-
     @Value("${withdrawal.queue.delay-seconds:60}")
     private long confirmQueueDelaySeconds;
 
@@ -68,13 +71,15 @@ public class WithdrawalService {
             throw new RuntimeException("Withdrawals are temporarily disabled until " + user.getWithdrawalsDisabledUntil() + " due to a recent security change.");
         }
 
-        // Validate withdrawal limits (pre-check)
-        validateWithdrawalLimits(userId, request.getAmount());
+        // Validate amount và giữ chỗ hạn mức ngày (trả lại nếu rollback / cancel / fail)
+        validateWithdrawalAmount(request.getAmount());
+        withdrawalLimitService.reserve(userId, request.getAmount());
 
-        // Calculate fee and net amount
-        BigDecimal fee = calculateFee(request.getAmount());
-        BigDecimal netAmount = request.getAmount().subtract(fee);
-        if (netAmount.compareTo(BigDecimal.ZERO) <= 0) {
+        // Calculate fee and net amount (micro-USDT, đúng đơn vị on-chain)
+        Money amount = Money.of(request.getAmount());
+        Money fee = calculateFee(amount);
+        Money netAmount = amount.minus(fee);
+        if (!netAmount.isPositive()) {
             throw new RuntimeException("Amount after fee must be positive");
         }
 
@@ -83,8 +88,8 @@ public class WithdrawalService {
             .userId(userId)
             .toAddress(request.getToAddress())
             .amount(request.getAmount())
-            .fee(fee)
-            .netAmount(netAmount)
+            .fee(fee.toBigDecimal())
+            .netAmount(netAmount.toBigDecimal())
             .status(WithdrawalTransaction.WithdrawalStatus.PENDING)
             .build();
 
@@ -131,8 +136,7 @@ public class WithdrawalService {
             }
         }
 
-        // Re-validate limits and check available balance (no deduction yet)
-        validateWithdrawalLimits(userId, withdrawal.getAmount());
+        // Hạn mức ngày đã giữ chỗ khi tạo withdrawal; chỉ check available balance (no deduction yet)
     BigDecimal available = pointsService.getAvailableBalance(userId);
         if (available.compareTo(withdrawal.getAmount()) < 0) {
             throw new RuntimeException("Insufficient available balance. Available: " + available + " USDT");
@@ -184,6 +188,28 @@ public class WithdrawalService {
         );
     }
 
+    /**
+     * Get user withdrawal history (keyset pagination trên (createdAt, id), không COUNT toàn bảng)
+     */
+    public Map<String, Object> getUserWithdrawalHistory(UUID userId, String cursor, int size) {
+        int pageSize = Math.max(1, Math.min(size, 200));
+        KeysetCursor after = KeysetCursor.decode(cursor);
+        Pageable pageable = PageRequest.ofSize(pageSize + 1);
+
+        List<WithdrawalTransaction> rows = after == null
+            ? withdrawalRepository.findHistoryFirstPage(userId, pageable)
+            : withdrawalRepository.findHistoryAfter(userId, after.createdAt(), after.longId(), pageable);
+        KeysetPage<Map<String, Object>> page = KeysetPage.of(rows, pageSize,
+                WithdrawalTransaction::getCreatedAt, WithdrawalTransaction::getId)
+            .map(this::convertToDto);
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("withdrawals", page.items());
+        result.put("nextCursor", page.nextCursor());
+        result.put("pageSize", pageSize);
+        return result;
+    }
+
     /**
      * Get withdrawal status
      */
@@ -217,8 +243,10 @@ public class WithdrawalService {
             throw new RuntimeException("Cannot cancel withdrawal in current state or window has elapsed");
         }
 
+        WithdrawalTransaction.WithdrawalStatus previousStatus = withdrawal.getStatus();
         withdrawal.setStatus(WithdrawalTransaction.WithdrawalStatus.CANCELLED);
         withdrawalRepository.save(withdrawal);
+        withdrawalLimitService.onStatusChange(withdrawal, previousStatus);
 
         // Unlock the locked points
     pointsService.unlockPointsForWithdrawal(userId, withdrawalId.toString());
@@ -238,7 +266,8 @@ public class WithdrawalService {
      * Get withdrawal limits and fees
      */
     public Map<String, Object> getWithdrawalLimits(UUID userId) {
-        BigDecimal dailyUsed = getDailyWithdrawalAmount(userId);
+        BigDecimal dailyLimit = withdrawalLimitService.getDailyLimit();
+        BigDecimal dailyUsed = withdrawalLimitService.getDailyUsed(userId);
         BigDecimal remainingDaily = dailyLimit.subtract(dailyUsed);
 
         return Map.of(
@@ -256,15 +285,19 @@ public class WithdrawalService {
     /**
      * Calculate withdrawal fee
      */
-    private BigDecimal calculateFee(BigDecimal amount) {
-        BigDecimal percentageFee = amount.multiply(feePercentage);
-        return fixedFee.add(percentageFee).setScale(6, RoundingMode.HALF_UP);
+    private Money calculateFee(Money amount) {
+        return Money.of(fixedFee.add(amount.toBigDecimal().multiply(feePercentage)), RoundingMode.HALF_UP);
     }
 
     /**
-     * Validate withdrawal limits
+     * Validate withdrawal amount (hạn mức ngày: WithdrawalLimitService)
      */
-    private void validateWithdrawalLimits(UUID userId, BigDecimal amount) {
+    private void validateWithdrawalAmount(BigDecimal amount) {
+        // USDT on-chain chỉ có 6 chữ số thập phân
+        if (amount.stripTrailingZeros().scale() > Money.DECIMALS) {
+            throw new RuntimeException("Withdrawal amount supports at most " + Money.DECIMALS + " decimal places");
+        }
+
         // Check minimum amount
         if (amount.compareTo(minWithdrawalAmount) < 0) {
             throw new RuntimeException("Minimum withdrawal amount is " + minWithdrawalAmount + " USDT");
@@ -274,24 +307,6 @@ public class WithdrawalService {
         if (amount.compareTo(maxWithdrawalAmount) > 0) {
             throw new RuntimeException("Maximum withdrawal amount is " + maxWithdrawalAmount + " USDT");
         }
-
-        // Check daily limit
-        BigDecimal dailyUsed = getDailyWithdrawalAmount(userId);
-        if (dailyUsed.add(amount).compareTo(dailyLimit) > 0) {
-            BigDecimal remaining = dailyLimit.subtract(dailyUsed);
-            throw new RuntimeException("Daily withdrawal limit exceeded. Remaining: " + remaining + " USDT");
-        }
-    }
-
-    /**
-     * Get daily withdrawal amount
-     */
-    private BigDecimal getDailyWithdrawalAmount(UUID userId) {
-        LocalDateTime startOfDay = LocalDateTime.now().withHour(0).withMinute(0).withSecond(0).withNano(0);
-        LocalDateTime endOfDay = startOfDay.plusDays(1);
-
-        return withdrawalRepository.sumAmountByUserIdAndDateRange(userId, startOfDay, endOfDay)
-            .orElse(BigDecimal.ZERO);
     }
 
     /**
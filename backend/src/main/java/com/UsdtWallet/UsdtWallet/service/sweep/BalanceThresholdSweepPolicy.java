@@ -0,0 +1,29 @@
+package com.UsdtWallet.UsdtWallet.service.sweep;
+
+import com.UsdtWallet.UsdtWallet.model.dto.SweepPlanDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+
+/**
+ * Sweep khi tổng USDT chưa sweep của child wallet đạt ngưỡng.
+ * Dưới mức tối thiểu thì không sweep kể cả khi policy khác FORCE (không tốn gas cho dust).
+ */
+@Component
+public class BalanceThresholdSweepPolicy implements SweepPolicy {
+
+    @Value("${sweep.min.amount:5}")
+    private BigDecimal minimumSweepAmount;
+
+    @Value("${sweep.policy.balance-threshold:5}")
+    private BigDecimal balanceThreshold;
+
+    @Override
+    public Vote evaluate(SweepPlanDto.SweepCandidate candidate, SweepPlanDto.SweepContext context) {
+        if (candidate.getTotalAmount().compareTo(minimumSweepAmount) < 0) {
+            return Vote.REJECT;
+        }
+        return candidate.getTotalAmount().compareTo(balanceThreshold) >= 0 ? Vote.SWEEP : Vote.ABSTAIN;
+    }
+}
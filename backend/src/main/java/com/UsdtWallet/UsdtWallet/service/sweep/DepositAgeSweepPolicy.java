@@ -0,0 +1,23 @@
+package com.UsdtWallet.UsdtWallet.service.sweep;
+
+import com.UsdtWallet.UsdtWallet.model.dto.SweepPlanDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+
+/**
+ * Deposit chờ quá lâu thì bắt buộc sweep, vì points chỉ được cộng sau khi sweep confirmed
+ */
+@Component
+public class DepositAgeSweepPolicy implements SweepPolicy {
+
+    @Value("${sweep.policy.max-deposit-age-minutes:30}")
+    private long maxDepositAgeMinutes;
+
+    @Override
+    public Vote evaluate(SweepPlanDto.SweepCandidate candidate, SweepPlanDto.SweepContext context) {
+        LocalDateTime deadline = LocalDateTime.now().minusMinutes(maxDepositAgeMinutes);
+        return candidate.getOldestDepositAt().isBefore(deadline) ? Vote.FORCE : Vote.ABSTAIN;
+    }
+}
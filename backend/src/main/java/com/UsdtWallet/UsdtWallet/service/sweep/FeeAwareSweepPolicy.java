@@ -0,0 +1,29 @@
+package com.UsdtWallet.UsdtWallet.service.sweep;
+
+import com.UsdtWallet.UsdtWallet.model.dto.SweepPlanDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hoãn sweep khi giá energy cao (TRX_TOPUP) hoặc master hết energy để delegate (ENERGY_DELEGATION)
+ */
+@Component
+public class FeeAwareSweepPolicy implements SweepPolicy {
+
+    // 0 = không giới hạn giá energy
+    @Value("${sweep.policy.max-energy-fee-sun:0}")
+    private long maxEnergyFeeSun;
+
+    @Override
+    public Vote evaluate(SweepPlanDto.SweepCandidate candidate, SweepPlanDto.SweepContext context) {
+        if (context.isEnergyDelegationMode()) {
+            return context.getDelegatableSun() > 0 ? Vote.ABSTAIN : Vote.HOLD;
+        }
+
+        if (maxEnergyFeeSun > 0 && context.getEnergyFeeSun() != null
+                && context.getEnergyFeeSun() > maxEnergyFeeSun) {
+            return Vote.HOLD;
+        }
+        return Vote.ABSTAIN;
+    }
+}
@@ -0,0 +1,21 @@
+package com.UsdtWallet.UsdtWallet.service.sweep;
+
+import com.UsdtWallet.UsdtWallet.model.dto.SweepPlanDto;
+import org.springframework.stereotype.Component;
+
+/**
+ * Master wallet không đủ USDT cho các lệnh rút đang chờ thì sweep ngay
+ */
+@Component
+public class LiquiditySweepPolicy implements SweepPolicy {
+
+    @Override
+    public Vote evaluate(SweepPlanDto.SweepCandidate candidate, SweepPlanDto.SweepContext context) {
+        if (context.getMasterUsdtBalance() == null || context.getPendingWithdrawalAmount() == null) {
+            return Vote.ABSTAIN;
+        }
+        return context.getMasterUsdtBalance().compareTo(context.getPendingWithdrawalAmount()) < 0
+            ? Vote.FORCE
+            : Vote.ABSTAIN;
+    }
+}
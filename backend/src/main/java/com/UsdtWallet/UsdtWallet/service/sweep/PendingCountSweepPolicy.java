@@ -0,0 +1,20 @@
+package com.UsdtWallet.UsdtWallet.service.sweep;
+
+import com.UsdtWallet.UsdtWallet.model.dto.SweepPlanDto;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Địa chỉ đã gom đủ nhiều deposit thì sweep, 1 transfer trả phí cho cả nhóm
+ */
+@Component
+public class PendingCountSweepPolicy implements SweepPolicy {
+
+    @Value("${sweep.policy.max-pending-deposits:3}")
+    private int maxPendingDeposits;
+
+    @Override
+    public Vote evaluate(SweepPlanDto.SweepCandidate candidate, SweepPlanDto.SweepContext context) {
+        return candidate.getPendingDepositCount() >= maxPendingDeposits ? Vote.SWEEP : Vote.ABSTAIN;
+    }
+}
@@ -0,0 +1,27 @@
+package com.UsdtWallet.UsdtWallet.service.sweep;
+
+import com.UsdtWallet.UsdtWallet.model.dto.SweepPlanDto;
+
+/**
+ * Một tiêu chí quyết định có sweep child wallet hay chưa.
+ * Thêm policy mới bằng cách khai báo 1 bean implement interface này.
+ */
+public interface SweepPolicy {
+
+    /**
+     * REJECT: không sweep (thắng cả FORCE), vd. tổng dưới mức tối thiểu
+     * FORCE: phải sweep ngay (bỏ qua HOLD)
+     * SWEEP: nên sweep
+     * HOLD:  nên chờ thêm
+     * ABSTAIN: không có ý kiến
+     */
+    enum Vote {
+        REJECT, FORCE, SWEEP, HOLD, ABSTAIN
+    }
+
+    Vote evaluate(SweepPlanDto.SweepCandidate candidate, SweepPlanDto.SweepContext context);
+
+    default String getName() {
+        return getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,159 @@
+package com.UsdtWallet.UsdtWallet.service.sweep;
+
+import com.UsdtWallet.UsdtWallet.model.dto.SweepPlanDto;
+import com.UsdtWallet.UsdtWallet.model.entity.WithdrawalTransaction;
+import com.UsdtWallet.UsdtWallet.repository.WithdrawalTransactionRepository;
+import com.UsdtWallet.UsdtWallet.service.EnergyEstimatorService;
+import com.UsdtWallet.UsdtWallet.service.HdWalletService;
+import com.UsdtWallet.UsdtWallet.service.TronApiService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Kết hợp các SweepPolicy để quyết định child wallet nào được sweep, và chia thành từng lượt
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class SweepPolicyEngine {
+
+    private final List<SweepPolicy> policies;
+    private final TronApiService tronApiService;
+    private final HdWalletService hdWalletService;
+    private final WithdrawalTransactionRepository withdrawalTransactionRepository;
+    private final EnergyEstimatorService energyEstimatorService;
+
+    @Value("${sweep.gas.mode:TRX_TOPUP}")
+    private String gasMode;
+
+    @Value("${sweep.batch.size:10}")
+    private Integer sweepBatchSize;
+
+    // Context dùng lại trong vài giây để trigger theo từng deposit không gọi chain liên tục
+    @Value("${sweep.policy.context-ttl-ms:10000}")
+    private long contextTtlMs;
+
+    private volatile SweepPlanDto.SweepContext cachedContext;
+    private volatile long cachedContextAt;
+
+    /**
+     * Quyết định cho 1 candidate; set forced/reason trên candidate
+     */
+    public boolean shouldSweep(SweepPlanDto.SweepCandidate candidate) {
+        return decide(candidate, getContext());
+    }
+
+    /**
+     * Lọc các candidate cần sweep và chia thành các lượt sweepBatchSize địa chỉ,
+     * FORCE trước, sau đó deposit cũ nhất trước
+     */
+    public List<SweepPlanDto> plan(List<SweepPlanDto.SweepCandidate> candidates) {
+        SweepPlanDto.SweepContext context = getContext();
+
+        List<SweepPlanDto.SweepCandidate> selected = candidates.stream()
+            .filter(candidate -> decide(candidate, context))
+            .sorted(Comparator.comparing(SweepPlanDto.SweepCandidate::isForced).reversed()
+                .thenComparing(SweepPlanDto.SweepCandidate::getOldestDepositAt))
+            .toList();
+
+        List<SweepPlanDto> plans = new ArrayList<>();
+        for (int i = 0; i < selected.size(); i += sweepBatchSize) {
+            List<SweepPlanDto.SweepCandidate> batch = selected.subList(i, Math.min(i + sweepBatchSize, selected.size()));
+            plans.add(SweepPlanDto.builder()
+                .batchNumber(plans.size() + 1)
+                .candidates(batch)
+                .totalAmount(batch.stream()
+                    .map(SweepPlanDto.SweepCandidate::getTotalAmount)
+                    .reduce(BigDecimal.ZERO, BigDecimal::add))
+                .build());
+        }
+
+        log.debug("Sweep policy: {}/{} candidates selected in {} batches",
+            selected.size(), candidates.size(), plans.size());
+        return plans;
+    }
+
+    /**
+     * REJECT > FORCE > HOLD > SWEEP: xét hết các policy rồi mới quyết định,
+     * để FORCE (deposit cũ, thiếu thanh khoản) không sweep địa chỉ dưới mức tối thiểu
+     */
+    private boolean decide(SweepPlanDto.SweepCandidate candidate, SweepPlanDto.SweepContext context) {
+        boolean sweep = false;
+        String sweepReason = null;
+        String forceReason = null;
+        String holdReason = null;
+
+        for (SweepPolicy policy : policies) {
+            SweepPolicy.Vote vote = policy.evaluate(candidate, context);
+            switch (vote) {
+                case REJECT -> {
+                    log.debug("Sweep rejected for {} by {}", candidate.getAddress(), policy.getName());
+                    return false;
+                }
+                case FORCE -> {
+                    if (forceReason == null) {
+                        forceReason = policy.getName();
+                    }
+                }
+                case SWEEP -> {
+                    sweep = true;
+                    if (sweepReason == null) {
+                        sweepReason = policy.getName();
+                    }
+                }
+                case HOLD -> holdReason = policy.getName();
+                default -> { }
+            }
+        }
+
+        if (forceReason != null) {
+            candidate.setForced(true);
+            candidate.setReason(forceReason);
+            return true;
+        }
+        if (holdReason != null) {
+            log.debug("Sweep held for {} by {}", candidate.getAddress(), holdReason);
+            return false;
+        }
+        if (sweep && candidate.getReason() == null) {
+            candidate.setReason(sweepReason);
+        }
+        return sweep;
+    }
+
+    private SweepPlanDto.SweepContext getContext() {
+        SweepPlanDto.SweepContext context = cachedContext;
+        if (context != null && System.currentTimeMillis() - cachedContextAt < contextTtlMs) {
+            return context;
+        }
+
+        context = buildContext();
+        cachedContext = context;
+        cachedContextAt = System.currentTimeMillis();
+        return context;
+    }
+
+    private SweepPlanDto.SweepContext buildContext() {
+        boolean delegationMode = "ENERGY_DELEGATION".equalsIgnoreCase(gasMode);
+        String masterAddress = hdWalletService.getMasterWallet().getMasterAddress();
+
+        BigDecimal pendingWithdrawals = withdrawalTransactionRepository.sumNetAmountByStatusIn(List.of(
+            WithdrawalTransaction.WithdrawalStatus.PENDING,
+            WithdrawalTransaction.WithdrawalStatus.PROCESSING));
+
+        return SweepPlanDto.SweepContext.builder()
+            .energyDelegationMode(delegationMode)
+            .energyFeeSun(energyEstimatorService.getEnergyPriceSun())
+            .delegatableSun(delegationMode ? tronApiService.getCanDelegatedMaxSize(masterAddress) : 0L)
+            .masterUsdtBalance(tronApiService.getUsdtBalance(masterAddress))
+            .pendingWithdrawalAmount(pendingWithdrawals != null ? pendingWithdrawals : BigDecimal.ZERO)
+            .build();
+    }
+}
@@ -0,0 +1,45 @@
+package com.UsdtWallet.UsdtWallet.util;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+
+/**
+ * Cursor phân trang keyset trên (created_at, id), sắp xếp giảm dần.
+ * Client nhận chuỗi opaque (base64url) và gửi lại để lấy trang kế tiếp.
+ */
+public record KeysetCursor(LocalDateTime createdAt, String id) {
+
+    public static KeysetCursor of(LocalDateTime createdAt, Object id) {
+        return new KeysetCursor(createdAt, String.valueOf(id));
+    }
+
+    /**
+     * null nếu cursor rỗng (trang đầu); throw nếu cursor không hợp lệ
+     */
+    public static KeysetCursor decode(String cursor) {
+        if (cursor == null || cursor.isBlank()) {
+            return null;
+        }
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int separator = raw.indexOf('|');
+            return new KeysetCursor(LocalDateTime.parse(raw.substring(0, separator)), raw.substring(separator + 1));
+        } catch (Exception e) {
+            throw new RuntimeException("Invalid cursor");
+        }
+    }
+
+    public String encode() {
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString((createdAt + "|" + id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    public Long longId() {
+        try {
+            return Long.parseLong(id);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Invalid cursor");
+        }
+    }
+}
@@ -0,0 +1,56 @@
+-- Index cho các query nóng của points_ledger, wallet_transactions, withdrawal_transactions.
+-- CONCURRENTLY để không khoá ghi trên bảng đang chạy; Flyway tự chạy migration này ngoài transaction
+-- (mọi statement đều là CREATE INDEX CONCURRENTLY).
+
+-- points_ledger: lịch sử theo user, balance mới nhất, idempotency theo transaction_id
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_user_created
+    ON points_ledger (user_id, created_at DESC);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_user_completed
+    ON points_ledger (user_id, created_at DESC)
+    WHERE status = 'COMPLETED';
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_user_type_status
+    ON points_ledger (user_id, transaction_type, status);
+
+-- Lock withdrawal đang PENDING (getTotalPendingWithdrawalLocks)
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_pending_withdrawal_locks
+    ON points_ledger (user_id)
+    WHERE transaction_type = 'WITHDRAWAL_DEBIT' AND status = 'PENDING';
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_transaction_id
+    ON points_ledger (transaction_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_reference_id
+    ON points_ledger (reference_id);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_status_created
+    ON points_ledger (status, created_at);
+
+-- wallet_transactions: lịch sử theo user, tra cứu theo sweep, deposit chưa sweep
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_wallet_tx_user_created
+    ON wallet_transactions (user_id, created_at DESC);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_wallet_tx_status
+    ON wallet_transactions (status);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_wallet_tx_sweep_tx_hash
+    ON wallet_transactions (sweep_tx_hash);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_wallet_tx_token_sweep
+    ON wallet_transactions (token_sweep_id);
+
+-- Deposit chưa sweep (summarize / claim theo address)
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_wallet_tx_unswept_deposits
+    ON wallet_transactions (to_address, created_at)
+    WHERE transaction_type = 'DEPOSIT' AND is_swept = false AND token_sweep_id IS NULL;
+
+-- withdrawal_transactions: theo status (queue, stats), theo user, theo tx (batch payout dùng chung tx_hash)
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_withdrawal_status_created
+    ON withdrawal_transactions (status, created_at);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_withdrawal_user_created
+    ON withdrawal_transactions (user_id, created_at DESC);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_withdrawal_tx_hash
+    ON withdrawal_transactions (tx_hash);
@@ -0,0 +1,15 @@
+-- Index cho phân trang keyset (created_at, id) của các endpoint lịch sử / export.
+-- Thay thế các index (user_id, created_at) của V1: cùng prefix nên các query cũ vẫn dùng được.
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_user_created_id
+    ON points_ledger (user_id, created_at DESC, id DESC);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_wallet_tx_user_created_id
+    ON wallet_transactions (user_id, created_at DESC, id DESC);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_withdrawal_tx_user_created_id
+    ON withdrawal_transactions (user_id, created_at DESC, id DESC);
+
+DROP INDEX CONCURRENTLY IF EXISTS idx_points_ledger_user_created;
+DROP INDEX CONCURRENTLY IF EXISTS idx_wallet_tx_user_created;
+DROP INDEX CONCURRENTLY IF EXISTS idx_withdrawal_user_created;
@@ -0,0 +1,12 @@
+-- Index cho LedgerIntegrityService.
+-- Lượt INCREMENTAL tìm user có ledger mới / account_balances đổi sau watermark của lượt trước.
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_points_ledger_created
+    ON points_ledger (created_at);
+
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_account_balances_updated
+    ON account_balances (updated_at);
+
+-- Báo cáo: issue của 1 run theo keyset id
+CREATE INDEX CONCURRENTLY IF NOT EXISTS idx_ledger_integrity_issues_run
+    ON ledger_integrity_issues (run_id, id);
@@ -0,0 +1,297 @@
+package com.UsdtWallet.UsdtWallet.repository;
+
+import com.UsdtWallet.UsdtWallet.config.FlywayConfig;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.repository.Repository;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Plan regression cho mọi query của repository (@Query và derived query).
+ * Mỗi method được gọi với tham số giả (transaction rollback) để Hibernate sinh SQL, rồi SQL đó được
+ * EXPLAIN (GENERIC_PLAN) với enable_seqscan=off: còn Seq Scan trên bảng nóng nghĩa là không index nào dùng được.
+ *
+ * Cần PostgreSQL 16+ (DB trống dùng riêng cho test, bảng do ddl-auto tạo, index do Flyway):
+ * EXPLAIN_CHECK_JDBC_URL=jdbc:postgresql://localhost:5432/usdt_explain mvn test -Dtest=QueryPlanRegressionTest
+ */
+@DataJpaTest(properties = {
+    "spring.jpa.show-sql=false",
+    "spring.sql.init.mode=never",
+    "spring.jpa.properties.hibernate.session_factory.statement_inspector="
+        + "com.UsdtWallet.UsdtWallet.repository.QueryPlanRegressionTest$CapturingStatementInspector"
+})
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(FlywayConfig.class)
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@EnabledIfEnvironmentVariable(named = "EXPLAIN_CHECK_JDBC_URL", matches = ".+")
+class QueryPlanRegressionTest {
+
+    private static final Set<String> HOT_TABLES = Set.of(
+        "points_ledger", "wallet_transactions", "withdrawal_transactions", "account_balances");
+
+    // Full scan có chủ đích: ledger integrity verifier và backfill user_points_stats duyệt toàn bộ user
+    private static final Set<String> FULL_SCAN_ALLOWLIST = Set.of(
+        "PointsLedgerRepository#findIntegrityUserIdsAfter",
+        "PointsLedgerRepository#findChangedUserIdsAfter",
+        "UserPointsStatsRepository#findLedgerUserIdsAfter",
+        "UserPointsStatsRepository#insertFromLedger");
+
+    private static final List<String> capturedSql = new CopyOnWriteArrayList<>();
+
+    public static class CapturingStatementInspector implements StatementInspector {
+        @Override
+        public String inspect(String sql) {
+            String head = sql.stripLeading().toLowerCase(Locale.ROOT);
+            if (head.startsWith("select") || head.startsWith("update") || head.startsWith("delete")
+                    || head.startsWith("insert") || head.startsWith("with")) {
+                capturedSql.add(sql.strip());
+            }
+            return sql;
+        }
+    }
+
+    @DynamicPropertySource
+    static void datasource(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> System.getenv("EXPLAIN_CHECK_JDBC_URL"));
+        registry.add("spring.datasource.username", () -> envOrDefault("EXPLAIN_CHECK_DB_USERNAME", "postgres"));
+        registry.add("spring.datasource.password", () -> envOrDefault("EXPLAIN_CHECK_DB_PASSWORD", "postgres"));
+    }
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    void repositoryQueriesDoNotSeqScanHotTables() {
+        Map<String, String> regressions = new TreeMap<>();
+        List<String> uncovered = new ArrayList<>();
+        int checked = 0;
+
+        for (Class<?> repositoryType : repositoryInterfaces()) {
+            Object repository = applicationContext.getBean(repositoryType);
+            Method[] methods = repositoryType.getDeclaredMethods();
+            Arrays.sort(methods, Comparator.comparing(Method::getName));
+
+            for (Method method : methods) {
+                if (method.isDefault() || method.isSynthetic() || Modifier.isStatic(method.getModifiers())) {
+                    continue;
+                }
+                String name = repositoryType.getSimpleName() + "#" + method.getName();
+                List<String> sqls = captureSql(repository, method);
+                if (sqls.isEmpty()) {
+                    uncovered.add(name);
+                    continue;
+                }
+                if (FULL_SCAN_ALLOWLIST.contains(name)) {
+                    continue;
+                }
+                for (String sql : sqls) {
+                    checked++;
+                    List<String> seqScans = findSeqScans(explain(sql));
+                    if (!seqScans.isEmpty()) {
+                        regressions.merge(name, "Seq Scan on " + seqScans + ": " + sql, (a, b) -> a + "\n    " + b);
+                    }
+                }
+            }
+        }
+
+        assertTrue(uncovered.isEmpty(), "Repository methods that produced no SQL (check the dummy arguments): "
+            + uncovered);
+        assertTrue(regressions.isEmpty(), "Query plan regressions (" + regressions.size() + " of " + checked
+            + " statements):\n" + String.join("\n", regressions.entrySet().stream()
+                .map(e -> e.getKey() + "\n    " + e.getValue()).toList()));
+    }
+
+    private List<Class<?>> repositoryInterfaces() {
+        List<Class<?>> types = new ArrayList<>();
+        for (String beanName : applicationContext.getBeanNamesForType(Repository.class)) {
+            Class<?> beanType = applicationContext.getType(beanName);
+            if (beanType == null) {
+                continue;
+            }
+            for (Class<?> type : beanType.getInterfaces()) {
+                if (type.getPackageName().equals(QueryPlanRegressionTest.class.getPackageName())) {
+                    types.add(type);
+                }
+            }
+        }
+        types.sort(Comparator.comparing(Class::getSimpleName));
+        return types;
+    }
+
+    /**
+     * Gọi method trong transaction rollback; lỗi do tham số giả không quan trọng, SQL đã được bắt trước khi chạy
+     */
+    private List<String> captureSql(Object repository, Method method) {
+        TransactionTemplate template = new TransactionTemplate(transactionManager);
+        capturedSql.clear();
+        try {
+            template.executeWithoutResult(status -> {
+                status.setRollbackOnly();
+                try {
+                    Object result = method.invoke(repository, dummyArguments(method));
+                    if (result instanceof Stream<?> stream) {
+                        try (stream) {
+                            stream.findFirst();
+                        }
+                    }
+                } catch (Exception e) {
+                    // Bỏ qua: chỉ cần SQL
+                }
+            });
+        } catch (Exception e) {
+            // Rollback lỗi (vd constraint) cũng bỏ qua
+        }
+        return List.copyOf(capturedSql);
+    }
+
+    private Object[] dummyArguments(Method method) {
+        Type[] types = method.getGenericParameterTypes();
+        Object[] args = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            args[i] = dummyValue(types[i]);
+        }
+        return args;
+    }
+
+    private Object dummyValue(Type type) {
+        if (type instanceof ParameterizedType parameterized
+                && parameterized.getRawType() instanceof Class<?> raw
+                && Collection.class.isAssignableFrom(raw)) {
+            Object element = dummyValue(parameterized.getActualTypeArguments()[0]);
+            return Set.class.isAssignableFrom(raw) ? Set.of(element) : List.of(element);
+        }
+        Class<?> raw = type instanceof ParameterizedType parameterized
+            ? (Class<?>) parameterized.getRawType() : (Class<?>) type;
+
+        if (raw == UUID.class) return UUID.randomUUID();
+        if (raw == String.class) return "explain-check";
+        if (raw == Long.class || raw == long.class) return 1L;
+        if (raw == Integer.class || raw == int.class) return 10;
+        if (raw == Boolean.class || raw == boolean.class) return false;
+        if (raw == BigDecimal.class) return BigDecimal.ONE;
+        if (raw == LocalDateTime.class) return LocalDateTime.now().minusDays(1);
+        if (raw == LocalDate.class) return LocalDate.now();
+        if (raw == Pageable.class) return PageRequest.of(0, 20);
+        if (raw == Sort.class) return Sort.unsorted();
+        if (raw.isEnum()) return raw.getEnumConstants()[0];
+        if (Collection.class.isAssignableFrom(raw)) return List.of();
+        throw new IllegalArgumentException("No dummy value for parameter type " + type);
+    }
+
+    private String explain(String sql) {
+        String statement = "EXPLAIN (GENERIC_PLAN, FORMAT JSON) " + toPositionalParameters(sql);
+        return jdbcTemplate.execute((ConnectionCallback<String>) connection -> {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try (Statement st = connection.createStatement()) {
+                st.execute("SET LOCAL enable_seqscan = off");
+                try (ResultSet rs = st.executeQuery(statement)) {
+                    rs.next();
+                    return rs.getString(1);
+                }
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(autoCommit);
+            }
+        });
+    }
+
+    private List<String> findSeqScans(String planJson) {
+        List<String> tables = new ArrayList<>();
+        try {
+            for (JsonNode root : objectMapper.readTree(planJson)) {
+                collectSeqScans(root.path("Plan"), tables);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Unreadable plan: " + planJson, e);
+        }
+        return tables;
+    }
+
+    private void collectSeqScans(JsonNode plan, List<String> tables) {
+        if ("Seq Scan".equals(plan.path("Node Type").asText())) {
+            String relation = plan.path("Relation Name").asText();
+            if (HOT_TABLES.contains(relation)) {
+                tables.add(relation);
+            }
+        }
+        for (JsonNode child : plan.path("Plans")) {
+            collectSeqScans(child, tables);
+        }
+    }
+
+    /**
+     * JDBC "?" -> "$1", "$2"... (bỏ qua "?" trong chuỗi '...')
+     */
+    private static String toPositionalParameters(String sql) {
+        StringBuilder result = new StringBuilder(sql.length() + 16);
+        boolean inString = false;
+        int index = 0;
+        for (char c : sql.toCharArray()) {
+            if (c == '\'') {
+                inString = !inString;
+            }
+            if (c == '?' && !inString) {
+                result.append('$').append(++index);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static String envOrDefault(String name, String defaultValue) {
+        String value = System.getenv(name);
+        return value != null && !value.isBlank() ? value : defaultValue;
+    }
+}